@@ -16,7 +16,10 @@ import org.scijava.options.OptionsService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import net.imagej.Dataset;
+import org.ilastik.ilastik4ij.hdf5.CompressionProfile;
 import org.ilastik.ilastik4ij.hdf5.Hdf5DataSetWriterFromImgPlus;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoService;
+import org.ilastik.ilastik4ij.hdf5.NarrowingPolicy;
 import org.scijava.ItemVisibility;
 
 /**
@@ -36,6 +39,9 @@ public class IlastikExport implements Command {
     @Parameter
     OptionsService optionsService;
 
+    @Parameter
+    Hdf5IoService hdf5IoService;
+
     // plugin parameters
     @Parameter(visibility = ItemVisibility.MESSAGE)
     private String message = "Be careful to properly configure axes.\nScrollabale axes"
@@ -49,15 +55,32 @@ public class IlastikExport implements Command {
     @Parameter(label = "Image to save")
     private Dataset input;
 
+    @Parameter(label = "Compression", choices = {"Deflate level", "None", "Fast", "Balanced", "Smallest", "Auto"},
+               description = "Deflate level uses the level chosen below. The other profiles combine byte-shuffling"
+                             + " with increasing deflate levels, Auto tries them on a few samples of the image"
+                             + " and picks the one that gets the data to disk fastest.")
+    private String compressionProfile = "Deflate level";
+
     @Parameter(label = "Compression level (0-9)", style="spinner", min = "0", max="9",
                description = "The best setting depends on the kind of data you are saving."
                              + " Segmentations can be compressed well (-> select 9), "
                              + "but raw data is best saved without compression (->0) for faster access.")
     private int compressionLevel = 0;
+
+    @Parameter(label = "Pixel type in file", choices = {"Same as image", "float32", "uint16", "uint8"},
+               description = "Any image type can be exported. Narrower types take less space,"
+                             + " values outside of their range are clamped.")
+    private String pixelType = "Same as image";
     
     @Override
     public void run() {
-        new Hdf5DataSetWriterFromImgPlus(input.getImgPlus(), hdf5FileName.getAbsolutePath(), "data", compressionLevel, log).write();
+        CompressionProfile compression = compressionProfile.equals("Deflate level")
+                ? CompressionProfile.deflate(compressionLevel)
+                : CompressionProfile.fromName(compressionProfile);
+        Hdf5DataSetWriterFromImgPlus writer = new Hdf5DataSetWriterFromImgPlus(input.getImgPlus(), hdf5FileName.getAbsolutePath(), "data", compression, log);
+        writer.setIoService(hdf5IoService);
+        writer.setNarrowingPolicy(NarrowingPolicy.fromLabel(pixelType));
+        writer.write();
     }
     
 }
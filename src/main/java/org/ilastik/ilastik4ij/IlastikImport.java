@@ -29,6 +29,9 @@ import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
 import net.imagej.DatasetService;
 import net.imagej.ImgPlus;
 import org.ilastik.ilastik4ij.hdf5.Hdf5DataSetReader;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoExecutor.Priority;
+import org.ilastik.ilastik4ij.hdf5.Hdf5OriginService;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoService;
 import org.ilastik.ilastik4ij.util.ComboBoxDimensions;
 import org.ilastik.ilastik4ij.util.IlastikBoxModel;
 import org.scijava.ItemIO;
@@ -55,6 +58,12 @@ public class IlastikImport implements Command, ActionListener {
     @Parameter
     OptionsService optionsService;
 
+    @Parameter
+    Hdf5IoService hdf5IoService;
+
+    @Parameter
+    Hdf5OriginService hdf5OriginService;
+
     // plugin parameters
     @Parameter(label = "HDF5 file exported from ilastik")
     private File hdf5FileName;
@@ -82,10 +91,13 @@ public class IlastikImport implements Command, ActionListener {
     public void run() {
         try {
             fullFileName = hdf5FileName.getAbsolutePath();
-            this.reader = HDF5Factory.openForReading(fullFileName);
+            this.reader = hdf5IoService.getIoExecutor().call(Priority.INTERACTIVE, () -> HDF5Factory.openForReading(fullFileName));
             this.datasetList = new ArrayList<String>();
             String path = "/";
-            findAvailableDatasets(reader, path);
+            hdf5IoService.getIoExecutor().call(Priority.INTERACTIVE, () -> {
+                findAvailableDatasets(reader, path);
+                return null;
+            });
             if (datasetList.size() == 1) {
                 this.isList = false;
                 showAxesorderInputDialog();
@@ -163,7 +175,8 @@ public class IlastikImport implements Command, ActionListener {
             datasetPath = datasetList.get(0);
 //			log.info(path);
         }
-        HDF5DataSetInformation dsInfo = reader.object().getDataSetInformation(datasetPath);
+        HDF5DataSetInformation dsInfo = hdf5IoService.getIoExecutor().call(Priority.INTERACTIVE,
+                () -> reader.object().getDataSetInformation(datasetPath));
         rank = dsInfo.getRank();
         
         String datasetDescription = "Found dataset with dimensions: (";
@@ -277,7 +290,10 @@ public class IlastikImport implements Command, ActionListener {
 
         for (int i = 0; i < datasetList.size(); i++) {
 
-            if (reader.object().getDataSetInformation(dataSets[i]).getRank() == 5) {
+            final String dataSet = dataSets[i];
+            int rank = hdf5IoService.getIoExecutor().call(Priority.INTERACTIVE,
+                    () -> reader.object().getDataSetInformation(dataSet).getRank());
+            if (rank == 5) {
 
                 dataSetBox.addItem(new ComboBoxDimensions(dataSets[i], "+"));
             } else {
@@ -311,6 +327,15 @@ public class IlastikImport implements Command, ActionListener {
         }
     }
     
+    private ImgPlus readDataset() {
+        Hdf5DataSetReader datasetReader = new Hdf5DataSetReader(fullFileName, datasetPath, dimensionOrder, log, datasetService);
+        datasetReader.setIoService(hdf5IoService);
+        ImgPlus image = datasetReader.read();
+        // lets predictions hand the dataset to ilastik instead of exporting the image again
+        hdf5OriginService.register(image, hdf5FileName, datasetPath, dimensionOrder);
+        return image;
+    }
+
     @Override
     public void actionPerformed(ActionEvent event) {
         if (event.getActionCommand().equals("selectDataset")) {
@@ -321,12 +346,12 @@ public class IlastikImport implements Command, ActionListener {
         } else if (event.getActionCommand().equals("Load Raw")) {
             dimensionOrder = (String) dimBox.getSelectedItem();
             frameSelectAxisOrdering.dispose();
-            output = new Hdf5DataSetReader(fullFileName, datasetPath, dimensionOrder, log, datasetService).read();
+            output = readDataset();
             signalFinished();
         } else if (event.getActionCommand().equals("Load LUT")) {
             dimensionOrder = (String) dimBox.getSelectedItem();
             frameSelectAxisOrdering.dispose();
-            output = new Hdf5DataSetReader(fullFileName, datasetPath, dimensionOrder, log, datasetService).read();
+            output = readDataset();
             IJ.run("3-3-2 RGB"); // Applies the lookup table
             signalFinished();
         } else if (event.getActionCommand().equals("cancelAxesOrderConfiguration")) {
@@ -25,9 +25,26 @@
  */
 package org.ilastik.ilastik4ij;
 
+import org.ilastik.ilastik4ij.cache.ExportCacheService;
+import org.ilastik.ilastik4ij.cache.ExportLease;
+import org.ilastik.ilastik4ij.runner.AdmissionScheduler.Priority;
+import org.ilastik.ilastik4ij.runner.IlastikJob;
+import org.ilastik.ilastik4ij.runner.IlastikRunnerService;
+import org.ilastik.ilastik4ij.table.FeatureTable;
+import org.ilastik.ilastik4ij.table.FeatureTableReader;
+import org.ilastik.ilastik4ij.util.ConcurrentExports;
 import org.ilastik.ilastik4ij.util.IlastikUtilities;
-import org.ilastik.ilastik4ij.hdf5.Hdf5DataSetReader;
-import org.ilastik.ilastik4ij.hdf5.Hdf5DataSetWriterFromImgPlus;
+import org.ilastik.ilastik4ij.util.PassThrough;
+import org.ilastik.ilastik4ij.util.ProgressivePreview;
+import org.ilastik.ilastik4ij.util.ScratchReservation;
+import org.ilastik.ilastik4ij.util.ScratchSpaceService;
+import org.ilastik.ilastik4ij.util.TilePlanner;
+import org.ilastik.ilastik4ij.util.TiledPrediction;
+import org.ilastik.ilastik4ij.util.TransferFormat;
+import org.ilastik.ilastik4ij.hdf5.CompressionProfile;
+import org.ilastik.ilastik4ij.hdf5.Hdf5Origin;
+import org.ilastik.ilastik4ij.hdf5.Hdf5OriginService;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoService;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -35,10 +52,12 @@ import java.util.List;
 
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
+import org.scijava.display.DisplayService;
 import org.scijava.log.LogService;
 import org.scijava.options.OptionsService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
+import org.scijava.ui.UIService;
 
 import net.imagej.Dataset;
 import net.imagej.DatasetService;
@@ -60,6 +79,27 @@ public class IlastikObjectClassificationPrediction implements Command {
     @Parameter
     DatasetService datasetService;
 
+    @Parameter
+    Hdf5IoService hdf5IoService;
+
+    @Parameter
+    IlastikRunnerService runnerService;
+
+    @Parameter
+    ScratchSpaceService scratchSpaceService;
+
+    @Parameter
+    Hdf5OriginService hdf5OriginService;
+
+    @Parameter
+    ExportCacheService exportCacheService;
+
+    @Parameter
+    UIService uiService;
+
+    @Parameter
+    DisplayService displayService;
+
     // own parameters:
     @Parameter(label = "Save temporary file for training only, without prediction.")
     private Boolean saveOnly = false;
@@ -75,14 +115,43 @@ public class IlastikObjectClassificationPrediction implements Command {
 
     @Parameter(label = "Second Input Type", choices = {"Segmentation", "Probabilities"}, style = "radioButtonHorizontal")
     private String secondInputType = "Probabilities";
-    
-//    @Parameter(label = "Selected Output Type", choices = {"Class Label Image", "Feature Table"}, style = "radioButtonHorizontal")
-//    private String selectedOutputType = "Class Label Image";
 
-    @Parameter(type = ItemIO.OUTPUT)
+    @Parameter(label = "Transfer format", choices = {"HDF5", "numpy"}, style = "radioButtonHorizontal",
+               description = "Format of the files exchanged with ilastik. numpy files are uncompressed"
+                             + " and written and read through memory mapping, which is usually faster.")
+    private String transferFormat = "HDF5";
+
+    @Parameter(label = "Split time into batches", required = false,
+               description = "Predict batches of frames with several ilastik processes at the same time."
+                             + " Objects are classified per frame, so the result does not change.")
+    private Boolean splitTime = false;
+
+    @Parameter(label = "Show results while predicting", required = false,
+               description = "Predict small batches of frames in order and show the result while it fills up."
+                             + " Close it to stop early and keep the frames predicted so far.")
+    private Boolean progressive = false;
+
+    @Parameter(label = "Parallel ilastik processes (0 = automatic)", min = "0", required = false,
+               description = "Number of batches predicted at the same time. They share the threads and RAM"
+                             + " configured in the ilastik options.")
+    private int numTimeProcesses = 0;
+
+    @Parameter(label = "Selected Output Type", choices = {"Class Label Image", "Feature Table"}, style = "radioButtonHorizontal")
+    private String selectedOutputType = "Class Label Image";
+
+    @Parameter(label = "Table columns (comma separated, empty for all)", required = false,
+               description = "Only these columns of the feature table are read, which saves time and memory for large tables.")
+    private String tableColumns = "";
+
+    @Parameter(type = ItemIO.OUTPUT, required = false)
     ImgPlus predictions;
 
+    @Parameter(type = ItemIO.OUTPUT, required = false)
+    FeatureTable featureTable;
+
     private IlastikOptions ilastikOptions = null;
+    private TransferFormat format = TransferFormat.HDF5;
+    private ExportLease rawExport = null;
 
     /**
      * Run method that calls ilastik
@@ -104,10 +173,14 @@ public class IlastikObjectClassificationPrediction implements Command {
         String tempInFileName = null;
         String tempProbOrSegFileName = null;
         String tempOutFileName = null;
+        String tempTableFileName = null;
+        ScratchReservation scratch = null;
 
         try {
+            format = TransferFormat.choose(transferFormat, saveOnly, log, inputRawImage.getImgPlus(), inputProbOrSegImage.getImgPlus());
+            scratch = scratchSpaceService.reserve(ilastikOptions, estimateScratchBytes(), saveOnly);
             try {
-                tempInFileName = IlastikUtilities.getTemporaryFileName("_raw.h5");
+                tempInFileName = scratch.createTempFileName("_raw" + format.getExtension());
             } catch (IOException e) {
                 log.error("Could not create a temporary file for sending raw data to ilastik");
                 e.printStackTrace();
@@ -115,24 +188,58 @@ public class IlastikObjectClassificationPrediction implements Command {
             }
 
             try {
-                tempProbOrSegFileName = IlastikUtilities.getTemporaryFileName("_probOrSeg.h5");
+                tempProbOrSegFileName = scratch.createTempFileName("_probOrSeg" + format.getExtension());
             } catch (IOException e) {
                 log.error("Could not create a temporary file for sending prob or seg data to ilastik");
                 e.printStackTrace();
                 return;
             }
 
-            // we do not want to compress probabilities (doesn't help), but segmentations really benefit from it
-            int compressionLevel = 0;
-            if (secondInputType.equals("Segmentation")) {
-                compressionLevel = 9;
+            boolean tableOnly = selectedOutputType.equals("Feature Table");
+            if ((splitTime || progressive) && tableOnly) {
+                log.info("The feature table is exported by a single ilastik process for all frames");
+            } else if ((splitTime || progressive) && !saveOnly) {
+                predictions = predictFrameBatches(scratch);
+                predictions.setName("Object Predictions");
+                return;
+            }
+
+            // files for training are always written, to be added to a project
+            PassThrough passThrough = saveOnly ? null
+                    : PassThrough.choose(hdf5OriginService, format, log, inputRawImage.getImgPlus(), inputProbOrSegImage.getImgPlus());
+            Hdf5Origin rawOrigin = passThrough == null ? null : passThrough.getOrigin(0);
+            Hdf5Origin probOrSegOrigin = passThrough == null ? null : passThrough.getOrigin(1);
+
+            String rawPath = tempInFileName;
+            Runnable exportRaw = null;
+            if (rawOrigin != null) {
+                rawPath = rawOrigin.getIlastikPath();
+            } else if (!saveOnly && ilastikOptions.reuseExports()) {
+                // the raw image is usually shared with the previous steps of the workflow
+                exportRaw = () -> rawExport = exportCacheService.acquire(ilastikOptions, inputRawImage.getImgPlus(), format);
+            } else {
+                final String rawFileName = tempInFileName;
+                exportRaw = () -> {
+                    log.info("Dumping raw input image to temporary file " + rawFileName);
+                    format.write(inputRawImage.getImgPlus(), rawFileName, CompressionProfile.NONE, hdf5IoService, log);
+                };
+            }
+
+            Runnable exportProbOrSeg = null;
+            if (probOrSegOrigin == null) {
+                final String probOrSegFileName = tempProbOrSegFileName;
+                exportProbOrSeg = () -> {
+                    // probabilities hardly compress, but segmentations really benefit from it, so let the data decide
+                    log.info("Dumping secondary input image to temporary file " + probOrSegFileName);
+                    format.write(inputProbOrSegImage.getImgPlus(), probOrSegFileName, CompressionProfile.AUTO, hdf5IoService, log);
+                };
+            }
+
+            // the compressed secondary input usually takes longest, the raw image is written meanwhile
+            ConcurrentExports.run(exportProbOrSeg, exportRaw);
+            if (rawExport != null) {
+                rawPath = rawExport.getFile().getAbsolutePath();
             }
-            
-            log.info("Dumping raw input image to temporary file " + tempInFileName);
-            new Hdf5DataSetWriterFromImgPlus(inputRawImage.getImgPlus(), tempInFileName, "data", 0, log).write();
-            
-            log.info("Dumping secondary input image to temporary file " + tempProbOrSegFileName);
-            new Hdf5DataSetWriterFromImgPlus(inputProbOrSegImage.getImgPlus(), tempProbOrSegFileName, "data", compressionLevel, log).write();
 
             if (saveOnly) {
                 log.info("Saved files for training to " + tempInFileName + " and " + tempProbOrSegFileName
@@ -142,17 +249,38 @@ public class IlastikObjectClassificationPrediction implements Command {
             }
 
             try {
-                tempOutFileName = IlastikUtilities.getTemporaryFileName("_outPred.h5");
+                // with a table only, ilastik gets an image name of its own that is never read
+                tempOutFileName = scratch.createTempFileName("_outPred" + format.getExtension());
+                if (tableOnly) {
+                    tempTableFileName = scratch.createTempFileName("_table.csv");
+                }
             } catch (IOException e) {
                 log.error("Could not create a temporary file for obtaining the results from ilastik");
                 e.printStackTrace();
                 return;
             }
 
-            runIlastik(tempInFileName, tempProbOrSegFileName, tempOutFileName);
+            runIlastik(rawPath,
+                    probOrSegOrigin != null ? probOrSegOrigin.getIlastikPath() : tempProbOrSegFileName, passThrough.getAxisOrder(),
+                    tempOutFileName, tempTableFileName, ilastikOptions.getNumThreads(), ilastikOptions.getMaxRamMb(), Priority.INTERACTIVE);
+            if (tableOnly) {
+                try {
+                    featureTable = readFeatureTable(tempTableFileName);
+                } catch (IOException e) {
+                    log.error(e.getMessage());
+                }
+                return;
+            }
             log.info("Reading resulting probabilities from " + tempOutFileName);
 
-            predictions = new Hdf5DataSetReader(tempOutFileName, "exported_data", "tzyxc", log, datasetService).read();
+            if (ilastikOptions.loadResultsLazily() && format.canReadLazily()) {
+                predictions = format.readLazily(tempOutFileName, hdf5IoService, log);
+                // the result owns the file now and deletes it once it has been closed
+                tempOutFileName = null;
+            } else {
+                // every object shows its class, the index tells the objects apart
+                predictions = format.readLabels(tempOutFileName, true, ilastikOptions.compressLabels(), datasetService, hdf5IoService, log);
+            }
             predictions.setName("Object Predictions");
         } catch (final Exception e) {
             log.warn("Ilastik Object Classification Prediction failed");
@@ -169,63 +297,130 @@ public class IlastikObjectClassificationPrediction implements Command {
                 if (tempOutFileName != null) {
                     new File(tempOutFileName).delete();
                 }
+                if (tempTableFileName != null) {
+                    new File(tempTableFileName).delete();
+                }
+            }
+            if (rawExport != null) {
+                rawExport.close();
+                rawExport = null;
+            }
+            if (scratch != null) {
+                scratch.close();
             }
         }
     }
 
-    private void runIlastik(String tempInRawFileName, String tempProbOrSegFilename, String tempOutFileName) {
-        List<String> commandLine = new ArrayList<>();
-        commandLine.add(ilastikOptions.getExecutableFilePath());
-        commandLine.add("--headless");
-        commandLine.add("--project=" + projectFileName.getAbsolutePath());
-        commandLine.add("--output_filename_format=" + tempOutFileName);
-        commandLine.add("--output_format=hdf5");
-        commandLine.add("--output_axis_order=tzyxc");
-        commandLine.add("--raw_data=" + tempInRawFileName);
+    /**
+     * Both inputs plus the resulting label image of at most 32 bits per pixel.
+     */
+    private long estimateScratchBytes() {
+        ImgPlus<?> raw = inputRawImage.getImgPlus();
+        return IlastikUtilities.estimateHdf5Bytes(raw)
+                + IlastikUtilities.estimateHdf5Bytes(inputProbOrSegImage.getImgPlus())
+                + 4 * IlastikUtilities.countPixelsPerChannel(raw);
+    }
 
-        if (secondInputType.equals("Segmentation")) {
-            commandLine.add("--segmentation_image=" + tempProbOrSegFilename);
-        } else {
-            commandLine.add("--prediction_maps=" + tempProbOrSegFilename);
+    /**
+     * Predicts batches of frames, several at a time, and puts the results back together in frame order.
+     */
+    private ImgPlus predictFrameBatches(ScratchReservation scratch) throws InterruptedException {
+        final ImgPlus<?> raw = inputRawImage.getImgPlus();
+        final ImgPlus<?> probOrSeg = inputProbOrSegImage.getImgPlus();
+        final TiledPrediction prediction = new TiledPrediction(raw, "Object Predictions", ilastikOptions, numTimeProcesses,
+                hdf5IoService.getCpuExecutor(), datasetService, log);
+        long[] dims = TiledPrediction.dimensions(raw);
+        long[] batchShape = dims.clone();
+        int minBatches = prediction.getNumProcesses();
+        if (progressive) {
+            minBatches *= TiledPrediction.PROGRESSIVE_BATCHES_PER_PROCESS;
         }
-        
-//        if (selectedOutputType.equals("Feature Table"))
-//        {
-//            commandLine.add("--table_filename="+tempOutFileName);
-//            commandLine.add("--table_only");
-//        }
+        batchShape[3] = TilePlanner.chooseBatchSize(dims[3], 1, minBatches);
+        log.info("Batches of up to " + batchShape[3] + " frames");
 
-        log.info("Running ilastik headless command:");
-        log.info(commandLine);
-
-        ProcessBuilder pB = new ProcessBuilder(commandLine);
-        ilastikOptions.configureProcessBuilderEnvironment(pB);
-
-        // run ilastik
-        Process p;
+        ProgressivePreview preview = null;
+        if (progressive && !uiService.isHeadless()) {
+            preview = new ProgressivePreview("Object Predictions", uiService, displayService, datasetService);
+            prediction.setProgressiveDisplay(preview);
+        }
         try {
-            p = pB.start();
-
-            // write ilastik output to IJ log
-            IlastikUtilities.redirectOutputToLogService(p.getInputStream(), log, false);
-            IlastikUtilities.redirectOutputToLogService(p.getErrorStream(), log, true);
-
-            try {
-                p.waitFor();
-            } catch (InterruptedException cee) {
-                log.warn("Execution got interrupted");
-                p.destroy();
+            return prediction.run(TilePlanner.plan(dims, batchShape, new long[dims.length]), (index, batch) -> {
+                String batchRawFileName = scratch.createTempFileName("_batch" + index + "_raw" + format.getExtension());
+                String batchProbOrSegFileName = scratch.createTempFileName("_batch" + index + "_probOrSeg" + format.getExtension());
+                String batchOutFileName = scratch.createTempFileName("_batch" + index + "_outPred" + format.getExtension());
+                try {
+                    log.info("Dumping frames " + batch.getCoreMin()[3] + " to " + batch.getCoreMax()[3] + " to temporary files "
+                            + batchRawFileName + " and " + batchProbOrSegFileName);
+                    ConcurrentExports.run(
+                            () -> format.write(TiledPrediction.crop(probOrSeg, batch), batchProbOrSegFileName, CompressionProfile.AUTO, hdf5IoService, log),
+                            () -> format.write(TiledPrediction.crop(raw, batch), batchRawFileName, CompressionProfile.NONE, hdf5IoService, log));
+                    runIlastik(batchRawFileName, batchProbOrSegFileName, format.getAxisOrder(), batchOutFileName, null,
+                            prediction.getThreadsPerProcess(), prediction.getRamPerProcessMb(), Priority.BATCH);
+                    return format.read(batchOutFileName, datasetService, hdf5IoService, log);
+                } finally {
+                    new File(batchRawFileName).delete();
+                    new File(batchProbOrSegFileName).delete();
+                    new File(batchOutFileName).delete();
+                }
+            });
+        } finally {
+            if (preview != null) {
+                preview.close();
             }
+        }
+    }
 
-            // 0 indicates successful execution
-            if (p.exitValue() != 0) {
-                log.error("ilastik crashed");
-                throw new IllegalStateException("Execution of ilastik was not successful.");
+    /**
+     * Reads the feature table ilastik exported, shows it unless running headless and deletes the file.
+     */
+    private FeatureTable readFeatureTable(String tableFileName) throws IOException {
+        File tableFile = FeatureTableReader.findTable(new File(tableFileName));
+        if (tableFile == null) {
+            throw new IOException("ilastik did not export a feature table to " + tableFileName);
+        }
+        try {
+            log.info("Reading resulting features from " + tableFile);
+            FeatureTableReader reader = new FeatureTableReader();
+            reader.setColumns(FeatureTableReader.parseColumnNames(tableColumns));
+            FeatureTable table = reader.read(tableFile);
+            log.info(table.toString());
+            if (!uiService.isHeadless()) {
+                table.toResultsTable().show("Object Features");
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            return table;
+        } finally {
+            tableFile.delete();
         }
-        log.info("ilastik finished successfully!");
     }
 
+    /**
+     * @param inputAxes axes of both inputs in ilastik's notation
+     * @param tempTableFileName export only the object features, to this file instead of the label image,
+     *                          or null to export the label image
+     * @param priority          {@link Priority#BATCH} for batches of frames, so single predictions of other commands go first
+     */
+    private void runIlastik(String tempInRawFileName, String tempProbOrSegFilename, String inputAxes, String tempOutFileName,
+                            String tempTableFileName, int numThreads, int maxRamMb, Priority priority) {
+        List<String> jobArgs = new ArrayList<>();
+        jobArgs.add("--output_filename_format=" + tempOutFileName);
+        jobArgs.add("--input_axes=" + inputAxes);
+        format.addOutputArguments(jobArgs);
+        jobArgs.add("--raw_data=" + tempInRawFileName);
+
+        if (secondInputType.equals("Segmentation")) {
+            jobArgs.add("--segmentation_image=" + tempProbOrSegFilename);
+        } else {
+            jobArgs.add("--prediction_maps=" + tempProbOrSegFilename);
+        }
+
+        if (tempTableFileName != null) {
+            jobArgs.add("--table_filename=" + tempTableFileName);
+            jobArgs.add("--table_only");
+        }
+
+        IlastikJob job = new IlastikJob(projectFileName, jobArgs);
+        job.setShare(numThreads, maxRamMb);
+        job.setPriority(priority);
+        runnerService.runOrFail(ilastikOptions, job);
+    }
 }
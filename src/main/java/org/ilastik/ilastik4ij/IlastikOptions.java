@@ -55,11 +55,73 @@ public class IlastikOptions extends OptionsPlugin {
     @Parameter(label = "Path to ilastik executable")
     private File executableFilePath = new File("/Users/chaubold/Desktop/ilastik-1.2.0-OSX.app");
 
-    @Parameter(label = "Number of Threads ilastik is allowed to use.\nNegative numbers means no restriction")
+    @Parameter(label = "Number of Threads ilastik is allowed to use.\nNegative numbers means no restriction",
+               description = "Shared by all ilastik processes running at the same time, negative numbers mean all cores.")
     private int numThreads = -1;
 
-    @Parameter(min = "256", label="Maximum amount of RAM (in MB) that ilastik is allowed to use.")
+    @Parameter(min = "256", label="Maximum amount of RAM (in MB) that ilastik is allowed to use.",
+               description = "Shared by all ilastik processes running at the same time. Further predictions wait"
+                             + " until enough of it is free.")
     private int maxRamMb = 4096;
+
+    @Parameter(min = "0", label = "Stop ilastik after this many minutes, 0 for no limit")
+    private int jobTimeoutMinutes = 0;
+
+    @Parameter(label = "Location of temporary files", choices = {"System temp directory", "RAM disk if there is room"},
+               description = "Files exchanged with ilastik can be put on a RAM disk, which is much faster than"
+                             + " most disks. Jobs that do not fit use the system temp directory.")
+    private String scratchPolicy = "System temp directory";
+
+    @Parameter(label = "RAM disk directory")
+    private File ramScratchDirectory = new File("/dev/shm");
+
+    @Parameter(min = "0", label = "Maximum size of temporary files on the RAM disk (in MB), 0 for no limit")
+    private int maxRamScratchMb = 0;
+
+    @Parameter(label = "Keep ilastik running between predictions (worker mode)",
+               description = "Saves starting ilastik and loading the project for every prediction.")
+    private boolean useWorkers = false;
+
+    @Parameter(min = "1", label = "Number of ilastik workers per project")
+    private int numWorkers = 1;
+
+    @Parameter(min = "1", label = "Restart a worker after this many predictions")
+    private int maxJobsPerWorker = 50;
+
+    @Parameter(min = "0", label = "Restart a worker using more RAM (in MB) than this, 0 for no limit")
+    private int maxWorkerRamMb = 0;
+
+    @Parameter(required = false, label = "Python of the ilastik installation for workers (detected if empty)")
+    private File workerPythonPath;
+
+    @Parameter(label = "Cache prediction results on disk",
+               description = "Running the same project on the same image again returns the cached result"
+                             + " instead of running ilastik. The cache can be shared by several Fiji instances.")
+    private boolean useResultCache = false;
+
+    @Parameter(label = "Result cache directory")
+    private File resultCacheDirectory = new File(System.getProperty("user.home"), ".ilastik4ij" + File.separator + "cache");
+
+    @Parameter(min = "1", label = "Maximum size of the result cache (in MB)")
+    private int maxResultCacheMb = 10240;
+
+    @Parameter(label = "Share exported raw images between commands",
+               description = "Keeps the export of a raw image while it is open, so that e.g. object classification"
+                             + " and tracking after pixel classification do not export it again.")
+    private boolean reuseExports = false;
+
+    @Parameter(min = "1", label = "Maximum size of shared exports (in MB)")
+    private int maxExportCacheMb = 4096;
+
+    @Parameter(label = "Load HDF5 results on demand",
+               description = "Returns results backed by the file written by ilastik and reads slices when they are"
+                             + " first shown or processed. The file is deleted once the result has been closed.")
+    private boolean loadResultsLazily = false;
+
+    @Parameter(label = "Compress label images in memory",
+               description = "Stores object classification and tracking results as runs of equal labels, which takes"
+                             + " far less memory for mostly background, but the images cannot be edited.")
+    private boolean compressLabels = false;
     
     private static String getOS() {
         return System.getProperty("os.name", "generic").toLowerCase();
@@ -84,6 +146,113 @@ public class IlastikOptions extends OptionsPlugin {
         return numThreads;
     }
 
+    public boolean useRamScratch() {
+        return scratchPolicy.equals("RAM disk if there is room");
+    }
+
+    public File getRamScratchDirectory() {
+        return ramScratchDirectory;
+    }
+
+    public long getMaxRamScratchMb() {
+        return maxRamScratchMb;
+    }
+
+    public int getJobTimeoutMinutes() {
+        return jobTimeoutMinutes;
+    }
+
+    public boolean useWorkers() {
+        return useWorkers;
+    }
+
+    public int getNumWorkers() {
+        return numWorkers;
+    }
+
+    public int getMaxJobsPerWorker() {
+        return maxJobsPerWorker;
+    }
+
+    public int getMaxWorkerRamMb() {
+        return maxWorkerRamMb;
+    }
+
+    /**
+     * Workers run a driver script in the Python interpreter that ships with ilastik,
+     * which is found next to the executable unless configured explicitly.
+     */
+    public String getWorkerPythonPath() {
+        if (workerPythonPath != null && !workerPythonPath.getPath().isEmpty()) {
+            return workerPythonPath.getAbsolutePath();
+        }
+        final String os = getOS();
+        if (os.contains("mac") || os.contains("darwin")) {
+            return executableFilePath.getAbsolutePath().concat("/Contents/ilastik-release/bin/python");
+        }
+        File installationDir = executableFilePath.getAbsoluteFile().getParentFile();
+        if (os.contains("win")) {
+            return new File(installationDir, "python.exe").getAbsolutePath();
+        }
+        return new File(installationDir, "bin/python").getAbsolutePath();
+    }
+
+    public boolean useResultCache() {
+        return useResultCache;
+    }
+
+    public File getResultCacheDirectory() {
+        return resultCacheDirectory;
+    }
+
+    public long getMaxResultCacheMb() {
+        return maxResultCacheMb;
+    }
+
+    public boolean reuseExports() {
+        return reuseExports;
+    }
+
+    public long getMaxExportCacheMb() {
+        return maxExportCacheMb;
+    }
+
+    public boolean loadResultsLazily() {
+        return loadResultsLazily;
+    }
+
+    public boolean compressLabels() {
+        return compressLabels;
+    }
+
+    public void setUseWorkers(boolean useWorkers) {
+        this.useWorkers = useWorkers;
+    }
+
+    public void setNumWorkers(int numWorkers) {
+        this.numWorkers = numWorkers;
+    }
+
+    public void setUseResultCache(boolean useResultCache) {
+        this.useResultCache = useResultCache;
+    }
+
+    public void setLoadResultsLazily(boolean loadResultsLazily) {
+        this.loadResultsLazily = loadResultsLazily;
+    }
+
+    public void setCompressLabels(boolean compressLabels) {
+        this.compressLabels = compressLabels;
+    }
+
+    public void setResultCacheDirectory(File resultCacheDirectory) {
+        this.resultCacheDirectory = resultCacheDirectory;
+    }
+
+    public void setMaxResultCacheMb(int maxResultCacheMb) {
+        this.maxResultCacheMb = maxResultCacheMb;
+    }
+
     public void setExecutableFilePath(String executableFilePath) {
         this.executableFilePath = new File(executableFilePath);
     }
@@ -107,6 +276,17 @@ public class IlastikOptions extends OptionsPlugin {
     }
 
     public void configureProcessBuilderEnvironment(ProcessBuilder pb) {
+        configureProcessBuilderEnvironment(pb, numThreads, maxRamMb);
+    }
+
+    /**
+     * Like {@link #configureProcessBuilderEnvironment(ProcessBuilder)}, but with a share of the thread and RAM
+     * budget for one of several ilastik processes running at the same time.
+     *
+     * @param numThreads threads of this process, -1 for no limit
+     * @param maxRamMb   RAM of this process
+     */
+    public void configureProcessBuilderEnvironment(ProcessBuilder pb, int numThreads, int maxRamMb) {
         final Map<String, String> env = pb.environment();
         if (numThreads >= 0) {
             env.put("LAZYFLOW_THREADS", String.valueOf(numThreads));
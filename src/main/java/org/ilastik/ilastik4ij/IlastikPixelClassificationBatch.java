@@ -0,0 +1,156 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 ilastik
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.ilastik.ilastik4ij;
+
+import org.ilastik.ilastik4ij.batch.BatchInput;
+import org.ilastik.ilastik4ij.batch.PixelClassificationBatch;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoService;
+import org.ilastik.ilastik4ij.runner.IlastikRunnerService;
+import org.ilastik.ilastik4ij.util.ScratchSpaceService;
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.scijava.app.StatusService;
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.options.OptionsService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import net.imagej.DatasetService;
+
+/**
+ * Runs pixel classification on all matching images of a folder with few ilastik invocations
+ * and saves each result as HDF5 as soon as it is done.
+ */
+@Plugin(type = Command.class, headless = true, menuPath = "Plugins>ilastik>Run Pixel Classification Batch")
+public class IlastikPixelClassificationBatch implements Command {
+
+    // needed services:
+    @Parameter
+    LogService log;
+
+    @Parameter
+    OptionsService optionsService;
+
+    @Parameter
+    DatasetService datasetService;
+
+    @Parameter
+    Hdf5IoService hdf5IoService;
+
+    @Parameter
+    IlastikRunnerService runnerService;
+
+    @Parameter
+    ScratchSpaceService scratchSpaceService;
+
+    @Parameter
+    StatusService statusService;
+
+    // own parameters:
+    @Parameter(label = "Trained ilastik project file")
+    private File projectFileName;
+
+    @Parameter(label = "Input folder", style = "directory")
+    private File inputDirectory;
+
+    @Parameter(label = "File name pattern", description = "Images of the input folder to predict, e.g. *.tif")
+    private String filePattern = "*.tif";
+
+    @Parameter(label = "Output folder", style = "directory")
+    private File outputDirectory;
+
+    @Parameter(label = "Output type", choices = {"Segmentation", "Probabilities"}, style = "radioButtonHorizontal")
+    private String chosenOutputType = "Probabilities";
+
+    @Parameter(label = "Parallel ilastik processes (0 = automatic)", min = "0", required = false,
+               description = "ilastik invocations running at the same time. They share the threads and RAM"
+                             + " configured in the ilastik options.")
+    private int numProcesses = 0;
+
+    /**
+     * Run method that calls ilastik
+     */
+    @Override
+    public void run() {
+        IlastikOptions ilastikOptions = optionsService.getOptions(IlastikOptions.class);
+
+        if (ilastikOptions == null) {
+            log.error("Could not find configured ilastik options!");
+            return;
+        }
+
+        if (!ilastikOptions.isConfigured()) {
+            log.error("ilastik service must be configured before use!");
+            return;
+        }
+
+        File[] files = inputDirectory.listFiles();
+        if (files == null) {
+            log.error("Could not list the files in " + inputDirectory);
+            return;
+        }
+        Arrays.sort(files);
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + filePattern);
+        List<BatchInput> inputs = new ArrayList<>();
+        for (File file : files) {
+            if (file.isFile() && matcher.matches(file.toPath().getFileName())) {
+                inputs.add(BatchInput.fromFile(file));
+            }
+        }
+        if (inputs.isEmpty()) {
+            log.warn("No files in " + inputDirectory + " match " + filePattern);
+            return;
+        }
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            log.error("Could not create the output folder " + outputDirectory);
+            return;
+        }
+
+        PixelClassificationBatch batch = new PixelClassificationBatch(projectFileName, ilastikOptions, runnerService,
+                scratchSpaceService, hdf5IoService, datasetService, log);
+        batch.setOutputType(chosenOutputType);
+        batch.setNumProcesses(numProcesses);
+        batch.setProgressListener(progress ->
+                statusService.showStatus((int) Math.round(progress.getPercent()), 100, progress.toString()));
+        try {
+            List<BatchInput> failed = batch.run(inputs, result -> {
+                File target = new File(outputDirectory, result.getInput().getName() + "_" + chosenOutputType + ".h5");
+                result.moveTo(target);
+                log.info("Saved " + target);
+            });
+            if (!failed.isEmpty()) {
+                log.warn("ilastik pixel classification failed for " + failed.size() + " images: " + failed);
+            }
+        } catch (InterruptedException e) {
+            log.warn("Execution got interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -25,24 +25,47 @@
  */
 package org.ilastik.ilastik4ij;
 
+import org.ilastik.ilastik4ij.cache.ExportCacheService;
+import org.ilastik.ilastik4ij.cache.ExportLease;
+import org.ilastik.ilastik4ij.cache.PredictionCacheService;
+import org.ilastik.ilastik4ij.runner.AdmissionScheduler.Priority;
+import org.ilastik.ilastik4ij.runner.IlastikJob;
+import org.ilastik.ilastik4ij.runner.IlastikRunnerService;
 import org.ilastik.ilastik4ij.util.IlastikUtilities;
-import org.ilastik.ilastik4ij.hdf5.Hdf5DataSetReader;
-import org.ilastik.ilastik4ij.hdf5.Hdf5DataSetWriterFromImgPlus;
+import org.ilastik.ilastik4ij.util.IlastikProjectFile;
+import org.ilastik.ilastik4ij.util.PassThrough;
+import org.ilastik.ilastik4ij.util.ProbabilityPrecision;
+import org.ilastik.ilastik4ij.util.ProgressivePreview;
+import org.ilastik.ilastik4ij.util.ScratchReservation;
+import org.ilastik.ilastik4ij.util.SimpleSegmentation;
+import org.ilastik.ilastik4ij.util.ScratchSpaceService;
+import org.ilastik.ilastik4ij.util.TilePlanner;
+import org.ilastik.ilastik4ij.util.TiledPrediction;
+import org.ilastik.ilastik4ij.util.TransferFormat;
+import org.ilastik.ilastik4ij.hdf5.CompressionProfile;
+import org.ilastik.ilastik4ij.hdf5.Hdf5Origin;
+import org.ilastik.ilastik4ij.hdf5.Hdf5OriginService;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoService;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.scijava.ItemIO;
 import org.scijava.command.Command;
+import org.scijava.display.DisplayService;
 import org.scijava.log.LogService;
 import org.scijava.options.OptionsService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
+import org.scijava.ui.UIService;
 
 import java.io.File;
 import net.imagej.Dataset;
 import net.imagej.DatasetService;
 import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
 
 /**
  *
@@ -60,6 +83,30 @@ public class IlastikPixelClassificationPrediction implements Command {
         @Parameter
         OptionsService optionsService;
 
+        @Parameter
+        Hdf5IoService hdf5IoService;
+
+        @Parameter
+        IlastikRunnerService runnerService;
+
+        @Parameter
+        ScratchSpaceService scratchSpaceService;
+
+        @Parameter
+        PredictionCacheService predictionCacheService;
+
+        @Parameter
+        Hdf5OriginService hdf5OriginService;
+
+        @Parameter
+        ExportCacheService exportCacheService;
+
+        @Parameter
+        UIService uiService;
+
+        @Parameter
+        DisplayService displayService;
+
         // own parameters:
         @Parameter(label = "Save temporary file for training only, without prediction.")
         private Boolean saveOnly = false;
@@ -70,13 +117,68 @@ public class IlastikPixelClassificationPrediction implements Command {
         @Parameter(label = "Raw input image")
         private Dataset inputImage;
 
-        @Parameter(label = "Output type", choices = {"Segmentation", "Probabilities"}, style = "radioButtonHorizontal")
+        @Parameter(label = "Output type", choices = {"Segmentation", "Probabilities", "Both"}, style = "radioButtonHorizontal",
+                   description = "Both runs ilastik once for probabilities and computes the segmentation from them.")
         private String chosenOutputType = "Probabilities";
 
+        @Parameter(label = "Probability precision", choices = {"float32", "uint16", "uint8"}, style = "radioButtonHorizontal",
+                   required = false,
+                   description = "Datatype of probabilities. uint8 and uint16 map probabilities 0 to 1 to their full range"
+                                 + " and need a quarter or half of the disk space and memory of float32.")
+        private String probabilityPrecision = "float32";
+
+        @Parameter(label = "Transfer format", choices = {"HDF5", "numpy"}, style = "radioButtonHorizontal",
+                   description = "Format of the files exchanged with ilastik. numpy files are uncompressed"
+                                 + " and written and read through memory mapping, which is usually faster.")
+        private String transferFormat = "HDF5";
+
+        @Parameter(label = "Split into tiles", required = false,
+                   description = "Predict overlapping tiles with several ilastik processes at the same time"
+                                 + " and stitch the results, for images too large for a single process.")
+        private Boolean tiled = false;
+
+        @Parameter(label = "Split time into batches", required = false,
+                   description = "Predict batches of frames with several ilastik processes at the same time."
+                                 + " Frames are classified independently, so the result does not change.")
+        private Boolean splitTime = false;
+
+        @Parameter(label = "Show results while predicting", required = false,
+                   description = "Predict small batches of frames in order and show the result while it fills up."
+                                 + " Close it to stop early and keep the frames predicted so far.")
+        private Boolean progressive = false;
+
+        @Parameter(label = "Parallel ilastik processes (0 = automatic)", min = "0", required = false,
+                   description = "Number of tiles or batches predicted at the same time. They share the threads and RAM"
+                                 + " configured in the ilastik options.")
+        private int numTileProcesses = 0;
+
+        @Parameter(label = "Tile halo in pixels (-1 = from project)", min = "-1", required = false,
+                   description = "Context added around each tile. By default it is derived from the largest"
+                                 + " feature scale selected in the project.")
+        private int tileHalo = -1;
+
         @Parameter(type = ItemIO.OUTPUT)
         private ImgPlus predictions;
 
+        @Parameter(type = ItemIO.OUTPUT, required = false)
+        private ImgPlus segmentation;
+
         private IlastikOptions ilastikOptions = null;
+        private TransferFormat format = TransferFormat.HDF5;
+        private ProbabilityPrecision precision = ProbabilityPrecision.FLOAT32;
+        // what ilastik exports, probabilities for "Both"
+        private String exportedType = "Probabilities";
+        private boolean predictionStopped = false;
+
+        // ilastik's filters reach about three sigma of their largest scale, which is 1.5 sigma for the structure tensor
+        private static final double HALO_PER_SCALE = 4.5;
+        // the largest scale of ilastik's default feature selection, used if the project cannot be read
+        private static final double DEFAULT_FEATURE_SCALE = 10.0;
+        // roughly all features of ilastik's default scales, used if the project cannot be read
+        private static final int DEFAULT_NUM_FEATURES = 40;
+        // lazyflow keeps features and intermediate results, so plan for about twice the size of the features
+        private static final int FEATURE_COPIES = 2;
+        private static final long MB = 1024 * 1024;
 
         /**
          * Run method that calls ilastik
@@ -97,18 +199,62 @@ public class IlastikPixelClassificationPrediction implements Command {
 
                 String tempInFileName = null;
                 String tempOutFileName = null;
+                ScratchReservation scratch = null;
+                ExportLease rawExport = null;
+                String cacheKey = null;
                 
                 try{
+                    format = TransferFormat.choose(transferFormat, saveOnly, log, inputImage.getImgPlus());
+                    exportedType = chosenOutputType.equals("Segmentation") ? "Segmentation" : "Probabilities";
+                    precision = exportedType.equals("Probabilities")
+                                    ? ProbabilityPrecision.fromLabel(probabilityPrecision) : ProbabilityPrecision.FLOAT32;
+                    if (chosenOutputType.equals("Both") && precision != ProbabilityPrecision.FLOAT32) {
+                            // quantized probabilities can tie where ilastik's float32 ones do not
+                            log.warn("Using float32 probabilities, so that the segmentation matches the one of ilastik");
+                            precision = ProbabilityPrecision.FLOAT32;
+                    }
+                    if (!saveOnly && ilastikOptions.useResultCache()) {
+                            cacheKey = predictionCacheService.createKey(ilastikOptions, projectFileName, inputImage.getImgPlus(),
+                                            "PixelClassification", exportedType, precision.toString(), format.toString());
+                            ImgPlus cached = cacheKey == null ? null : predictionCacheService.lookup(ilastikOptions, cacheKey, format);
+                            if (cached != null) {
+                                    predictions = cached;
+                                    finishPredictions();
+                                    return;
+                            }
+                    }
+                    scratch = scratchSpaceService.reserve(ilastikOptions, estimateScratchBytes(), saveOnly);
                     try {
-                            tempInFileName = IlastikUtilities.getTemporaryFileName("_raw.h5");
+                            tempInFileName = scratch.createTempFileName("_raw" + format.getExtension());
                     } catch (IOException e) {
                             log.error("Could not create a temporary file for sending raw data to ilastik");
                             e.printStackTrace();
                             return;
                     }
 
-                    log.info("Dumping input image to temporary file " + tempInFileName);
-                    new Hdf5DataSetWriterFromImgPlus(inputImage.getImgPlus(), tempInFileName, "data", 0, log).write();
+                    if ((tiled || splitTime || progressive) && !saveOnly) {
+                            predictions = predictTiles(scratch);
+                            finishPredictions();
+                            // a stopped prediction is incomplete
+                            if (cacheKey != null && !predictionStopped) {
+                                    predictionCacheService.store(ilastikOptions, cacheKey, predictions, format);
+                            }
+                            return;
+                    }
+
+                    // files for training are always written, to be added to a project
+                    PassThrough passThrough = saveOnly ? null : PassThrough.choose(hdf5OriginService, format, log, inputImage.getImgPlus());
+                    Hdf5Origin rawOrigin = passThrough == null ? null : passThrough.getOrigin(0);
+                    String rawPath = tempInFileName;
+                    if (rawOrigin != null) {
+                            rawPath = rawOrigin.getIlastikPath();
+                    } else if (!saveOnly && ilastikOptions.reuseExports()) {
+                            rawExport = exportCacheService.acquire(ilastikOptions, inputImage.getImgPlus(), format);
+                            rawPath = rawExport.getFile().getAbsolutePath();
+                    } else {
+                            log.info("Dumping input image to temporary file " + tempInFileName);
+                            format.write(inputImage.getImgPlus(), tempInFileName, CompressionProfile.NONE, hdf5IoService, log);
+                    }
 
                     if (saveOnly) {
                             log.info("Saved file for training to " + tempInFileName + ". Use it to train an ilastik pixelClassificationProject now,"
@@ -117,19 +263,40 @@ public class IlastikPixelClassificationPrediction implements Command {
                     }
 
                     try {
-                            tempOutFileName = IlastikUtilities.getTemporaryFileName("_out" + chosenOutputType + ".h5");
+                            tempOutFileName = scratch.createTempFileName("_out" + exportedType + format.getExtension());
                     } catch (IOException e) {
                             log.error("Could not create a temporary file for obtaining the results from ilastik");
                             e.printStackTrace();
                             return;
                     }
 
-                    runIlastik(tempInFileName, tempOutFileName);
-                    log.info("Reading resulting " + chosenOutputType + " from " + tempOutFileName);
+                    runIlastik(rawPath, passThrough.getAxisOrder(),
+                                    tempOutFileName, ilastikOptions.getNumThreads(), ilastikOptions.getMaxRamMb(), Priority.INTERACTIVE);
+                    log.info("Reading resulting " + exportedType + " from " + tempOutFileName);
 
-                    predictions = new Hdf5DataSetReader(tempOutFileName, "exported_data", "tzyxc", log, datasetService).read();
-                    predictions.setName(chosenOutputType);
-                    predictions.setSource("ComputedByIlastik");
+                    if (ilastikOptions.loadResultsLazily() && format.canReadLazily()) {
+                            if (cacheKey != null) {
+                                    // the cache takes over a copy, the file itself stays with the result
+                                    String cacheCopyFileName = scratch.createTempFileName("_cache" + format.getExtension());
+                                    try {
+                                            Files.copy(Paths.get(tempOutFileName), Paths.get(cacheCopyFileName));
+                                            predictionCacheService.store(ilastikOptions, cacheKey, new File(cacheCopyFileName), format);
+                                    } catch (IOException e) {
+                                            log.warn("Could not add the result to the cache: " + e.getMessage());
+                                            new File(cacheCopyFileName).delete();
+                                    }
+                            }
+                            predictions = format.readLazily(tempOutFileName, hdf5IoService, log);
+                            // the result owns the file now and deletes it once it has been closed
+                            tempOutFileName = null;
+                    } else {
+                            predictions = format.read(tempOutFileName, datasetService, hdf5IoService, log);
+                            if (cacheKey != null) {
+                                    // the cache takes over the file instead of it being deleted below
+                                    predictionCacheService.store(ilastikOptions, cacheKey, new File(tempOutFileName), format);
+                            }
+                    }
+                    finishPredictions();
                 }
                 catch(final Exception e)
                 {
@@ -144,52 +311,134 @@ public class IlastikPixelClassificationPrediction implements Command {
 						if (tempOutFileName != null)
 							new File(tempOutFileName).delete();
 					}
+					if (rawExport != null)
+						rawExport.close();
+					if (scratch != null)
+						scratch.close();
 				}
         }
 
-        private void runIlastik(String tempInFileName, String tempOutFileName) {
-                List<String> commandLine = new ArrayList<>();
-                commandLine.add(ilastikOptions.getExecutableFilePath());
-                commandLine.add("--headless");
-                commandLine.add("--project=" + projectFileName.getAbsolutePath());
-                commandLine.add("--output_filename_format=" + tempOutFileName);
-                commandLine.add("--output_format=hdf5");
-                commandLine.add("--output_axis_order=tzyxc");
-                if (chosenOutputType.equals("Segmentation")) {
-                        commandLine.add("--export_source=Simple Segmentation");
+        private void finishPredictions() throws InterruptedException {
+                predictions.setName(exportedType);
+                predictions.setSource("ComputedByIlastik");
+                if (exportedType.equals("Probabilities")) {
+                        precision.annotate(predictions);
                 }
-                commandLine.add(tempInFileName);
-
-                log.info("Running ilastik headless command:");
-                log.info(commandLine);
+                if (chosenOutputType.equals("Both")) {
+                        log.info("Computing the segmentation from the probabilities");
+                        segmentation = SimpleSegmentation.compute(predictions, hdf5IoService.getCpuExecutor());
+                        segmentation.setName("Segmentation");
+                        segmentation.setSource("ComputedByIlastik");
+                }
+        }
 
-                ProcessBuilder pB = new ProcessBuilder(commandLine);
-                ilastikOptions.configureProcessBuilderEnvironment(pB);
+        /**
+         * Raw input plus the result, which has one channel per class for probabilities.
+         */
+        private long estimateScratchBytes() {
+                ImgPlus<?> image = inputImage.getImgPlus();
+                long outputBytes = IlastikUtilities.countPixelsPerChannel(image);
+                if (exportedType.equals("Probabilities")) {
+                        int numClasses = new IlastikProjectFile(projectFileName, hdf5IoService, log).readNumberOfLabelClasses();
+                        outputBytes *= precision.getBytesPerPixel() * Math.max(numClasses, 2);
+                }
+                return IlastikUtilities.estimateHdf5Bytes(image) + outputBytes;
+        }
 
-                // run ilastik
-                Process p;
-                try {
-                        p = pB.start();
+        /**
+         * Predicts the image in overlapping tiles and/or batches of frames, several at a time, and stitches the results.
+         */
+        private ImgPlus predictTiles(ScratchReservation scratch) throws InterruptedException {
+                final ImgPlus<?> image = inputImage.getImgPlus();
+                final TiledPrediction prediction = new TiledPrediction(image, exportedType, ilastikOptions, numTileProcesses,
+                                hdf5IoService.getCpuExecutor(), datasetService, log);
+                long[] dims = TiledPrediction.dimensions(image);
 
-                        // write ilastik output to IJ log
-                        IlastikUtilities.redirectOutputToLogService(p.getInputStream(), log, false);
-                        IlastikUtilities.redirectOutputToLogService(p.getErrorStream(), log, true);
+                long[] halos = new long[dims.length];
+                long[] tileShape = dims.clone();
+                if (tiled) {
+                        IlastikProjectFile project = new IlastikProjectFile(projectFileName, hdf5IoService, log);
+                        long halo = tileHalo;
+                        if (halo < 0) {
+                                double scale = project.readLargestFeatureScale();
+                                if (Double.isNaN(scale)) {
+                                        log.warn("Could not find the feature scales in the project, assuming a largest scale of " + DEFAULT_FEATURE_SCALE);
+                                        scale = DEFAULT_FEATURE_SCALE;
+                                }
+                                halo = (long) Math.ceil(HALO_PER_SCALE * scale) + 1;
+                        }
+                        // features are computed in 3D for volumes, so they need context along z as well, but never along time
+                        long[] spatialDims = {dims[0], dims[1], dims[2]};
+                        long[] spatialHalos = {halo, halo, dims[2] > 1 ? halo : 0};
 
-                        try {
-                                p.waitFor();
-                        } catch (InterruptedException cee) {
-                                log.warn("Execution got interrupted");
-                                p.destroy();
+                        int numFeatures = project.readNumberOfSelectedFeatures();
+                        int channelAxis = image.dimensionIndex(Axes.CHANNEL);
+                        long channels = channelAxis >= 0 ? image.dimension(channelAxis) : 1;
+                        long bytesPerVoxel = 4L * FEATURE_COPIES * channels * (numFeatures > 0 ? numFeatures : DEFAULT_NUM_FEATURES);
+                        long[] spatialShape = TilePlanner.chooseTileShape(spatialDims, spatialHalos, prediction.getNumProcesses(),
+                                        prediction.getRamPerProcessMb() * MB / bytesPerVoxel);
+                        System.arraycopy(spatialHalos, 0, halos, 0, spatialHalos.length);
+                        System.arraycopy(spatialShape, 0, tileShape, 0, spatialShape.length);
+                        log.info("Tiles of up to " + spatialShape[0] + "x" + spatialShape[1] + "x" + spatialShape[2]
+                                        + " pixels with a halo of " + halo);
+                }
+                if (splitTime || progressive) {
+                        int minTiles = prediction.getNumProcesses();
+                        if (progressive) {
+                                minTiles *= TiledPrediction.PROGRESSIVE_BATCHES_PER_PROCESS;
                         }
+                        tileShape[3] = TilePlanner.chooseBatchSize(dims[3], TilePlanner.countTiles(dims, tileShape), minTiles);
+                        log.info("Batches of up to " + tileShape[3] + " frames");
+                }
 
-                        // 0 indicates successful execution
-                        if (p.exitValue() != 0) {
-                                log.error("ilastik crashed");
-                                throw new IllegalStateException("Execution of ilastik was not successful.");
+                ProgressivePreview preview = null;
+                if (progressive && !uiService.isHeadless()) {
+                        preview = new ProgressivePreview(exportedType, uiService, displayService, datasetService);
+                        prediction.setProgressiveDisplay(preview);
+                }
+                try {
+                        return prediction.run(TilePlanner.plan(dims, tileShape, halos), (index, tile) -> {
+                                String tileInFileName = scratch.createTempFileName("_tile" + index + "_raw" + format.getExtension());
+                                String tileOutFileName = scratch.createTempFileName("_tile" + index + "_out" + exportedType + format.getExtension());
+                                try {
+                                        log.info("Dumping " + tile + " to temporary file " + tileInFileName);
+                                        format.write(TiledPrediction.crop(image, tile), tileInFileName, CompressionProfile.NONE, hdf5IoService, log);
+                                        runIlastik(tileInFileName, format.getAxisOrder(), tileOutFileName,
+                                                        prediction.getThreadsPerProcess(), prediction.getRamPerProcessMb(), Priority.BATCH);
+                                        return format.read(tileOutFileName, datasetService, hdf5IoService, log);
+                                } finally {
+                                        new File(tileInFileName).delete();
+                                        new File(tileOutFileName).delete();
+                                }
+                        });
+                } finally {
+                        predictionStopped = prediction.wasStopped();
+                        if (preview != null) {
+                                preview.close();
                         }
-                } catch (IOException e) {
-                        e.printStackTrace();
                 }
-                log.info("ilastik finished successfully!");
+        }
+
+        /**
+         * @param inputAxes axes of the input in ilastik's notation
+         * @param priority  {@link Priority#BATCH} for tiles, so single predictions of other commands go first
+         */
+        private void runIlastik(String tempInFileName, String inputAxes, String tempOutFileName, int numThreads, int maxRamMb,
+                                Priority priority) {
+                List<String> jobArgs = new ArrayList<>();
+                jobArgs.add("--output_filename_format=" + tempOutFileName);
+                jobArgs.add("--input_axes=" + inputAxes);
+                format.addOutputArguments(jobArgs);
+                if (exportedType.equals("Segmentation")) {
+                        jobArgs.add("--export_source=Simple Segmentation");
+                } else {
+                        precision.addArguments(jobArgs);
+                }
+                jobArgs.add(tempInFileName);
+
+                IlastikJob job = new IlastikJob(projectFileName, jobArgs);
+                job.setShare(numThreads, maxRamMb);
+                job.setPriority(priority);
+                runnerService.runOrFail(ilastikOptions, job);
         }
 }
@@ -25,9 +25,22 @@
  */
 package org.ilastik.ilastik4ij;
 
+import org.ilastik.ilastik4ij.cache.ExportCacheService;
+import org.ilastik.ilastik4ij.cache.ExportLease;
+import org.ilastik.ilastik4ij.runner.IlastikJob;
+import org.ilastik.ilastik4ij.runner.IlastikRunnerService;
+import org.ilastik.ilastik4ij.table.FeatureTable;
+import org.ilastik.ilastik4ij.table.FeatureTableReader;
+import org.ilastik.ilastik4ij.util.ConcurrentExports;
 import org.ilastik.ilastik4ij.util.IlastikUtilities;
-import org.ilastik.ilastik4ij.hdf5.Hdf5DataSetReader;
-import org.ilastik.ilastik4ij.hdf5.Hdf5DataSetWriterFromImgPlus;
+import org.ilastik.ilastik4ij.util.PassThrough;
+import org.ilastik.ilastik4ij.util.ScratchReservation;
+import org.ilastik.ilastik4ij.util.ScratchSpaceService;
+import org.ilastik.ilastik4ij.util.TransferFormat;
+import org.ilastik.ilastik4ij.hdf5.CompressionProfile;
+import org.ilastik.ilastik4ij.hdf5.Hdf5Origin;
+import org.ilastik.ilastik4ij.hdf5.Hdf5OriginService;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoService;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -39,6 +52,7 @@ import org.scijava.log.LogService;
 import org.scijava.options.OptionsService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
+import org.scijava.ui.UIService;
 
 import net.imagej.Dataset;
 import net.imagej.DatasetService;
@@ -60,6 +74,24 @@ public class IlastikTrackingPrediction implements Command {
     
     @Parameter
     DatasetService datasetService;
+
+    @Parameter
+    Hdf5IoService hdf5IoService;
+
+    @Parameter
+    IlastikRunnerService runnerService;
+
+    @Parameter
+    ScratchSpaceService scratchSpaceService;
+
+    @Parameter
+    Hdf5OriginService hdf5OriginService;
+
+    @Parameter
+    ExportCacheService exportCacheService;
+
+    @Parameter
+    UIService uiService;
     
     // own parameters:
     @Parameter(label = "Save temporary file for training only, without prediction.")
@@ -76,14 +108,28 @@ public class IlastikTrackingPrediction implements Command {
 
     @Parameter(label = "Second Input Type", choices = {"Segmentation", "Probabilities"}, style = "radioButtonHorizontal")
     private String secondInputType = "Probabilities";
-    
-//    @Parameter(label = "Selected Output Type", choices = {"Tracking Label Image", "Feature Table"}, style = "radioButtonHorizontal")
-//    private String selectedOutputType = "Tracking Label Image";
 
-    @Parameter(type = ItemIO.OUTPUT)
+    @Parameter(label = "Transfer format", choices = {"HDF5", "numpy"}, style = "radioButtonHorizontal",
+               description = "Format of the files exchanged with ilastik. numpy files are uncompressed"
+                             + " and written and read through memory mapping, which is usually faster.")
+    private String transferFormat = "HDF5";
+
+    @Parameter(label = "Selected Output Type", choices = {"Tracking Label Image", "Feature Table"}, style = "radioButtonHorizontal")
+    private String selectedOutputType = "Tracking Label Image";
+
+    @Parameter(label = "Table columns (comma separated, empty for all)", required = false,
+               description = "Only these columns of the feature table are read, which saves time and memory for large tables.")
+    private String tableColumns = "";
+
+    @Parameter(type = ItemIO.OUTPUT, required = false)
     ImgPlus predictions;
 
+    @Parameter(type = ItemIO.OUTPUT, required = false)
+    FeatureTable featureTable;
+
     private IlastikOptions ilastikOptions = null;
+    private TransferFormat format = TransferFormat.HDF5;
+    private ExportLease rawExport = null;
 
     /**
      * Run method that calls ilastik
@@ -105,10 +151,13 @@ public class IlastikTrackingPrediction implements Command {
         String tempInFileName = null;
         String tempProbOrSegFileName = null;
         String tempOutFileName = null;
+        ScratchReservation scratch = null;
 
         try {
+            format = TransferFormat.choose(transferFormat, saveOnly, log, inputRawImage.getImgPlus(), inputProbOrSegImage.getImgPlus());
+            scratch = scratchSpaceService.reserve(ilastikOptions, estimateScratchBytes(), saveOnly);
             try {
-                tempInFileName = IlastikUtilities.getTemporaryFileName("_raw.h5");
+                tempInFileName = scratch.createTempFileName("_raw" + format.getExtension());
             } catch (IOException e) {
                 log.error("Could not create a temporary file for sending raw data to ilastik");
                 e.printStackTrace();
@@ -116,24 +165,49 @@ public class IlastikTrackingPrediction implements Command {
             }
 
             try {
-                tempProbOrSegFileName = IlastikUtilities.getTemporaryFileName("_probOrSeg.h5");
+                tempProbOrSegFileName = scratch.createTempFileName("_probOrSeg" + format.getExtension());
             } catch (IOException e) {
                 log.error("Could not create a temporary file for sending prob or seg data to ilastik");
                 e.printStackTrace();
                 return;
             }
             
-            // we do not want to compress probabilities (doesn't help), but segmentations really benefit from it
-            int compressionLevel = 0;
-            if (secondInputType.equals("Segmentation")) {
-                compressionLevel = 9;
+            // files for training are always written, to be added to a project
+            PassThrough passThrough = saveOnly ? null
+                    : PassThrough.choose(hdf5OriginService, format, log, inputRawImage.getImgPlus(), inputProbOrSegImage.getImgPlus());
+            Hdf5Origin rawOrigin = passThrough == null ? null : passThrough.getOrigin(0);
+            Hdf5Origin probOrSegOrigin = passThrough == null ? null : passThrough.getOrigin(1);
+
+            String rawPath = tempInFileName;
+            Runnable exportRaw = null;
+            if (rawOrigin != null) {
+                rawPath = rawOrigin.getIlastikPath();
+            } else if (!saveOnly && ilastikOptions.reuseExports()) {
+                // the raw image is usually shared with the previous steps of the workflow
+                exportRaw = () -> rawExport = exportCacheService.acquire(ilastikOptions, inputRawImage.getImgPlus(), format);
+            } else {
+                final String rawFileName = tempInFileName;
+                exportRaw = () -> {
+                    log.info("Dumping raw input image to temporary file " + rawFileName);
+                    format.write(inputRawImage.getImgPlus(), rawFileName, CompressionProfile.NONE, hdf5IoService, log);
+                };
+            }
+
+            Runnable exportProbOrSeg = null;
+            if (probOrSegOrigin == null) {
+                final String probOrSegFileName = tempProbOrSegFileName;
+                exportProbOrSeg = () -> {
+                    // probabilities hardly compress, but segmentations really benefit from it, so let the data decide
+                    log.info("Dumping secondary input image to temporary file " + probOrSegFileName);
+                    format.write(inputProbOrSegImage.getImgPlus(), probOrSegFileName, CompressionProfile.AUTO, hdf5IoService, log);
+                };
+            }
+
+            // the compressed secondary input usually takes longest, the raw image is written meanwhile
+            ConcurrentExports.run(exportProbOrSeg, exportRaw);
+            if (rawExport != null) {
+                rawPath = rawExport.getFile().getAbsolutePath();
             }
-            
-            log.info("Dumping raw input image to temporary file " + tempInFileName);
-            new Hdf5DataSetWriterFromImgPlus(inputRawImage.getImgPlus(), tempInFileName, "data", 0, log).write();
-            
-            log.info("Dumping secondary input image to temporary file " + tempProbOrSegFileName);
-            new Hdf5DataSetWriterFromImgPlus(inputProbOrSegImage.getImgPlus(), tempProbOrSegFileName, "data", compressionLevel, log).write();
 
             if (saveOnly) {
                 log.info("Saved files for training to " + tempInFileName + " and " + tempProbOrSegFileName
@@ -142,18 +216,35 @@ public class IlastikTrackingPrediction implements Command {
                 return;
             }
 
+            boolean tableOnly = selectedOutputType.equals("Feature Table");
             try {
-                tempOutFileName = IlastikUtilities.getTemporaryFileName("_outTracking.h5");
+                tempOutFileName = scratch.createTempFileName(tableOnly ? "_table.csv" : "_outTracking" + format.getExtension());
             } catch (IOException e) {
                 log.error("Could not create a temporary file for obtaining the results from ilastik");
                 e.printStackTrace();
                 return;
             }
 
-            runIlastik(tempInFileName, tempProbOrSegFileName, tempOutFileName);
+            runIlastik(rawPath,
+                    probOrSegOrigin != null ? probOrSegOrigin.getIlastikPath() : tempProbOrSegFileName, passThrough.getAxisOrder(),
+                    tempOutFileName, tableOnly);
+            if (tableOnly) {
+                try {
+                    featureTable = readFeatureTable(tempOutFileName);
+                } catch (IOException e) {
+                    log.error(e.getMessage());
+                }
+                return;
+            }
             log.info("Reading resulting tracking from " + tempOutFileName);
 
-            predictions = new Hdf5DataSetReader(tempOutFileName, "exported_data", "tzyxc", log, datasetService).read();
+            if (ilastikOptions.loadResultsLazily() && format.canReadLazily()) {
+                predictions = format.readLazily(tempOutFileName, hdf5IoService, log);
+                // the result owns the file now and deletes it once it has been closed
+                tempOutFileName = null;
+            } else {
+                predictions = format.readLabels(tempOutFileName, false, ilastikOptions.compressLabels(), datasetService, hdf5IoService, log);
+            }
             predictions.setName("Tracking result");
         } catch (final Exception e) {
             log.warn("Ilastik Tracking Prediction failed");
@@ -171,62 +262,74 @@ public class IlastikTrackingPrediction implements Command {
                     new File(tempOutFileName).delete();
                 }
             }
+            if (rawExport != null) {
+                rawExport.close();
+                rawExport = null;
+            }
+            if (scratch != null) {
+                scratch.close();
+            }
         }
     }
 
-    private void runIlastik(String tempInRawFileName, String tempProbOrSegFilename, String tempOutFileName) {
-        List<String> commandLine = new ArrayList<>();
-        commandLine.add(ilastikOptions.getExecutableFilePath());
-        commandLine.add("--headless");
-        commandLine.add("--project=" + projectFileName.getAbsolutePath());
-        commandLine.add("--output_filename_format=" + tempOutFileName);
-        commandLine.add("--output_format=hdf5");
-        commandLine.add("--output_axis_order=tzyxc");
-        commandLine.add("--export_source=Tracking-Result");
-        commandLine.add("--raw_data=" + tempInRawFileName);
+    /**
+     * Both inputs plus the resulting label image of at most 32 bits per pixel.
+     */
+    private long estimateScratchBytes() {
+        ImgPlus<?> raw = inputRawImage.getImgPlus();
+        return IlastikUtilities.estimateHdf5Bytes(raw)
+                + IlastikUtilities.estimateHdf5Bytes(inputProbOrSegImage.getImgPlus())
+                + 4 * IlastikUtilities.countPixelsPerChannel(raw);
+    }
 
-        if (secondInputType.equals("Segmentation")) {
-            commandLine.add("--segmentation_image=" + tempProbOrSegFilename);
-        } else {
-            commandLine.add("--prediction_maps=" + tempProbOrSegFilename);
+    /**
+     * Reads the feature table ilastik exported, shows it unless running headless and deletes the file.
+     */
+    private FeatureTable readFeatureTable(String tableFileName) throws IOException {
+        File tableFile = FeatureTableReader.findTable(new File(tableFileName));
+        if (tableFile == null) {
+            throw new IOException("ilastik did not export a feature table to " + tableFileName);
         }
-        
-//        if (selectedOutputType.equals("Feature Table"))
-//        {
-//            commandLine.add("--export_source=Plugin");
-//            commandLine.add("--export_plugin=CSV-Table");
-//        }
-
-        log.info("Running ilastik headless command:");
-        log.info(commandLine);
-
-        ProcessBuilder pB = new ProcessBuilder(commandLine);
-        ilastikOptions.configureProcessBuilderEnvironment(pB);
-
-        // run ilastik
-        Process p;
         try {
-            p = pB.start();
-
-            // write ilastik output to IJ log
-            IlastikUtilities.redirectOutputToLogService(p.getInputStream(), log, false);
-            IlastikUtilities.redirectOutputToLogService(p.getErrorStream(), log, true);
-
-            try {
-                p.waitFor();
-            } catch (InterruptedException cee) {
-                log.warn("Execution got interrupted");
-                p.destroy();
+            log.info("Reading resulting features from " + tableFile);
+            FeatureTableReader reader = new FeatureTableReader();
+            reader.setColumns(FeatureTableReader.parseColumnNames(tableColumns));
+            FeatureTable table = reader.read(tableFile);
+            log.info(table.toString());
+            if (!uiService.isHeadless()) {
+                table.toResultsTable().show("Tracking Features");
             }
+            return table;
+        } finally {
+            tableFile.delete();
+        }
+    }
 
-            // 0 indicates successful execution
-            if (p.exitValue() != 0) {
-                log.error("ilastik crashed");
-                throw new IllegalStateException("Execution of ilastik was not successful.");
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * @param inputAxes axes of both inputs in ilastik's notation
+     * @param tableOnly export the tracks with their features to {@code tempOutFileName} instead of the label image
+     */
+    private void runIlastik(String tempInRawFileName, String tempProbOrSegFilename, String inputAxes, String tempOutFileName,
+                            boolean tableOnly) {
+        List<String> jobArgs = new ArrayList<>();
+        jobArgs.add("--output_filename_format=" + tempOutFileName);
+        jobArgs.add("--input_axes=" + inputAxes);
+        if (tableOnly) {
+            jobArgs.add("--export_source=Plugin");
+            jobArgs.add("--export_plugin=CSV-Table");
+        } else {
+            format.addOutputArguments(jobArgs);
+            jobArgs.add("--export_source=Tracking-Result");
+        }
+        jobArgs.add("--raw_data=" + tempInRawFileName);
+
+        if (secondInputType.equals("Segmentation")) {
+            jobArgs.add("--segmentation_image=" + tempProbOrSegFilename);
+        } else {
+            jobArgs.add("--prediction_maps=" + tempProbOrSegFilename);
         }
-        log.info("ilastik finished successfully!");
+
+        IlastikJob job = new IlastikJob(projectFileName, jobArgs);
+        runnerService.runOrFail(ilastikOptions, job);
     }
 }
@@ -0,0 +1,181 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2017 ilastik
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.ilastik.ilastik4ij;
+
+import org.ilastik.ilastik4ij.batch.BatchInput;
+import org.ilastik.ilastik4ij.batch.Pipeline;
+import org.ilastik.ilastik4ij.batch.PipelineStage;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoService;
+import org.ilastik.ilastik4ij.runner.IlastikRunnerService;
+import org.ilastik.ilastik4ij.util.ScratchSpaceService;
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.scijava.command.Command;
+import org.scijava.log.LogService;
+import org.scijava.options.OptionsService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import net.imagej.DatasetService;
+
+/**
+ * Runs pixel classification and then object classification and/or tracking of its result on all matching images
+ * of a folder, passing the pixel classification result from ilastik to ilastik without reading it into Fiji,
+ * and saves the results as HDF5 as soon as they are done.
+ */
+@Plugin(type = Command.class, headless = true, menuPath = "Plugins>ilastik>Run Workflow Pipeline")
+public class IlastikWorkflowPipeline implements Command {
+
+    // needed services:
+    @Parameter
+    LogService log;
+
+    @Parameter
+    OptionsService optionsService;
+
+    @Parameter
+    DatasetService datasetService;
+
+    @Parameter
+    Hdf5IoService hdf5IoService;
+
+    @Parameter
+    IlastikRunnerService runnerService;
+
+    @Parameter
+    ScratchSpaceService scratchSpaceService;
+
+    // own parameters:
+    @Parameter(label = "Pixel classification project file")
+    private File pixelProjectFileName;
+
+    @Parameter(label = "Pixel classification output", choices = {"Segmentation", "Probabilities"}, style = "radioButtonHorizontal",
+               description = "What pixel classification passes on to object classification and tracking")
+    private String pixelOutputType = "Probabilities";
+
+    @Parameter(label = "Save pixel classification results", required = false)
+    private Boolean savePixelResults = false;
+
+    @Parameter(label = "Object classification project file (optional)", required = false)
+    private File objectProjectFileName;
+
+    @Parameter(label = "Tracking project file (optional)", required = false)
+    private File trackingProjectFileName;
+
+    @Parameter(label = "Input folder", style = "directory")
+    private File inputDirectory;
+
+    @Parameter(label = "File name pattern", description = "Images of the input folder to process, e.g. *.tif")
+    private String filePattern = "*.tif";
+
+    @Parameter(label = "Output folder", style = "directory")
+    private File outputDirectory;
+
+    @Parameter(label = "Parallel ilastik processes (0 = automatic)", min = "0", required = false,
+               description = "ilastik invocations running at the same time. They share the threads and RAM"
+                             + " configured in the ilastik options.")
+    private int numProcesses = 0;
+
+    @Parameter(label = "Images in flight (0 = automatic)", min = "0", required = false,
+               description = "Images started and not yet finished, whose intermediate results are kept in the"
+                             + " temporary directory. By default as many as parallel ilastik processes.")
+    private int maxImagesInFlight = 0;
+
+    /**
+     * Run method that calls ilastik
+     */
+    @Override
+    public void run() {
+        IlastikOptions ilastikOptions = optionsService.getOptions(IlastikOptions.class);
+
+        if (ilastikOptions == null) {
+            log.error("Could not find configured ilastik options!");
+            return;
+        }
+
+        if (!ilastikOptions.isConfigured()) {
+            log.error("ilastik service must be configured before use!");
+            return;
+        }
+
+        File[] files = inputDirectory.listFiles();
+        if (files == null) {
+            log.error("Could not list the files in " + inputDirectory);
+            return;
+        }
+        Arrays.sort(files);
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + filePattern);
+        List<BatchInput> inputs = new ArrayList<>();
+        for (File file : files) {
+            if (file.isFile() && matcher.matches(file.toPath().getFileName())) {
+                inputs.add(BatchInput.fromFile(file));
+            }
+        }
+        if (inputs.isEmpty()) {
+            log.warn("No files in " + inputDirectory + " match " + filePattern);
+            return;
+        }
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            log.error("Could not create the output folder " + outputDirectory);
+            return;
+        }
+
+        Pipeline pipeline = new Pipeline(ilastikOptions, runnerService, scratchSpaceService, hdf5IoService, datasetService, log);
+        PipelineStage pixels = pipeline.addPixelClassification(pixelOutputType, pixelProjectFileName,
+                pixelOutputType.equals("Segmentation"));
+        pixels.setKeepResult(savePixelResults);
+        // both read the pixel classification result, so they run at the same time
+        if (isGiven(objectProjectFileName)) {
+            pipeline.addObjectClassification("Objects", objectProjectFileName, pixels);
+        }
+        if (isGiven(trackingProjectFileName)) {
+            pipeline.addTracking("Tracking", trackingProjectFileName, pixels);
+        }
+        pipeline.setNumProcesses(numProcesses);
+        pipeline.setMaxImagesInFlight(maxImagesInFlight);
+
+        try {
+            List<BatchInput> failed = pipeline.run(inputs, (stage, result) -> {
+                File target = new File(outputDirectory, result.getInput().getName() + "_" + stage.getName() + ".h5");
+                result.moveTo(target);
+                log.info("Saved " + target);
+            });
+            if (!failed.isEmpty()) {
+                log.warn("ilastik workflow pipeline failed for " + failed.size() + " images: " + failed);
+            }
+        } catch (InterruptedException e) {
+            log.warn("Execution got interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean isGiven(File projectFile) {
+        return projectFile != null && !projectFile.getPath().isEmpty();
+    }
+}
@@ -0,0 +1,67 @@
+package org.ilastik.ilastik4ij.batch;
+
+import net.imagej.ImgPlus;
+
+import java.io.File;
+
+/**
+ * One image of a batch, either an image file ilastik reads itself or an image in memory that is exported first.
+ */
+public class BatchInput {
+    private final String name;
+    private final File file;
+    private final ImgPlus<?> image;
+
+    private BatchInput(String name, File file, ImgPlus<?> image) {
+        this.name = name;
+        this.file = file;
+        this.image = image;
+    }
+
+    /**
+     * @param file any image file ilastik can read, named after the file without its extension
+     */
+    public static BatchInput fromFile(File file) {
+        return new BatchInput(nicknameOf(file), file, null);
+    }
+
+    public static BatchInput fromImage(ImgPlus<?> image, String name) {
+        return new BatchInput(name, null, image);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the image file, or null for an image in memory
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the image in memory, or null for an image file
+     */
+    public ImgPlus<?> getImage() {
+        return image;
+    }
+
+    public boolean isFile() {
+        return file != null;
+    }
+
+    /**
+     * @return what ilastik substitutes for {@code {nickname}} in output file names: the file name without extension
+     */
+    static String nicknameOf(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    @Override
+    public String toString() {
+        return isFile() ? file.getPath() : name;
+    }
+}
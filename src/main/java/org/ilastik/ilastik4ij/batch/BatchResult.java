@@ -0,0 +1,67 @@
+package org.ilastik.ilastik4ij.batch;
+
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoService;
+import org.ilastik.ilastik4ij.util.TransferFormat;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The prediction of one {@link BatchInput}, as exported by ilastik.
+ * The file is deleted once the {@link BatchResultHandler} returns, unless the handler moved it away.
+ */
+public class BatchResult {
+    private final BatchInput input;
+    private final File file;
+    private final TransferFormat format;
+    private final DatasetService datasetService;
+    private final Hdf5IoService ioService;
+    private final LogService log;
+
+    BatchResult(BatchInput input, File file, TransferFormat format,
+                DatasetService datasetService, Hdf5IoService ioService, LogService log) {
+        this.input = input;
+        this.file = file;
+        this.format = format;
+        this.datasetService = datasetService;
+        this.ioService = ioService;
+        this.log = log;
+    }
+
+    public BatchInput getInput() {
+        return input;
+    }
+
+    /**
+     * @return the file exported by ilastik, in the transfer format of the batch
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public TransferFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Reads the result into memory.
+     */
+    public ImgPlus read() {
+        ImgPlus result = format.read(file.getAbsolutePath(), datasetService, ioService, log);
+        result.setName(input.getName());
+        result.setSource("ComputedByIlastik");
+        return result;
+    }
+
+    /**
+     * Keeps the file exported by ilastik, which is much cheaper than reading and writing it again.
+     */
+    public void moveTo(File target) throws IOException {
+        Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,13 @@
+package org.ilastik.ilastik4ij.batch;
+
+/**
+ * Receives the results of a batch as soon as ilastik has finished them.
+ * Results of different ilastik processes arrive concurrently, so handlers need to be thread safe.
+ */
+public interface BatchResultHandler {
+
+    /**
+     * @throws Exception to mark the input as failed, the batch continues with the others
+     */
+    void resultReady(BatchResult result) throws Exception;
+}
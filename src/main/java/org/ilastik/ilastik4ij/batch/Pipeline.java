@@ -0,0 +1,371 @@
+package org.ilastik.ilastik4ij.batch;
+
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import org.ilastik.ilastik4ij.IlastikOptions;
+import org.ilastik.ilastik4ij.batch.PipelineStage.Workflow;
+import org.ilastik.ilastik4ij.hdf5.CompressionProfile;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoService;
+import org.ilastik.ilastik4ij.runner.AdmissionScheduler.Priority;
+import org.ilastik.ilastik4ij.runner.IlastikJob;
+import org.ilastik.ilastik4ij.runner.IlastikRunnerService;
+import org.ilastik.ilastik4ij.util.IlastikUtilities;
+import org.ilastik.ilastik4ij.util.ProcessBudget;
+import org.ilastik.ilastik4ij.util.ScratchReservation;
+import org.ilastik.ilastik4ij.util.ScratchSpaceService;
+import org.ilastik.ilastik4ij.util.TransferFormat;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs several ilastik workflows on many images, e.g. pixel classification followed by object classification
+ * and tracking of its result, without reading intermediate results into Fiji.
+ *
+ * The stages form a tree: each stage but pixel classification reads the result of its parent, which ilastik gets
+ * as the file exported by the parent, in scratch space. Stages of one image run as soon as their parent is done,
+ * so independent branches run at the same time, and the stages of several images overlap. At most
+ * {@link #setMaxImagesInFlight} images are started and not yet finished, which bounds the scratch space of the
+ * intermediates, and at most as many ilastik processes as the {@link ProcessBudget} allows run at the same time.
+ */
+public class Pipeline {
+    private final IlastikOptions options;
+    private final IlastikRunnerService runnerService;
+    private final ScratchSpaceService scratchSpaceService;
+    private final Hdf5IoService ioService;
+    private final DatasetService datasetService;
+    private final LogService log;
+    private final Map<String, PipelineStage> stages = new LinkedHashMap<>();
+
+    private String transferFormat = TransferFormat.HDF5.toString();
+    private int numProcesses = 0;
+    private int maxImagesInFlight = 0;
+
+    public Pipeline(IlastikOptions options, IlastikRunnerService runnerService, ScratchSpaceService scratchSpaceService,
+                    Hdf5IoService ioService, DatasetService datasetService, LogService log) {
+        this.options = options;
+        this.runnerService = runnerService;
+        this.scratchSpaceService = scratchSpaceService;
+        this.ioService = ioService;
+        this.datasetService = datasetService;
+        this.log = log;
+    }
+
+    /**
+     * @param segmentation export the simple segmentation instead of the probabilities
+     */
+    public PipelineStage addPixelClassification(String name, File projectFile, boolean segmentation) {
+        return add(new PipelineStage(name, Workflow.PIXEL_CLASSIFICATION, projectFile, null, segmentation));
+    }
+
+    /**
+     * @param parent stage whose probabilities or segmentation are classified
+     */
+    public PipelineStage addObjectClassification(String name, File projectFile, PipelineStage parent) {
+        return add(new PipelineStage(name, Workflow.OBJECT_CLASSIFICATION, projectFile, checkParent(parent), false));
+    }
+
+    /**
+     * @param parent stage whose probabilities or segmentation are tracked
+     */
+    public PipelineStage addTracking(String name, File projectFile, PipelineStage parent) {
+        return add(new PipelineStage(name, Workflow.TRACKING, projectFile, checkParent(parent), false));
+    }
+
+    /**
+     * @return all stages, parents before their children
+     */
+    public List<PipelineStage> getStages() {
+        return Collections.unmodifiableList(new ArrayList<>(stages.values()));
+    }
+
+    /**
+     * @return the stages reading the result of a stage
+     */
+    public List<PipelineStage> getChildren(PipelineStage stage) {
+        List<PipelineStage> children = new ArrayList<>();
+        for (PipelineStage candidate : stages.values()) {
+            if (candidate.getParent() == stage) {
+                children.add(candidate);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * @return whether the result of a stage is handed out
+     */
+    public boolean isResult(PipelineStage stage) {
+        return stage.isKeepResult() || getChildren(stage).isEmpty();
+    }
+
+    /**
+     * @param transferFormat name of a {@link TransferFormat}, used for images in memory that support it
+     */
+    public void setTransferFormat(String transferFormat) {
+        this.transferFormat = transferFormat;
+    }
+
+    /**
+     * @param numProcesses ilastik processes running at the same time, 0 to choose from the budget in the options
+     */
+    public void setNumProcesses(int numProcesses) {
+        this.numProcesses = numProcesses;
+    }
+
+    /**
+     * @param maxImagesInFlight images being processed at the same time, 0 for as many as ilastik processes
+     */
+    public void setMaxImagesInFlight(int maxImagesInFlight) {
+        this.maxImagesInFlight = maxImagesInFlight;
+    }
+
+    private PipelineStage add(PipelineStage stage) {
+        if (stages.containsKey(stage.getName())) {
+            throw new IllegalArgumentException("The pipeline already has a stage named " + stage.getName());
+        }
+        stages.put(stage.getName(), stage);
+        return stage;
+    }
+
+    private PipelineStage checkParent(PipelineStage parent) {
+        // parents have to be added first, which also rules out cycles
+        if (parent == null || stages.get(parent.getName()) != parent) {
+            throw new IllegalArgumentException("The parent stage has to be added to the pipeline first: " + parent);
+        }
+        return parent;
+    }
+
+    /**
+     * Runs all stages on all inputs and passes each result to the handler as soon as it is available.
+     *
+     * @return the inputs for which a stage or the handler failed, in input order
+     */
+    public List<BatchInput> run(List<BatchInput> inputs, PipelineResultHandler handler) throws InterruptedException {
+        if (stages.isEmpty()) {
+            throw new IllegalStateException("The pipeline has no stages");
+        }
+        ProcessBudget budget = new ProcessBudget(options, numProcesses);
+        int inFlight = maxImagesInFlight > 0 ? maxImagesInFlight : budget.getNumProcesses();
+        log.info("Running " + stages.size() + " ilastik workflows on " + inputs.size() + " images, " + inFlight
+                + " images and " + budget.getNumProcesses() + " ilastik processes at a time with "
+                + budget.getThreadsPerProcess() + " threads and " + budget.getRamPerProcessMb() + " MB each");
+
+        Set<BatchInput> failed = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        Semaphore imagesInFlight = new Semaphore(inFlight);
+        ExecutorService ilastikExecutor = Executors.newFixedThreadPool(budget.getNumProcesses());
+        ExecutorService exportExecutor = Executors.newFixedThreadPool(Math.min(inFlight, budget.getNumProcesses()));
+        List<CompletableFuture<Void>> images = new ArrayList<>();
+        try {
+            for (BatchInput input : inputs) {
+                // backpressure: the next image only starts once an earlier one has left the pipeline
+                imagesInFlight.acquire();
+                CompletableFuture<Void> image;
+                try {
+                    image = runImage(input, budget, ilastikExecutor, exportExecutor, handler, failed);
+                } catch (RuntimeException e) {
+                    imagesInFlight.release();
+                    throw e;
+                }
+                images.add(image.whenComplete((result, error) -> imagesInFlight.release()));
+            }
+            CompletableFuture.allOf(images.toArray(new CompletableFuture[0])).join();
+        } finally {
+            ilastikExecutor.shutdownNow();
+            exportExecutor.shutdownNow();
+        }
+
+        List<BatchInput> failedInOrder = new ArrayList<>();
+        for (BatchInput input : inputs) {
+            if (failed.contains(input)) {
+                failedInOrder.add(input);
+            }
+        }
+        log.info("Pipeline finished, " + (inputs.size() - failedInOrder.size()) + " of " + inputs.size() + " images processed");
+        return failedInOrder;
+    }
+
+    /**
+     * Chains the stages of one image. The returned future completes normally once all files of the image are gone,
+     * failures are recorded in {@code failed}.
+     */
+    private CompletableFuture<Void> runImage(BatchInput input, ProcessBudget budget, ExecutorService ilastikExecutor,
+                                             ExecutorService exportExecutor, PipelineResultHandler handler,
+                                             Set<BatchInput> failed) {
+        TransferFormat format = input.isFile() ? TransferFormat.HDF5
+                : TransferFormat.choose(transferFormat, false, log, input.getImage());
+        ScratchReservation scratch = scratchSpaceService.reserve(options, estimateScratchBytes(input), false);
+
+        CompletableFuture<String> raw = input.isFile()
+                ? CompletableFuture.completedFuture(input.getFile().getAbsolutePath())
+                : CompletableFuture.supplyAsync(() -> export(input, format, scratch), exportExecutor);
+
+        Map<PipelineStage, CompletableFuture<File>> results = new HashMap<>();
+        for (PipelineStage stage : stages.values()) {
+            CompletableFuture<File> parent = stage.getParent() == null
+                    ? CompletableFuture.completedFuture(null) : results.get(stage.getParent());
+            results.put(stage, raw.thenCombine(parent, StageInputs::new).thenApplyAsync(
+                    stageInputs -> runStage(stage, input, format, stageInputs, scratch, budget), ilastikExecutor));
+        }
+
+        // a result is handed out and deleted once all stages reading it are done, successfully or not
+        List<CompletableFuture<Void>> cleanups = new ArrayList<>();
+        for (PipelineStage stage : stages.values()) {
+            List<CompletableFuture<File>> readers = new ArrayList<>();
+            for (PipelineStage child : getChildren(stage)) {
+                readers.add(results.get(child));
+            }
+            CompletableFuture<File> result = results.get(stage);
+            cleanups.add(allSettled(readers).thenCombine(result.handle((file, error) -> file), (settled, file) -> {
+                if (file != null) {
+                    if (isResult(stage)) {
+                        deliver(stage, input, file, format, handler, failed);
+                    }
+                    file.delete();
+                }
+                return null;
+            }));
+        }
+
+        return allSettled(new ArrayList<>(results.values())).thenCompose(settled -> {
+            // parents come first, so this is the stage that failed and not one that lacked its input
+            for (PipelineStage stage : stages.values()) {
+                Throwable error = failureOf(results.get(stage));
+                if (error != null) {
+                    log.error("ilastik pipeline failed on " + input + ": " + error.getMessage());
+                    failed.add(input);
+                    break;
+                }
+            }
+            return allSettled(cleanups);
+        }).handle((settled, error) -> {
+            if (!input.isFile()) {
+                raw.thenAccept(path -> new File(path).delete());
+            }
+            scratch.close();
+            return null;
+        });
+    }
+
+    /**
+     * Exports and intermediates of an image in memory, or a guess from the file size for image files, whose
+     * pixels are not known before ilastik reads them.
+     */
+    private long estimateScratchBytes(BatchInput input) {
+        if (input.isFile()) {
+            return input.getFile().length() * stages.size();
+        }
+        ImgPlus<?> image = input.getImage();
+        return IlastikUtilities.estimateHdf5Bytes(image) + 4 * IlastikUtilities.countPixelsPerChannel(image) * stages.size();
+    }
+
+    private String export(BatchInput input, TransferFormat format, ScratchReservation scratch) {
+        try {
+            String path = scratch.createTempFileName("_raw" + format.getExtension());
+            log.info("Dumping " + input + " to temporary file " + path);
+            format.write(input.getImage(), path, CompressionProfile.NONE, ioService, log);
+            return path;
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private File runStage(PipelineStage stage, BatchInput input, TransferFormat format, StageInputs stageInputs,
+                          ScratchReservation scratch, ProcessBudget budget) {
+        try {
+            File output = new File(scratch.createTempFileName("_" + stage.getName() + format.getExtension()));
+            List<String> jobArgs = new ArrayList<>();
+            jobArgs.add("--output_filename_format=" + output.getAbsolutePath());
+            if (input.isFile()) {
+                format.addOutputArguments(jobArgs);
+            } else {
+                // the export and the results of earlier stages share the axis order
+                format.addArguments(jobArgs);
+                if (format == TransferFormat.HDF5) {
+                    jobArgs.add("--input_axes=" + format.getAxisOrder());
+                }
+            }
+            stage.addArguments(jobArgs, stageInputs.rawPath,
+                    stageInputs.parentResult == null ? null : stageInputs.parentResult.getAbsolutePath());
+
+            log.info("Running " + stage + " on " + input);
+            IlastikJob job = new IlastikJob(stage.getProjectFile(), jobArgs);
+            job.setShare(budget.getThreadsPerProcess(), budget.getRamPerProcessMb());
+            job.setPriority(Priority.BATCH);
+            int exitCode = runnerService.run(options, job);
+            if (exitCode != 0) {
+                output.delete();
+                throw new IOException(stage + " exited with code " + exitCode);
+            }
+            if (!output.exists()) {
+                throw new IOException(stage + " did not export a result");
+            }
+            return output;
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+    }
+
+    private void deliver(PipelineStage stage, BatchInput input, File file, TransferFormat format,
+                         PipelineResultHandler handler, Set<BatchInput> failed) {
+        try {
+            handler.resultReady(stage, new BatchResult(input, file, format, datasetService, ioService, log));
+        } catch (Exception e) {
+            log.error("Could not handle the " + stage + " result of " + input + ": " + e.getMessage());
+            failed.add(input);
+        }
+    }
+
+    /**
+     * @return a future that completes normally once all futures are done, whether they failed or not
+     */
+    private static CompletableFuture<Void> allSettled(List<? extends CompletableFuture<?>> futures) {
+        CompletableFuture<?>[] settled = new CompletableFuture<?>[futures.size()];
+        for (int i = 0; i < settled.length; i++) {
+            settled[i] = futures.get(i).handle((result, error) -> null);
+        }
+        return CompletableFuture.allOf(settled);
+    }
+
+    /**
+     * @return why a completed future failed, or null if it did not
+     */
+    private static Throwable failureOf(CompletableFuture<?> future) {
+        try {
+            future.join();
+            return null;
+        } catch (CompletionException e) {
+            return e.getCause() != null ? e.getCause() : e;
+        } catch (CancellationException e) {
+            return e;
+        }
+    }
+
+    private static class StageInputs {
+        final String rawPath;
+        final File parentResult;
+
+        StageInputs(String rawPath, File parentResult) {
+            this.rawPath = rawPath;
+            this.parentResult = parentResult;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.ilastik.ilastik4ij.batch;
+
+/**
+ * Receives the results of a {@link Pipeline} as soon as the stage and all stages reading its result are done.
+ * Results of different images and stages arrive concurrently, so handlers need to be thread safe.
+ */
+public interface PipelineResultHandler {
+
+    /**
+     * @throws Exception to mark the input as failed, the pipeline continues with the others
+     */
+    void resultReady(PipelineStage stage, BatchResult result) throws Exception;
+}
@@ -0,0 +1,120 @@
+package org.ilastik.ilastik4ij.batch;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * One ilastik project run by a {@link Pipeline}. Stages other than pixel classification get the raw image plus
+ * the result of their parent stage, which is passed to ilastik as the file it exported.
+ */
+public class PipelineStage {
+
+    public enum Workflow {
+        PIXEL_CLASSIFICATION("Pixel Classification"),
+        OBJECT_CLASSIFICATION("Object Classification"),
+        TRACKING("Tracking");
+
+        private final String label;
+
+        Workflow(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private final String name;
+    private final Workflow workflow;
+    private final File projectFile;
+    private final PipelineStage parent;
+    private final boolean segmentation;
+    private boolean keepResult;
+
+    /**
+     * @param segmentation for pixel classification: export the simple segmentation instead of the probabilities
+     */
+    PipelineStage(String name, Workflow workflow, File projectFile, PipelineStage parent, boolean segmentation) {
+        this.name = name;
+        this.workflow = workflow;
+        this.projectFile = projectFile;
+        this.parent = parent;
+        this.segmentation = segmentation;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Workflow getWorkflow() {
+        return workflow;
+    }
+
+    public File getProjectFile() {
+        return projectFile;
+    }
+
+    /**
+     * @return the stage whose result is the second input of this one, or null for pixel classification
+     */
+    public PipelineStage getParent() {
+        return parent;
+    }
+
+    /**
+     * @return whether the result is a label image rather than probabilities
+     */
+    public boolean producesSegmentation() {
+        // object classes and tracks are labels per object
+        return workflow != Workflow.PIXEL_CLASSIFICATION || segmentation;
+    }
+
+    /**
+     * @return whether the result is handed out, which is always the case for stages without children
+     */
+    public boolean isKeepResult() {
+        return keepResult;
+    }
+
+    /**
+     * Hands out the result of a stage with children too, once they are done with it.
+     */
+    public void setKeepResult(boolean keepResult) {
+        this.keepResult = keepResult;
+    }
+
+    /**
+     * Adds the workflow specific ilastik arguments: the inputs and what to export.
+     *
+     * @param rawPath    the raw image
+     * @param parentPath the result of the parent stage, ignored for pixel classification
+     */
+    void addArguments(List<String> jobArgs, String rawPath, String parentPath) {
+        switch (workflow) {
+            case PIXEL_CLASSIFICATION:
+                if (segmentation) {
+                    jobArgs.add("--export_source=Simple Segmentation");
+                }
+                jobArgs.add(rawPath);
+                break;
+            case TRACKING:
+                jobArgs.add("--export_source=Tracking-Result");
+                // fall through, tracking takes the same inputs as object classification
+            case OBJECT_CLASSIFICATION:
+                jobArgs.add("--raw_data=" + rawPath);
+                if (parent.producesSegmentation()) {
+                    jobArgs.add("--segmentation_image=" + parentPath);
+                } else {
+                    jobArgs.add("--prediction_maps=" + parentPath);
+                }
+                break;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + workflow + ")";
+    }
+}
@@ -0,0 +1,359 @@
+package org.ilastik.ilastik4ij.batch;
+
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import org.ilastik.ilastik4ij.IlastikOptions;
+import org.ilastik.ilastik4ij.hdf5.CompressionProfile;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoService;
+import org.ilastik.ilastik4ij.runner.AdmissionScheduler.Priority;
+import org.ilastik.ilastik4ij.runner.IlastikJob;
+import org.ilastik.ilastik4ij.runner.IlastikProgress;
+import org.ilastik.ilastik4ij.runner.IlastikRunnerService;
+import org.ilastik.ilastik4ij.runner.ProgressListener;
+import org.ilastik.ilastik4ij.util.IlastikUtilities;
+import org.ilastik.ilastik4ij.util.ProcessBudget;
+import org.ilastik.ilastik4ij.util.ScratchReservation;
+import org.ilastik.ilastik4ij.util.ScratchSpaceService;
+import org.ilastik.ilastik4ij.util.TransferFormat;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a pixel classification project on many images with few ilastik invocations, so that starting ilastik
+ * and loading the project is paid once per invocation instead of once per image.
+ *
+ * The inputs are split into consecutive jobs, at most {@link #MAX_INPUTS_PER_JOB} each, which run on up to
+ * as many ilastik processes at the same time as the {@link ProcessBudget} allows. Images in memory are exported
+ * concurrently before their job starts, image files are passed to ilastik as they are. ilastik names each
+ * output after the nickname of its input and processes the inputs of a job in order, so a result is complete
+ * as soon as the output of the next input appears, and is handed out right away.
+ */
+public class PixelClassificationBatch {
+    /** Keeps command lines within the limits of all platforms */
+    static final int MAX_INPUTS_PER_JOB = 200;
+    private static final long POLL_INTERVAL_MS = 200;
+    private static final String EXPORT_PREFIX = "img";
+    private static final String RESULT_SUFFIX = "_result";
+
+    private final File projectFile;
+    private final IlastikOptions options;
+    private final IlastikRunnerService runnerService;
+    private final ScratchSpaceService scratchSpaceService;
+    private final Hdf5IoService ioService;
+    private final DatasetService datasetService;
+    private final LogService log;
+
+    private String outputType = "Probabilities";
+    private String transferFormat = TransferFormat.HDF5.toString();
+    private int numProcesses = 0;
+    private ProgressListener progressListener;
+
+    public PixelClassificationBatch(File projectFile, IlastikOptions options, IlastikRunnerService runnerService,
+                                    ScratchSpaceService scratchSpaceService, Hdf5IoService ioService,
+                                    DatasetService datasetService, LogService log) {
+        this.projectFile = projectFile;
+        this.options = options;
+        this.runnerService = runnerService;
+        this.scratchSpaceService = scratchSpaceService;
+        this.ioService = ioService;
+        this.datasetService = datasetService;
+        this.log = log;
+    }
+
+    /**
+     * @param outputType "Probabilities" or "Segmentation"
+     */
+    public void setOutputType(String outputType) {
+        this.outputType = outputType;
+    }
+
+    /**
+     * @param transferFormat name of a {@link TransferFormat}, used where all images of a job support it
+     */
+    public void setTransferFormat(String transferFormat) {
+        this.transferFormat = transferFormat;
+    }
+
+    /**
+     * @param numProcesses ilastik processes running at the same time, 0 to choose from the budget in the options
+     */
+    public void setNumProcesses(int numProcesses) {
+        this.numProcesses = numProcesses;
+    }
+
+    /**
+     * @param progressListener receives the progress of the whole batch, combined from its ilastik jobs, instead of
+     *                         the status bar showing the progress of one job after the other
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Predicts all inputs and passes each result to the handler as soon as it is available.
+     *
+     * @return the inputs that could not be predicted or whose handler failed, in input order
+     */
+    public List<BatchInput> run(List<BatchInput> inputs, BatchResultHandler handler) throws InterruptedException {
+        ProcessBudget budget = new ProcessBudget(options, numProcesses);
+        List<List<BatchInput>> jobs = planJobs(inputs, budget.getNumProcesses());
+        int parallel = Math.max(1, Math.min(budget.getNumProcesses(), jobs.size()));
+        log.info("Predicting " + inputs.size() + " images in " + jobs.size() + " ilastik jobs, " + parallel
+                + " at a time with " + budget.getThreadsPerProcess() + " threads and " + budget.getRamPerProcessMb() + " MB each");
+
+        long scratchBytes = 0;
+        for (BatchInput input : inputs) {
+            if (!input.isFile()) {
+                scratchBytes += IlastikUtilities.estimateHdf5Bytes(input.getImage());
+            }
+        }
+
+        Set<BatchInput> failed = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        BatchProgress progress = progressListener == null ? null : new BatchProgress(jobs, progressListener);
+        ScratchReservation scratch = scratchSpaceService.reserve(options, scratchBytes, false);
+        ExecutorService jobExecutor = Executors.newFixedThreadPool(parallel);
+        // ilastik itself runs on these, while the job threads watch for results
+        ExecutorService ilastikExecutor = Executors.newFixedThreadPool(parallel);
+        ExecutorService exportExecutor = Executors.newFixedThreadPool(parallel);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < jobs.size(); i++) {
+                List<BatchInput> job = jobs.get(i);
+                ProgressListener jobListener = progress == null ? null : progress.jobListener(i);
+                futures.add(jobExecutor.submit(() -> {
+                    runJob(job, budget, scratch, exportExecutor, ilastikExecutor, jobListener, handler, failed);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    log.error("ilastik batch job failed: " + e.getCause().getMessage());
+                }
+            }
+        } finally {
+            jobExecutor.shutdownNow();
+            ilastikExecutor.shutdownNow();
+            exportExecutor.shutdownNow();
+            scratch.close();
+        }
+
+        List<BatchInput> failedInOrder = new ArrayList<>();
+        for (BatchInput input : inputs) {
+            if (failed.contains(input)) {
+                failedInOrder.add(input);
+            }
+        }
+        log.info("Batch finished, " + (inputs.size() - failedInOrder.size()) + " of " + inputs.size() + " images predicted");
+        return failedInOrder;
+    }
+
+    /**
+     * Splits the inputs into consecutive jobs of only files or only images in memory, as ilastik gets one set of
+     * input arguments per job, with unique nicknames, as outputs are named after them.
+     */
+    static List<List<BatchInput>> planJobs(List<BatchInput> inputs, int numProcesses) {
+        int numJobs = Math.max(numProcesses, (inputs.size() + MAX_INPUTS_PER_JOB - 1) / MAX_INPUTS_PER_JOB);
+        int jobSize = Math.max(1, (inputs.size() + numJobs - 1) / numJobs);
+
+        List<List<BatchInput>> jobs = new ArrayList<>();
+        List<BatchInput> job = new ArrayList<>();
+        Set<String> nicknames = new HashSet<>();
+        for (BatchInput input : inputs) {
+            boolean kindChanges = !job.isEmpty() && job.get(0).isFile() != input.isFile();
+            boolean duplicate = input.isFile() && nicknames.contains(input.getName());
+            if (job.size() >= jobSize || kindChanges || duplicate) {
+                jobs.add(job);
+                job = new ArrayList<>();
+                nicknames.clear();
+            }
+            job.add(input);
+            nicknames.add(input.getName());
+        }
+        if (!job.isEmpty()) {
+            jobs.add(job);
+        }
+        return jobs;
+    }
+
+    private void runJob(List<BatchInput> job, ProcessBudget budget, ScratchReservation scratch,
+                        ExecutorService exportExecutor, ExecutorService ilastikExecutor, ProgressListener jobListener,
+                        BatchResultHandler handler, Set<BatchInput> failed) throws IOException, InterruptedException {
+        File jobDirectory = new File(scratch.createTempFileName("_batch"));
+        if (!jobDirectory.mkdir()) {
+            throw new IOException("Could not create directory " + jobDirectory);
+        }
+
+        TransferFormat format = TransferFormat.HDF5;
+        if (!job.get(0).isFile()) {
+            ImgPlus<?>[] images = new ImgPlus<?>[job.size()];
+            for (int i = 0; i < images.length; i++) {
+                images[i] = job.get(i).getImage();
+            }
+            format = TransferFormat.choose(transferFormat, false, log, images);
+        }
+
+        List<File> inputFiles = new ArrayList<>();
+        List<File> outputFiles = new ArrayList<>();
+        try {
+            List<Future<?>> exports = new ArrayList<>();
+            for (int i = 0; i < job.size(); i++) {
+                BatchInput input = job.get(i);
+                String nickname = input.isFile() ? input.getName() : EXPORT_PREFIX + i;
+                outputFiles.add(new File(jobDirectory, nickname + RESULT_SUFFIX + format.getExtension()));
+                if (input.isFile()) {
+                    inputFiles.add(input.getFile());
+                } else {
+                    File exported = new File(jobDirectory, nickname + format.getExtension());
+                    inputFiles.add(exported);
+                    final TransferFormat exportFormat = format;
+                    exports.add(exportExecutor.submit(() -> exportFormat.write(input.getImage(),
+                            exported.getAbsolutePath(), CompressionProfile.NONE, ioService, log)));
+                }
+            }
+            for (Future<?> export : exports) {
+                try {
+                    export.get();
+                } catch (ExecutionException e) {
+                    failed.addAll(job);
+                    throw new IOException("Could not export the images of a batch job", e.getCause());
+                }
+            }
+
+            List<String> jobArgs = new ArrayList<>();
+            jobArgs.add("--output_filename_format=" + new File(jobDirectory, "{nickname}" + RESULT_SUFFIX + format.getExtension()).getAbsolutePath());
+            if (job.get(0).isFile()) {
+                format.addOutputArguments(jobArgs);
+            } else {
+                format.addArguments(jobArgs);
+            }
+            if (outputType.equals("Segmentation")) {
+                jobArgs.add("--export_source=Simple Segmentation");
+            }
+            for (File inputFile : inputFiles) {
+                jobArgs.add(inputFile.getAbsolutePath());
+            }
+
+            Future<Integer> ilastik = ilastikExecutor.submit(() -> runIlastik(jobArgs, budget, jobListener));
+            collectResults(job, outputFiles, format, ilastik, handler, failed);
+        } finally {
+            for (int i = 0; i < job.size(); i++) {
+                if (!job.get(i).isFile()) {
+                    inputFiles.get(i).delete();
+                }
+            }
+            for (File output : outputFiles) {
+                output.delete();
+            }
+            jobDirectory.delete();
+        }
+    }
+
+    /**
+     * Hands out each result once ilastik has moved on to the next input or has finished successfully.
+     */
+    private void collectResults(List<BatchInput> job, List<File> outputFiles, TransferFormat format, Future<Integer> ilastik,
+                                BatchResultHandler handler, Set<BatchInput> failed) throws InterruptedException {
+        int next = 0;
+        while (true) {
+            boolean finished = ilastik.isDone();
+            boolean succeeded = finished && exitCode(ilastik) == 0;
+            while (next < job.size() && (succeeded || next + 1 < job.size() && outputFiles.get(next + 1).exists())) {
+                deliver(job.get(next), outputFiles.get(next), format, handler, failed);
+                next++;
+            }
+            if (finished) {
+                break;
+            }
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+        if (next < job.size()) {
+            log.error("ilastik failed on " + job.get(next) + ", " + (job.size() - next) + " images of its job are not predicted");
+            failed.addAll(job.subList(next, job.size()));
+        }
+    }
+
+    private void deliver(BatchInput input, File outputFile, TransferFormat format, BatchResultHandler handler, Set<BatchInput> failed) {
+        if (!outputFile.exists()) {
+            log.error("ilastik did not export a result for " + input);
+            failed.add(input);
+            return;
+        }
+        try {
+            handler.resultReady(new BatchResult(input, outputFile, format, datasetService, ioService, log));
+        } catch (Exception e) {
+            log.error("Could not handle the result of " + input + ": " + e.getMessage());
+            failed.add(input);
+        } finally {
+            outputFile.delete();
+        }
+    }
+
+    private static int exitCode(Future<Integer> ilastik) throws InterruptedException {
+        try {
+            return ilastik.get();
+        } catch (ExecutionException e) {
+            return -1;
+        }
+    }
+
+    private int runIlastik(List<String> jobArgs, ProcessBudget budget, ProgressListener jobListener)
+            throws IOException, InterruptedException {
+        log.info("Running ilastik headless batch job with " + jobArgs.size() + " arguments");
+        IlastikJob job = new IlastikJob(projectFile, jobArgs);
+        job.setShare(budget.getThreadsPerProcess(), budget.getRamPerProcessMb());
+        job.setPriority(Priority.BATCH);
+        job.setProgressListener(jobListener);
+        return runnerService.run(options, job);
+    }
+
+    /**
+     * Combines the progress of the ilastik jobs of a batch, weighted by their number of images.
+     */
+    private static class BatchProgress {
+        private final int[] jobSizes;
+        private final double[] jobPercents;
+        private final int numImages;
+        private final ProgressListener listener;
+
+        BatchProgress(List<List<BatchInput>> jobs, ProgressListener listener) {
+            jobSizes = new int[jobs.size()];
+            int images = 0;
+            for (int i = 0; i < jobSizes.length; i++) {
+                jobSizes[i] = jobs.get(i).size();
+                images += jobSizes[i];
+            }
+            this.jobPercents = new double[jobSizes.length];
+            this.numImages = images;
+            this.listener = listener;
+        }
+
+        ProgressListener jobListener(int job) {
+            return progress -> update(job, progress.getPercent());
+        }
+
+        private synchronized void update(int job, double percent) {
+            jobPercents[job] = percent;
+            double imagesDone = 0;
+            for (int i = 0; i < jobSizes.length; i++) {
+                imagesDone += jobSizes[i] * jobPercents[i] / 100;
+            }
+            // images of different jobs are predicted at the same time, count the ones done so far
+            int image = Math.min(numImages, (int) imagesDone + 1);
+            listener.progressChanged(new IlastikProgress(100 * imagesDone / numImages, image, numImages, 0, 0, -1));
+        }
+    }
+}
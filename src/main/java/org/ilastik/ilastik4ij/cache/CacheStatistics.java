@@ -0,0 +1,47 @@
+package org.ilastik.ilastik4ij.cache;
+
+/**
+ * Snapshot of the use of the {@link PredictionCacheService} since Fiji was started.
+ */
+public class CacheStatistics {
+    private final long hits;
+    private final long misses;
+    private final long stores;
+    private final long evictions;
+
+    CacheStatistics(long hits, long misses, long stores, long evictions) {
+        this.hits = hits;
+        this.misses = misses;
+        this.stores = stores;
+        this.evictions = evictions;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getStores() {
+        return stores;
+    }
+
+    /**
+     * @return number of results deleted to keep the cache within its size limit, also by other Fiji instances
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses (%.0f%% hit rate), %d stored, %d evicted",
+                hits, misses, 100 * getHitRate(), stores, evictions);
+    }
+}
@@ -0,0 +1,194 @@
+package org.ilastik.ilastik4ij.cache;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.RealType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fast, non-cryptographic 128 bit hash of image contents and files, for recognizing inputs seen before.
+ *
+ * Data is consumed as 64 bit words by two independently seeded multiply-rotate lanes, which are mixed with the
+ * finalizer of MurmurHash3. Pixels of planar and array images are hashed straight from their primitive arrays.
+ */
+public class ContentHasher {
+    private static final long P1 = 0x9E3779B185EBCA87L;
+    private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long P3 = 0x165667B19E3779F9L;
+    private static final long P4 = 0x85EBCA77C2B2AE63L;
+    private static final long MAP_WINDOW_BYTES = 1L << 30;
+
+    private long h1 = P3;
+    private long h2 = P4;
+    private long words = 0;
+
+    public ContentHasher update(long word) {
+        h1 = Long.rotateLeft(h1 ^ word * P1, 31) * P2;
+        h2 = Long.rotateLeft(h2 + Long.rotateLeft(word, 29) * P3, 27) * P4 + h1;
+        words++;
+        return this;
+    }
+
+    public ContentHasher update(String text) {
+        update(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            update(text.charAt(i));
+        }
+        return this;
+    }
+
+    /**
+     * Hashes the shape, axes, pixel type and all pixel values of the image.
+     *
+     * @throws IllegalArgumentException for pixel types that are neither real valued nor ARGB
+     */
+    public ContentHasher updateImage(ImgPlus<?> image) {
+        update(image.numDimensions());
+        for (int d = 0; d < image.numDimensions(); d++) {
+            update(image.dimension(d));
+            update(image.axis(d).type().getLabel());
+        }
+        Object type = image.firstElement();
+        update(type.getClass().getName());
+
+        Img<?> img = image.getImg();
+        if (img instanceof PlanarImg) {
+            update("planar");
+            PlanarImg<?, ?> planar = (PlanarImg<?, ?>) img;
+            for (int plane = 0; plane < planar.numSlices(); plane++) {
+                updateArray(((ArrayDataAccess<?>) planar.getPlane(plane)).getCurrentStorageArray());
+            }
+        } else if (img instanceof ArrayImg && ((ArrayImg<?, ?>) img).update(null) instanceof ArrayDataAccess) {
+            update("array");
+            updateArray(((ArrayDataAccess<?>) ((ArrayImg<?, ?>) img).update(null)).getCurrentStorageArray());
+        } else if (type instanceof RealType) {
+            update("real");
+            Cursor<? extends RealType<?>> cursor = ((Img<? extends RealType<?>>) img).cursor();
+            while (cursor.hasNext()) {
+                update(Double.doubleToRawLongBits(cursor.next().getRealDouble()));
+            }
+        } else if (type instanceof ARGBType) {
+            update("argb");
+            Cursor<ARGBType> cursor = ((Img<ARGBType>) img).cursor();
+            while (cursor.hasNext()) {
+                update(cursor.next().get());
+            }
+        } else {
+            throw new IllegalArgumentException("Cannot hash pixels of type " + type.getClass());
+        }
+        return this;
+    }
+
+    /**
+     * Hashes the whole content of the file, read through memory mapping.
+     */
+    public ContentHasher updateFile(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            update(size);
+            for (long offset = 0; offset < size; offset += MAP_WINDOW_BYTES) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAP_WINDOW_BYTES, size - offset));
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                while (buffer.remaining() >= Long.BYTES) {
+                    update(buffer.getLong());
+                }
+                long tail = 0;
+                for (int shift = 0; buffer.hasRemaining(); shift += 8) {
+                    tail |= (buffer.get() & 0xFFL) << shift;
+                }
+                update(tail);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return the hash as 32 hex digits
+     */
+    public String toHex() {
+        long a = fmix(h1 ^ words);
+        long b = fmix(h2 ^ a);
+        return String.format("%016x%016x", a, b);
+    }
+
+    private void updateArray(Object array) {
+        if (array instanceof byte[]) {
+            byte[] values = (byte[]) array;
+            update(values.length);
+            int i = 0;
+            for (; i + 8 <= values.length; i += 8) {
+                update((values[i] & 0xFFL) | (values[i + 1] & 0xFFL) << 8 | (values[i + 2] & 0xFFL) << 16
+                        | (values[i + 3] & 0xFFL) << 24 | (values[i + 4] & 0xFFL) << 32 | (values[i + 5] & 0xFFL) << 40
+                        | (values[i + 6] & 0xFFL) << 48 | (values[i + 7] & 0xFFL) << 56);
+            }
+            for (; i < values.length; i++) {
+                update(values[i]);
+            }
+        } else if (array instanceof short[]) {
+            short[] values = (short[]) array;
+            update(values.length);
+            int i = 0;
+            for (; i + 4 <= values.length; i += 4) {
+                update((values[i] & 0xFFFFL) | (values[i + 1] & 0xFFFFL) << 16
+                        | (values[i + 2] & 0xFFFFL) << 32 | (values[i + 3] & 0xFFFFL) << 48);
+            }
+            for (; i < values.length; i++) {
+                update(values[i]);
+            }
+        } else if (array instanceof int[]) {
+            int[] values = (int[]) array;
+            update(values.length);
+            int i = 0;
+            for (; i + 2 <= values.length; i += 2) {
+                update((values[i] & 0xFFFFFFFFL) | (values[i + 1] & 0xFFFFFFFFL) << 32);
+            }
+            for (; i < values.length; i++) {
+                update(values[i]);
+            }
+        } else if (array instanceof float[]) {
+            float[] values = (float[]) array;
+            update(values.length);
+            int i = 0;
+            for (; i + 2 <= values.length; i += 2) {
+                update((Float.floatToRawIntBits(values[i]) & 0xFFFFFFFFL) | (long) Float.floatToRawIntBits(values[i + 1]) << 32);
+            }
+            for (; i < values.length; i++) {
+                update(Float.floatToRawIntBits(values[i]));
+            }
+        } else if (array instanceof long[]) {
+            long[] values = (long[]) array;
+            update(values.length);
+            for (long value : values) {
+                update(value);
+            }
+        } else if (array instanceof double[]) {
+            double[] values = (double[]) array;
+            update(values.length);
+            for (double value : values) {
+                update(Double.doubleToRawLongBits(value));
+            }
+        } else {
+            throw new IllegalArgumentException("Cannot hash arrays of type " + array.getClass());
+        }
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xFF51AFD7ED558CCDL;
+        k ^= k >>> 33;
+        k *= 0xC4CEB93FE53B87ABL;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,231 @@
+package org.ilastik.ilastik4ij.cache;
+
+import net.imagej.Dataset;
+import net.imagej.ImgPlus;
+import net.imagej.event.DataDeletedEvent;
+import net.imglib2.img.Img;
+import org.ilastik.ilastik4ij.IlastikOptions;
+import org.ilastik.ilastik4ij.hdf5.CompressionProfile;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoService;
+import org.ilastik.ilastik4ij.util.TransferFormat;
+import org.scijava.event.EventHandler;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Default {@link ExportCacheService}.
+ *
+ * Exports are identified by the {@link Img} they were written from, which is only weakly referenced, together
+ * with a hash of its pixels taken at export time, so modified images are exported again. Exports of images that
+ * were closed or garbage collected are deleted as soon as no command uses them anymore.
+ */
+@Plugin(type = Service.class)
+public class DefaultExportCacheService extends AbstractService implements ExportCacheService {
+    private static final long MB = 1024 * 1024;
+
+    @Parameter
+    private Hdf5IoService ioService;
+
+    @Parameter
+    private LogService log;
+
+    private final List<Export> exports = new ArrayList<>();
+    private final ReferenceQueue<Img<?>> collected = new ReferenceQueue<>();
+    private File directory = null;
+
+    private class Export {
+        final WeakReference<Img<?>> image;
+        final TransferFormat format;
+        final String hash;
+        final File file;
+        final CountDownLatch written = new CountDownLatch(1);
+        boolean failed = false;
+        // no longer handed out, deleted once unused
+        boolean stale = false;
+        int references = 1;
+        long lastUsed = System.currentTimeMillis();
+
+        Export(Img<?> image, TransferFormat format, String hash, File file) {
+            this.image = new WeakReference<>(image, collected);
+            this.format = format;
+            this.hash = hash;
+            this.file = file;
+        }
+    }
+
+    @Override
+    public ExportLease acquire(IlastikOptions options, ImgPlus<?> image, TransferFormat format) {
+        String hash = new ContentHasher().updateImage(image).toHex();
+        Export export = null;
+        boolean exportNow = false;
+        synchronized (this) {
+            purge();
+            for (Export candidate : exports) {
+                if (!candidate.stale && candidate.image.get() == image.getImg() && candidate.format == format) {
+                    if (candidate.hash.equals(hash)) {
+                        export = candidate;
+                        export.references++;
+                        export.lastUsed = System.currentTimeMillis();
+                    } else {
+                        log.info(image.getName() + " was modified since it was exported to " + candidate.file);
+                        candidate.stale = true;
+                    }
+                }
+            }
+            if (export == null) {
+                export = new Export(image.getImg(), format, hash, createFile(format));
+                exports.add(export);
+                exportNow = true;
+            }
+        }
+
+        if (exportNow) {
+            try {
+                log.info("Exporting " + image.getName() + " to " + export.file + ", to be shared by later commands");
+                format.write(image, export.file.getAbsolutePath(), CompressionProfile.NONE, ioService, log);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    export.failed = true;
+                    export.stale = true;
+                    export.references--;
+                    purge();
+                }
+                throw e;
+            } finally {
+                export.written.countDown();
+            }
+            synchronized (this) {
+                evict(options.getMaxExportCacheMb() * MB);
+            }
+        } else {
+            log.info("Reusing the export of " + image.getName() + " in " + export.file);
+            try {
+                export.written.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        final Export acquired = export;
+        ExportLease lease = new ExportLease(acquired.file, () -> release(acquired));
+        if (acquired.failed || acquired.written.getCount() > 0) {
+            lease.close();
+            throw new IllegalStateException("Export of " + image.getName() + " to " + acquired.file + " failed");
+        }
+        return lease;
+    }
+
+    /**
+     * Forgets the exports of images that were closed.
+     */
+    @EventHandler
+    protected void onEvent(DataDeletedEvent event) {
+        if (!(event.getObject() instanceof Dataset)) {
+            return;
+        }
+        Img<?> image = ((Dataset) event.getObject()).getImgPlus().getImg();
+        synchronized (this) {
+            for (Export export : exports) {
+                if (export.image.get() == image) {
+                    export.stale = true;
+                }
+            }
+            purge();
+        }
+    }
+
+    @Override
+    public synchronized void dispose() {
+        for (Export export : exports) {
+            export.file.delete();
+        }
+        exports.clear();
+        if (directory != null) {
+            directory.delete();
+        }
+    }
+
+    private synchronized void release(Export export) {
+        export.references--;
+        export.lastUsed = System.currentTimeMillis();
+        purge();
+    }
+
+    /**
+     * Deletes unused exports of closed, collected or modified images.
+     */
+    private void purge() {
+        Reference<? extends Img<?>> reference;
+        while ((reference = collected.poll()) != null) {
+            for (Export export : exports) {
+                if (export.image == reference) {
+                    export.stale = true;
+                }
+            }
+        }
+        Iterator<Export> it = exports.iterator();
+        while (it.hasNext()) {
+            Export export = it.next();
+            if (export.references <= 0 && (export.stale || export.image.get() == null)) {
+                export.file.delete();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used unused exports until all exports fit into the budget.
+     */
+    private void evict(long maxBytes) {
+        long total = 0;
+        for (Export export : exports) {
+            total += export.file.length();
+        }
+        List<Export> unused = new ArrayList<>();
+        for (Export export : exports) {
+            if (export.references <= 0) {
+                unused.add(export);
+            }
+        }
+        unused.sort(Comparator.comparingLong(export -> export.lastUsed));
+        for (Export export : unused) {
+            if (total <= maxBytes) {
+                break;
+            }
+            log.info("Deleting the export " + export.file + " to stay within the disk budget");
+            total -= export.file.length();
+            export.file.delete();
+            exports.remove(export);
+        }
+    }
+
+    private File createFile(TransferFormat format) {
+        try {
+            if (directory == null) {
+                directory = Files.createTempDirectory("ilastik4ij_exports").toFile();
+                directory.deleteOnExit();
+            }
+            File file = File.createTempFile("ilastik4ij", "_raw" + format.getExtension(), directory);
+            file.delete();
+            file.deleteOnExit();
+            return file;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not create a file for exporting", e);
+        }
+    }
+}
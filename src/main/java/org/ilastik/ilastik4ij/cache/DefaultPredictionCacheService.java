@@ -0,0 +1,261 @@
+package org.ilastik.ilastik4ij.cache;
+
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import org.ilastik.ilastik4ij.IlastikOptions;
+import org.ilastik.ilastik4ij.hdf5.CompressionProfile;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoService;
+import org.ilastik.ilastik4ij.hdf5.Hdf5OriginService;
+import org.ilastik.ilastik4ij.util.TransferFormat;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * Default {@link PredictionCacheService}.
+ *
+ * Each result is a single file named after its key. Reading, adding and evicting results happens while holding
+ * a lock on {@value #LOCK_FILE} in the cache directory, which keeps Fiji instances sharing the cache apart.
+ * New results are first copied next to their final name and then renamed, so other instances never see partial
+ * files. The modification time of a result is its last use, which is what eviction goes by.
+ */
+@Plugin(type = Service.class)
+public class DefaultPredictionCacheService extends AbstractService implements PredictionCacheService {
+    private static final long MB = 1024 * 1024;
+    private static final String LOCK_FILE = "cache.lock";
+    private static final String PARTIAL_SUFFIX = ".partial";
+    // partial files this old were left behind by a Fiji instance that died while adding them
+    private static final long STALE_PARTIAL_MS = 24 * 60 * 60 * 1000L;
+    private static final Pattern RESULT_NAME = Pattern.compile("[0-9a-f]{32}\\.(h5|npy)");
+
+    @Parameter
+    private DatasetService datasetService;
+
+    @Parameter
+    private Hdf5IoService ioService;
+
+    @Parameter
+    private Hdf5OriginService originService;
+
+    @Parameter
+    private LogService log;
+
+    // file locks are held per JVM, so threads of this instance take turns before locking the file
+    private final ReentrantLock instanceLock = new ReentrantLock();
+    private final Map<String, String> projectHashes = new HashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @Override
+    public String createKey(IlastikOptions options, File projectFile, ImgPlus<?> input, String... settings) {
+        try {
+            ContentHasher hasher = new ContentHasher();
+            hasher.update(projectHash(projectFile));
+            // results may differ between ilastik versions
+            hasher.update(options.getExecutableFilePath());
+            for (String setting : settings) {
+                hasher.update(setting);
+            }
+            hasher.updateImage(input);
+            return hasher.toHex();
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Cannot cache the prediction: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public ImgPlus lookup(IlastikOptions options, String key, TransferFormat format) {
+        File file = resultFile(options, key, format);
+        ImgPlus result = null;
+        if (file.isFile()) {
+            try (CacheLock lock = lock(options.getResultCacheDirectory())) {
+                if (file.isFile()) {
+                    result = format.read(file.getAbsolutePath(), datasetService, ioService, log);
+                    file.setLastModified(System.currentTimeMillis());
+                    if (format.getResultDataset() != null) {
+                        // further predictions on the result can read it from the cache, as long as it is not evicted
+                        originService.register(result, file, format.getResultDataset(), format.getAxisOrder());
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not read the cached result " + file + ": " + e.getMessage());
+                result = null;
+            }
+        }
+        if (result != null) {
+            hits.incrementAndGet();
+            log.info("Using cached prediction " + file + ", cache statistics: " + getStatistics());
+        } else {
+            misses.incrementAndGet();
+            log.info("Prediction is not cached yet, cache statistics: " + getStatistics());
+        }
+        return result;
+    }
+
+    @Override
+    public void store(IlastikOptions options, String key, File result, TransferFormat format) {
+        File partial = partialFile(options, key, format);
+        try {
+            try {
+                Files.move(result.toPath(), partial.toPath());
+            } catch (IOException e) {
+                // e.g. the result is on another file system
+                Files.copy(result.toPath(), partial.toPath());
+            }
+            commit(options, key, partial, format);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not add the result to the cache: " + e.getMessage());
+            partial.delete();
+        }
+    }
+
+    @Override
+    public void store(IlastikOptions options, String key, ImgPlus<?> result, TransferFormat format) {
+        File partial = partialFile(options, key, format);
+        try {
+            format.writeResult(result, partial.getAbsolutePath(), CompressionProfile.AUTO, ioService, log);
+            commit(options, key, partial, format);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not add the result to the cache: " + e.getMessage());
+            partial.delete();
+        }
+    }
+
+    @Override
+    public CacheStatistics getStatistics() {
+        return new CacheStatistics(hits.get(), misses.get(), stores.get(), evictions.get());
+    }
+
+    /**
+     * Projects can be large, so their hash is only computed again when they change.
+     */
+    private synchronized String projectHash(File projectFile) throws IOException {
+        String stamp = projectFile.getCanonicalPath() + ":" + projectFile.length() + ":" + projectFile.lastModified();
+        String hash = projectHashes.get(stamp);
+        if (hash == null) {
+            hash = new ContentHasher().updateFile(projectFile).toHex();
+            projectHashes.put(stamp, hash);
+        }
+        return hash;
+    }
+
+    private static File resultFile(IlastikOptions options, String key, TransferFormat format) {
+        return new File(options.getResultCacheDirectory(), key + format.getExtension());
+    }
+
+    private File partialFile(IlastikOptions options, String key, TransferFormat format) {
+        File directory = options.getResultCacheDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            log.warn("Could not create the result cache directory " + directory);
+        }
+        return new File(directory, key + "." + UUID.randomUUID() + format.getExtension() + PARTIAL_SUFFIX);
+    }
+
+    private void commit(IlastikOptions options, String key, File partial, TransferFormat format) throws IOException {
+        File target = resultFile(options, key, format);
+        try (CacheLock lock = lock(options.getResultCacheDirectory())) {
+            try {
+                Files.move(partial.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            stores.incrementAndGet();
+            evict(options.getResultCacheDirectory(), options.getMaxResultCacheMb() * MB);
+        }
+    }
+
+    /**
+     * Deletes the least recently used results until the cache fits into its size limit.
+     * Must be called while holding the cache lock.
+     */
+    private void evict(File directory, long maxBytes) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long total = 0;
+        List<File> results = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(PARTIAL_SUFFIX) && now - file.lastModified() > STALE_PARTIAL_MS) {
+                file.delete();
+            } else if (RESULT_NAME.matcher(file.getName()).matches()) {
+                results.add(file);
+                total += file.length();
+            }
+        }
+        results.sort(Comparator.comparingLong(File::lastModified));
+        for (File file : results) {
+            if (total <= maxBytes) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                evictions.incrementAndGet();
+                log.info("Evicted " + file + " from the result cache");
+            }
+        }
+    }
+
+    private CacheLock lock(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the result cache directory " + directory);
+        }
+        instanceLock.lock();
+        try {
+            RandomAccessFile file = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+            try {
+                return new CacheLock(file, file.getChannel().lock());
+            } catch (IOException | RuntimeException e) {
+                file.close();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            instanceLock.unlock();
+            throw e;
+        }
+    }
+
+    private class CacheLock implements AutoCloseable {
+        private final RandomAccessFile file;
+        private final FileLock lock;
+
+        CacheLock(RandomAccessFile file, FileLock lock) {
+            this.file = file;
+            this.lock = lock;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                lock.release();
+                file.close();
+            } finally {
+                instanceLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.ilastik.ilastik4ij.cache;
+
+import net.imagej.ImgPlus;
+import org.ilastik.ilastik4ij.IlastikOptions;
+import org.ilastik.ilastik4ij.util.TransferFormat;
+import org.scijava.service.SciJavaService;
+
+/**
+ * Shares the export of an input image between the commands of a session, e.g. pixel classification, object
+ * classification and tracking on the same raw image, so that it is only written once.
+ *
+ * Exports are reference counted through {@link ExportLease}s and kept while their image is open and unchanged.
+ * They are deleted once the image is closed or modified, or when unused exports exceed the disk budget
+ * configured in the {@link IlastikOptions}.
+ */
+public interface ExportCacheService extends SciJavaService {
+
+    /**
+     * Returns the existing export of the image in the given format, or exports it now.
+     *
+     * @throws IllegalArgumentException if the image cannot be written in the format
+     */
+    ExportLease acquire(IlastikOptions options, ImgPlus<?> image, TransferFormat format);
+}
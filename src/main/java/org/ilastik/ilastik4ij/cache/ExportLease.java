@@ -0,0 +1,29 @@
+package org.ilastik.ilastik4ij.cache;
+
+import java.io.File;
+
+/**
+ * Use of an export shared through the {@link ExportCacheService}. The file stays in place until the lease is closed.
+ */
+public class ExportLease implements AutoCloseable {
+    private final File file;
+    private final Runnable release;
+    private boolean closed = false;
+
+    ExportLease(File file, Runnable release) {
+        this.file = file;
+        this.release = release;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            release.run();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.ilastik.ilastik4ij.cache;
+
+import net.imagej.ImgPlus;
+import org.ilastik.ilastik4ij.IlastikOptions;
+import org.ilastik.ilastik4ij.util.TransferFormat;
+import org.scijava.service.SciJavaService;
+
+import java.io.File;
+
+/**
+ * Keeps prediction results on disk, keyed by the content of the inputs, the project and the settings,
+ * so that predicting the same image with the same project again does not need to run ilastik.
+ *
+ * The cache lives in the directory configured in the {@link IlastikOptions} and can be used by several
+ * Fiji instances at the same time. The least recently used results are evicted once it grows beyond its size limit.
+ */
+public interface PredictionCacheService extends SciJavaService {
+
+    /**
+     * @param settings everything else that changes the result, e.g. the workflow and output type
+     * @return the cache key, or null if the inputs cannot be hashed
+     */
+    String createKey(IlastikOptions options, File projectFile, ImgPlus<?> input, String... settings);
+
+    /**
+     * @return the cached result, or null if there is none
+     */
+    ImgPlus lookup(IlastikOptions options, String key, TransferFormat format);
+
+    /**
+     * Adds a result file exported by ilastik, which is moved into the cache if possible and copied otherwise.
+     */
+    void store(IlastikOptions options, String key, File result, TransferFormat format);
+
+    /**
+     * Adds a result that only exists in memory.
+     */
+    void store(IlastikOptions options, String key, ImgPlus<?> result, TransferFormat format);
+
+    CacheStatistics getStatistics();
+}
@@ -0,0 +1,99 @@
+package org.ilastik.ilastik4ij.hdf5;
+
+import ncsa.hdf.hdf5lib.H5;
+import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Named combination of the standard HDF5 filters ilastik can read: byte-shuffle followed by deflate.
+ * Fletcher32 checksums are never enabled, they only cost time for temporary files.
+ *
+ * {@link #AUTO} is a placeholder that is resolved per image by {@link CompressionProfileSelector}.
+ */
+public final class CompressionProfile {
+    public static final CompressionProfile NONE = new CompressionProfile("None", false, -1);
+    public static final CompressionProfile FAST = new CompressionProfile("Fast", true, 1);
+    public static final CompressionProfile BALANCED = new CompressionProfile("Balanced", true, 4);
+    public static final CompressionProfile SMALLEST = new CompressionProfile("Smallest", true, 9);
+    public static final CompressionProfile AUTO = new CompressionProfile("Auto", false, -1);
+
+    private static final List<CompressionProfile> NAMED = Collections.unmodifiableList(
+            Arrays.asList(NONE, FAST, BALANCED, SMALLEST, AUTO));
+
+    private final String name;
+    private final boolean shuffle;
+    private final int deflateLevel;
+
+    private CompressionProfile(String name, boolean shuffle, int deflateLevel) {
+        this.name = name;
+        this.shuffle = shuffle;
+        this.deflateLevel = deflateLevel;
+    }
+
+    /**
+     * Plain deflate at the given level without shuffling, as written by previous versions of this plugin.
+     */
+    public static CompressionProfile deflate(int level) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Deflate level must be between 0 and 9, got " + level);
+        }
+        return new CompressionProfile("Deflate " + level, false, level);
+    }
+
+    /**
+     * @return all named profiles, including {@link #AUTO}
+     */
+    public static List<CompressionProfile> values() {
+        return NAMED;
+    }
+
+    public static CompressionProfile fromName(String name) {
+        for (CompressionProfile profile : NAMED) {
+            if (profile.name.equalsIgnoreCase(name)) {
+                return profile;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression profile: " + name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isShuffle() {
+        return shuffle;
+    }
+
+    /**
+     * @return the deflate level, or -1 if deflate is not used
+     */
+    public int getDeflateLevel() {
+        return deflateLevel;
+    }
+
+    /**
+     * Adds the filters of this profile to a dataset creation property list that already has chunking enabled.
+     */
+    void configure(int dcplId) throws HDF5Exception {
+        if (this == AUTO) {
+            throw new IllegalStateException("Compression profile AUTO must be resolved before use");
+        }
+        if (shuffle) {
+            H5.H5Pset_shuffle(dcplId);
+        }
+        if (deflateLevel >= 0) {
+            H5.H5Pset_deflate(dcplId, deflateLevel);
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (deflateLevel < 0) {
+            return name;
+        }
+        return name + " (" + (shuffle ? "shuffle + " : "") + "deflate " + deflateLevel + ")";
+    }
+}
@@ -0,0 +1,229 @@
+package org.ilastik.ilastik4ij.hdf5;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.Type;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+/**
+ * Resolves {@link CompressionProfile#AUTO} for a given image and target directory.
+ *
+ * A few sample chunks of the image are shuffled and deflated in memory with each candidate profile.
+ * Together with the measured write throughput of the target directory this gives an estimate of how
+ * long writing the whole image takes. As HDF5 writes go to the page cache, compressing and writing
+ * overlap, so the estimate of a profile is the slower of the two. The fastest profile wins.
+ */
+public class CompressionProfileSelector {
+    private static final List<CompressionProfile> CANDIDATES = Arrays.asList(
+            CompressionProfile.NONE, CompressionProfile.FAST, CompressionProfile.BALANCED, CompressionProfile.SMALLEST);
+    private static final int NUM_SAMPLES = 4;
+    private static final int MAX_SAMPLE_PIXELS = 256 * 256;
+    private static final int PROBE_BYTES = 16 * 1024 * 1024;
+
+    // measured bytes per second of each target directory, probed once per session
+    private static final Map<String, Double> throughputCache = new ConcurrentHashMap<>();
+
+    private final LogService log;
+
+    public CompressionProfileSelector(LogService log) {
+        this.log = log;
+    }
+
+    /**
+     * @param image  the image that will be written
+     * @param target the HDF5 file that will be written, used to find the storage to measure
+     * @return the profile with the shortest estimated time to disk
+     */
+    public <T extends Type<T>> CompressionProfile select(ImgPlus<T> image, File target) {
+        return select(image, NarrowingPolicy.LOSSLESS, target);
+    }
+
+    /**
+     * @param narrowing the conversion the pixels undergo when they are written
+     */
+    public <T extends Type<T>> CompressionProfile select(ImgPlus<T> image, NarrowingPolicy narrowing, File target) {
+        byte[][] samples;
+        int elementSize;
+        try {
+            StorageType storageType = StorageType.of(image.firstElement(), narrowing);
+            PlaneBuffer plane = new PlaneBuffer(storageType,
+                    Math.toIntExact(image.dimension(image.dimensionIndex(Axes.Y))),
+                    Math.toIntExact(image.dimension(image.dimensionIndex(Axes.X))));
+            elementSize = storageType.bytesPerPixel;
+            samples = gatherSamples(image, plane, elementSize);
+        } catch (IllegalArgumentException e) {
+            log.info("Cannot sample " + image.firstElement().getClass().getSimpleName()
+                    + " images for automatic compression, using " + CompressionProfile.FAST);
+            return CompressionProfile.FAST;
+        }
+
+        double bytesPerSecond = measureThroughput(target.getAbsoluteFile().getParentFile());
+        long rawBytes = 0;
+        for (byte[] sample : samples) {
+            rawBytes += sample.length;
+        }
+
+        CompressionProfile best = CompressionProfile.NONE;
+        double bestSeconds = Double.MAX_VALUE;
+        Deflater deflater = new Deflater();
+        try {
+            for (CompressionProfile candidate : CANDIDATES) {
+                long compressedBytes = 0;
+                long start = System.nanoTime();
+                for (byte[] sample : samples) {
+                    compressedBytes += compressedSize(candidate, sample, elementSize, deflater);
+                }
+                double cpuSeconds = (System.nanoTime() - start) * 1e-9;
+                double diskSeconds = compressedBytes / bytesPerSecond;
+                double seconds = Math.max(cpuSeconds, diskSeconds);
+                log.info(String.format("Compression %s: ratio %.2f, %.1f ms CPU, %.1f ms disk per %d sampled bytes",
+                        candidate, (double) compressedBytes / rawBytes, cpuSeconds * 1e3, diskSeconds * 1e3, rawBytes));
+                if (seconds < bestSeconds) {
+                    bestSeconds = seconds;
+                    best = candidate;
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        log.info("Automatically selected compression " + best);
+        return best;
+    }
+
+    private <T extends Type<T>> byte[][] gatherSamples(ImgPlus<T> image, PlaneBuffer plane, int elementSize) {
+        long numPlanes = 1;
+        for (int d = 0; d < image.numDimensions(); d++) {
+            if (d != image.dimensionIndex(Axes.X) && d != image.dimensionIndex(Axes.Y)) {
+                numPlanes *= image.dimension(d);
+            }
+        }
+        int numSamples = (int) Math.min(NUM_SAMPLES, numPlanes);
+        byte[][] samples = new byte[numSamples][];
+        RandomAccess<T> rai = image.randomAccess();
+        for (int s = 0; s < numSamples; s++) {
+            // spread samples evenly over all planes, e.g. different frames and channels
+            long index = numPlanes * s / numSamples;
+            for (int d = 0; d < image.numDimensions(); d++) {
+                if (d != image.dimensionIndex(Axes.X) && d != image.dimensionIndex(Axes.Y)) {
+                    rai.setPosition(index % image.dimension(d), d);
+                    index /= image.dimension(d);
+                }
+            }
+            plane.fill(rai, image.dimensionIndex(Axes.X), image.dimensionIndex(Axes.Y));
+            samples[s] = centerChunkBytes(plane, elementSize);
+        }
+        return samples;
+    }
+
+    /**
+     * @return the central chunk of at most MAX_SAMPLE_PIXELS pixels of the plane as little endian bytes
+     */
+    private static byte[] centerChunkBytes(PlaneBuffer plane, int elementSize) {
+        int numPixels = plane.nRows * plane.nCols;
+        int count = Math.min(numPixels, MAX_SAMPLE_PIXELS);
+        int offset = (numPixels - count) / 2;
+        ByteBuffer bytes = ByteBuffer.allocate(count * elementSize).order(ByteOrder.LITTLE_ENDIAN);
+        if (plane.data instanceof byte[]) {
+            bytes.put((byte[]) plane.data, offset, count);
+        } else if (plane.data instanceof short[]) {
+            bytes.asShortBuffer().put((short[]) plane.data, offset, count);
+        } else if (plane.data instanceof int[]) {
+            bytes.asIntBuffer().put((int[]) plane.data, offset, count);
+        } else if (plane.data instanceof long[]) {
+            bytes.asLongBuffer().put((long[]) plane.data, offset, count);
+        } else if (plane.data instanceof float[]) {
+            bytes.asFloatBuffer().put((float[]) plane.data, offset, count);
+        } else {
+            bytes.asDoubleBuffer().put((double[]) plane.data, offset, count);
+        }
+        return bytes.array();
+    }
+
+    private static long compressedSize(CompressionProfile profile, byte[] sample, int elementSize, Deflater deflater) {
+        if (profile.getDeflateLevel() < 0) {
+            return sample.length;
+        }
+        byte[] input = profile.isShuffle() ? shuffle(sample, elementSize) : sample;
+        deflater.reset();
+        deflater.setLevel(profile.getDeflateLevel());
+        deflater.setInput(input);
+        deflater.finish();
+        byte[] out = new byte[64 * 1024];
+        long total = 0;
+        while (!deflater.finished()) {
+            total += deflater.deflate(out);
+        }
+        return total;
+    }
+
+    /**
+     * Same byte transposition as the HDF5 shuffle filter: all first bytes of each element, then all second bytes, ...
+     */
+    static byte[] shuffle(byte[] data, int elementSize) {
+        if (elementSize == 1) {
+            return data;
+        }
+        int numElements = data.length / elementSize;
+        byte[] shuffled = new byte[data.length];
+        for (int b = 0; b < elementSize; b++) {
+            for (int i = 0; i < numElements; i++) {
+                shuffled[b * numElements + i] = data[i * elementSize + b];
+            }
+        }
+        return shuffled;
+    }
+
+    private double measureThroughput(File directory) {
+        if (directory == null) {
+            directory = new File(System.getProperty("java.io.tmpdir"));
+        }
+        String key = directory.getAbsolutePath();
+        Double cached = throughputCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        double bytesPerSecond;
+        File probe = null;
+        try {
+            probe = File.createTempFile("ilastik4j", ".probe", directory);
+            byte[] block = new byte[1024 * 1024];
+            new Random(42).nextBytes(block);
+            long start = System.nanoTime();
+            try (RandomAccessFile file = new RandomAccessFile(probe, "rw"); FileChannel channel = file.getChannel()) {
+                for (int written = 0; written < PROBE_BYTES; written += block.length) {
+                    ByteBuffer buffer = ByteBuffer.wrap(block);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                channel.force(false);
+            }
+            bytesPerSecond = PROBE_BYTES / Math.max((System.nanoTime() - start) * 1e-9, 1e-6);
+            log.info(String.format("Measured write throughput of %s: %.0f MB/s", key, bytesPerSecond / 1e6));
+        } catch (IOException e) {
+            log.warn("Could not measure write throughput of " + key + ", assuming 100 MB/s");
+            bytesPerSecond = 100e6;
+        } finally {
+            if (probe != null) {
+                probe.delete();
+            }
+        }
+        throughputCache.put(key, bytesPerSecond);
+        return bytesPerSecond;
+    }
+}
@@ -0,0 +1,51 @@
+package org.ilastik.ilastik4ij.hdf5;
+
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Default {@link Hdf5IoService} with one CPU thread per processor, on the {@link Hdf5IoExecutor#getShared shared}
+ * I/O thread.
+ */
+@Plugin(type = Service.class)
+public class DefaultHdf5IoService extends AbstractService implements Hdf5IoService {
+
+    @Parameter
+    private LogService log;
+
+    private ExecutorService cpuExecutor;
+
+    @Override
+    public Hdf5IoExecutor getIoExecutor() {
+        return Hdf5IoExecutor.getShared();
+    }
+
+    @Override
+    public synchronized ExecutorService getCpuExecutor() {
+        if (cpuExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            cpuExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "ilastik4ij-hdf5-cpu-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return cpuExecutor;
+    }
+
+    @Override
+    public synchronized void dispose() {
+        if (cpuExecutor != null) {
+            cpuExecutor.shutdownNow();
+        }
+        // the I/O thread outlives the service, other contexts and readers without a service share it
+        log.info(getIoExecutor().getStatistics());
+    }
+}
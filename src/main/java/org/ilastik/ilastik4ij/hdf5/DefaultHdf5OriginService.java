@@ -0,0 +1,59 @@
+package org.ilastik.ilastik4ij.hdf5;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.Img;
+import org.ilastik.ilastik4ij.cache.ContentHasher;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Default {@link Hdf5OriginService}.
+ *
+ * Changes to the pixels in memory are detected by hashing them when the image is registered and again when its
+ * origin is requested, which is a single pass over memory and much cheaper than writing the image to disk.
+ */
+@Plugin(type = Service.class)
+public class DefaultHdf5OriginService extends AbstractService implements Hdf5OriginService {
+
+    @Parameter
+    private LogService log;
+
+    // images do not override equals, so this is keyed on their identity
+    private final Map<Img<?>, Hdf5Origin> origins = Collections.synchronizedMap(new WeakHashMap<>());
+
+    @Override
+    public void register(ImgPlus<?> image, File file, String dataset, String axisOrder) {
+        try {
+            String hash = new ContentHasher().updateImage(image).toHex();
+            origins.put(image.getImg(), new Hdf5Origin(file, dataset, axisOrder, hash));
+        } catch (IllegalArgumentException e) {
+            log.debug("Not tracking the origin of " + image.getName() + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public Hdf5Origin findUnchangedOrigin(ImgPlus<?> image) {
+        Hdf5Origin origin = origins.get(image.getImg());
+        if (origin == null) {
+            return null;
+        }
+        if (!origin.isFileUnchanged()) {
+            log.info(origin.getFile() + " changed since " + image.getName() + " was loaded from it");
+            origins.remove(image.getImg());
+            return null;
+        }
+        if (!origin.getContentHash().equals(new ContentHasher().updateImage(image).toHex())) {
+            log.info(image.getName() + " was modified since it was loaded from " + origin);
+            return null;
+        }
+        return origin;
+    }
+}
@@ -0,0 +1,385 @@
+package org.ilastik.ilastik4ij.hdf5;
+
+import ch.systemsx.cisd.hdf5.hdf5lib.HDF5Constants;
+import ncsa.hdf.hdf5lib.H5;
+import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.Type;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoExecutor.Priority;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static ch.systemsx.cisd.hdf5.hdf5lib.HDF5Constants.*;
+import static java.lang.Long.min;
+
+/**
+ * Streams frames into a tzyxc HDF5 dataset one after the other, growing its time axis as data arrives.
+ *
+ * The file is opened (or created if it does not exist yet) once, and an existing dataset is continued
+ * at its last frame. Planes are kept in memory until {@code maxBufferedFrames} frames are complete,
+ * then written and flushed to disk, so memory use is bounded independently of the length of the movie.
+ * Frames can either be handed over as a whole ({@link #appendFrames}) or as consecutive z-slabs
+ * ({@link #appendSlab}). Only complete frames are written, a frame that is still incomplete when the appender is
+ * closed is dropped, so the dataset never holds a frame with missing slices.
+ */
+public class Hdf5DataSetAppender<T extends Type<T>> implements AutoCloseable {
+    private static final int RANK = PlaneBuffer.RANK;
+    private final long[] maxDims = {
+            HDF5Constants.H5S_UNLIMITED,
+            HDF5Constants.H5S_UNLIMITED,
+            HDF5Constants.H5S_UNLIMITED,
+            HDF5Constants.H5S_UNLIMITED,
+            HDF5Constants.H5S_UNLIMITED
+    };
+
+    private final String filename;
+    private final String dataset;
+    private CompressionProfile compression;
+    private final int maxBufferedFrames;
+    private final LogService log;
+    private final Hdf5IoExecutor ioExecutor;
+
+    private int fileId = -1;
+    private int datasetId = -1;
+    private StorageType storageType;
+    private int nZ = -1;
+    private int nRows = -1;
+    private int nCols = -1;
+    private int nChannels = -1;
+
+    // number of frames of which all planes are on disk
+    private long framesOnDisk = 0;
+    // position of the next plane handed to us
+    private long nextFrame = 0;
+    private int nextSlice = 0;
+
+    private final List<PlaneBuffer> pending = new ArrayList<>();
+    private final Deque<PlaneBuffer> free = new ArrayDeque<>();
+
+    /**
+     * @param ioService service whose I/O thread runs all native HDF5 calls, if null they go through
+     *                  {@link Hdf5IoExecutor#getShared()}
+     */
+    public Hdf5DataSetAppender(String filename, String dataset, CompressionProfile compression, int maxBufferedFrames,
+                               Hdf5IoService ioService, LogService log) {
+        if (maxBufferedFrames < 1) {
+            throw new IllegalArgumentException("At least one frame must be buffered");
+        }
+        this.filename = filename;
+        this.dataset = dataset;
+        this.compression = compression;
+        this.maxBufferedFrames = maxBufferedFrames;
+        this.log = log;
+        this.ioExecutor = ioService != null ? ioService.getIoExecutor() : Hdf5IoExecutor.getShared();
+        io(() -> {
+            open();
+            return null;
+        });
+    }
+
+    public Hdf5DataSetAppender(String filename, String dataset, CompressionProfile compression, int maxBufferedFrames, LogService log) {
+        this(filename, dataset, compression, maxBufferedFrames, null, log);
+    }
+
+    public Hdf5DataSetAppender(String filename, String dataset, int compressionLevel, int maxBufferedFrames, LogService log) {
+        this(filename, dataset, CompressionProfile.deflate(compressionLevel), maxBufferedFrames, log);
+    }
+
+    public Hdf5DataSetAppender(String filename, String dataset, int compressionLevel, LogService log) {
+        this(filename, dataset, compressionLevel, 1, log);
+    }
+
+    /**
+     * Declares the number of z slices per frame. Only needed when the first data is appended
+     * as slabs to a dataset that does not exist yet.
+     */
+    public void setSlicesPerFrame(int slices) {
+        if (nZ >= 0 && nZ != slices) {
+            throw new IllegalStateException("Dataset already has " + nZ + " slices per frame");
+        }
+        nZ = slices;
+    }
+
+    /**
+     * @return number of frames appended so far, including frames that already were in the dataset
+     */
+    public long getNumFrames() {
+        return nextFrame;
+    }
+
+    /**
+     * Appends all frames of the given image. If it has no time axis it is treated as a single frame.
+     */
+    public void appendFrames(ImgPlus<T> frames) {
+        if (nextSlice != 0) {
+            throw new IllegalStateException("Cannot append frames while frame " + nextFrame + " is incomplete");
+        }
+        int timeAxis = frames.dimensionIndex(Axes.TIME);
+        int nT = timeAxis >= 0 ? Math.toIntExact(frames.dimension(timeAxis)) : 1;
+        int zAxis = frames.dimensionIndex(Axes.Z);
+        int slices = zAxis >= 0 ? Math.toIntExact(frames.dimension(zAxis)) : 1;
+        if (nZ < 0) {
+            nZ = slices;
+        } else if (nZ != slices) {
+            throw new IllegalArgumentException("Frames must have " + nZ + " slices, got " + slices);
+        }
+
+        RandomAccess<T> rai = frames.randomAccess();
+        for (int t = 0; t < nT; t++) {
+            if (timeAxis >= 0) {
+                rai.setPosition(t, timeAxis);
+            }
+            appendPlanes(frames, rai, slices);
+        }
+    }
+
+    /**
+     * Appends the given z-slab to the current frame. A new frame is started automatically
+     * as soon as all slices of the current one have been appended.
+     */
+    public void appendSlab(ImgPlus<T> slab) {
+        if (nZ < 0) {
+            throw new IllegalStateException("Number of slices per frame is unknown, call setSlicesPerFrame first");
+        }
+        if (slab.dimensionIndex(Axes.TIME) >= 0 && slab.dimension(slab.dimensionIndex(Axes.TIME)) > 1) {
+            throw new IllegalArgumentException("A slab must not span several frames");
+        }
+        int zAxis = slab.dimensionIndex(Axes.Z);
+        int slices = zAxis >= 0 ? Math.toIntExact(slab.dimension(zAxis)) : 1;
+        if (nextSlice + slices > nZ) {
+            throw new IllegalArgumentException("Slab of " + slices + " slices exceeds frame depth " + nZ
+                    + " (" + nextSlice + " slices written already)");
+        }
+        appendPlanes(slab, slab.randomAccess(), slices);
+    }
+
+    private void appendPlanes(ImgPlus<T> image, RandomAccess<T> rai, int slices) {
+        checkFrameGeometry(image);
+        int xAxis = image.dimensionIndex(Axes.X);
+        int yAxis = image.dimensionIndex(Axes.Y);
+        int zAxis = image.dimensionIndex(Axes.Z);
+        int cAxis = image.dimensionIndex(Axes.CHANNEL);
+
+        for (int z = 0; z < slices; z++) {
+            if (zAxis >= 0) {
+                rai.setPosition(z, zAxis);
+            }
+            for (int c = 0; c < nChannels; c++) {
+                if (cAxis >= 0) {
+                    rai.setPosition(c, cAxis);
+                }
+                PlaneBuffer plane = obtainBuffer();
+                plane.fill(rai, xAxis, yAxis);
+                plane.setPosition(nextFrame, nextSlice, c);
+                pending.add(plane);
+            }
+            if (++nextSlice == nZ) {
+                nextSlice = 0;
+                nextFrame++;
+                if (nextFrame - framesOnDisk >= maxBufferedFrames) {
+                    flush();
+                }
+            }
+        }
+    }
+
+    private void checkFrameGeometry(ImgPlus<T> image) {
+        if (image.dimensionIndex(Axes.X) < 0 || image.dimensionIndex(Axes.Y) < 0) {
+            throw new IllegalArgumentException("image must have X and Y dimensions!");
+        }
+        int rows = Math.toIntExact(image.dimension(image.dimensionIndex(Axes.Y)));
+        int cols = Math.toIntExact(image.dimension(image.dimensionIndex(Axes.X)));
+        int channels = image.dimensionIndex(Axes.CHANNEL) >= 0
+                ? Math.toIntExact(image.dimension(image.dimensionIndex(Axes.CHANNEL))) : 1;
+        StorageType type = StorageType.of(image.firstElement(), NarrowingPolicy.LOSSLESS);
+
+        if (datasetId < 0) {
+            nRows = rows;
+            nCols = cols;
+            nChannels = channels;
+            storageType = type;
+            if (compression == CompressionProfile.AUTO) {
+                compression = new CompressionProfileSelector(log).select(image, new File(filename));
+            }
+            io(() -> {
+                createDataset();
+                return null;
+            });
+        } else if (rows != nRows || cols != nCols || channels != nChannels) {
+            throw new IllegalArgumentException("Expected frames of " + nCols + "x" + nRows + "x" + nChannels
+                    + " (xyc), got " + cols + "x" + rows + "x" + channels);
+        } else if (type != storageType) {
+            throw new IllegalArgumentException("Pixel type " + image.firstElement().getClass()
+                    + " does not match the type of dataset '" + dataset + "'");
+        }
+    }
+
+    private PlaneBuffer obtainBuffer() {
+        PlaneBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = new PlaneBuffer(storageType, nRows, nCols);
+        }
+        return buffer;
+    }
+
+    private void open() {
+        try {
+            if (new File(filename).exists()) {
+                fileId = H5.H5Fopen(filename, H5F_ACC_RDWR, H5P_DEFAULT);
+                if (H5.H5Lexists(fileId, dataset, H5P_DEFAULT)) {
+                    openDataset();
+                }
+            } else {
+                fileId = H5.H5Fcreate(filename, H5F_ACC_TRUNC, H5P_DEFAULT, H5P_DEFAULT);
+            }
+        } catch (RuntimeException err) {
+            // HDF5 errors as well as a dataset of the wrong rank or type, the file must not stay open for writing
+            log.error("Could not open '" + filename + "' for appending: " + err.getMessage());
+            closeIds();
+            throw err;
+        }
+    }
+
+    private void openDataset() throws HDF5Exception {
+        datasetId = H5.H5Dopen(fileId, dataset, H5P_DEFAULT);
+        int spaceId = H5.H5Dget_space(datasetId);
+        long[] dims = new long[RANK];
+        try {
+            if (H5.H5Sget_simple_extent_ndims(spaceId) != RANK) {
+                throw new IllegalArgumentException("Can only append to datasets with 5 dimensions (tzyxc)");
+            }
+            H5.H5Sget_simple_extent_dims(spaceId, dims, null);
+        } finally {
+            H5.H5Sclose(spaceId);
+        }
+
+        int typeId = H5.H5Dget_type(datasetId);
+        try {
+            storageType = StorageType.fromHdf5(typeId);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Dataset '" + dataset + "' has a datatype that cannot be appended to");
+        } finally {
+            H5.H5Tclose(typeId);
+        }
+
+        framesOnDisk = dims[0];
+        nextFrame = dims[0];
+        nZ = Math.toIntExact(dims[1]);
+        nRows = Math.toIntExact(dims[2]);
+        nCols = Math.toIntExact(dims[3]);
+        nChannels = Math.toIntExact(dims[4]);
+        log.info("Appending to dataset '" + dataset + "' after frame " + framesOnDisk);
+    }
+
+    private void createDataset() {
+        long[] chunkDims = {1, min(nZ, 256), min(nRows, 256), min(nCols, 256), 1};
+        long[] iniDims = {0, nZ, nRows, nCols, nChannels};
+        int dcplId = -1;
+        int dataspaceId = -1;
+        try {
+            dcplId = H5.H5Pcreate(H5P_DATASET_CREATE);
+            H5.H5Pset_chunk(dcplId, RANK, chunkDims);
+            compression.configure(dcplId);
+            dataspaceId = H5.H5Screate_simple(RANK, iniDims, maxDims);
+            datasetId = H5.H5Dcreate(fileId, dataset, storageType.hdf5Type(), dataspaceId, H5P_DEFAULT, dcplId, H5P_DEFAULT);
+            log.info("Created dataset '" + dataset + "' with frames of shape zyxc: "
+                    + nZ + "x" + nRows + "x" + nCols + "x" + nChannels);
+        } catch (HDF5Exception ex) {
+            log.error("H5D dataspace creation failed." + ex.getMessage(), ex);
+            throw new RuntimeException(ex);
+        } finally {
+            if (dataspaceId >= 0) {
+                H5.H5Sclose(dataspaceId);
+            }
+            if (dcplId >= 0) {
+                H5.H5Pclose(dcplId);
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered planes of all complete frames to disk. The planes of a partially appended frame stay
+     * buffered until the frame is complete.
+     */
+    public void flush() {
+        // planes are buffered in order, so those of complete frames come first
+        int complete = 0;
+        while (complete < pending.size() && pending.get(complete).t < nextFrame) {
+            complete++;
+        }
+        if (complete == 0) {
+            return;
+        }
+        List<PlaneBuffer> planes = pending.subList(0, complete);
+        try {
+            io(() -> {
+                H5.H5Dset_extent(datasetId, new long[]{nextFrame, nZ, nRows, nCols, nChannels});
+                for (PlaneBuffer plane : planes) {
+                    plane.write(datasetId);
+                }
+                H5.H5Fflush(fileId, H5F_SCOPE_LOCAL);
+                return null;
+            });
+        } catch (HDF5Exception e) {
+            log.error("Error while appending to '" + filename + "'." + e.getMessage(), e);
+            throw new RuntimeException(e);
+        }
+        free.addAll(planes);
+        planes.clear();
+        framesOnDisk = nextFrame;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (datasetId >= 0) {
+                flush();
+                if (nextSlice > 0) {
+                    log.warn("Dropping incomplete frame " + nextFrame + " of '" + filename + "' ("
+                            + nextSlice + " of " + nZ + " slices appended)");
+                    pending.clear();
+                    nextSlice = 0;
+                }
+                log.info("Finished appending to " + filename + ", dataset now has " + Arrays.toString(
+                        new long[]{nextFrame, nZ, nRows, nCols, nChannels}) + " (tzyxc)");
+            }
+        } finally {
+            free.clear();
+            io(() -> {
+                closeIds();
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Closes the dataset and file without writing anything, on the thread of the caller.
+     */
+    private void closeIds() {
+        try {
+            if (datasetId >= 0) {
+                H5.H5Dclose(datasetId);
+            }
+        } finally {
+            datasetId = -1;
+            if (fileId >= 0) {
+                int id = fileId;
+                fileId = -1;
+                H5.H5Fclose(id);
+            }
+        }
+    }
+
+    private <V> V io(Callable<V> task) {
+        return ioExecutor.call(Priority.NORMAL, task);
+    }
+}
@@ -17,6 +17,14 @@ import net.imglib2.type.numeric.real.FloatType;
 import org.scijava.log.LogService;
 import net.imagej.Dataset;
 import net.imglib2.RandomAccess;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoExecutor.Priority;
+import org.ilastik.ilastik4ij.labels.LabelIndex;
+import org.ilastik.ilastik4ij.labels.LabelIndexBuilder;
+import org.ilastik.ilastik4ij.labels.RunLengthLabelImg;
+import org.ilastik.ilastik4ij.labels.RunLengthLabelImgBuilder;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 /**
  *
@@ -29,6 +37,11 @@ public class Hdf5DataSetReader {
     private String axesorder;
     private LogService log;
     private DatasetService datasetService;
+    private Hdf5IoExecutor ioExecutor;
+    private ExecutorService cpuExecutor;
+    private boolean indexLabels = false;
+    private boolean classLabels = false;
+    private boolean runLengthEncoded = false;
 
     public Hdf5DataSetReader(String filename, String dataset, String axesorder, LogService log, DatasetService ds) {
         this.filename = filename;
@@ -38,9 +51,56 @@ public class Hdf5DataSetReader {
         this.datasetService = ds;
     }
 
+    /**
+     * Runs all native HDF5 calls of this reader on the shared I/O thread of the service,
+     * and indexes labels on its CPU pool. Without a service, or with null, HDF5 calls go through
+     * {@link Hdf5IoExecutor#getShared()} and labels are indexed on the reading thread.
+     */
+    public void setIoService(Hdf5IoService ioService) {
+        this.ioExecutor = ioService != null ? ioService.getIoExecutor() : null;
+        this.cpuExecutor = ioService != null ? ioService.getCpuExecutor() : null;
+    }
+
+    /**
+     * Builds a {@link LabelIndex} of the labels while reading them and attaches it to the image.
+     * Only used for single channel datasets of unsigned integers.
+     */
+    public void setIndexLabels(boolean indexLabels) {
+        this.indexLabels = indexLabels;
+    }
+
+    /**
+     * Indexes the connected components of every label as objects, for labels that are classes.
+     * See {@link LabelIndexBuilder#setClassLabels}.
+     */
+    public void setClassLabels(boolean classLabels) {
+        this.classLabels = classLabels;
+    }
+
+    /**
+     * Decodes labels straight into a {@link RunLengthLabelImg}, which takes a fraction of the memory of a dense image
+     * for results that are mostly background, but is read-only. Only used for datasets of unsigned integers.
+     */
+    public void setRunLengthEncoded(boolean runLengthEncoded) {
+        this.runLengthEncoded = runLengthEncoded;
+    }
+
+    private <V> V io(Callable<V> task) throws Exception {
+        Hdf5IoExecutor executor = ioExecutor != null ? ioExecutor : Hdf5IoExecutor.getShared();
+        return executor.call(Priority.NORMAL, task);
+    }
+
     public ImgPlus read() {
-        IHDF5Reader reader = HDF5Factory.openForReading(filename);
-        Hdf5DataSetConfig dsConfig = new Hdf5DataSetConfig(reader, dataset, axesorder);
+        final IHDF5Reader reader;
+        final Hdf5DataSetConfig dsConfig;
+        try {
+            reader = io(() -> HDF5Factory.openForReading(filename));
+            dsConfig = io(() -> new Hdf5DataSetConfig(reader, dataset, axesorder));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
         log.info("Found dataset '" + dataset + "' of type " + dsConfig.typeInfo);
 
         MDFloatArray rawdata_float = null;
@@ -61,75 +121,124 @@ public class Hdf5DataSetReader {
         log.info("Constructing output image of shape " + dims[0] + ", " + dims[1] + ", " + dims[2] + ", " + dims[3] + ", " + dims[4]);
 
         Dataset ds = null;
+        RunLengthLabelImgBuilder runLengths = null;
         switch (dsConfig.typeInfo) {
             case "float32":
                 ds = datasetService.create(new FloatType(), dims, filename, axes);
                 break;
             case "uint8":
-                ds = datasetService.create(new UnsignedByteType(), dims, filename, axes);
+                if (runLengthEncoded) {
+                    runLengths = new RunLengthLabelImgBuilder(new UnsignedByteType(), dims);
+                } else {
+                    ds = datasetService.create(new UnsignedByteType(), dims, filename, axes);
+                }
                 break;
             case "uint16":
-                ds = datasetService.create(new UnsignedShortType(), dims, filename, axes);
+                if (runLengthEncoded) {
+                    runLengths = new RunLengthLabelImgBuilder(new UnsignedShortType(), dims);
+                } else {
+                    ds = datasetService.create(new UnsignedShortType(), dims, filename, axes);
+                }
                 break;
             case "uint32":
-                ds = datasetService.create(new UnsignedIntType(), dims, filename, axes);
+                if (runLengthEncoded) {
+                    runLengths = new RunLengthLabelImgBuilder(new UnsignedIntType(), dims);
+                } else {
+                    ds = datasetService.create(new UnsignedIntType(), dims, filename, axes);
+                }
                 break;
             default:
                 throw new IllegalArgumentException("Dataset uses not yet supported datatype " + dsConfig.typeInfo + "!");
         }
         
-        ImgPlus image = ds.getImgPlus();
-        if(image == null)
+        ImgPlus image = ds == null ? null : ds.getImgPlus();
+        if(image == null && runLengths == null)
         {
             log.error("Could not get imgPlus from dataset");
             return null;
         }
         
-        RandomAccess rai = image.randomAccess();
-        log.info("Created image of shape: " + image.dimension(image.dimensionIndex(Axes.X))
-                + ", " + image.dimension(image.dimensionIndex(Axes.Y))
-                + ", " + image.dimension(image.dimensionIndex(Axes.CHANNEL))
-                + ", " + image.dimension(image.dimensionIndex(Axes.Z))
-                + ", " + image.dimension(image.dimensionIndex(Axes.TIME)));
+        LabelIndexBuilder labelIndex = null;
+        if (indexLabels) {
+            if (dsConfig.numChannels == 1 && !dsConfig.typeInfo.equals("float32")) {
+                labelIndex = new LabelIndexBuilder(dsConfig.numFrames, cpuExecutor);
+                labelIndex.setClassLabels(classLabels);
+            } else {
+                log.warn("Not indexing labels of " + dsConfig.numChannels + " channels of " + dsConfig.typeInfo);
+            }
+        }
+
+        // run length encoded labels are added row by row, there is no dense image to write to
+        RandomAccess rai = null;
+        if (image != null) {
+            rai = image.randomAccess();
+            log.info("Created image of shape: " + image.dimension(image.dimensionIndex(Axes.X))
+                    + ", " + image.dimension(image.dimensionIndex(Axes.Y))
+                    + ", " + image.dimension(image.dimensionIndex(Axes.CHANNEL))
+                    + ", " + image.dimension(image.dimensionIndex(Axes.Z))
+                    + ", " + image.dimension(image.dimensionIndex(Axes.TIME)));
+        }
 
         for (int frame = 0; frame < dsConfig.numFrames; ++frame) {
-            rai.setPosition(frame, image.dimensionIndex(Axes.TIME));
             for (int lev = 0; lev < dsConfig.dimZ; ++lev) {
-                rai.setPosition(lev, image.dimensionIndex(Axes.Z));
                 for (int c = 0; c < dsConfig.numChannels; ++c) {
-                    rai.setPosition(c, image.dimensionIndex(Axes.CHANNEL));
+                    if (rai != null) {
+                        rai.setPosition(frame, image.dimensionIndex(Axes.TIME));
+                        rai.setPosition(lev, image.dimensionIndex(Axes.Z));
+                        rai.setPosition(c, image.dimensionIndex(Axes.CHANNEL));
+                    }
 
-                    int[] extents = dsConfig.getXYSliceExtent();
-                    long[] offset = dsConfig.getSliceOffset(frame, lev, c);
+                    final int[] extents = dsConfig.getXYSliceExtent();
+                    final long[] offset = dsConfig.getSliceOffset(frame, lev, c);
+                    final boolean transposed = dsConfig.axisIndices.get('x') < dsConfig.axisIndices.get('y');
 
                     try{
+                        Object planeLabels = null;
                         switch (dsConfig.typeInfo) {
                             case "float32":
-                                rawdata_float = reader.float32().readMDArrayBlockWithOffset(dataset, extents, offset);
+                                rawdata_float = io(() -> reader.float32().readMDArrayBlockWithOffset(dataset, extents, offset));
                                 flat_data_float = rawdata_float.getAsFlatArray();
                                 break;
                             case "uint8":
-                                rawdata_byte = reader.uint8().readMDArrayBlockWithOffset(dataset, extents, offset);
+                                rawdata_byte = io(() -> reader.uint8().readMDArrayBlockWithOffset(dataset, extents, offset));
                                 flat_data_byte = rawdata_byte.getAsFlatArray();
+                                planeLabels = flat_data_byte;
+                                if (runLengths != null) {
+                                    runLengths.addPlane(flat_data_byte, dsConfig.dimY, transposed);
+                                }
                                 break;
                             case "uint16":
-                                rawdata_short = reader.uint16().readMDArrayBlockWithOffset(dataset, extents, offset);
+                                rawdata_short = io(() -> reader.uint16().readMDArrayBlockWithOffset(dataset, extents, offset));
                                 flat_data_short = rawdata_short.getAsFlatArray();
+                                planeLabels = flat_data_short;
+                                if (runLengths != null) {
+                                    runLengths.addPlane(flat_data_short, dsConfig.dimY, transposed);
+                                }
                                 break;
                             case "uint32":
-                                rawdata_int = reader.uint32().readMDArrayBlockWithOffset(dataset, extents, offset);
+                                rawdata_int = io(() -> reader.uint32().readMDArrayBlockWithOffset(dataset, extents, offset));
                                 flat_data_int = rawdata_int.getAsFlatArray();
+                                planeLabels = flat_data_int;
+                                if (runLengths != null) {
+                                    runLengths.addPlane(flat_data_int, dsConfig.dimY, transposed);
+                                }
                                 break;
                             default:
                                 throw new IllegalArgumentException("Dataset uses not yet supported datatype " + dsConfig.typeInfo + "!");
                         }
+                        if (runLengths != null) {
+                            if (labelIndex != null && !indexPlane(labelIndex, frame, lev, planeLabels, dsConfig, transposed)) {
+                                labelIndex = null;
+                            }
+                            continue;
+                        }
                         
                         for (int x = 0; x < dsConfig.dimX; x++) {
                             rai.setPosition(x, image.dimensionIndex(Axes.X));
                             for (int y = 0; y < dsConfig.dimY; y++) {
                                 rai.setPosition(y, image.dimensionIndex(Axes.Y));
                                 int destIndex = y * dsConfig.dimX + x;
-                                if(dsConfig.axisIndices.get('x') < dsConfig.axisIndices.get('y'))
+                                if(transposed)
                                 {
                                     destIndex = x * dsConfig.dimY + y;
                                 }
@@ -168,6 +277,9 @@ public class Hdf5DataSetReader {
                                 }
                             }
                         }
+                        if (labelIndex != null && !indexPlane(labelIndex, frame, lev, planeLabels, dsConfig, transposed)) {
+                            labelIndex = null;
+                        }
                     }
                     catch(Exception e) {
                         String extentsStr = "";
@@ -182,19 +294,69 @@ public class Hdf5DataSetReader {
                             offsetStr += String.valueOf(x) + ", ";
                         }
                         log.warn("Could not read data starting at " + offsetStr + " with size " + extentsStr);
+                        if (runLengths != null) {
+                            // the plane stays background, like in a dense image
+                            int planeRows = ((frame * dsConfig.dimZ + lev) * dsConfig.numChannels + c + 1) * dsConfig.dimY;
+                            runLengths.addEmptyRows(planeRows - runLengths.getNumRows());
+                        }
                     }
                 }
             }
         }
 
-        
+        if (runLengths != null) {
+            RunLengthLabelImg labels = runLengths.build();
+            log.info("Encoded labels as " + labels.getNumRuns() + " runs of " + labels.getSizeInBytes() / (1024 * 1024) + " MB");
+            image = new ImgPlus(labels, filename, axes);
+        }
+
         // configure options of image
         image.initializeColorTables(dsConfig.numFrames * dsConfig.numChannels * dsConfig.dimZ);
         image.setValidBits(dsConfig.bitdepth);
 
-        reader.close();
+        try {
+            io(() -> {
+                reader.close();
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("Could not close " + filename + ": " + e.getMessage());
+        }
         image.setName(filename + "/" + dataset);
+        if (labelIndex != null) {
+            // the planes were summed up while the next ones were read, this mostly waits for the last one
+            try {
+                LabelIndex index = labelIndex.build();
+                index.attachTo(image);
+                log.info(index.toString());
+            } catch (RuntimeException e) {
+                log.warn("Could not index the labels of " + filename + ", the image has no label index: " + e.getMessage());
+            }
+        }
 
         return image;
     }
+
+    /**
+     * Adds a plane to the index. Indexing must not change the labels, so a failure only drops the index.
+     *
+     * @return false if the plane could not be indexed, the image then gets no index
+     */
+    private boolean indexPlane(LabelIndexBuilder labelIndex, int frame, int z, Object labels, Hdf5DataSetConfig dsConfig,
+                               boolean transposed) {
+        try {
+            if (labels instanceof byte[]) {
+                labelIndex.addPlane(frame, z, (byte[]) labels, dsConfig.dimX, dsConfig.dimY, transposed);
+            } else if (labels instanceof short[]) {
+                labelIndex.addPlane(frame, z, (short[]) labels, dsConfig.dimX, dsConfig.dimY, transposed);
+            } else {
+                labelIndex.addPlane(frame, z, (int[]) labels, dsConfig.dimX, dsConfig.dimY, transposed);
+            }
+            return true;
+        } catch (RuntimeException e) {
+            log.warn("Could not index the labels of frame " + frame + ", slice " + z + " of " + filename
+                    + ", the image has no label index: " + e.getMessage());
+            return false;
+        }
+    }
 }
@@ -9,17 +9,41 @@ import net.imagej.axis.Axes;
 import net.imglib2.RandomAccess;
 import net.imglib2.type.Type;
 import net.imglib2.type.numeric.ARGBType;
-import net.imglib2.type.numeric.integer.UnsignedByteType;
-import net.imglib2.type.numeric.integer.UnsignedIntType;
-import net.imglib2.type.numeric.integer.UnsignedShortType;
-import net.imglib2.type.numeric.real.FloatType;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoExecutor.Priority;
 import org.scijava.log.LogService;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import static ch.systemsx.cisd.hdf5.hdf5lib.HDF5Constants.*;
 import static java.lang.Long.min;
 
+/**
+ * Writes an ImgPlus to a tzyxc HDF5 dataset.
+ *
+ * Gathering pixels and writing them run as a pipeline: producer threads copy yx planes of the image
+ * into a small pool of recycled primitive buffers, and a single I/O thread writes each filled buffer
+ * as a hyperslab and hands it back to the pool. Only two buffers per producer are ever in flight,
+ * so the export takes roughly as long as the slower of gathering and writing, not their sum.
+ * With an {@link Hdf5IoService} set, the I/O thread and the producers are shared with other writers and readers.
+ * A plane is only handed to a producer once its buffer is taken, so producers never wait on a shared pool
+ * and writers running at the same time take turns on it.
+ *
+ * Any real pixel type can be written. Pixels are converted plane by plane while they are gathered,
+ * according to the {@link NarrowingPolicy}, which by default keeps them lossless.
+ */
 public class Hdf5DataSetWriterFromImgPlus<T extends Type<T>> {
     private static final int NUM_OF_ARGB_CHANNELS = 4;
+    private static final int BUFFERS_PER_PRODUCER = 2;
     private final ImgPlus<T> image;
     private static final int RANK = 5;
     private final int nFrames;
@@ -30,7 +54,11 @@ public class Hdf5DataSetWriterFromImgPlus<T extends Type<T>> {
     private LogService log;
     private String filename;
     private String dataset;
-    private int compressionLevel;
+    private CompressionProfile compression;
+    private NarrowingPolicy narrowing = NarrowingPolicy.LOSSLESS;
+    private int numProducers = Runtime.getRuntime().availableProcessors();
+    private Hdf5IoExecutor ioExecutor;
+    private ExecutorService cpuExecutor;
     private int fileId = -1;
     private int dataspaceId = -1;
     private int datasetId = -1;
@@ -44,6 +72,10 @@ public class Hdf5DataSetWriterFromImgPlus<T extends Type<T>> {
     };
 
     public Hdf5DataSetWriterFromImgPlus(ImgPlus<T> image, String filename, String dataset, int compressionLevel, LogService log) {
+        this(image, filename, dataset, CompressionProfile.deflate(compressionLevel), log);
+    }
+
+    public Hdf5DataSetWriterFromImgPlus(ImgPlus<T> image, String filename, String dataset, CompressionProfile compression, LogService log) {
         this.image = image;
 
         if (image.dimensionIndex(Axes.TIME) >= 0) {
@@ -69,10 +101,37 @@ public class Hdf5DataSetWriterFromImgPlus<T extends Type<T>> {
         this.nCols = Math.toIntExact(image.dimension(image.dimensionIndex(Axes.X)));
         this.filename = filename;
         this.dataset = dataset;
-        this.compressionLevel = compressionLevel;
+        this.compression = compression;
         this.log = log;
     }
 
+    /**
+     * Sets the number of planes copied out of the image at the same time, defaults to the number of processors.
+     */
+    public void setNumProducers(int numProducers) {
+        if (numProducers < 1) {
+            throw new IllegalArgumentException("Need at least one producer thread");
+        }
+        this.numProducers = numProducers;
+    }
+
+    /**
+     * Routes all native HDF5 calls through the shared I/O thread of the service and gathers pixels
+     * on its CPU pool. Without a service, or with null, HDF5 calls go through {@link Hdf5IoExecutor#getShared()}
+     * and pixels are gathered on threads of the writer.
+     */
+    public void setIoService(Hdf5IoService ioService) {
+        this.ioExecutor = ioService != null ? ioService.getIoExecutor() : null;
+        this.cpuExecutor = ioService != null ? ioService.getCpuExecutor() : null;
+    }
+
+    /**
+     * Sets the datatype conversion applied to real valued pixels, defaults to {@link NarrowingPolicy#LOSSLESS}.
+     */
+    public void setNarrowingPolicy(NarrowingPolicy narrowing) {
+        this.narrowing = narrowing;
+    }
+
     public void write() {
         long[] chunk_dims = {1,
                 min(nZ, 256),
@@ -83,32 +142,37 @@ public class Hdf5DataSetWriterFromImgPlus<T extends Type<T>> {
         log.info("Export Dimensions in tzyxc: " + String.valueOf(nFrames) + "x" + String.valueOf(nZ) + "x"
                 + String.valueOf(nRows) + "x" + String.valueOf(nCols) + "x" + String.valueOf(nChannels));
 
+        final Hdf5IoExecutor io = ioExecutor != null ? ioExecutor : Hdf5IoExecutor.getShared();
         try {
+            if (compression == CompressionProfile.AUTO) {
+                compression = new CompressionProfileSelector(log).select(image, narrowing, new File(filename));
+            }
 
-            fileId = H5.H5Fcreate(filename, H5F_ACC_TRUNC, H5P_DEFAULT, H5P_DEFAULT);
-            dcplId = H5.H5Pcreate(H5P_DATASET_CREATE);
-            H5.H5Pset_chunk(dcplId, RANK, chunk_dims);
-            H5.H5Pset_deflate(dcplId, compressionLevel);
+            io.call(Priority.NORMAL, () -> {
+                fileId = H5.H5Fcreate(filename, H5F_ACC_TRUNC, H5P_DEFAULT, H5P_DEFAULT);
+                dcplId = H5.H5Pcreate(H5P_DATASET_CREATE);
+                H5.H5Pset_chunk(dcplId, RANK, chunk_dims);
+                compression.configure(dcplId);
+                return null;
+            });
 
             T val = image.firstElement();
-            if (val instanceof UnsignedByteType) {
-                log.info("Writing uint 8.");
-                writeIndividualChannels(H5T_NATIVE_UINT8);
-            } else if (val instanceof UnsignedShortType) {
-                log.info("Writing uint 16.");
-                writeIndividualChannels(H5T_NATIVE_UINT16);
-            } else if (val instanceof UnsignedIntType) {
-                log.info("Writing uint 32.");
-                writeIndividualChannels(H5T_NATIVE_UINT32);
-            } else if (val instanceof FloatType) {
-                log.info("Writing float 32.");
-                writeIndividualChannels(H5T_NATIVE_FLOAT);
-            } else if (val instanceof ARGBType) {
+            if (val instanceof ARGBType) {
                 log.info("Writing ARGB to 4 uint8 channels.");
-                writeARGB();
+                if (nChannels == NUM_OF_ARGB_CHANNELS - 1) {
+                    log.warn("Only 3 channel RGB found. Setting ALPHA channel to -1 (transparent).");
+                }
+                writePlanes(io, StorageType.UINT8, NUM_OF_ARGB_CHANNELS, nChannels == NUM_OF_ARGB_CHANNELS - 1);
             } else {
-                log.error("Type Not handled yet!" + val.getClass());
-                throw new IllegalArgumentException("Unsupported Type: " + val.getClass());
+                StorageType storageType;
+                try {
+                    storageType = StorageType.of(val, narrowing);
+                } catch (IllegalArgumentException e) {
+                    log.error("Type Not handled yet!" + val.getClass());
+                    throw e;
+                }
+                log.info("Writing " + val.getClass().getSimpleName() + " as " + storageType.name().toLowerCase() + ".");
+                writePlanes(io, storageType, nChannels, false);
             }
         } catch (HDF5Exception err) {
             log.error("HDF5 API error occurred while creating '" + filename + "'." + err.getMessage());
@@ -120,216 +184,144 @@ public class Hdf5DataSetWriterFromImgPlus<T extends Type<T>> {
             log.error("Out of Memory Error while creating '" + filename + "'." + o.getMessage());
             throw new RuntimeException(o);
         } finally {
-            H5.H5Sclose(dataspaceId);
-            H5.H5Pclose(dcplId);
-            H5.H5Dclose(datasetId);
-            H5.H5Fclose(fileId);
+            io.call(Priority.NORMAL, () -> {
+                if (dataspaceId >= 0) {
+                    H5.H5Sclose(dataspaceId);
+                }
+                if (dcplId >= 0) {
+                    H5.H5Pclose(dcplId);
+                }
+                if (datasetId >= 0) {
+                    H5.H5Dclose(datasetId);
+                }
+                if (fileId >= 0) {
+                    H5.H5Fclose(fileId);
+                }
+                return null;
+            });
         }
     }
 
-    private void writeARGB() {
-
-        long[] channelDimsRGB = new long[RANK];
-        channelDimsRGB[0] = nFrames; //t
-        channelDimsRGB[1] = nZ; //z
-        channelDimsRGB[2] = nRows; //y
-        channelDimsRGB[3] = nCols; //x
-        channelDimsRGB[4] = NUM_OF_ARGB_CHANNELS;//c
-
-        long[] colorIniDims = new long[RANK];
-        colorIniDims[0] = 1;
-        colorIniDims[1] = 1;
-        colorIniDims[2] = nRows;
-        colorIniDims[3] = nCols;
-        colorIniDims[4] = 1;
-
+    /**
+     * Creates the dataset and runs the gather/write pipeline over all planes.
+     *
+     * @param outChannels     number of channels in the file
+     * @param prependAlpha    for 3 channel ARGB images: write an opaque alpha plane as channel 0
+     *                        and shift the image channels by one
+     */
+    private void writePlanes(Hdf5IoExecutor io, StorageType storageType, int outChannels, boolean prependAlpha) throws InterruptedException {
+        long[] dims = {nFrames, nZ, nRows, nCols, outChannels};
         try {
-            dataspaceId = H5.H5Screate_simple(RANK, colorIniDims, maxDims);
-            datasetId = H5.H5Dcreate(fileId, dataset, H5T_NATIVE_UINT8, dataspaceId, H5P_DEFAULT, dcplId, H5P_DEFAULT);
+            io.call(Priority.NORMAL, () -> {
+                dataspaceId = H5.H5Screate_simple(RANK, dims, maxDims);
+                datasetId = H5.H5Dcreate(fileId, dataset, storageType.hdf5Type(), dataspaceId, H5P_DEFAULT, dcplId, H5P_DEFAULT);
+                return null;
+            });
         } catch (HDF5Exception ex) {
             log.error("H5D dataspace creation failed." + ex.getMessage(), ex);
-            throw new RuntimeException(ex);
-        } catch (Exception err) {
-            log.error("An error occurred at writeARGB method." + err.getMessage(), err);
-            throw new RuntimeException(err);
+            throw ex;
         }
 
-        @SuppressWarnings("unchecked")
-        RandomAccess<ARGBType> rai = (RandomAccess<ARGBType>) image.randomAccess();
-        boolean isAlphaChannelPresent = true;
-        Object[][] pixelsByte;
-        H5.H5Dset_extent(datasetId, channelDimsRGB);
+        final int totalPlanes = nFrames * nZ * outChannels;
+        final int producers = Math.max(1, Math.min(numProducers, totalPlanes));
+        final BlockingQueue<PlaneBuffer> freeBuffers = new ArrayBlockingQueue<>(producers * BUFFERS_PER_PRODUCER);
+        for (int i = 0; i < producers * BUFFERS_PER_PRODUCER; i++) {
+            freeBuffers.add(new PlaneBuffer(storageType, nRows, nCols));
+        }
+        final AtomicInteger writtenPlanes = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final List<Future<?>> writes = new ArrayList<>();
+        // set under the writes lock once the file may be closed, planes gathered after that are dropped
+        final AtomicBoolean closed = new AtomicBoolean();
 
-        /* Display progress bar on FIJI--START*/
-        int totalCheckpoints = nFrames * nZ * nChannels * 2;
-        int checkpoint = 0;
         IJ.showStatus("Exporting HDF5...");
-        IJ.showProgress(checkpoint, totalCheckpoints);
-        /* Display progress bar on FIJI--END*/
-
-        for (int t = 0; t < nFrames; t++) {
-            if (image.dimensionIndex(Axes.TIME) >= 0)
-                rai.setPosition(t, image.dimensionIndex(Axes.TIME));
-
-            for (int z = 0; z < nZ; z++) {
-                if (image.dimensionIndex(Axes.Z) >= 0)
-                    rai.setPosition(z, image.dimensionIndex(Axes.Z));
-
-                if (nChannels == NUM_OF_ARGB_CHANNELS - 1) {
-                    log.warn("Only 3 channel RGB found. Setting ALPHA channel to -1 (transparent).");
-                    isAlphaChannelPresent = false;
-                }
+        IJ.showProgress(0, totalPlanes);
 
-                for (int c = 0; c < NUM_OF_ARGB_CHANNELS; c++) {
-                    // Construct 2D array of appropriate data
-                    pixelsByte = new Byte[nRows][nCols];
-
-                    if (!isAlphaChannelPresent) {
-                        if (c == 0) {
-                            for (Byte[] row : (Byte[][]) pixelsByte) {
-                                Arrays.fill(row, (byte) -1);  // hard code alpha channel.
-                            }
+        final boolean ownCpuExecutor = cpuExecutor == null;
+        final ExecutorService producerThreads = ownCpuExecutor ? Executors.newFixedThreadPool(producers) : cpuExecutor;
+        final List<Future<?>> gathers = new ArrayList<>();
+        try {
+            for (int index = 0; index < totalPlanes && failure.get() == null; index++) {
+                final int c = index % outChannels;
+                final int z = (index / outChannels) % nZ;
+                final int t = index / outChannels / nZ;
+                final PlaneBuffer plane = freeBuffers.take();
+                gathers.add(producerThreads.submit(() -> {
+                    try {
+                        plane.setPosition(t, z, c);
+                        if (prependAlpha && c == 0) {
+                            Arrays.fill((byte[]) plane.data, (byte) -1); // hard code alpha channel.
                         } else {
-                            if (image.dimensionIndex(Axes.CHANNEL) >= 0) {
-                                rai.setPosition(c - 1, image.dimensionIndex(Axes.CHANNEL));
-                            }
-                            fillStackSlice(rai, pixelsByte);
+                            RandomAccess<T> rai = image.randomAccess();
+                            positionPlane(rai, t, z, prependAlpha ? c - 1 : c);
+                            plane.fill(rai, image.dimensionIndex(Axes.X), image.dimensionIndex(Axes.Y));
                         }
-                    } else {
-                        if (image.dimensionIndex(Axes.CHANNEL) >= 0) {
-                            rai.setPosition(c, image.dimensionIndex(Axes.CHANNEL));
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                        freeBuffers.add(plane);
+                        throw e;
+                    }
+                    synchronized (writes) {
+                        if (closed.get()) {
+                            freeBuffers.add(plane);
+                            return null;
                         }
-                        fillStackSlice(rai, pixelsByte);
+                        writes.add(io.submit(Priority.NORMAL, () -> {
+                            try {
+                                plane.write(datasetId);
+                            } catch (RuntimeException e) {
+                                failure.compareAndSet(null, e);
+                                log.error("Error while writing hyperslab." + e.getMessage(), e);
+                            } finally {
+                                freeBuffers.add(plane);
+                            }
+                            IJ.showProgress(writtenPlanes.incrementAndGet(), totalPlanes);
+                            return null;
+                        }));
                     }
-                    IJ.showProgress(++checkpoint, totalCheckpoints);// Display progress bar on FIJI
-                    // write it out
-                    long[] start = {t, z, 0, 0, c};
-                    writeHyperslabs(H5T_NATIVE_UINT8, pixelsByte, start, colorIniDims);
-                    IJ.showProgress(++checkpoint, totalCheckpoints);// Display progress bar on FIJI
-                }
+                    return null;
+                }));
             }
-        }
-        IJ.showStatus("Finished Exporting HDF5."); // Display progress bar on FIJI
-        log.info("CompressionLevel: " + String.valueOf(compressionLevel));
-        log.info("Finished writing the HDF5.");
-    }
-
-
-    private void writeIndividualChannels(int hdf5DataType) {
-
-        long[] channelDims = new long[RANK];
-        channelDims[0] = nFrames; // t
-        channelDims[1] = nZ; // z
-        channelDims[2] = nRows; //y
-        channelDims[3] = nCols; //x
-        channelDims[4] = nChannels; // c
-
-        long[] iniDims = new long[RANK];
-        iniDims[0] = 1;
-        iniDims[1] = 1;
-        iniDims[2] = nRows;
-        iniDims[3] = nCols;
-        iniDims[4] = 1;
-
-        try {
-            dataspaceId = H5.H5Screate_simple(RANK, iniDims, maxDims);
-            datasetId = H5.H5Dcreate(fileId, dataset, hdf5DataType, dataspaceId, H5P_DEFAULT, dcplId, H5P_DEFAULT);
-        } catch (HDF5Exception ex) {
-            log.error("H5D dataspace creation failed." + ex.getMessage(), ex);
-            throw new RuntimeException(ex);
-        } catch (Exception err) {
-            log.error("An error occurred at writeIndividualChannels method." + err.getMessage(), err);
-            throw new RuntimeException(err);
-        }
-
-        RandomAccess<T> rai = image.randomAccess();
-        Object[][] pixelSlice;
-        H5.H5Dset_extent(datasetId, channelDims);
-
-        /* Display progress bar on FIJI--START*/
-        int totalCheckpoints = nFrames * nZ * nChannels * 2;
-        int checkpoint = 0;
-        IJ.showStatus("Exporting HDF5...");
-        IJ.showProgress(checkpoint, totalCheckpoints);
-        /* Display progress bar on FIJI--END*/
-
-        for (int t = 0; t < nFrames; t++) {
-            if (image.dimensionIndex(Axes.TIME) >= 0)
-                rai.setPosition(t, image.dimensionIndex(Axes.TIME));
-
-            for (int z = 0; z < nZ; z++) {
-                if (image.dimensionIndex(Axes.Z) >= 0)
-                    rai.setPosition(z, image.dimensionIndex(Axes.Z));
-
-                for (int c = 0; c < nChannels; c++) {
-                    if (image.dimensionIndex(Axes.CHANNEL) >= 0)
-                        rai.setPosition(c, image.dimensionIndex(Axes.CHANNEL));
-
-                    // Construct 2D array of appropriate data type.
-                    if (hdf5DataType == H5T_NATIVE_UINT8) {
-                        pixelSlice = new Byte[nRows][nCols];
-                    } else if (hdf5DataType == H5T_NATIVE_UINT16) {
-                        pixelSlice = new Short[nRows][nCols];
-                    } else if (hdf5DataType == H5T_NATIVE_UINT32) {
-                        pixelSlice = new Integer[nRows][nCols];
-                    } else if (hdf5DataType == H5T_NATIVE_FLOAT) {
-                        pixelSlice = new Float[nRows][nCols];
-                    } else {
-                        throw new IllegalArgumentException("Trying to save dataset of unknown datatype.");
-                    }
-                    fillStackSlice(rai, pixelSlice);
-                    IJ.showProgress(++checkpoint, totalCheckpoints); // Display progress bar on FIJI
-                    long[] start = {t, z, 0, 0, c};
-                    writeHyperslabs(hdf5DataType, pixelSlice, start, iniDims);
-                    IJ.showProgress(++checkpoint, totalCheckpoints); //Display progress bar on FIJI
+            for (Future<?> gather : gathers) {
+                gather.get();
+            }
+        } catch (ExecutionException e) {
+            failure.compareAndSet(null, e.getCause());
+        } finally {
+            synchronized (writes) {
+                closed.set(true);
+            }
+            for (Future<?> gather : gathers) {
+                gather.cancel(true);
+            }
+            if (ownCpuExecutor) {
+                producerThreads.shutdownNow();
+            }
+            // the file must not be closed while planes are still being written to it,
+            // no writes are added once the writer is closed
+            for (Future<?> write : writes) {
+                try {
+                    write.get();
+                } catch (ExecutionException e) {
+                    failure.compareAndSet(null, e.getCause());
                 }
             }
         }
-        IJ.showStatus("Finished Exporting HDF5.");// Display progress bar on FIJI
-        log.info("compressionLevel: " + String.valueOf(compressionLevel));
-        log.info("Finished writing the HDF5.");
-    }
 
-    private <E> void writeHyperslabs(int hdf5DataType, E[][] pixelsSlice, long[] start, long[] colorIniDims) {
-        try {
-            dataspaceId = H5.H5Dget_space(datasetId);
-            H5.H5Sselect_hyperslab(dataspaceId, HDF5Constants.H5S_SELECT_SET, start, null, colorIniDims, null);
-            int memSpace = H5.H5Screate_simple(RANK, colorIniDims, null);
-            H5.H5Dwrite(datasetId, hdf5DataType, memSpace, dataspaceId, H5P_DEFAULT, pixelsSlice);
-        } catch (HDF5Exception e) {
-            log.error("Error while writing extended hyperslabs." + e.getMessage(), e);
-            throw new RuntimeException(e);
-        } catch (Exception e) {
-            log.error("An error occurred at writeHyperslabs method." + e.getMessage(), e);
-            throw new RuntimeException(e);
+        if (failure.get() != null) {
+            throw new RuntimeException("Writing '" + filename + "' failed", failure.get());
         }
-
+        IJ.showStatus("Finished Exporting HDF5."); // Display progress bar on FIJI
+        log.info("Compression: " + compression);
+        log.info("Finished writing the HDF5.");
     }
 
-    @SuppressWarnings({"unchecked", "TypeParameterHidesVisibleType"})
-    private <E, T> void fillStackSlice(RandomAccess<T> rai, E[][] pixelArray) {
-
-        for (int x = 0; x < nCols; x++) {
-            rai.setPosition(x, image.dimensionIndex(Axes.X));
-            for (int y = 0; y < nRows; y++) {
-                rai.setPosition(y, image.dimensionIndex(Axes.Y));
-                T value = rai.get();
-                if (value instanceof UnsignedByteType) {
-                    pixelArray[y][x] = (E) (Byte) (Integer.valueOf(((UnsignedByteType) value).get()).byteValue());
-                } else if (value instanceof UnsignedShortType) {
-                    pixelArray[y][x] = (E) (Short) (Integer.valueOf((((UnsignedShortType) value).get())).shortValue());
-                } else if (value instanceof UnsignedIntType) {
-                    pixelArray[y][x] = (E) (Integer) (Long.valueOf((((UnsignedIntType) value).get())).intValue());
-                } else if (value instanceof FloatType) {
-                    pixelArray[y][x] = (E) (Float.valueOf((((FloatType) value).get())));
-                } else if (value instanceof ARGBType) {
-                    pixelArray[y][x] = (E) (Byte) (Integer.valueOf(((ARGBType) value).get()).byteValue());
-                } else {
-                    log.error("Type Not handled yet!");
-                }
-            }
-        }
+    private void positionPlane(RandomAccess<T> rai, int t, int z, int c) {
+        if (image.dimensionIndex(Axes.TIME) >= 0)
+            rai.setPosition(t, image.dimensionIndex(Axes.TIME));
+        if (image.dimensionIndex(Axes.Z) >= 0)
+            rai.setPosition(z, image.dimensionIndex(Axes.Z));
+        if (image.dimensionIndex(Axes.CHANNEL) >= 0)
+            rai.setPosition(c, image.dimensionIndex(Axes.CHANNEL));
     }
-
-
 }
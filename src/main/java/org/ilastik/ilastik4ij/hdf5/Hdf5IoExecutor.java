@@ -0,0 +1,160 @@
+package org.ilastik.ilastik4ij.hdf5;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs native HDF5 calls on a single dedicated thread, because libhdf5 is not thread-safe.
+ *
+ * Tasks are ordered by priority first and by submission order within the same priority,
+ * so concurrent clients are served fairly. Wait times in the queue are recorded.
+ */
+public class Hdf5IoExecutor {
+
+    public enum Priority {
+        /** Work a user is directly waiting for, e.g. browsing a file in a dialog */
+        INTERACTIVE,
+        NORMAL,
+        BACKGROUND
+    }
+
+    private static Hdf5IoExecutor shared;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong completedTasks = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private volatile Thread ioThread;
+
+    public Hdf5IoExecutor() {
+        executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), r -> {
+            Thread t = new Thread(r, "ilastik4ij-hdf5-io");
+            t.setDaemon(true);
+            ioThread = t;
+            return t;
+        });
+    }
+
+    /**
+     * libhdf5 is global to the JVM, so all HDF5 calls share one executor, also those of readers and writers used
+     * without a {@link Hdf5IoService}. It is never shut down, its thread does not keep the JVM alive.
+     *
+     * @return the executor shared by all HDF5 calls
+     */
+    public static synchronized Hdf5IoExecutor getShared() {
+        if (shared == null) {
+            shared = new Hdf5IoExecutor();
+        }
+        return shared;
+    }
+
+    /**
+     * Queues the task for execution on the I/O thread.
+     */
+    public <V> Future<V> submit(Priority priority, Callable<V> task) {
+        IoTask<V> ioTask = new IoTask<>(task, priority, sequence.getAndIncrement());
+        executor.execute(ioTask);
+        return ioTask;
+    }
+
+    /**
+     * Runs the task on the I/O thread and waits for its result. If called from the I/O thread itself
+     * the task is run directly. Runtime exceptions of the task are rethrown as they are.
+     */
+    public <V> V call(Priority priority, Callable<V> task) {
+        try {
+            if (isIoThread()) {
+                return task.call();
+            }
+            return submit(priority, task).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for HDF5 I/O", e);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean isIoThread() {
+        return Thread.currentThread() == ioThread;
+    }
+
+    /**
+     * @return number of tasks waiting to be run
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public long getCompletedTasks() {
+        return completedTasks.get();
+    }
+
+    public double getAverageWaitMillis() {
+        long completed = completedTasks.get();
+        return completed == 0 ? 0 : totalWaitNanos.get() / 1e6 / completed;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    public String getStatistics() {
+        return String.format("%d HDF5 tasks completed, %d queued, waited %.2f ms on average and %.2f ms at most",
+                getCompletedTasks(), getQueueDepth(), getAverageWaitMillis(), getMaxWaitMillis());
+    }
+
+    /**
+     * Runs all queued tasks, then stops the I/O thread.
+     */
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    private class IoTask<V> extends FutureTask<V> implements Comparable<IoTask<?>> {
+        private final Priority priority;
+        private final long sequenceNumber;
+        private final long enqueuedNanos = System.nanoTime();
+
+        IoTask(Callable<V> callable, Priority priority, long sequenceNumber) {
+            super(callable);
+            this.priority = priority;
+            this.sequenceNumber = sequenceNumber;
+        }
+
+        @Override
+        public void run() {
+            long waited = System.nanoTime() - enqueuedNanos;
+            totalWaitNanos.addAndGet(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+            try {
+                super.run();
+            } finally {
+                completedTasks.incrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(IoTask<?> other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequenceNumber, other.sequenceNumber);
+        }
+    }
+}
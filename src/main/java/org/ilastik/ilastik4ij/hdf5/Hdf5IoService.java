@@ -0,0 +1,25 @@
+package org.ilastik.ilastik4ij.hdf5;
+
+import org.scijava.service.SciJavaService;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Owns all native HDF5 calls of the ilastik plugins.
+ *
+ * HDF5 calls are funneled through one shared {@link Hdf5IoExecutor}, so commands running at the same time
+ * never call into libhdf5 concurrently. CPU-side work like gathering or converting pixels runs in parallel
+ * on a shared pool.
+ */
+public interface Hdf5IoService extends SciJavaService {
+
+    /**
+     * @return the executor all native HDF5 calls must go through
+     */
+    Hdf5IoExecutor getIoExecutor();
+
+    /**
+     * @return a pool for CPU-bound work that accompanies HDF5 I/O
+     */
+    ExecutorService getCpuExecutor();
+}
@@ -0,0 +1,307 @@
+package org.ilastik.ilastik4ij.hdf5;
+
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoExecutor.Priority;
+import org.ilastik.ilastik4ij.hdf5.ReadOnlyArrays.ReadOnlyByteArray;
+import org.ilastik.ilastik4ij.hdf5.ReadOnlyArrays.ReadOnlyFloatArray;
+import org.ilastik.ilastik4ij.hdf5.ReadOnlyArrays.ReadOnlyIntArray;
+import org.ilastik.ilastik4ij.hdf5.ReadOnlyArrays.ReadOnlyShortArray;
+import org.ilastik.ilastik4ij.util.ResourceCleaner;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Opens a dataset as an image whose pixels are read from the file when they are first accessed,
+ * in blocks of whole rows with all channels of one slice.
+ *
+ * The file stays open as long as the image is in use. Once the image has been garbage collected the file
+ * is closed and, if requested, deleted. Recently used blocks are kept in memory up to {@link #CACHE_BYTES},
+ * and may be dropped earlier if the JVM runs low on memory. As dropped blocks are read from the file again, the
+ * image is read-only: changing a pixel throws {@link UnsupportedOperationException}, duplicate the image to edit it.
+ */
+public class Hdf5LazyDataSetReader {
+    // about 64 MB of float pixels per block
+    private static final int MAX_BLOCK_PIXELS = 16 * 1024 * 1024;
+    private static final long CACHE_BYTES = 512L * 1024 * 1024;
+
+    private final String filename;
+    private final String dataset;
+    private final String axesorder;
+    private final LogService log;
+    private final Hdf5IoExecutor ioExecutor;
+    private boolean deleteFileWithImage = false;
+
+    public Hdf5LazyDataSetReader(String filename, String dataset, String axesorder, LogService log, Hdf5IoService ioService) {
+        this.filename = filename;
+        this.dataset = dataset;
+        this.axesorder = axesorder;
+        this.log = log;
+        this.ioExecutor = ioService != null ? ioService.getIoExecutor() : Hdf5IoExecutor.getShared();
+    }
+
+    /**
+     * Hands the file over to the image, it is deleted after the image has been garbage collected.
+     */
+    public void setDeleteFileWithImage(boolean deleteFileWithImage) {
+        this.deleteFileWithImage = deleteFileWithImage;
+    }
+
+    public ImgPlus read() {
+        final IHDF5Reader reader = ioExecutor.call(Priority.NORMAL, () -> HDF5Factory.openForReading(filename));
+        final Hdf5DataSetConfig dsConfig;
+        final ImgPlus image;
+        try {
+            dsConfig = ioExecutor.call(Priority.NORMAL, () -> new Hdf5DataSetConfig(reader, dataset, axesorder));
+            log.info("Found dataset '" + dataset + "' of type " + dsConfig.typeInfo + ", loading it on demand");
+            image = createImage(reader, dsConfig);
+        } catch (RuntimeException e) {
+            close(reader);
+            throw e;
+        }
+
+        final File file = new File(filename);
+        if (deleteFileWithImage) {
+            // in case the JVM exits before the image is collected
+            file.deleteOnExit();
+        }
+        final boolean delete = deleteFileWithImage;
+        final Hdf5IoExecutor executor = ioExecutor;
+        // the action must not refer to the image, only to what is closed and deleted after it
+        ResourceCleaner.register(image.getImg(), () -> {
+            executor.submit(Priority.BACKGROUND, () -> {
+                reader.close();
+                if (delete) {
+                    file.delete();
+                }
+                return null;
+            });
+        });
+
+        image.initializeColorTables(dsConfig.numFrames * dsConfig.numChannels * dsConfig.dimZ);
+        image.setValidBits(dsConfig.bitdepth);
+        image.setName(filename + "/" + dataset);
+        return image;
+    }
+
+    private void close(IHDF5Reader reader) {
+        try {
+            ioExecutor.call(Priority.NORMAL, () -> {
+                reader.close();
+                return null;
+            });
+        } catch (RuntimeException e) {
+            log.warn("Could not close " + filename + ": " + e.getMessage());
+        }
+    }
+
+    private ImgPlus createImage(IHDF5Reader reader, Hdf5DataSetConfig dsConfig) {
+        switch (dsConfig.typeInfo) {
+            case "float32":
+                return createImage(dsConfig, new FloatType(), 4, (block) -> new ReadOnlyFloatArray(
+                        permute(reader.float32().readMDArrayBlockWithOffset(dataset, block.extents, block.offset)
+                                .getAsFlatArray(), block.sourceIndices)));
+            case "uint8":
+                return createImage(dsConfig, new UnsignedByteType(), 1, (block) -> new ReadOnlyByteArray(
+                        permute(reader.uint8().readMDArrayBlockWithOffset(dataset, block.extents, block.offset)
+                                .getAsFlatArray(), block.sourceIndices)));
+            case "uint16":
+                return createImage(dsConfig, new UnsignedShortType(), 2, (block) -> new ReadOnlyShortArray(
+                        permute(reader.uint16().readMDArrayBlockWithOffset(dataset, block.extents, block.offset)
+                                .getAsFlatArray(), block.sourceIndices)));
+            case "uint32":
+                return createImage(dsConfig, new UnsignedIntType(), 4, (block) -> new ReadOnlyIntArray(
+                        permute(reader.uint32().readMDArrayBlockWithOffset(dataset, block.extents, block.offset)
+                                .getAsFlatArray(), block.sourceIndices)));
+            default:
+                throw new IllegalArgumentException("Dataset uses not yet supported datatype " + dsConfig.typeInfo + "!");
+        }
+    }
+
+    private <T extends NativeType<T>, A> ImgPlus<T> createImage(Hdf5DataSetConfig dsConfig, T type, int bytesPerPixel,
+                                                               Function<Block, A> readBlock) {
+        long[] dims = {dsConfig.dimX, dsConfig.dimY, dsConfig.numChannels, dsConfig.dimZ, dsConfig.numFrames};
+        AxisType[] axes = {Axes.X, Axes.Y, Axes.CHANNEL, Axes.Z, Axes.TIME};
+        long rowPixels = (long) dsConfig.dimX * dsConfig.numChannels;
+        int rowsPerBlock = (int) Math.max(1, Math.min(dsConfig.dimY, MAX_BLOCK_PIXELS / rowPixels));
+        int[] blockSize = {dsConfig.dimX, rowsPerBlock, dsConfig.numChannels, 1, 1};
+        CellGrid grid = new CellGrid(dims, blockSize);
+
+        long blockBytes = rowPixels * rowsPerBlock * bytesPerPixel;
+        int maxCachedBlocks = (int) Math.max(1, Math.min(Integer.MAX_VALUE, CACHE_BYTES / blockBytes));
+        BlockLoader<A> loader = new BlockLoader<>(grid, dsConfig, maxCachedBlocks, readBlock);
+
+        log.info("Constructing lazily loaded image of shape " + dims[0] + ", " + dims[1] + ", " + dims[2] + ", " + dims[3] + ", " + dims[4]);
+        LazyCellImg<T, A> img = new LazyCellImg<>(grid, type, loader);
+        return new ImgPlus<>(img, filename, axes);
+    }
+
+    /**
+     * Position of one block in the file, and for each pixel of the block the index of its value in the block as read.
+     */
+    private static class Block {
+        final int[] extents;
+        final long[] offset;
+        final int[] sourceIndices;
+
+        Block(int[] extents, long[] offset, int[] sourceIndices) {
+            this.extents = extents;
+            this.offset = offset;
+            this.sourceIndices = sourceIndices;
+        }
+    }
+
+    /**
+     * Reads blocks on the HDF5 I/O thread and keeps the most recently used ones.
+     */
+    private class BlockLoader<A> implements LazyCellImg.Get<Cell<A>> {
+        private final CellGrid grid;
+        private final Hdf5DataSetConfig dsConfig;
+        private final Function<Block, A> readBlock;
+        private final Map<Long, SoftReference<Cell<A>>> cache;
+        // all blocks but the last one of each slice have the same number of rows
+        private final Map<Integer, int[]> sourceIndicesByRows = new HashMap<>();
+
+        BlockLoader(CellGrid grid, Hdf5DataSetConfig dsConfig, int maxCachedBlocks, Function<Block, A> readBlock) {
+            this.grid = grid;
+            this.dsConfig = dsConfig;
+            this.readBlock = readBlock;
+            this.cache = new LinkedHashMap<Long, SoftReference<Cell<A>>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, SoftReference<Cell<A>>> eldest) {
+                    return size() > maxCachedBlocks;
+                }
+            };
+        }
+
+        @Override
+        public synchronized Cell<A> get(long index) {
+            SoftReference<Cell<A>> cached = cache.get(index);
+            Cell<A> cell = cached == null ? null : cached.get();
+            if (cell == null) {
+                cell = load(index);
+                cache.put(index, new SoftReference<>(cell));
+            }
+            return cell;
+        }
+
+        private Cell<A> load(long index) {
+            long[] min = new long[grid.numDimensions()];
+            int[] size = new int[grid.numDimensions()];
+            grid.getCellDimensions(index, min, size);
+
+            // image axes are x, y, c, z, t, the block covers all of x and c
+            if (!sourceIndicesByRows.containsKey(size[1])) {
+                sourceIndicesByRows.put(size[1], sourceIndices(size[1]));
+            }
+            Block block = new Block(extents(size[1]), offset((int) min[4], (int) min[3], (int) min[1]), sourceIndicesByRows.get(size[1]));
+            A data = ioExecutor.call(Priority.NORMAL, () -> readBlock.apply(block));
+            return new Cell<>(size, min, data);
+        }
+
+        private int[] extents(int rows) {
+            int[] extents = dsConfig.getXYSliceExtent();
+            extents[dsConfig.axisIndices.get('y')] = rows;
+            if (dsConfig.axisIndices.containsKey('c')) {
+                extents[dsConfig.axisIndices.get('c')] = dsConfig.numChannels;
+            }
+            return extents;
+        }
+
+        private long[] offset(int t, int z, int y) {
+            long[] offset = dsConfig.getSliceOffset(t, z, 0);
+            offset[dsConfig.axisIndices.get('y')] = y;
+            return offset;
+        }
+
+        /**
+         * @return the index in the block as read from the file for each pixel in x, y, c order, or null if they are the same
+         */
+        private int[] sourceIndices(int rows) {
+            int[] extents = extents(rows);
+            int[] strides = new int[extents.length];
+            int stride = 1;
+            for (int axis = extents.length - 1; axis >= 0; axis--) {
+                strides[axis] = stride;
+                stride *= extents[axis];
+            }
+            int strideX = strides[dsConfig.axisIndices.get('x')];
+            int strideY = strides[dsConfig.axisIndices.get('y')];
+            int strideC = dsConfig.axisIndices.containsKey('c') ? strides[dsConfig.axisIndices.get('c')] : 0;
+
+            int[] indices = new int[dsConfig.dimX * rows * dsConfig.numChannels];
+            boolean identity = true;
+            int i = 0;
+            for (int c = 0; c < dsConfig.numChannels; c++) {
+                for (int y = 0; y < rows; y++) {
+                    for (int x = 0; x < dsConfig.dimX; x++, i++) {
+                        indices[i] = x * strideX + y * strideY + c * strideC;
+                        identity &= indices[i] == i;
+                    }
+                }
+            }
+            return identity ? null : indices;
+        }
+    }
+
+    private static float[] permute(float[] source, int[] indices) {
+        if (indices == null) {
+            return source;
+        }
+        float[] result = new float[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            result[i] = source[indices[i]];
+        }
+        return result;
+    }
+
+    private static byte[] permute(byte[] source, int[] indices) {
+        if (indices == null) {
+            return source;
+        }
+        byte[] result = new byte[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            result[i] = source[indices[i]];
+        }
+        return result;
+    }
+
+    private static short[] permute(short[] source, int[] indices) {
+        if (indices == null) {
+            return source;
+        }
+        short[] result = new short[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            result[i] = source[indices[i]];
+        }
+        return result;
+    }
+
+    private static int[] permute(int[] source, int[] indices) {
+        if (indices == null) {
+            return source;
+        }
+        int[] result = new int[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            result[i] = source[indices[i]];
+        }
+        return result;
+    }
+}
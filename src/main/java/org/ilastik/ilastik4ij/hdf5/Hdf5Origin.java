@@ -0,0 +1,59 @@
+package org.ilastik.ilastik4ij.hdf5;
+
+import java.io.File;
+
+/**
+ * The HDF5 dataset an image was loaded from, see {@link Hdf5OriginService}.
+ */
+public class Hdf5Origin {
+    private final File file;
+    private final String dataset;
+    private final String axisOrder;
+    private final long fileLength;
+    private final long fileLastModified;
+    private final String contentHash;
+
+    Hdf5Origin(File file, String dataset, String axisOrder, String contentHash) {
+        this.file = file.getAbsoluteFile();
+        this.dataset = dataset.startsWith("/") ? dataset.substring(1) : dataset;
+        this.axisOrder = axisOrder;
+        this.fileLength = file.length();
+        this.fileLastModified = file.lastModified();
+        this.contentHash = contentHash;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getDataset() {
+        return dataset;
+    }
+
+    /**
+     * @return axes of the dataset in ilastik's notation, e.g. tzyxc
+     */
+    public String getAxisOrder() {
+        return axisOrder;
+    }
+
+    /**
+     * @return the dataset as ilastik expects it on the command line, {@code /path/to/file.h5/dataset}
+     */
+    public String getIlastikPath() {
+        return file.getPath() + "/" + dataset;
+    }
+
+    boolean isFileUnchanged() {
+        return file.isFile() && file.length() == fileLength && file.lastModified() == fileLastModified;
+    }
+
+    String getContentHash() {
+        return contentHash;
+    }
+
+    @Override
+    public String toString() {
+        return getIlastikPath();
+    }
+}
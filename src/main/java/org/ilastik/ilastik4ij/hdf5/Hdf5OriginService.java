@@ -0,0 +1,26 @@
+package org.ilastik.ilastik4ij.hdf5;
+
+import net.imagej.ImgPlus;
+import org.scijava.service.SciJavaService;
+
+import java.io.File;
+
+/**
+ * Remembers which images were loaded from HDF5 datasets, so that ilastik can read those datasets directly
+ * instead of getting a fresh export of the image.
+ *
+ * Images are tracked by the identity of their {@link net.imglib2.img.Img} and forgotten once it is garbage collected.
+ */
+public interface Hdf5OriginService extends SciJavaService {
+
+    /**
+     * @param axisOrder axes of the dataset in ilastik's notation, e.g. tzyxc
+     */
+    void register(ImgPlus<?> image, File file, String dataset, String axisOrder);
+
+    /**
+     * @return the dataset the image was loaded from, or null if there is none or if the file or the pixels in memory
+     * changed since loading
+     */
+    Hdf5Origin findUnchangedOrigin(ImgPlus<?> image);
+}
@@ -0,0 +1,41 @@
+package org.ilastik.ilastik4ij.hdf5;
+
+/**
+ * Decides which HDF5 datatype pixels are stored as when they are exported.
+ *
+ * Values that do not fit into a narrower integer type are rounded and clamped to its range,
+ * NaN becomes 0.
+ */
+public enum NarrowingPolicy {
+    /** Use the HDF5 type matching the pixel type, e.g. int16 for ShortType and float64 for DoubleType */
+    LOSSLESS("Same as image"),
+    /** Keep uint8, uint16 and float32, store everything else as float32, which ilastik computes with anyway */
+    FLOAT32("float32"),
+    /** Keep uint8, store everything else as uint16 */
+    UINT16("uint16"),
+    /** Store everything as uint8 */
+    UINT8("uint8");
+
+    private final String label;
+
+    NarrowingPolicy(String label) {
+        this.label = label;
+    }
+
+    /**
+     * @param label one of the labels shown to users, as returned by {@link #toString()}
+     */
+    public static NarrowingPolicy fromLabel(String label) {
+        for (NarrowingPolicy policy : values()) {
+            if (policy.label.equals(label)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown pixel type conversion: " + label);
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
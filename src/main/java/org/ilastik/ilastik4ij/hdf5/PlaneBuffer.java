@@ -0,0 +1,159 @@
+package org.ilastik.ilastik4ij.hdf5;
+
+import ch.systemsx.cisd.hdf5.hdf5lib.H5D;
+import ncsa.hdf.hdf5lib.H5;
+import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+
+import java.math.BigDecimal;
+
+import static ch.systemsx.cisd.hdf5.hdf5lib.HDF5Constants.*;
+
+/**
+ * One yx plane of pixels in a flat primitive array (row major, x varying fastest),
+ * together with its target position in a tzyxc dataset.
+ *
+ * Pixels are converted to the storage type while they are copied in, so images of any real type
+ * can be exported without a converted copy of the whole image.
+ */
+class PlaneBuffer {
+    static final int RANK = 5;
+    // the smallest uint64 values that do not fit into a long, and the first value above the uint64 range
+    private static final double TWO_POW_63 = 0x1p63;
+    private static final double TWO_POW_64 = 0x1p64;
+
+    final StorageType storageType;
+    final int nRows;
+    final int nCols;
+    final Object data;
+    long t;
+    long z;
+    long c;
+
+    PlaneBuffer(StorageType storageType, int nRows, int nCols) {
+        this.storageType = storageType;
+        this.nRows = nRows;
+        this.nCols = nCols;
+        this.data = storageType.allocate(Math.multiplyExact(nRows, nCols));
+    }
+
+    long sizeInBytes() {
+        return (long) storageType.bytesPerPixel * nRows * nCols;
+    }
+
+    void setPosition(long t, long z, long c) {
+        this.t = t;
+        this.z = z;
+        this.c = c;
+    }
+
+    /**
+     * Copies the yx plane the random access currently points to into this buffer.
+     * All non-spatial dimensions of the random access must already be positioned.
+     *
+     * Integer pixels whose whole range fits the storage type are copied exactly, all others
+     * go through their real value and are rounded and clamped if stored as integers.
+     */
+    <T> void fill(RandomAccess<T> rai, int xAxis, int yAxis) {
+        rai.setPosition(0, yAxis);
+        rai.setPosition(0, xAxis);
+        final T first = rai.get();
+        final boolean argb = first instanceof ARGBType;
+        final boolean exact = !argb && first instanceof Type && storageType.holdsIntegers((Type<?>) first);
+        int i = 0;
+        for (int y = 0; y < nRows; y++) {
+            rai.setPosition(y, yAxis);
+            rai.setPosition(0, xAxis);
+            for (int x = 0; x < nCols; x++, i++) {
+                T value = rai.get();
+                if (argb) {
+                    storeInteger(i, ((ARGBType) value).get());
+                } else if (exact) {
+                    storeInteger(i, ((IntegerType<?>) value).getIntegerLong());
+                } else {
+                    storeReal(i, ((RealType<?>) value).getRealDouble());
+                }
+                rai.fwd(xAxis);
+            }
+        }
+    }
+
+    /**
+     * Stores the value truncated to the width of the storage type, two's complement for unsigned types.
+     */
+    private void storeInteger(int i, long value) {
+        switch (storageType) {
+            case UINT8:
+            case INT8:
+                ((byte[]) data)[i] = (byte) value;
+                break;
+            case UINT16:
+            case INT16:
+                ((short[]) data)[i] = (short) value;
+                break;
+            case UINT32:
+            case INT32:
+                ((int[]) data)[i] = (int) value;
+                break;
+            case UINT64:
+            case INT64:
+                ((long[]) data)[i] = value;
+                break;
+            case FLOAT32:
+                ((float[]) data)[i] = value;
+                break;
+            default:
+                ((double[]) data)[i] = value;
+        }
+    }
+
+    private void storeReal(int i, double value) {
+        if (storageType == StorageType.FLOAT32) {
+            ((float[]) data)[i] = (float) value;
+        } else if (storageType == StorageType.FLOAT64) {
+            ((double[]) data)[i] = value;
+        } else if (storageType == StorageType.UINT64 && value >= TWO_POW_63) {
+            // Math.round would saturate at Long.MAX_VALUE, doubles this large are whole numbers anyway
+            storeInteger(i, value >= TWO_POW_64 ? -1L : new BigDecimal(value).toBigInteger().longValue());
+        } else {
+            storeInteger(i, Math.round(Math.max(storageType.min, Math.min(storageType.max, value))));
+        }
+    }
+
+    /**
+     * Writes this plane into the given tzyxc dataset, which must already be large enough.
+     */
+    void write(int datasetId) throws HDF5Exception {
+        long[] start = {t, z, 0, 0, c};
+        long[] count = {1, 1, nRows, nCols, 1};
+        int fileSpace = H5.H5Dget_space(datasetId);
+        int memSpace = -1;
+        try {
+            H5.H5Sselect_hyperslab(fileSpace, H5S_SELECT_SET, start, null, count, null);
+            memSpace = H5.H5Screate_simple(RANK, count, null);
+            int hdf5DataType = storageType.hdf5Type();
+            if (data instanceof byte[]) {
+                H5D.H5Dwrite(datasetId, hdf5DataType, memSpace, fileSpace, H5P_DEFAULT, (byte[]) data);
+            } else if (data instanceof short[]) {
+                H5D.H5Dwrite(datasetId, hdf5DataType, memSpace, fileSpace, H5P_DEFAULT, (short[]) data);
+            } else if (data instanceof int[]) {
+                H5D.H5Dwrite(datasetId, hdf5DataType, memSpace, fileSpace, H5P_DEFAULT, (int[]) data);
+            } else if (data instanceof long[]) {
+                H5D.H5Dwrite(datasetId, hdf5DataType, memSpace, fileSpace, H5P_DEFAULT, (long[]) data);
+            } else if (data instanceof float[]) {
+                H5D.H5Dwrite(datasetId, hdf5DataType, memSpace, fileSpace, H5P_DEFAULT, (float[]) data);
+            } else {
+                H5D.H5Dwrite(datasetId, hdf5DataType, memSpace, fileSpace, H5P_DEFAULT, (double[]) data);
+            }
+        } finally {
+            if (memSpace >= 0) {
+                H5.H5Sclose(memSpace);
+            }
+            H5.H5Sclose(fileSpace);
+        }
+    }
+}
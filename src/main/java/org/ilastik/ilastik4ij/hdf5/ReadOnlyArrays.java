@@ -0,0 +1,62 @@
+package org.ilastik.ilastik4ij.hdf5;
+
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+
+/**
+ * Pixel storage of the blocks of a lazily read image, which throws {@link UnsupportedOperationException} instead of
+ * changing a pixel. Blocks are dropped from memory when they have not been used for a while and are read from the
+ * file again, so a change would get lost at an unpredictable time. Copies of the image are writable.
+ */
+final class ReadOnlyArrays {
+    private static final String READ_ONLY = "Results loaded on demand are read-only, duplicate them to change them";
+
+    private ReadOnlyArrays() {
+    }
+
+    static final class ReadOnlyByteArray extends ByteArray {
+        ReadOnlyByteArray(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public void setValue(int index, byte value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+    }
+
+    static final class ReadOnlyShortArray extends ShortArray {
+        ReadOnlyShortArray(short[] data) {
+            super(data);
+        }
+
+        @Override
+        public void setValue(int index, short value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+    }
+
+    static final class ReadOnlyIntArray extends IntArray {
+        ReadOnlyIntArray(int[] data) {
+            super(data);
+        }
+
+        @Override
+        public void setValue(int index, int value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+    }
+
+    static final class ReadOnlyFloatArray extends FloatArray {
+        ReadOnlyFloatArray(float[] data) {
+            super(data);
+        }
+
+        @Override
+        public void setValue(int index, float value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.ilastik.ilastik4ij.hdf5;
+
+import ncsa.hdf.hdf5lib.H5;
+import ncsa.hdf.hdf5lib.exceptions.HDF5Exception;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import static ch.systemsx.cisd.hdf5.hdf5lib.HDF5Constants.*;
+
+/**
+ * The primitive HDF5 datatypes pixels can be written as, with their value range and the Java array backing a plane.
+ */
+enum StorageType {
+    UINT8(1, true, 0, 255),
+    INT8(1, true, Byte.MIN_VALUE, Byte.MAX_VALUE),
+    UINT16(2, true, 0, 65535),
+    INT16(2, true, Short.MIN_VALUE, Short.MAX_VALUE),
+    UINT32(4, true, 0, 4294967295.0),
+    INT32(4, true, Integer.MIN_VALUE, Integer.MAX_VALUE),
+    UINT64(8, true, 0, 18446744073709551615.0),
+    INT64(8, true, Long.MIN_VALUE, Long.MAX_VALUE),
+    FLOAT32(4, false, -Float.MAX_VALUE, Float.MAX_VALUE),
+    FLOAT64(8, false, -Double.MAX_VALUE, Double.MAX_VALUE);
+
+    // smallest first, so the first one that fits is the most compact lossless choice
+    private static final StorageType[] INTEGER_TYPES = {UINT8, INT8, UINT16, INT16, UINT32, INT32, UINT64, INT64};
+
+    final int bytesPerPixel;
+    final boolean integral;
+    final double min;
+    final double max;
+
+    StorageType(int bytesPerPixel, boolean integral, double min, double max) {
+        this.bytesPerPixel = bytesPerPixel;
+        this.integral = integral;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @return the native HDF5 type id, looked up lazily because it is only known once the HDF5 library is loaded
+     */
+    int hdf5Type() {
+        switch (this) {
+            case UINT8:
+                return H5T_NATIVE_UINT8;
+            case INT8:
+                return H5T_NATIVE_INT8;
+            case UINT16:
+                return H5T_NATIVE_UINT16;
+            case INT16:
+                return H5T_NATIVE_INT16;
+            case UINT32:
+                return H5T_NATIVE_UINT32;
+            case INT32:
+                return H5T_NATIVE_INT32;
+            case UINT64:
+                return H5T_NATIVE_UINT64;
+            case INT64:
+                return H5T_NATIVE_INT64;
+            case FLOAT32:
+                return H5T_NATIVE_FLOAT;
+            default:
+                return H5T_NATIVE_DOUBLE;
+        }
+    }
+
+    Object allocate(int numPixels) {
+        switch (this) {
+            case UINT8:
+            case INT8:
+                return new byte[numPixels];
+            case UINT16:
+            case INT16:
+                return new short[numPixels];
+            case UINT32:
+            case INT32:
+                return new int[numPixels];
+            case UINT64:
+            case INT64:
+                return new long[numPixels];
+            case FLOAT32:
+                return new float[numPixels];
+            default:
+                return new double[numPixels];
+        }
+    }
+
+    /**
+     * @return whether every value of the given pixel type can be stored exactly as an integer of this type
+     */
+    boolean holdsIntegers(Type<?> value) {
+        return integral && value instanceof IntegerType
+                && ((RealType<?>) value).getMinValue() >= min && ((RealType<?>) value).getMaxValue() <= max;
+    }
+
+    /**
+     * @return the storage type for pixels of the given type
+     * @throws IllegalArgumentException if the pixels are not real valued
+     */
+    static StorageType of(Type<?> value, NarrowingPolicy policy) {
+        StorageType natural = naturalTypeOf(value);
+        switch (policy) {
+            case FLOAT32:
+                return natural == UINT8 || natural == UINT16 ? natural : FLOAT32;
+            case UINT16:
+                return natural == UINT8 ? UINT8 : UINT16;
+            case UINT8:
+                return UINT8;
+            default:
+                return natural;
+        }
+    }
+
+    private static StorageType naturalTypeOf(Type<?> value) {
+        if (!(value instanceof RealType)) {
+            throw new IllegalArgumentException("Unsupported Type: " + value.getClass());
+        }
+        if (value instanceof FloatType) {
+            return FLOAT32;
+        }
+        if (value instanceof IntegerType) {
+            // covers BitType as uint8, 12 bit types as uint16 and so on
+            for (StorageType candidate : INTEGER_TYPES) {
+                if (candidate.holdsIntegers(value)) {
+                    return candidate;
+                }
+            }
+        }
+        return FLOAT64;
+    }
+
+    /**
+     * @return the storage type equal to the given HDF5 datatype
+     * @throws IllegalArgumentException if it is none of the supported primitive types
+     */
+    static StorageType fromHdf5(int typeId) throws HDF5Exception {
+        for (StorageType candidate : values()) {
+            if (H5.H5Tequal(typeId, candidate.hdf5Type())) {
+                return candidate;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported HDF5 datatype");
+    }
+}
@@ -0,0 +1,142 @@
+package org.ilastik.ilastik4ij.labels;
+
+import java.util.Arrays;
+
+/**
+ * Splits the class labels of a frame into objects, the connected components of every class, while its planes are
+ * added one after the other in z order.
+ *
+ * Voxels are connected to their face neighbors, 4 in a plane and 6 in a volume. Every run of voxels gets a
+ * provisional component, which is merged with the components of its neighbors of the same class in a union-find.
+ * Only the components of the last plane are kept to connect the next one. Not thread safe.
+ */
+class ComponentLabeler {
+    private static final int INITIAL_COMPONENTS = 64;
+
+    /** statistics per provisional component */
+    private LabelAccumulator components = new LabelAccumulator();
+    /** union-find of provisional components, the root of every set is its lowest component */
+    private int[] parent = new int[INITIAL_COMPONENTS];
+    private int[] classes = new int[INITIAL_COMPONENTS];
+    private int numComponents = 0;
+    private int[] previous;
+    private int previousZ;
+    private int[] objectClasses;
+
+    /**
+     * Adds a plane of class labels, which must come after all planes of lower z.
+     *
+     * @param transposed whether the plane is stored x-major, {@code labels[x * dimY + y]}, instead of
+     *                   {@code labels[y * dimX + x]}
+     */
+    void addPlane(int z, int[] labels, int dimX, int dimY, boolean transposed) {
+        if (objectClasses != null) {
+            throw new IllegalStateException("The objects of the frame have been labeled already");
+        }
+        int rows = transposed ? dimX : dimY;
+        int rowLength = transposed ? dimY : dimX;
+        int[] ids = new int[labels.length];
+        for (int row = 0; row < rows; row++) {
+            int offset = row * rowLength;
+            for (int i = offset; i < offset + rowLength; i++) {
+                int label = labels[i];
+                if (label == 0) {
+                    continue;
+                }
+                int id = 0;
+                if (i > offset && labels[i - 1] == label) {
+                    id = ids[i - 1];
+                }
+                if (row > 0 && labels[i - rowLength] == label) {
+                    id = id == 0 ? ids[i - rowLength] : union(id, ids[i - rowLength]);
+                }
+                ids[i] = id == 0 ? newComponent(label) : id;
+            }
+        }
+
+        // planes that could not be read leave a gap, the objects on both sides are not connected
+        if (previous != null && previousZ == z - 1) {
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i] != 0 && previous[i] != 0 && classes[previous[i]] == labels[i]) {
+                    union(ids[i], previous[i]);
+                }
+            }
+        }
+        components.addPlane(z, ids, dimX, dimY, transposed);
+        previous = ids;
+        previousZ = z;
+    }
+
+    /**
+     * Numbers the objects from 1 in the order they were first seen and collects their statistics.
+     * Planes cannot be added afterwards.
+     *
+     * @return statistics of the objects, keyed by object
+     */
+    LabelAccumulator finish() {
+        int[] objectOf = new int[numComponents + 1];
+        int numObjects = 0;
+        objectClasses = new int[INITIAL_COMPONENTS];
+        for (int component = 1; component <= numComponents; component++) {
+            int root = find(component);
+            if (root == component) {
+                if (numObjects == objectClasses.length) {
+                    objectClasses = Arrays.copyOf(objectClasses, 2 * numObjects);
+                }
+                objectClasses[numObjects] = classes[component];
+                objectOf[component] = ++numObjects;
+            } else {
+                // roots are the lowest component of their set, so they have been numbered already
+                objectOf[component] = objectOf[root];
+            }
+        }
+
+        LabelAccumulator objects = new LabelAccumulator();
+        for (int slot = 0; slot < components.size; slot++) {
+            objects.merge(components, slot, objectOf[components.keys[slot]]);
+        }
+        components = null;
+        parent = null;
+        classes = null;
+        previous = null;
+        return objects;
+    }
+
+    /**
+     * @return the class label of an object, after {@link #finish}
+     */
+    int getObjectClass(int object) {
+        return objectClasses[object - 1];
+    }
+
+    private int newComponent(int label) {
+        int component = ++numComponents;
+        if (component == parent.length) {
+            parent = Arrays.copyOf(parent, 2 * component);
+            classes = Arrays.copyOf(classes, 2 * component);
+        }
+        parent[component] = component;
+        classes[component] = label;
+        return component;
+    }
+
+    private int find(int component) {
+        while (parent[component] != component) {
+            // path halving keeps the trees flat
+            parent[component] = parent[parent[component]];
+            component = parent[component];
+        }
+        return component;
+    }
+
+    private int union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+        if (rootA < rootB) {
+            parent[rootB] = rootA;
+            return rootA;
+        }
+        parent[rootA] = rootB;
+        return rootB;
+    }
+}
@@ -0,0 +1,153 @@
+package org.ilastik.ilastik4ij.labels;
+
+import java.util.Arrays;
+
+/**
+ * Sums up voxel count, bounding box and coordinate sums per label, in primitive arrays indexed by a slot per label.
+ * Label 0 is background and never added. Not thread safe, every thread fills an accumulator of its own and they are
+ * {@link #merge merged} afterwards.
+ */
+class LabelAccumulator {
+    private static final int INITIAL_SLOTS = 64;
+
+    /** label per slot, compared as unsigned */
+    int[] keys = new int[INITIAL_SLOTS];
+    long[] counts = new long[INITIAL_SLOTS];
+    /** x, y and z per slot */
+    int[] min = new int[3 * INITIAL_SLOTS];
+    int[] max = new int[3 * INITIAL_SLOTS];
+    long[] sums = new long[3 * INITIAL_SLOTS];
+    int size = 0;
+
+    /** open addressing hash table of slot + 1, 0 for free entries */
+    private int[] table = new int[2 * INITIAL_SLOTS];
+    private int lastKey = 0;
+    private int lastSlot = -1;
+
+    /**
+     * Adds all labels of a plane, one run of equal labels at a time.
+     *
+     * @param transposed whether the plane is stored x-major, {@code labels[x * dimY + y]}, instead of
+     *                   {@code labels[y * dimX + x]}
+     */
+    void addPlane(int z, int[] labels, int dimX, int dimY, boolean transposed) {
+        int rows = transposed ? dimX : dimY;
+        int rowLength = transposed ? dimY : dimX;
+        for (int row = 0; row < rows; row++) {
+            int offset = row * rowLength;
+            int start = 0;
+            while (start < rowLength) {
+                int label = labels[offset + start];
+                int end = start + 1;
+                while (end < rowLength && labels[offset + end] == label) {
+                    end++;
+                }
+                if (label != 0) {
+                    if (transposed) {
+                        addRun(label, row, row, start, end - 1, z);
+                    } else {
+                        addRun(label, start, end - 1, row, row, z);
+                    }
+                }
+                start = end;
+            }
+        }
+    }
+
+    /**
+     * Adds a run of voxels along x or y, the other coordinates are fixed.
+     */
+    void addRun(int label, int x0, int x1, int y0, int y1, int z) {
+        int slot = slot(label);
+        int lengthX = x1 - x0 + 1;
+        int lengthY = y1 - y0 + 1;
+        long n = (long) lengthX * lengthY;
+        counts[slot] += n;
+        update(slot, 0, x0, x1, (long) (x0 + x1) * lengthX / 2 * lengthY);
+        update(slot, 1, y0, y1, (long) (y0 + y1) * lengthY / 2 * lengthX);
+        update(slot, 2, z, z, n * z);
+    }
+
+    /**
+     * Adds the statistics of another accumulator, e.g. of another plane of the same frame.
+     */
+    void merge(LabelAccumulator other) {
+        for (int otherSlot = 0; otherSlot < other.size; otherSlot++) {
+            merge(other, otherSlot, other.keys[otherSlot]);
+        }
+    }
+
+    /**
+     * Adds the statistics of a slot of another accumulator to a label, e.g. of a part of an object.
+     */
+    void merge(LabelAccumulator other, int otherSlot, int label) {
+        int slot = slot(label);
+        counts[slot] += other.counts[otherSlot];
+        for (int axis = 0; axis < 3; axis++) {
+            int i = 3 * otherSlot + axis;
+            update(slot, axis, other.min[i], other.max[i], other.sums[i]);
+        }
+    }
+
+    private void update(int slot, int axis, int low, int high, long sum) {
+        int i = 3 * slot + axis;
+        min[i] = Math.min(min[i], low);
+        max[i] = Math.max(max[i], high);
+        sums[i] += sum;
+    }
+
+    private int slot(int label) {
+        // labels mostly come in runs of rows, so the same one is looked up again and again
+        if (label == lastKey && lastSlot >= 0) {
+            return lastSlot;
+        }
+        int mask = table.length - 1;
+        int i = mix(label) & mask;
+        while (table[i] != 0) {
+            int slot = table[i] - 1;
+            if (keys[slot] == label) {
+                lastKey = label;
+                lastSlot = slot;
+                return slot;
+            }
+            i = (i + 1) & mask;
+        }
+
+        if (size == keys.length) {
+            grow();
+            return slot(label);
+        }
+        int slot = size++;
+        keys[slot] = label;
+        Arrays.fill(min, 3 * slot, 3 * slot + 3, Integer.MAX_VALUE);
+        Arrays.fill(max, 3 * slot, 3 * slot + 3, Integer.MIN_VALUE);
+        table[i] = slot + 1;
+        lastKey = label;
+        lastSlot = slot;
+        return slot;
+    }
+
+    private void grow() {
+        int capacity = 2 * keys.length;
+        keys = Arrays.copyOf(keys, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        min = Arrays.copyOf(min, 3 * capacity);
+        max = Arrays.copyOf(max, 3 * capacity);
+        sums = Arrays.copyOf(sums, 3 * capacity);
+        table = new int[2 * capacity];
+        int mask = table.length - 1;
+        for (int slot = 0; slot < size; slot++) {
+            int i = mix(keys[slot]) & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = slot + 1;
+        }
+    }
+
+    private static int mix(int key) {
+        // consecutive labels would otherwise fill consecutive entries and form long probe chains
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,276 @@
+package org.ilastik.ilastik4ij.labels;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Statistics of the objects of a label image, per frame and label: voxel count, bounding box and centroid.
+ *
+ * Label 0 is background and not indexed. For tracking results the label of an object is its lineage ID. In object
+ * classification results all objects of a class share its label, so the objects are their connected components
+ * instead: they are numbered from 1 per frame in the order they are first seen, and their class is kept in a column of
+ * its own, see {@link #getObjectClass}. Entries are ordered by frame and then label, so all queries take time in the
+ * number of objects, or less, instead of the number of voxels.
+ *
+ * The readers of ilastik results build the index while reading labels and attach it to the image, see {@link #of}.
+ */
+public class LabelIndex {
+    /** Property of label images holding their index */
+    public static final String PROPERTY = "ilastik4ij.labelIndex";
+
+    public static final int X = 0;
+    public static final int Y = 1;
+    public static final int Z = 2;
+
+    private final int[] frameStarts;
+    private final long[] labels;
+    private final long[] counts;
+    private final int[] min;
+    private final int[] max;
+    private final long[] sums;
+    private final long[] classes;
+
+    /**
+     * @param frameStarts first entry of every frame, followed by the number of entries
+     * @param min         x, y and z of the bounding box per entry, as are {@code max} and {@code sums}
+     * @param classes     class label per entry, or null if the labels are no classes
+     */
+    LabelIndex(int[] frameStarts, long[] labels, long[] counts, int[] min, int[] max, long[] sums, long[] classes) {
+        this.frameStarts = frameStarts;
+        this.labels = labels;
+        this.counts = counts;
+        this.min = min;
+        this.max = max;
+        this.sums = sums;
+        this.classes = classes;
+    }
+
+    /**
+     * @return the index attached to the image, or null if it has none
+     */
+    public static LabelIndex of(ImgPlus<?> image) {
+        Object index = image.getProperties().get(PROPERTY);
+        return index instanceof LabelIndex ? (LabelIndex) index : null;
+    }
+
+    /**
+     * @return the index attached to the image, which is built in one pass and attached first if it has none yet
+     * @throws IllegalArgumentException if the image does not hold integer labels in a single channel
+     */
+    public static LabelIndex get(ImgPlus<?> image) {
+        return get(image, null);
+    }
+
+    /**
+     * Like {@link #get(ImgPlus)}, summing up the planes of an image without an index on a pool of workers.
+     *
+     * @param workers pool to sum up planes on, or null to sum them up on the calling thread
+     */
+    public static LabelIndex get(ImgPlus<?> image, ExecutorService workers) {
+        LabelIndex index = of(image);
+        if (index == null) {
+            index = compute(image, workers);
+            index.attachTo(image);
+        }
+        return index;
+    }
+
+    /**
+     * Indexes all labels of an image on the calling thread.
+     *
+     * @throws IllegalArgumentException if the image does not hold integer labels in a single channel
+     */
+    public static LabelIndex compute(ImgPlus<?> image) {
+        return compute(image, null);
+    }
+
+    /**
+     * Indexes all labels of an image, which are no classes, see {@link #compute(ImgPlus, ExecutorService, boolean)}.
+     */
+    public static LabelIndex compute(ImgPlus<?> image, ExecutorService workers) {
+        return compute(image, workers, false);
+    }
+
+    /**
+     * Indexes all labels of an image, with its planes summed up in parallel.
+     *
+     * @param workers     pool to sum up planes on, or null to sum them up on the calling thread
+     * @param classLabels whether the labels are classes, which are split into their connected components
+     * @throws IllegalArgumentException if the image does not hold integer labels in a single channel
+     */
+    @SuppressWarnings("unchecked")
+    public static LabelIndex compute(ImgPlus<?> image, ExecutorService workers, boolean classLabels) {
+        if (!(image.firstElement() instanceof IntegerType)) {
+            throw new IllegalArgumentException("Labels must be integers, not " + image.firstElement().getClass().getSimpleName());
+        }
+        int xAxis = image.dimensionIndex(Axes.X);
+        int yAxis = image.dimensionIndex(Axes.Y);
+        int zAxis = image.dimensionIndex(Axes.Z);
+        int channelAxis = image.dimensionIndex(Axes.CHANNEL);
+        int timeAxis = image.dimensionIndex(Axes.TIME);
+        if (xAxis < 0 || yAxis < 0) {
+            throw new IllegalArgumentException("Label images need x and y axes");
+        }
+        if (channelAxis >= 0 && image.dimension(channelAxis) > 1) {
+            throw new IllegalArgumentException("Label images have a single channel, not " + image.dimension(channelAxis));
+        }
+        int dimX = (int) image.dimension(xAxis);
+        int dimY = (int) image.dimension(yAxis);
+        int numZ = zAxis < 0 ? 1 : (int) image.dimension(zAxis);
+        int numFrames = timeAxis < 0 ? 1 : (int) image.dimension(timeAxis);
+
+        // all other axes are sliced off, the highest first so that the indices of the others stay the same
+        int[] sliced = {timeAxis, zAxis, channelAxis};
+        Arrays.sort(sliced);
+        LabelIndexBuilder builder = new LabelIndexBuilder(numFrames, workers);
+        builder.setClassLabels(classLabels);
+        for (int frame = 0; frame < numFrames; frame++) {
+            for (int z = 0; z < numZ; z++) {
+                RandomAccessibleInterval<? extends IntegerType<?>> plane = (ImgPlus<? extends IntegerType<?>>) image;
+                for (int i = sliced.length - 1; i >= 0; i--) {
+                    int axis = sliced[i];
+                    if (axis >= 0) {
+                        plane = Views.hyperSlice(plane, axis, axis == timeAxis ? frame : axis == zAxis ? z : 0);
+                    }
+                }
+                int[] planeLabels = new int[dimX * dimY];
+                int i = 0;
+                for (IntegerType<?> label : Views.flatIterable(plane)) {
+                    planeLabels[i++] = (int) label.getIntegerLong();
+                }
+                builder.addPlane(frame, z, planeLabels, dimX, dimY, yAxis < xAxis);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Records the index in the properties of its label image.
+     */
+    public void attachTo(ImgPlus<?> image) {
+        image.getProperties().put(PROPERTY, this);
+    }
+
+    public int getNumFrames() {
+        return frameStarts.length - 1;
+    }
+
+    /**
+     * @return number of entries, i.e. objects of all frames
+     */
+    public int size() {
+        return labels.length;
+    }
+
+    /**
+     * @return number of objects in a frame
+     */
+    public int getNumObjects(int frame) {
+        return frameStarts[frame + 1] - frameStarts[frame];
+    }
+
+    /**
+     * @return the first entry of a frame, the entries up to {@link #getNumObjects} after it belong to the frame as well
+     */
+    public int getFirstEntry(int frame) {
+        return frameStarts[frame];
+    }
+
+    /**
+     * @return labels of all objects in a frame, in ascending order
+     */
+    public long[] getLabels(int frame) {
+        return Arrays.copyOfRange(labels, frameStarts[frame], frameStarts[frame + 1]);
+    }
+
+    /**
+     * @return the entry of a label in a frame, or -1 if the frame has no such label
+     */
+    public int find(int frame, long label) {
+        int index = Arrays.binarySearch(labels, frameStarts[frame], frameStarts[frame + 1], label);
+        return index < 0 ? -1 : index;
+    }
+
+    public int getFrame(int entry) {
+        checkEntry(entry);
+        int index = Arrays.binarySearch(frameStarts, entry);
+        if (index < 0) {
+            return -index - 2;
+        }
+        // empty frames start at the same entry as the next one
+        while (frameStarts[index + 1] == entry) {
+            index++;
+        }
+        return index;
+    }
+
+    public long getLabel(int entry) {
+        return labels[entry];
+    }
+
+    /**
+     * @return whether the objects are the connected components of class labels, which have a class
+     */
+    public boolean hasObjectClasses() {
+        return classes != null;
+    }
+
+    /**
+     * @return the class of the object, i.e. its label in the image
+     * @throws IllegalStateException if the labels of the image are no classes
+     */
+    public long getObjectClass(int entry) {
+        if (classes == null) {
+            throw new IllegalStateException("The labels of the image are no classes");
+        }
+        return classes[entry];
+    }
+
+    /**
+     * @return number of voxels of the object
+     */
+    public long getCount(int entry) {
+        return counts[entry];
+    }
+
+    /**
+     * @param axis {@link #X}, {@link #Y} or {@link #Z}
+     * @return lowest coordinate of the object along the axis
+     */
+    public int getMin(int entry, int axis) {
+        return min[3 * entry + axis];
+    }
+
+    /**
+     * @param axis {@link #X}, {@link #Y} or {@link #Z}
+     * @return highest coordinate of the object along the axis, inclusive
+     */
+    public int getMax(int entry, int axis) {
+        return max[3 * entry + axis];
+    }
+
+    /**
+     * @param axis {@link #X}, {@link #Y} or {@link #Z}
+     * @return mean coordinate of the voxels of the object along the axis, in pixels
+     */
+    public double getCentroid(int entry, int axis) {
+        return (double) sums[3 * entry + axis] / counts[entry];
+    }
+
+    private void checkEntry(int entry) {
+        if (entry < 0 || entry >= labels.length) {
+            throw new IndexOutOfBoundsException("Entry " + entry + " of an index with " + labels.length + " entries");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Label index of " + labels.length + " objects in " + getNumFrames() + " frames";
+    }
+}
@@ -0,0 +1,258 @@
+package org.ilastik.ilastik4ij.labels;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Builds a {@link LabelIndex} from the planes of a label image while they are read.
+ *
+ * Every plane is summed up on a worker thread and merged into its frame, so the statistics are done about as soon
+ * as the last plane has been read. Only a few planes wait for a worker at any time, readers block otherwise.
+ * The workers are borrowed from a pool like {@link org.ilastik.ilastik4ij.hdf5.Hdf5IoService#getCpuExecutor}.
+ *
+ * For {@link #setClassLabels class labels} the objects are the connected components of every class instead. Their
+ * planes must be added in z order and frame after frame, and the planes of a frame are labeled one after the other,
+ * while different frames are labeled in parallel.
+ */
+public class LabelIndexBuilder {
+    private final ExecutorService workers;
+    private final LabelAccumulator[] frames;
+    private final Semaphore pendingPlanes = new Semaphore(2 * Runtime.getRuntime().availableProcessors());
+    private final List<Future<?>> tasks = new ArrayList<>();
+    private ComponentLabeler[] labelers;
+    /** last task of every frame of class labels, the next plane is labeled after it */
+    private CompletableFuture<?>[] frameTails;
+    private int currentFrame = -1;
+    private boolean planesAdded = false;
+
+    /**
+     * Creates a builder summing up every plane on the thread adding it.
+     */
+    public LabelIndexBuilder(int numFrames) {
+        this(numFrames, null);
+    }
+
+    /**
+     * @param workers pool to sum up planes on, or null to sum them up on the thread adding them
+     */
+    public LabelIndexBuilder(int numFrames, ExecutorService workers) {
+        this.workers = workers;
+        frames = new LabelAccumulator[numFrames];
+        for (int frame = 0; frame < numFrames; frame++) {
+            frames[frame] = new LabelAccumulator();
+        }
+    }
+
+    /**
+     * Indexes the connected components of every label as objects, for images where labels are classes like
+     * object classification results. Objects are numbered per frame, see {@link LabelIndex#getObjectClass}.
+     *
+     * @throws IllegalStateException if planes have been added already
+     */
+    public void setClassLabels(boolean classLabels) {
+        if (planesAdded) {
+            throw new IllegalStateException("Class labels must be chosen before adding planes");
+        }
+        if (!classLabels) {
+            labelers = null;
+            frameTails = null;
+            return;
+        }
+        labelers = new ComponentLabeler[frames.length];
+        frameTails = new CompletableFuture<?>[frames.length];
+        for (int frame = 0; frame < frames.length; frame++) {
+            labelers[frame] = new ComponentLabeler();
+            frameTails[frame] = CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * Adds a plane of labels, which must not be changed afterwards.
+     *
+     * @param transposed whether the plane is stored x-major, {@code labels[x * dimY + y]}, instead of
+     *                   {@code labels[y * dimX + x]}
+     */
+    public void addPlane(int frame, int z, int[] labels, int dimX, int dimY, boolean transposed) {
+        submit(frame, z, () -> labels, dimX, dimY, transposed);
+    }
+
+    /**
+     * Adds a plane of unsigned 8 bit labels, see {@link #addPlane(int, int, int[], int, int, boolean)}.
+     */
+    public void addPlane(int frame, int z, byte[] labels, int dimX, int dimY, boolean transposed) {
+        submit(frame, z, () -> {
+            int[] widened = new int[labels.length];
+            for (int i = 0; i < labels.length; i++) {
+                widened[i] = labels[i] & 0xff;
+            }
+            return widened;
+        }, dimX, dimY, transposed);
+    }
+
+    /**
+     * Adds a plane of unsigned 16 bit labels, see {@link #addPlane(int, int, int[], int, int, boolean)}.
+     */
+    public void addPlane(int frame, int z, short[] labels, int dimX, int dimY, boolean transposed) {
+        submit(frame, z, () -> {
+            int[] widened = new int[labels.length];
+            for (int i = 0; i < labels.length; i++) {
+                widened[i] = labels[i] & 0xffff;
+            }
+            return widened;
+        }, dimX, dimY, transposed);
+    }
+
+    private void submit(int frame, int z, Supplier<int[]> labels, int dimX, int dimY, boolean transposed) {
+        planesAdded = true;
+        if (labelers == null) {
+            run(() -> {
+                LabelAccumulator plane = new LabelAccumulator();
+                plane.addPlane(z, labels.get(), dimX, dimY, transposed);
+                synchronized (frames[frame]) {
+                    frames[frame].merge(plane);
+                }
+            });
+            return;
+        }
+
+        if (frame < currentFrame) {
+            throw new IllegalStateException("Frame " + frame + " of class labels was added after frame " + currentFrame);
+        }
+        if (frame > currentFrame) {
+            if (currentFrame >= 0) {
+                final int done = currentFrame;
+                runInFrame(done, () -> frames[done] = labelers[done].finish());
+            }
+            currentFrame = frame;
+        }
+        runInFrame(frame, () -> labelers[frame].addPlane(z, labels.get(), dimX, dimY, transposed));
+    }
+
+    /**
+     * Runs a task on a worker, or right away without workers.
+     */
+    private void run(Runnable task) {
+        if (workers == null) {
+            task.run();
+            return;
+        }
+        pendingPlanes.acquireUninterruptibly();
+        try {
+            tasks.add(workers.submit(() -> {
+                try {
+                    task.run();
+                } finally {
+                    pendingPlanes.release();
+                }
+            }));
+        } catch (RuntimeException e) {
+            pendingPlanes.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs a task after all earlier tasks of a frame of class labels, or right away without workers.
+     * Once a task fails, the later ones of the frame are skipped.
+     */
+    private void runInFrame(int frame, Runnable task) {
+        if (workers == null) {
+            task.run();
+            return;
+        }
+        pendingPlanes.acquireUninterruptibly();
+        try {
+            frameTails[frame] = frameTails[frame].handleAsync((ignored, failure) -> {
+                try {
+                    if (failure != null) {
+                        throw failure instanceof CompletionException ? (CompletionException) failure : new CompletionException(failure);
+                    }
+                    task.run();
+                    return null;
+                } finally {
+                    pendingPlanes.release();
+                }
+            }, workers);
+            tasks.add(frameTails[frame]);
+        } catch (RuntimeException e) {
+            pendingPlanes.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for all planes and collects their statistics, ordered by frame and label.
+     * Objects of class labels are ordered by their number.
+     */
+    public LabelIndex build() {
+        boolean interrupted = false;
+        try {
+            for (Future<?> task : tasks) {
+                while (true) {
+                    try {
+                        task.get();
+                        break;
+                    } catch (InterruptedException e) {
+                        // the accumulators are still written to, so wait for them anyway
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        throw new RuntimeException("Could not index labels", e.getCause());
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (labelers != null && currentFrame >= 0) {
+            frames[currentFrame] = labelers[currentFrame].finish();
+        }
+
+        int size = 0;
+        for (LabelAccumulator frame : frames) {
+            size += frame.size;
+        }
+        int[] frameStarts = new int[frames.length + 1];
+        long[] labels = new long[size];
+        long[] counts = new long[size];
+        int[] min = new int[3 * size];
+        int[] max = new int[3 * size];
+        long[] sums = new long[3 * size];
+        long[] classes = labelers == null ? null : new long[size];
+        int entry = 0;
+        for (int frame = 0; frame < frames.length; frame++) {
+            LabelAccumulator accumulator = frames[frame];
+            frameStarts[frame] = entry;
+            // flipping the sign bit sorts the unsigned labels as signed numbers, the slot goes into the low bits
+            long[] order = new long[accumulator.size];
+            for (int slot = 0; slot < accumulator.size; slot++) {
+                order[slot] = ((long) (accumulator.keys[slot] ^ Integer.MIN_VALUE) << 32) | slot;
+            }
+            Arrays.sort(order);
+            for (long key : order) {
+                int slot = (int) key;
+                labels[entry] = Integer.toUnsignedLong(accumulator.keys[slot]);
+                counts[entry] = accumulator.counts[slot];
+                System.arraycopy(accumulator.min, 3 * slot, min, 3 * entry, 3);
+                System.arraycopy(accumulator.max, 3 * slot, max, 3 * entry, 3);
+                System.arraycopy(accumulator.sums, 3 * slot, sums, 3 * entry, 3);
+                if (classes != null) {
+                    classes[entry] = Integer.toUnsignedLong(labelers[frame].getObjectClass(accumulator.keys[slot]));
+                }
+                entry++;
+            }
+        }
+        frameStarts[frames.length] = entry;
+        return new LabelIndex(frameStarts, labels, counts, min, max, sums, classes);
+    }
+}
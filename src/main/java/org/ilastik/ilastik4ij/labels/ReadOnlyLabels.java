@@ -0,0 +1,346 @@
+package org.ilastik.ilastik4ij.labels;
+
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import java.math.BigInteger;
+
+/**
+ * Variables of the unsigned integer types that hold the labels of a {@link RunLengthLabelImg}, and throw
+ * {@link UnsupportedOperationException} instead of changing their value, because the change would never reach the
+ * image. Only the image loads labels into them. Copies and new variables created from them are writable.
+ */
+final class ReadOnlyLabels {
+    private static final String READ_ONLY = "Run length encoded labels are read-only, copy them into an image of "
+            + "RunLengthLabelImg.factory() to change them";
+
+    private ReadOnlyLabels() {
+    }
+
+    interface Label {
+        void load(long label);
+    }
+
+    static boolean isSupported(Object type) {
+        return type instanceof UnsignedByteType || type instanceof UnsignedShortType || type instanceof UnsignedIntType;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the type is not {@link #isSupported supported}
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T variable(T type) {
+        if (type instanceof UnsignedByteType) {
+            return (T) new ReadOnlyUnsignedByteType();
+        } else if (type instanceof UnsignedShortType) {
+            return (T) new ReadOnlyUnsignedShortType();
+        } else if (type instanceof UnsignedIntType) {
+            return (T) new ReadOnlyUnsignedIntType();
+        }
+        throw new IllegalArgumentException("Labels must be unsigned 8, 16 or 32 bit integers, not " + type.getClass().getSimpleName());
+    }
+
+    static final class ReadOnlyUnsignedByteType extends UnsignedByteType implements Label {
+        private boolean loading = false;
+
+        @Override
+        public void load(long label) {
+            loading = true;
+            try {
+                super.setInteger(label);
+            } finally {
+                loading = false;
+            }
+        }
+
+        public void set(int value) {
+            if (!loading) {
+                throw new UnsupportedOperationException(READ_ONLY);
+            }
+            super.set(value);
+        }
+
+        public void set(UnsignedByteType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setInteger(int value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setInteger(long value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setBigInteger(BigInteger value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setReal(float value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setReal(double value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setComplexNumber(float r, float i) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setComplexNumber(double r, double i) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setZero() {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setOne() {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void inc() {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void dec() {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void add(UnsignedByteType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void sub(UnsignedByteType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void mul(UnsignedByteType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void div(UnsignedByteType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void mul(float c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void mul(double c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void pow(UnsignedByteType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void pow(double power) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+    }
+
+    static final class ReadOnlyUnsignedShortType extends UnsignedShortType implements Label {
+        private boolean loading = false;
+
+        @Override
+        public void load(long label) {
+            loading = true;
+            try {
+                super.setInteger(label);
+            } finally {
+                loading = false;
+            }
+        }
+
+        public void set(int value) {
+            if (!loading) {
+                throw new UnsupportedOperationException(READ_ONLY);
+            }
+            super.set(value);
+        }
+
+        public void set(UnsignedShortType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setInteger(int value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setInteger(long value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setBigInteger(BigInteger value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setReal(float value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setReal(double value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setComplexNumber(float r, float i) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setComplexNumber(double r, double i) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setZero() {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setOne() {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void inc() {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void dec() {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void add(UnsignedShortType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void sub(UnsignedShortType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void mul(UnsignedShortType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void div(UnsignedShortType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void mul(float c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void mul(double c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void pow(UnsignedShortType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void pow(double power) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+    }
+
+    static final class ReadOnlyUnsignedIntType extends UnsignedIntType implements Label {
+        private boolean loading = false;
+
+        @Override
+        public void load(long label) {
+            loading = true;
+            try {
+                super.setInteger(label);
+            } finally {
+                loading = false;
+            }
+        }
+
+        public void set(long value) {
+            if (!loading) {
+                throw new UnsupportedOperationException(READ_ONLY);
+            }
+            super.set(value);
+        }
+
+        public void set(UnsignedIntType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setInteger(int value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setInteger(long value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setBigInteger(BigInteger value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setReal(float value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setReal(double value) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setComplexNumber(float r, float i) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setComplexNumber(double r, double i) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setZero() {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void setOne() {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void inc() {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void dec() {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void add(UnsignedIntType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void sub(UnsignedIntType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void mul(UnsignedIntType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void div(UnsignedIntType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void mul(float c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void mul(double c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void pow(UnsignedIntType c) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+
+        public void pow(double power) {
+            throw new UnsupportedOperationException(READ_ONLY);
+        }
+    }
+}
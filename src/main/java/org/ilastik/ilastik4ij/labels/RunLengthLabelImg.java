@@ -0,0 +1,260 @@
+package org.ilastik.ilastik4ij.labels;
+
+import net.imglib2.AbstractCursor;
+import net.imglib2.Cursor;
+import net.imglib2.FlatIterationOrder;
+import net.imglib2.Interval;
+import net.imglib2.IterableRealInterval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.AbstractImg;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+
+import java.util.Arrays;
+
+/**
+ * A label image stored as runs of equal labels along its first dimension, for results that are mostly background.
+ *
+ * Every row, i.e. line along the first dimension, is a list of runs given by their end and label. A row with a
+ * single object takes three runs instead of one value per pixel. Random access finds the row from the position and
+ * its run by binary search, remembering the last run for neighboring positions. Cursors walk the runs in flat order.
+ *
+ * The image is read-only: the variables returned by {@code get()} hold the label and throw
+ * {@link UnsupportedOperationException} when they are changed. Use {@link #factory} to create dense images of the same
+ * type to write to. Labels are stored as 32 bit unsigned integers, which holds all label types ilastik exports, and
+ * come as unsigned 8, 16 or 32 bit integers. Build images with {@link RunLengthLabelImgBuilder}.
+ */
+public class RunLengthLabelImg<T extends IntegerType<T> & NativeType<T>> extends AbstractImg<T> {
+    private final T type;
+    private final long[] dims;
+    private final long numPixels;
+    private final int rowLength;
+    /** first run of every row, followed by the number of runs */
+    private final int[] rowStarts;
+    /** position after the last pixel of every run, within its row */
+    private final int[] runEnds;
+    private final int[] runLabels;
+
+    RunLengthLabelImg(T type, long[] dims, int[] rowStarts, int[] runEnds, int[] runLabels) {
+        super(dims);
+        this.type = type.createVariable();
+        this.dims = dims.clone();
+        this.rowLength = (int) dims[0];
+        this.rowStarts = rowStarts;
+        this.runEnds = runEnds;
+        this.runLabels = runLabels;
+        long pixels = 1;
+        for (long dim : dims) {
+            pixels *= dim;
+        }
+        this.numPixels = pixels;
+    }
+
+    /**
+     * @return number of runs of all rows
+     */
+    public int getNumRuns() {
+        return rowStarts[rowStarts.length - 1];
+    }
+
+    /**
+     * @return approximate number of bytes the runs take
+     */
+    public long getSizeInBytes() {
+        return 4L * rowStarts.length + 8L * getNumRuns();
+    }
+
+    private int rowOf(long[] position) {
+        long row = 0;
+        for (int d = dims.length - 1; d > 0; d--) {
+            row = row * dims[d] + position[d];
+        }
+        return (int) row;
+    }
+
+    /**
+     * @return the run of a row covering position x, by binary search
+     */
+    private int findRun(int row, int x) {
+        int low = rowStarts[row];
+        int high = rowStarts[row + 1] - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (runEnds[middle] <= x) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public RandomAccess<T> randomAccess() {
+        return new RunLengthRandomAccess();
+    }
+
+    @Override
+    public RandomAccess<T> randomAccess(Interval interval) {
+        return randomAccess();
+    }
+
+    @Override
+    public Cursor<T> cursor() {
+        return new RunLengthCursor();
+    }
+
+    @Override
+    public Cursor<T> localizingCursor() {
+        // the cursor tracks its position anyway
+        return new RunLengthCursor();
+    }
+
+    @Override
+    public FlatIterationOrder iterationOrder() {
+        return new FlatIterationOrder(this);
+    }
+
+    public boolean equalIterationOrder(IterableRealInterval<?> other) {
+        return iterationOrder().equals(other.iterationOrder());
+    }
+
+    @Override
+    public ImgFactory<T> factory() {
+        return new ArrayImgFactory<>();
+    }
+
+    /**
+     * @return an image sharing the runs, which are never changed
+     */
+    @Override
+    public Img<T> copy() {
+        return new RunLengthLabelImg<>(type, dims, rowStarts, runEnds, runLabels);
+    }
+
+    private class RunLengthRandomAccess extends Point implements RandomAccess<T> {
+        private final T value = ReadOnlyLabels.variable(type);
+        private int cachedRow = -1;
+        private int cachedRun = -1;
+
+        RunLengthRandomAccess() {
+            super(dims.length);
+        }
+
+        @Override
+        public T get() {
+            int row = rowOf(position);
+            int x = (int) position[0];
+            if (row != cachedRow || runEnds[cachedRun] <= x || (cachedRun > rowStarts[row] && runEnds[cachedRun - 1] > x)) {
+                cachedRow = row;
+                cachedRun = findRun(row, x);
+            }
+            ((ReadOnlyLabels.Label) value).load(Integer.toUnsignedLong(runLabels[cachedRun]));
+            return value;
+        }
+
+        @Override
+        public RunLengthRandomAccess copy() {
+            RunLengthRandomAccess copy = new RunLengthRandomAccess();
+            copy.setPosition(this);
+            return copy;
+        }
+
+        public RunLengthRandomAccess copyRandomAccess() {
+            return copy();
+        }
+    }
+
+    private class RunLengthCursor extends AbstractCursor<T> {
+        private final T value = ReadOnlyLabels.variable(type);
+        private final long[] location = new long[dims.length];
+        private long index;
+        private int row;
+        private int run;
+
+        RunLengthCursor() {
+            super(dims.length);
+            reset();
+        }
+
+        @Override
+        public void reset() {
+            index = -1;
+            row = 0;
+            run = rowStarts[0];
+            Arrays.fill(location, 0);
+            location[0] = -1;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < numPixels - 1;
+        }
+
+        @Override
+        public void fwd() {
+            index++;
+            if (++location[0] == rowLength) {
+                location[0] = 0;
+                row++;
+                run = rowStarts[row];
+                for (int d = 1; d < location.length && ++location[d] == dims[d]; d++) {
+                    location[d] = 0;
+                }
+            }
+            while (runEnds[run] <= location[0]) {
+                run++;
+            }
+        }
+
+        @Override
+        public void jump(long steps) {
+            if (steps < 0) {
+                throw new IllegalArgumentException("Cursors only move forward");
+            }
+            long target = index + steps;
+            index = target;
+            long rest = target;
+            for (int d = 0; d < location.length; d++) {
+                location[d] = rest % dims[d];
+                rest /= dims[d];
+            }
+            row = (int) (target / rowLength);
+            run = findRun(row, (int) location[0]);
+        }
+
+        @Override
+        public T get() {
+            ((ReadOnlyLabels.Label) value).load(Integer.toUnsignedLong(runLabels[run]));
+            return value;
+        }
+
+        @Override
+        public void localize(long[] destination) {
+            System.arraycopy(location, 0, destination, 0, location.length);
+        }
+
+        @Override
+        public long getLongPosition(int d) {
+            return location[d];
+        }
+
+        @Override
+        public RunLengthCursor copy() {
+            RunLengthCursor copy = new RunLengthCursor();
+            copy.index = index;
+            copy.row = row;
+            copy.run = run;
+            System.arraycopy(location, 0, copy.location, 0, location.length);
+            return copy;
+        }
+
+        public RunLengthCursor copyCursor() {
+            return copy();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.ilastik.ilastik4ij.labels;
+
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+
+import java.util.Arrays;
+
+/**
+ * Encodes the rows of a label image one after the other into a {@link RunLengthLabelImg}, e.g. while its planes are
+ * read, so the dense image never has to be in memory.
+ *
+ * Rows are lines along the first dimension and come in flat order of the other dimensions. Planes of the first two
+ * dimensions therefore add all their rows at once.
+ */
+public class RunLengthLabelImgBuilder<T extends IntegerType<T> & NativeType<T>> {
+    private static final int INITIAL_RUNS = 1 << 12;
+    /** runs are counted in int, like array indices */
+    private static final int MAX_RUNS = Integer.MAX_VALUE - 8;
+
+    private final T type;
+    private final long[] dims;
+    private final int rowLength;
+    private final int[] rowStarts;
+    private final int[] row;
+    private int[] runEnds = new int[INITIAL_RUNS];
+    private int[] runLabels = new int[INITIAL_RUNS];
+    private int numRuns = 0;
+    private int numRows = 0;
+
+    /**
+     * @throws IllegalArgumentException if the labels are no unsigned 8, 16 or 32 bit integers, or the image has more
+     *                                  rows or longer rows than fit into an int
+     */
+    public RunLengthLabelImgBuilder(T type, long[] dims) {
+        if (!canEncode(type)) {
+            throw new IllegalArgumentException("Cannot encode labels of type " + type.getClass().getSimpleName());
+        }
+        long rows = 1;
+        for (int d = 1; d < dims.length; d++) {
+            rows *= dims[d];
+        }
+        if (dims[0] > Integer.MAX_VALUE || rows >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Cannot encode " + Arrays.toString(dims) + " pixels as runs");
+        }
+        this.type = type;
+        this.dims = dims.clone();
+        this.rowLength = (int) dims[0];
+        this.rowStarts = new int[(int) rows + 1];
+        this.row = new int[rowLength];
+    }
+
+    /**
+     * @return whether labels of the type can be encoded: unsigned 8, 16 or 32 bit integers
+     */
+    public static boolean canEncode(Object type) {
+        return ReadOnlyLabels.isSupported(type);
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    /**
+     * @return number of rows of the whole image
+     */
+    public int getNumRowsTotal() {
+        return rowStarts.length - 1;
+    }
+
+    /**
+     * Adds the rows of a plane of the first two dimensions.
+     *
+     * @param transposed whether the plane is stored x-major, {@code labels[x * dimY + y]}, instead of
+     *                   {@code labels[y * dimX + x]}
+     */
+    public void addPlane(int[] labels, int dimY, boolean transposed) {
+        for (int y = 0; y < dimY; y++) {
+            for (int x = 0; x < rowLength; x++) {
+                row[x] = labels[transposed ? x * dimY + y : y * rowLength + x];
+            }
+            addRow(row);
+        }
+    }
+
+    /**
+     * Adds the rows of a plane of unsigned 8 bit labels, see {@link #addPlane(int[], int, boolean)}.
+     */
+    public void addPlane(byte[] labels, int dimY, boolean transposed) {
+        for (int y = 0; y < dimY; y++) {
+            for (int x = 0; x < rowLength; x++) {
+                row[x] = labels[transposed ? x * dimY + y : y * rowLength + x] & 0xff;
+            }
+            addRow(row);
+        }
+    }
+
+    /**
+     * Adds the rows of a plane of unsigned 16 bit labels, see {@link #addPlane(int[], int, boolean)}.
+     */
+    public void addPlane(short[] labels, int dimY, boolean transposed) {
+        for (int y = 0; y < dimY; y++) {
+            for (int x = 0; x < rowLength; x++) {
+                row[x] = labels[transposed ? x * dimY + y : y * rowLength + x] & 0xffff;
+            }
+            addRow(row);
+        }
+    }
+
+    /**
+     * Adds a row of labels, as unsigned 32 bit integers.
+     */
+    public void addRow(int[] labels) {
+        checkRowsLeft(1);
+        int start = 0;
+        while (start < rowLength) {
+            int label = labels[start];
+            int end = start + 1;
+            while (end < rowLength && labels[end] == label) {
+                end++;
+            }
+            addRun(end, label);
+            start = end;
+        }
+        rowStarts[++numRows] = numRuns;
+    }
+
+    /**
+     * Adds rows of background, e.g. for planes that could not be read.
+     */
+    public void addEmptyRows(int count) {
+        checkRowsLeft(count);
+        for (int i = 0; i < count; i++) {
+            addRun(rowLength, 0);
+            rowStarts[++numRows] = numRuns;
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if not all rows have been added
+     */
+    public RunLengthLabelImg<T> build() {
+        if (numRows != getNumRowsTotal()) {
+            throw new IllegalStateException("Only " + numRows + " of " + getNumRowsTotal() + " rows were added");
+        }
+        return new RunLengthLabelImg<>(type, dims, rowStarts,
+                Arrays.copyOf(runEnds, numRuns), Arrays.copyOf(runLabels, numRuns));
+    }
+
+    private void addRun(int end, int label) {
+        if (numRuns == runEnds.length) {
+            if (numRuns == MAX_RUNS) {
+                throw new IllegalStateException("Too many runs, the labels do not compress");
+            }
+            int capacity = (int) Math.min(MAX_RUNS, 2L * numRuns);
+            runEnds = Arrays.copyOf(runEnds, capacity);
+            runLabels = Arrays.copyOf(runLabels, capacity);
+        }
+        runEnds[numRuns] = end;
+        runLabels[numRuns] = label;
+        numRuns++;
+    }
+
+    private void checkRowsLeft(int count) {
+        if (numRows + count > getNumRowsTotal()) {
+            throw new IllegalStateException("The image has only " + getNumRowsTotal() + " rows");
+        }
+    }
+}
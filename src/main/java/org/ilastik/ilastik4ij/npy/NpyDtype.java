@@ -0,0 +1,140 @@
+package org.ilastik.ilastik4ij.npy;
+
+import net.imglib2.type.NativeType;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * The numpy dtypes images are transferred as, all little endian.
+ */
+enum NpyDtype {
+    UINT8("|u1", 1, 0, 255),
+    INT8("|i1", 1, Byte.MIN_VALUE, Byte.MAX_VALUE),
+    UINT16("<u2", 2, 0, 65535),
+    INT16("<i2", 2, Short.MIN_VALUE, Short.MAX_VALUE),
+    UINT32("<u4", 4, 0, 4294967295.0),
+    INT32("<i4", 4, Integer.MIN_VALUE, Integer.MAX_VALUE),
+    UINT64("<u8", 8, 0, 18446744073709551615.0),
+    INT64("<i8", 8, Long.MIN_VALUE, Long.MAX_VALUE),
+    FLOAT32("<f4", 4, Double.NaN, Double.NaN),
+    FLOAT64("<f8", 8, Double.NaN, Double.NaN);
+
+    // smallest first, so the first one that fits is the most compact lossless choice
+    private static final NpyDtype[] INTEGER_TYPES = {UINT8, INT8, UINT16, INT16, UINT32, INT32, UINT64, INT64};
+
+    final String descr;
+    final int bytesPerPixel;
+    private final double min;
+    private final double max;
+
+    NpyDtype(String descr, int bytesPerPixel, double min, double max) {
+        this.descr = descr;
+        this.bytesPerPixel = bytesPerPixel;
+        this.min = min;
+        this.max = max;
+    }
+
+    boolean isFloatingPoint() {
+        return this == FLOAT32 || this == FLOAT64;
+    }
+
+    /**
+     * @return the dtype holding all values of the given pixel type
+     * @throws IllegalArgumentException if the pixels are not real valued
+     */
+    static NpyDtype of(Type<?> value) {
+        if (!(value instanceof RealType)) {
+            throw new IllegalArgumentException("Cannot store " + value.getClass().getSimpleName() + " as numpy array");
+        }
+        if (value instanceof FloatType) {
+            return FLOAT32;
+        }
+        if (value instanceof IntegerType) {
+            RealType<?> real = (RealType<?>) value;
+            for (NpyDtype candidate : INTEGER_TYPES) {
+                if (real.getMinValue() >= candidate.min && real.getMaxValue() <= candidate.max) {
+                    return candidate;
+                }
+            }
+        }
+        return FLOAT64;
+    }
+
+    /**
+     * @return whether images of this pixel type store their pixels in a primitive array of exactly this dtype,
+     * so that planes can be copied in bulk
+     */
+    static boolean isStoredAs(Type<?> value, NpyDtype dtype) {
+        switch (dtype) {
+            case UINT8:
+                return value instanceof UnsignedByteType;
+            case INT8:
+                return value instanceof ByteType;
+            case UINT16:
+                return value instanceof UnsignedShortType;
+            case INT16:
+                return value instanceof ShortType;
+            case UINT32:
+                return value instanceof UnsignedIntType;
+            case INT32:
+                return value instanceof IntType;
+            case UINT64:
+                return value instanceof UnsignedLongType;
+            case INT64:
+                return value instanceof LongType;
+            case FLOAT32:
+                return value instanceof FloatType;
+            default:
+                return value instanceof DoubleType;
+        }
+    }
+
+    /**
+     * @return a pixel type of this dtype, for images read from numpy arrays
+     */
+    NativeType<?> createType() {
+        switch (this) {
+            case UINT8:
+                return new UnsignedByteType();
+            case INT8:
+                return new ByteType();
+            case UINT16:
+                return new UnsignedShortType();
+            case INT16:
+                return new ShortType();
+            case UINT32:
+                return new UnsignedIntType();
+            case INT32:
+                return new IntType();
+            case UINT64:
+                return new UnsignedLongType();
+            case INT64:
+                return new LongType();
+            case FLOAT32:
+                return new FloatType();
+            default:
+                return new DoubleType();
+        }
+    }
+
+    static NpyDtype fromDescr(String descr) {
+        for (NpyDtype dtype : values()) {
+            // single byte types may be written with any byte order character
+            if (dtype.descr.equals(descr) || (dtype.bytesPerPixel == 1 && dtype.descr.substring(1).equals(descr.substring(1)))) {
+                return dtype;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported numpy dtype " + descr);
+    }
+}
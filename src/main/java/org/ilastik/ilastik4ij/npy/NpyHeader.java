@@ -0,0 +1,126 @@
+package org.ilastik.ilastik4ij.npy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Header of a .npy file: magic string, format version, and a python dict literal describing
+ * dtype, memory order and shape, padded so that the data starts at a multiple of {@value #ALIGNMENT} bytes.
+ */
+class NpyHeader {
+    private static final byte[] MAGIC = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'};
+    private static final int ALIGNMENT = 64;
+    private static final Pattern DESCR = Pattern.compile("'descr'\\s*:\\s*'([^']+)'");
+    private static final Pattern FORTRAN_ORDER = Pattern.compile("'fortran_order'\\s*:\\s*(True|False)");
+    private static final Pattern SHAPE = Pattern.compile("'shape'\\s*:\\s*\\(([^)]*)\\)");
+
+    final NpyDtype dtype;
+    final long[] shape;
+    final long dataOffset;
+
+    private NpyHeader(NpyDtype dtype, long[] shape, long dataOffset) {
+        this.dtype = dtype;
+        this.shape = shape;
+        this.dataOffset = dataOffset;
+    }
+
+    /**
+     * Writes a version 1.0 header for a C ordered array at the start of the channel.
+     *
+     * @return the header, with the offset at which the data has to be written
+     */
+    static NpyHeader write(FileChannel channel, NpyDtype dtype, long[] shape) throws IOException {
+        StringBuilder dict = new StringBuilder("{'descr': '").append(dtype.descr)
+                .append("', 'fortran_order': False, 'shape': (");
+        for (long extent : shape) {
+            dict.append(extent).append(", ");
+        }
+        if (shape.length > 1) {
+            dict.setLength(dict.length() - 1);
+        }
+        dict.append("), }");
+
+        int preamble = MAGIC.length + 2 + 2;
+        int headerLength = dict.length() + 1;
+        headerLength += (ALIGNMENT - (preamble + headerLength) % ALIGNMENT) % ALIGNMENT;
+        if (headerLength > 0xFFFF) {
+            throw new IllegalArgumentException("Shape too long for a .npy header");
+        }
+        while (dict.length() < headerLength - 1) {
+            dict.append(' ');
+        }
+        dict.append('\n');
+
+        ByteBuffer buffer = ByteBuffer.allocate(preamble + headerLength).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC).put((byte) 1).put((byte) 0).putShort((short) headerLength);
+        buffer.put(dict.toString().getBytes(StandardCharsets.US_ASCII));
+        buffer.flip();
+        channel.position(0);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return new NpyHeader(dtype, shape, preamble + headerLength);
+    }
+
+    /**
+     * Reads the header at the start of the channel, in any of the format versions 1.0, 2.0 and 3.0.
+     */
+    static NpyHeader read(FileChannel channel) throws IOException {
+        ByteBuffer preamble = ByteBuffer.allocate(MAGIC.length + 2 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, preamble, 0);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (preamble.get(i) != MAGIC[i]) {
+                throw new IOException("Not a .npy file");
+            }
+        }
+        int majorVersion = preamble.get(MAGIC.length);
+        long headerLength;
+        int preambleLength;
+        if (majorVersion == 1) {
+            headerLength = preamble.getShort(MAGIC.length + 2) & 0xFFFF;
+            preambleLength = MAGIC.length + 2 + 2;
+        } else {
+            headerLength = preamble.getInt(MAGIC.length + 2) & 0xFFFFFFFFL;
+            preambleLength = MAGIC.length + 2 + 4;
+        }
+
+        ByteBuffer dictBytes = ByteBuffer.allocate(Math.toIntExact(headerLength));
+        readFully(channel, dictBytes, preambleLength);
+        String dict = new String(dictBytes.array(), majorVersion >= 3 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+
+        Matcher descr = DESCR.matcher(dict);
+        Matcher fortranOrder = FORTRAN_ORDER.matcher(dict);
+        Matcher shape = SHAPE.matcher(dict);
+        if (!descr.find() || !fortranOrder.find() || !shape.find()) {
+            throw new IOException("Could not parse .npy header " + dict.trim());
+        }
+        if (fortranOrder.group(1).equals("True")) {
+            throw new IOException("Fortran ordered .npy files are not supported");
+        }
+        String[] extents = shape.group(1).split(",");
+        int rank = 0;
+        long[] parsedShape = new long[extents.length];
+        for (String extent : extents) {
+            if (!extent.trim().isEmpty()) {
+                parsedShape[rank++] = Long.parseLong(extent.trim());
+            }
+        }
+        long[] trimmedShape = new long[rank];
+        System.arraycopy(parsedShape, 0, trimmedShape, 0, rank);
+        return new NpyHeader(NpyDtype.fromDescr(descr.group(1)), trimmedShape, preambleLength + headerLength);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of .npy file");
+            }
+        }
+    }
+}
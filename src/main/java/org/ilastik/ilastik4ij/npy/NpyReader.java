@@ -0,0 +1,207 @@
+package org.ilastik.ilastik4ij.npy;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.img.basictypes.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.ilastik.ilastik4ij.labels.RunLengthLabelImg;
+import org.ilastik.ilastik4ij.labels.RunLengthLabelImgBuilder;
+import org.scijava.log.LogService;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a .npy file into a planar image with axes XYCZT through memory mapped windows of the file.
+ *
+ * The y and x axes must be the last two axes of the file, so each yx plane is contiguous in the file and
+ * is copied into its plane of the image in bulk.
+ */
+public class NpyReader {
+    private static final long MAX_MAPPED_BYTES = 1L << 30;
+
+    private final String filename;
+    private final String axisOrder;
+    private final LogService log;
+    private boolean runLengthEncoded = false;
+
+    /**
+     * @param axisOrder axes of the file, e.g. {@link NpyWriter#AXIS_ORDER}, must end in "yx"
+     */
+    public NpyReader(String filename, String axisOrder, LogService log) {
+        if (!axisOrder.endsWith("yx") || !axisOrder.substring(0, axisOrder.length() - 2).matches("[tzc]*")) {
+            throw new IllegalArgumentException("Axis order must end in yx, preceded by any of t, z and c: " + axisOrder);
+        }
+        this.filename = filename;
+        this.axisOrder = axisOrder;
+        this.log = log;
+    }
+
+    /**
+     * Decodes labels plane by plane straight into a {@link RunLengthLabelImg}, so the dense image is never in memory.
+     * Only used for unsigned integers in files that store their planes in the order of the image, like files written
+     * with {@link NpyWriter#AXIS_ORDER}.
+     */
+    public void setRunLengthEncoded(boolean runLengthEncoded) {
+        this.runLengthEncoded = runLengthEncoded;
+    }
+
+    public ImgPlus read() {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r"); FileChannel channel = file.getChannel()) {
+            NpyHeader header = NpyHeader.read(channel);
+            if (header.shape.length != axisOrder.length()) {
+                throw new IllegalArgumentException("Expected " + axisOrder.length() + " dimensions (" + axisOrder
+                        + ") in '" + filename + "' but found " + header.shape.length);
+            }
+            log.info("Found " + filename + " of type " + header.dtype.descr);
+            return read(channel, header, (NativeType) header.dtype.createType());
+        } catch (IOException e) {
+            log.error("Could not read '" + filename + "'. " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    private <T extends NativeType<T>> ImgPlus<T> read(FileChannel channel, NpyHeader header, T type) throws IOException {
+        // extents of t, z and c in the file, and how far apart consecutive positions of each are in the file's planes
+        long[] extents = {1, 1, 1};
+        long[] fileStrides = {0, 0, 0};
+        long stride = 1;
+        for (int a = axisOrder.length() - 3; a >= 0; a--) {
+            int axis = "tzc".indexOf(axisOrder.charAt(a));
+            extents[axis] = header.shape[a];
+            fileStrides[axis] = stride;
+            stride *= header.shape[a];
+        }
+        final int numPlanes = Math.toIntExact(stride);
+        final long nRows = header.shape[axisOrder.length() - 2];
+        final long nCols = header.shape[axisOrder.length() - 1];
+        final int planePixels = Math.toIntExact(nRows * nCols);
+        final long planeBytes = (long) planePixels * header.dtype.bytesPerPixel;
+
+        long[] dims = {nCols, nRows, extents[2], extents[1], extents[0]};
+        AxisType[] axes = {Axes.X, Axes.Y, Axes.CHANNEL, Axes.Z, Axes.TIME};
+        if (runLengthEncoded) {
+            if (!RunLengthLabelImgBuilder.canEncode(type)) {
+                log.warn("Not encoding labels of type " + header.dtype.descr + " as runs");
+            } else if (!planesInImageOrder(numPlanes, fileStrides, extents)) {
+                log.warn("Not encoding labels as runs, the planes of axis order " + axisOrder + " are out of order");
+            } else {
+                return readRunLengths(channel, header, type, dims, axes, numPlanes, planePixels);
+            }
+        }
+
+        log.info("Constructing output image of shape " + dims[0] + ", " + dims[1] + ", " + dims[2] + ", " + dims[3] + ", " + dims[4]);
+        PlanarImg<T, ?> img = (PlanarImg<T, ?>) new PlanarImgFactory<T>().create(dims, type);
+
+        int planesPerWindow = (int) Math.max(1, Math.min(numPlanes, MAX_MAPPED_BYTES / Math.max(1, planeBytes)));
+        for (int first = 0; first < numPlanes; first += planesPerWindow) {
+            int count = Math.min(planesPerWindow, numPlanes - first);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+                    header.dataOffset + first * planeBytes, count * planeBytes);
+            window.order(ByteOrder.LITTLE_ENDIAN);
+            for (int plane = first; plane < first + count; plane++) {
+                int imagePlane = imagePlane(plane, fileStrides, extents);
+                Object array = ((ArrayDataAccess<?>) img.getPlane(imagePlane)).getCurrentStorageArray();
+                window.position((int) ((plane - first) * planeBytes));
+                getArray(window, array, planePixels);
+            }
+        }
+
+        ImgPlus<T> image = new ImgPlus<>(img, filename, axes);
+        image.initializeColorTables(numPlanes);
+        image.setValidBits(header.dtype.bytesPerPixel * 8);
+        return image;
+    }
+
+    /**
+     * Reads the planes one after the other into a buffer and encodes their rows.
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends NativeType<T>> ImgPlus<T> readRunLengths(FileChannel channel, NpyHeader header, T type, long[] dims,
+                                                                AxisType[] axes, int numPlanes, int planePixels) throws IOException {
+        final long planeBytes = (long) planePixels * header.dtype.bytesPerPixel;
+        final int nRows = (int) dims[1];
+        RunLengthLabelImgBuilder runLengths = new RunLengthLabelImgBuilder((IntegerType) type, dims);
+        Object buffer = type instanceof UnsignedByteType ? new byte[planePixels]
+                : type instanceof UnsignedShortType ? new short[planePixels] : new int[planePixels];
+
+        int planesPerWindow = (int) Math.max(1, Math.min(numPlanes, MAX_MAPPED_BYTES / Math.max(1, planeBytes)));
+        for (int first = 0; first < numPlanes; first += planesPerWindow) {
+            int count = Math.min(planesPerWindow, numPlanes - first);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+                    header.dataOffset + first * planeBytes, count * planeBytes);
+            window.order(ByteOrder.LITTLE_ENDIAN);
+            for (int plane = first; plane < first + count; plane++) {
+                window.position((int) ((plane - first) * planeBytes));
+                getArray(window, buffer, planePixels);
+                if (buffer instanceof byte[]) {
+                    runLengths.addPlane((byte[]) buffer, nRows, false);
+                } else if (buffer instanceof short[]) {
+                    runLengths.addPlane((short[]) buffer, nRows, false);
+                } else {
+                    runLengths.addPlane((int[]) buffer, nRows, false);
+                }
+            }
+        }
+
+        RunLengthLabelImg labels = runLengths.build();
+        log.info("Encoded labels as " + labels.getNumRuns() + " runs of " + labels.getSizeInBytes() / (1024 * 1024) + " MB");
+        ImgPlus<T> image = new ImgPlus<>(labels, filename, axes);
+        image.initializeColorTables(numPlanes);
+        image.setValidBits(header.dtype.bytesPerPixel * 8);
+        return image;
+    }
+
+    private static boolean planesInImageOrder(int numPlanes, long[] fileStrides, long[] extents) {
+        for (int plane = 0; plane < numPlanes; plane++) {
+            if (imagePlane(plane, fileStrides, extents) != plane) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return index of the plane of the image, which are ordered by channel, then z, then time,
+     *         for the plane with the given index in the file
+     */
+    private static int imagePlane(int plane, long[] fileStrides, long[] extents) {
+        long t = position(plane, fileStrides[0], extents[0]);
+        long z = position(plane, fileStrides[1], extents[1]);
+        long c = position(plane, fileStrides[2], extents[2]);
+        return (int) (c + extents[2] * (z + extents[1] * t));
+    }
+
+    /**
+     * @return position along one axis of the plane with the given index in the file, 0 for axes not in the file
+     */
+    private static long position(int plane, long fileStride, long extent) {
+        return fileStride == 0 ? 0 : plane / fileStride % extent;
+    }
+
+    private static void getArray(ByteBuffer window, Object array, int length) {
+        if (array instanceof byte[]) {
+            window.get((byte[]) array, 0, length);
+        } else if (array instanceof short[]) {
+            window.asShortBuffer().get((short[]) array, 0, length);
+        } else if (array instanceof int[]) {
+            window.asIntBuffer().get((int[]) array, 0, length);
+        } else if (array instanceof long[]) {
+            window.asLongBuffer().get((long[]) array, 0, length);
+        } else if (array instanceof float[]) {
+            window.asFloatBuffer().get((float[]) array, 0, length);
+        } else {
+            window.asDoubleBuffer().get((double[]) array, 0, length);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.ilastik.ilastik4ij.npy;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypes.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import org.scijava.log.LogService;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes an ImgPlus to a .npy file of shape (t, z, c, y, x) through memory mapped windows of the file.
+ *
+ * This axis order keeps x varying fastest and the channels of a z slice next to each other, which is the
+ * memory layout of ImageJ's planar and array images with axes XYCZT. Such images are copied plane by plane
+ * with bulk copies, all others pixel by pixel.
+ */
+public class NpyWriter<T extends Type<T>> {
+    /** The axis order of all .npy files written, to be passed on to ilastik */
+    public static final String AXIS_ORDER = "tzcyx";
+    private static final long MAX_MAPPED_BYTES = 1L << 30;
+    private static final AxisType[] PLANE_ORDER = {Axes.X, Axes.Y, Axes.CHANNEL, Axes.Z, Axes.TIME};
+
+    private final ImgPlus<T> image;
+    private final String filename;
+    private final LogService log;
+    private final int nFrames;
+    private final int nZ;
+    private final int nChannels;
+    private final int nRows;
+    private final int nCols;
+
+    public NpyWriter(ImgPlus<T> image, String filename, LogService log) {
+        if (image.dimensionIndex(Axes.X) < 0 || image.dimensionIndex(Axes.Y) < 0) {
+            throw new IllegalArgumentException("image must have X and Y dimensions!");
+        }
+        this.image = image;
+        this.filename = filename;
+        this.log = log;
+        this.nFrames = extent(Axes.TIME);
+        this.nZ = extent(Axes.Z);
+        this.nChannels = extent(Axes.CHANNEL);
+        this.nRows = extent(Axes.Y);
+        this.nCols = extent(Axes.X);
+    }
+
+    /**
+     * @return whether images of this pixel type can be written, which holds for all real valued types
+     */
+    public static boolean supports(Type<?> value) {
+        return value instanceof RealType;
+    }
+
+    public void write() {
+        final NpyDtype dtype = NpyDtype.of(image.firstElement());
+        final long planeBytes = (long) nRows * nCols * dtype.bytesPerPixel;
+        if (planeBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Planes of more than 2 GB cannot be written as .npy");
+        }
+        final int numPlanes = Math.multiplyExact(Math.multiplyExact(nFrames, nZ), nChannels);
+        final Object storage = bulkStorage(dtype);
+        log.info("Writing " + nFrames + "x" + nZ + "x" + nChannels + "x" + nRows + "x" + nCols + " (" + AXIS_ORDER
+                + ") " + dtype.descr + " to " + filename + (storage != null ? " with bulk copies" : ""));
+
+        try (RandomAccessFile file = new RandomAccessFile(filename, "rw"); FileChannel channel = file.getChannel()) {
+            file.setLength(0);
+            NpyHeader header = NpyHeader.write(channel, dtype, new long[]{nFrames, nZ, nChannels, nRows, nCols});
+            int planesPerWindow = (int) Math.max(1, Math.min(numPlanes, MAX_MAPPED_BYTES / Math.max(1, planeBytes)));
+            RandomAccess<T> rai = image.randomAccess();
+            for (int first = 0; first < numPlanes; first += planesPerWindow) {
+                int count = Math.min(planesPerWindow, numPlanes - first);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_WRITE,
+                        header.dataOffset + first * planeBytes, count * planeBytes);
+                window.order(ByteOrder.LITTLE_ENDIAN);
+                for (int plane = first; plane < first + count; plane++) {
+                    window.position((int) ((plane - first) * planeBytes));
+                    if (storage != null) {
+                        putPlane(window, storage, plane);
+                    } else {
+                        int c = plane % nChannels;
+                        int z = (plane / nChannels) % nZ;
+                        int t = plane / nChannels / nZ;
+                        putPlane(window, rai, t, z, c, dtype);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("Could not write '" + filename + "'. " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int extent(AxisType axis) {
+        int d = image.dimensionIndex(axis);
+        return d >= 0 ? Math.toIntExact(image.dimension(d)) : 1;
+    }
+
+    /**
+     * @return the primitive storage of the image if its planes are laid out like the file, i.e. a planar image with
+     * a plane per channel, z slice and frame, or an array image, in both cases with its axes in XYCZT order,
+     * and pixels stored as the dtype written. Null if pixels have to be copied one by one.
+     */
+    private Object bulkStorage(NpyDtype dtype) {
+        if (!NpyDtype.isStoredAs(image.firstElement(), dtype)) {
+            return null;
+        }
+        int next = 0;
+        for (AxisType axis : PLANE_ORDER) {
+            int d = image.dimensionIndex(axis);
+            if (d >= 0) {
+                if (d != next) {
+                    return null;
+                }
+                next++;
+            }
+        }
+        if (next != image.numDimensions()) {
+            return null;
+        }
+        Img<T> img = image.getImg();
+        if (img instanceof PlanarImg) {
+            return img;
+        } else if (img instanceof ArrayImg) {
+            return ((ArrayDataAccess<?>) ((ArrayImg<?, ?>) img).update(null)).getCurrentStorageArray();
+        }
+        return null;
+    }
+
+    private void putPlane(ByteBuffer window, Object storage, int plane) {
+        int planePixels = nRows * nCols;
+        if (storage instanceof PlanarImg) {
+            // the planes of a planar image with XYCZT axes are ordered by channel, z and time just like the file
+            Object array = ((ArrayDataAccess<?>) ((PlanarImg<?, ?>) storage).getPlane(plane)).getCurrentStorageArray();
+            putArray(window, array, 0, planePixels);
+        } else {
+            putArray(window, storage, plane * planePixels, planePixels);
+        }
+    }
+
+    private static void putArray(ByteBuffer window, Object array, int offset, int length) {
+        if (array instanceof byte[]) {
+            window.put((byte[]) array, offset, length);
+        } else if (array instanceof short[]) {
+            window.asShortBuffer().put((short[]) array, offset, length);
+        } else if (array instanceof int[]) {
+            window.asIntBuffer().put((int[]) array, offset, length);
+        } else if (array instanceof long[]) {
+            window.asLongBuffer().put((long[]) array, offset, length);
+        } else if (array instanceof float[]) {
+            window.asFloatBuffer().put((float[]) array, offset, length);
+        } else {
+            window.asDoubleBuffer().put((double[]) array, offset, length);
+        }
+    }
+
+    private void putPlane(ByteBuffer window, RandomAccess<T> rai, int t, int z, int c, NpyDtype dtype) {
+        setPosition(rai, Axes.TIME, t);
+        setPosition(rai, Axes.Z, z);
+        setPosition(rai, Axes.CHANNEL, c);
+        int xAxis = image.dimensionIndex(Axes.X);
+        int yAxis = image.dimensionIndex(Axes.Y);
+        for (int y = 0; y < nRows; y++) {
+            rai.setPosition(y, yAxis);
+            rai.setPosition(0, xAxis);
+            for (int x = 0; x < nCols; x++) {
+                T value = rai.get();
+                if (dtype.isFloatingPoint()) {
+                    double real = ((RealType<?>) value).getRealDouble();
+                    if (dtype == NpyDtype.FLOAT32) {
+                        window.putFloat((float) real);
+                    } else {
+                        window.putDouble(real);
+                    }
+                } else {
+                    // the dtype holds the whole range of the integer type, so this is exact
+                    long integer = ((IntegerType<?>) value).getIntegerLong();
+                    switch (dtype.bytesPerPixel) {
+                        case 1:
+                            window.put((byte) integer);
+                            break;
+                        case 2:
+                            window.putShort((short) integer);
+                            break;
+                        case 4:
+                            window.putInt((int) integer);
+                            break;
+                        default:
+                            window.putLong(integer);
+                    }
+                }
+                rai.fwd(xAxis);
+            }
+        }
+    }
+
+    private void setPosition(RandomAccess<T> rai, AxisType axis, int position) {
+        int d = image.dimensionIndex(axis);
+        if (d >= 0) {
+            rai.setPosition(position, d);
+        }
+    }
+}
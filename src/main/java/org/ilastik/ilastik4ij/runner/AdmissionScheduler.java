@@ -0,0 +1,163 @@
+package org.ilastik.ilastik4ij.runner;
+
+import java.util.PriorityQueue;
+
+/**
+ * Admits jobs against a budget of threads and RAM shared by everything running at the same time.
+ *
+ * Jobs that do not fit wait in a queue ordered by priority first and by arrival within the same priority.
+ * Only the head of the queue is admitted, so a large job is not starved by a stream of smaller ones.
+ * Requests larger than the whole budget are reduced to it, and a job is always admitted when nothing else runs,
+ * even if the budget has been lowered in the meantime.
+ */
+public class AdmissionScheduler {
+
+    public enum Priority {
+        /** A user is waiting for the result, e.g. a single prediction */
+        INTERACTIVE,
+        /** Part of a batch, a tiled prediction and so on */
+        BATCH
+    }
+
+    private final PriorityQueue<Request> queue = new PriorityQueue<>();
+    private int totalThreads;
+    private long totalRamMb;
+    private int usedThreads = 0;
+    private long usedRamMb = 0;
+    private int running = 0;
+    private long sequence = 0;
+
+    public AdmissionScheduler(int totalThreads, long totalRamMb) {
+        setBudget(totalThreads, totalRamMb);
+    }
+
+    /**
+     * Changes the budget, jobs already running keep their share.
+     */
+    public synchronized void setBudget(int totalThreads, long totalRamMb) {
+        if (totalThreads < 1 || totalRamMb < 1) {
+            throw new IllegalArgumentException("Need at least one thread and 1 MB of RAM");
+        }
+        this.totalThreads = totalThreads;
+        this.totalRamMb = totalRamMb;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the job fits into the budget and it is its turn.
+     *
+     * @param threads threads of the job, 0 or less for the whole budget
+     * @param ramMb   RAM of the job, 0 or less for the whole budget
+     * @return the admission, which has to be closed when the job is done
+     */
+    public synchronized Admission acquire(Priority priority, int threads, long ramMb) throws InterruptedException {
+        Request request = new Request(priority, sequence++,
+                threads > 0 ? Math.min(threads, totalThreads) : totalThreads,
+                ramMb > 0 ? Math.min(ramMb, totalRamMb) : totalRamMb);
+        queue.add(request);
+        try {
+            while (queue.peek() != request || !fits(request)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            queue.remove(request);
+            notifyAll();
+            throw e;
+        }
+        queue.poll();
+        usedThreads += request.threads;
+        usedRamMb += request.ramMb;
+        running++;
+        // the next request may fit as well
+        notifyAll();
+        return new Admission(request.threads, request.ramMb);
+    }
+
+    /**
+     * @return number of jobs waiting for admission
+     */
+    public synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    public synchronized int getRunningJobs() {
+        return running;
+    }
+
+    public synchronized int getUsedThreads() {
+        return usedThreads;
+    }
+
+    public synchronized long getUsedRamMb() {
+        return usedRamMb;
+    }
+
+    private boolean fits(Request request) {
+        return running == 0 || (usedThreads + request.threads <= totalThreads && usedRamMb + request.ramMb <= totalRamMb);
+    }
+
+    private synchronized void release(Admission admission) {
+        usedThreads -= admission.threads;
+        usedRamMb -= admission.ramMb;
+        running--;
+        notifyAll();
+    }
+
+    /**
+     * The share of the budget given to one admitted job.
+     */
+    public class Admission implements AutoCloseable {
+        private final int threads;
+        private final long ramMb;
+        private boolean closed = false;
+
+        private Admission(int threads, long ramMb) {
+            this.threads = threads;
+            this.ramMb = ramMb;
+        }
+
+        /** @return value for LAZYFLOW_THREADS of the job */
+        public int getThreads() {
+            return threads;
+        }
+
+        /** @return value for LAZYFLOW_TOTAL_RAM_MB of the job */
+        public long getRamMb() {
+            return ramMb;
+        }
+
+        /**
+         * Gives the share back, the next jobs in the queue are admitted if they fit now.
+         */
+        @Override
+        public void close() {
+            synchronized (AdmissionScheduler.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                release(this);
+            }
+        }
+    }
+
+    private static class Request implements Comparable<Request> {
+        final Priority priority;
+        final long sequenceNumber;
+        final int threads;
+        final long ramMb;
+
+        Request(Priority priority, long sequenceNumber, int threads, long ramMb) {
+            this.priority = priority;
+            this.sequenceNumber = sequenceNumber;
+            this.threads = threads;
+            this.ramMb = ramMb;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequenceNumber, other.sequenceNumber);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.ilastik.ilastik4ij.runner;
+
+import org.ilastik.ilastik4ij.IlastikOptions;
+import org.ilastik.ilastik4ij.runner.AdmissionScheduler.Admission;
+import org.ilastik.ilastik4ij.util.ProcessBudget;
+import org.ilastik.ilastik4ij.workers.IlastikWorkerService;
+import org.scijava.app.StatusService;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Default {@link IlastikRunnerService}.
+ *
+ * Jobs on workers are admitted with the share each worker was started with, see {@link IlastikWorkerService}.
+ */
+@Plugin(type = Service.class)
+public class DefaultIlastikRunnerService extends AbstractService implements IlastikRunnerService {
+
+    @Parameter
+    private LogService log;
+
+    @Parameter
+    private IlastikWorkerService workerService;
+
+    @Parameter
+    private StatusService statusService;
+
+    private static final long OUTPUT_DRAIN_SECONDS = 10;
+
+    private AdmissionScheduler scheduler;
+    /** processes sharing the status bar, only the last one to finish clears it */
+    private final AtomicInteger runningProcesses = new AtomicInteger();
+
+    @Override
+    public int run(IlastikOptions options, IlastikJob job) throws IOException, InterruptedException {
+        int threads = job.getNumThreads();
+        long ramMb = job.getRamMb();
+        if (options.useWorkers()) {
+            ProcessBudget workerShare = new ProcessBudget(options, options.getNumWorkers());
+            threads = workerShare.getThreadsPerProcess();
+            ramMb = workerShare.getRamPerProcessMb();
+        }
+
+        AdmissionScheduler admissions = getScheduler(options);
+        if (admissions.getQueueLength() > 0 || admissions.getRunningJobs() > 0) {
+            log.info("Waiting for ilastik resources, " + admissions.getRunningJobs() + " jobs running and "
+                    + admissions.getQueueLength() + " waiting");
+        }
+        try (Admission admission = admissions.acquire(job.getPriority(), threads, ramMb)) {
+            if (options.useWorkers()) {
+                log.info("Running ilastik job on a worker for " + job.getProjectFile().getAbsolutePath() + ":");
+                log.info(job.getArgs());
+                return workerService.runJob(options, job.getProjectFile(), job.getArgs());
+            }
+            return runProcess(options, job, admission);
+        }
+    }
+
+    @Override
+    public void runOrFail(IlastikOptions options, IlastikJob job) {
+        try {
+            if (run(options, job) != 0) {
+                log.error("ilastik crashed");
+                throw new IllegalStateException("Execution of ilastik was not successful.");
+            }
+        } catch (IOException e) {
+            log.error("Could not run ilastik: " + e.getMessage());
+            throw new IllegalStateException("Execution of ilastik was not successful.", e);
+        } catch (InterruptedException e) {
+            log.warn("Execution got interrupted");
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Execution of ilastik was interrupted.", e);
+        }
+        log.info("ilastik finished successfully!");
+    }
+
+    private synchronized AdmissionScheduler getScheduler(IlastikOptions options) {
+        int threads = options.getNumThreads() > 0 ? options.getNumThreads() : Runtime.getRuntime().availableProcessors();
+        long ramMb = Math.max(1, options.getMaxRamMb());
+        if (scheduler == null) {
+            scheduler = new AdmissionScheduler(threads, ramMb);
+        } else {
+            // the options may have been changed since the last job
+            scheduler.setBudget(threads, ramMb);
+        }
+        return scheduler;
+    }
+
+    private int runProcess(IlastikOptions options, IlastikJob job, Admission admission) throws IOException, InterruptedException {
+        List<String> commandLine = new ArrayList<>();
+        commandLine.add(options.getExecutableFilePath());
+        commandLine.add("--headless");
+        commandLine.add("--project=" + job.getProjectFile().getAbsolutePath());
+        commandLine.addAll(job.getArgs());
+
+        log.info("Running ilastik headless command with " + admission.getThreads() + " threads and "
+                + admission.getRamMb() + " MB:");
+        log.info(commandLine);
+
+        ProcessBuilder pB = new ProcessBuilder(commandLine);
+        options.configureProcessBuilderEnvironment(pB, admission.getThreads(), (int) admission.getRamMb());
+        runningProcesses.incrementAndGet();
+        try {
+            Process p = pB.start();
+
+            // write ilastik output to IJ log and its progress to the status bar, unless the job takes it
+            ProgressListener jobListener = job.getProgressListener();
+            LogPump logPump = new LogPump(log, jobListener != null ? jobListener
+                    : progress -> statusService.showStatus((int) Math.round(progress.getPercent()), 100, progress.toString()));
+            logPump.start(p.getInputStream(), false);
+            logPump.start(p.getErrorStream(), true);
+
+            try {
+                int timeoutMinutes = options.getJobTimeoutMinutes();
+                if (timeoutMinutes > 0 && !p.waitFor(timeoutMinutes, TimeUnit.MINUTES)) {
+                    log.error("ilastik did not finish within " + timeoutMinutes + " minutes, stopping it");
+                    p.destroyForcibly();
+                }
+                int exitCode = p.waitFor();
+                if (!logPump.awaitCompletion(OUTPUT_DRAIN_SECONDS, TimeUnit.SECONDS)) {
+                    log.warn("ilastik output was still open " + OUTPUT_DRAIN_SECONDS + " s after it finished");
+                }
+                return exitCode;
+            } catch (InterruptedException e) {
+                p.destroy();
+                throw e;
+            }
+        } finally {
+            // the progress of jobs still running stays visible, only the last one clears it
+            if (runningProcesses.decrementAndGet() == 0) {
+                statusService.clearStatus();
+            }
+        }
+    }
+}
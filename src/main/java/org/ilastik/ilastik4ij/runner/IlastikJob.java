@@ -0,0 +1,76 @@
+package org.ilastik.ilastik4ij.runner;
+
+import org.ilastik.ilastik4ij.runner.AdmissionScheduler.Priority;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One headless ilastik run of a project, as submitted to the {@link IlastikRunnerService}.
+ */
+public class IlastikJob {
+    private final File projectFile;
+    private final List<String> args;
+    private int numThreads = 0;
+    private long ramMb = 0;
+    private Priority priority = Priority.INTERACTIVE;
+    private ProgressListener progressListener;
+
+    /**
+     * @param args headless ilastik arguments without the executable, {@code --headless} and {@code --project}
+     */
+    public IlastikJob(File projectFile, List<String> args) {
+        this.projectFile = projectFile;
+        this.args = Collections.unmodifiableList(new ArrayList<>(args));
+    }
+
+    public File getProjectFile() {
+        return projectFile;
+    }
+
+    public List<String> getArgs() {
+        return args;
+    }
+
+    /**
+     * Requests a share of the thread and RAM budget, e.g. from a {@link org.ilastik.ilastik4ij.util.ProcessBudget}.
+     * By default a job gets the whole budget and runs alone.
+     *
+     * @param numThreads threads of the job, 0 or less for all
+     * @param ramMb      RAM of the job, 0 or less for all
+     */
+    public void setShare(int numThreads, long ramMb) {
+        this.numThreads = numThreads;
+        this.ramMb = ramMb;
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public long getRamMb() {
+        return ramMb;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority;
+    }
+
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    /**
+     * Receives the progress of the job instead of the status bar, e.g. to combine the progress of several jobs.
+     * Jobs on workers report no progress.
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+}
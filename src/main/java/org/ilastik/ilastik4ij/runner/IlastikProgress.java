@@ -0,0 +1,75 @@
+package org.ilastik.ilastik4ij.runner;
+
+/**
+ * Progress of one ilastik job, as far as it can be told from its output.
+ */
+public class IlastikProgress {
+    private final double percent;
+    private final int lane;
+    private final int numLanes;
+    private final int block;
+    private final int numBlocks;
+    private final long etaSeconds;
+
+    /**
+     * @param lane       current input, starting at 1, 0 if unknown
+     * @param block      current block of the current input, starting at 1, 0 if unknown
+     * @param etaSeconds estimated time until the job is done, -1 if unknown
+     */
+    public IlastikProgress(double percent, int lane, int numLanes, int block, int numBlocks, long etaSeconds) {
+        this.percent = percent;
+        this.lane = lane;
+        this.numLanes = numLanes;
+        this.block = block;
+        this.numBlocks = numBlocks;
+        this.etaSeconds = etaSeconds;
+    }
+
+    /**
+     * @return progress of the whole job from 0 to 100
+     */
+    public double getPercent() {
+        return percent;
+    }
+
+    public int getLane() {
+        return lane;
+    }
+
+    public int getNumLanes() {
+        return numLanes;
+    }
+
+    public int getBlock() {
+        return block;
+    }
+
+    public int getNumBlocks() {
+        return numBlocks;
+    }
+
+    public long getEtaSeconds() {
+        return etaSeconds;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder message = new StringBuilder("ilastik: ").append(Math.round(percent)).append('%');
+        if (numLanes > 1) {
+            message.append(", image ").append(lane).append('/').append(numLanes);
+        }
+        if (numBlocks > 1) {
+            message.append(", block ").append(block).append('/').append(numBlocks);
+        }
+        if (etaSeconds >= 0) {
+            message.append(", about ");
+            if (etaSeconds < 60) {
+                message.append(etaSeconds).append(" s");
+            } else {
+                message.append((etaSeconds + 30) / 60).append(" min");
+            }
+            message.append(" left");
+        }
+        return message.toString();
+    }
+}
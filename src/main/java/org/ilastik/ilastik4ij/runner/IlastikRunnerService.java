@@ -0,0 +1,30 @@
+package org.ilastik.ilastik4ij.runner;
+
+import org.ilastik.ilastik4ij.IlastikOptions;
+import org.scijava.service.SciJavaService;
+
+import java.io.IOException;
+
+/**
+ * Runs all ilastik jobs of Fiji, as separate processes or on workers of the {@link org.ilastik.ilastik4ij.workers.IlastikWorkerService}.
+ *
+ * The threads and RAM configured in the {@link IlastikOptions} are a budget for all jobs together. Jobs are admitted
+ * by an {@link AdmissionScheduler} once their share fits, interactive ones before batch jobs, and each process is
+ * limited to its share through LAZYFLOW_THREADS and LAZYFLOW_TOTAL_RAM_MB.
+ */
+public interface IlastikRunnerService extends SciJavaService {
+
+    /**
+     * Waits for admission, then runs the job and waits for it to finish.
+     *
+     * @return exit code of ilastik, 0 on success
+     */
+    int run(IlastikOptions options, IlastikJob job) throws IOException, InterruptedException;
+
+    /**
+     * Like {@link #run}, for commands that give up on the first failure.
+     *
+     * @throws IllegalStateException if ilastik could not be started, failed, or the calling thread was interrupted
+     */
+    void runOrFail(IlastikOptions options, IlastikJob job);
+}
@@ -0,0 +1,205 @@
+package org.ilastik.ilastik4ij.runner;
+
+import org.scijava.log.LogService;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Forwards the output of an ilastik process to the log.
+ *
+ * The streams are read on threads shared by all processes and their lines are written to the log in batches,
+ * one log call per level every {@value #FLUSH_INTERVAL_MS} ms. At most {@value #MAX_LINES_PER_SECOND} lines per
+ * second are logged, the rest is counted and reported as skipped; lines that look like errors are always logged.
+ * Progress lines are given to a {@link ProgressListener} and only logged at debug level, unless they look like errors.
+ */
+public class LogPump {
+    static final long FLUSH_INTERVAL_MS = 250;
+    static final int MAX_LINES_PER_SECOND = 100;
+    private static final Pattern ALWAYS_LOGGED = Pattern.compile("(?i)error|exception|traceback|warn|fail");
+
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(daemonThreads("ilastik4ij-log"));
+    private static final ScheduledExecutorService FLUSHER =
+            Executors.newSingleThreadScheduledExecutor(daemonThreads("ilastik4ij-log-flush"));
+
+    private final LogService log;
+    private final ProgressParser progressParser;
+    private final ProgressListener listener;
+    private final List<Stream> streams = new ArrayList<>();
+    private final ScheduledFuture<?> flushing;
+    private final AtomicInteger openStreams = new AtomicInteger();
+    private final Object flushLock = new Object();
+    private long windowStartMs = System.currentTimeMillis();
+    private int linesInWindow = 0;
+    private int skippedLines = 0;
+
+    /**
+     * @param listener receives the progress parsed from the output, null to log progress lines like all others
+     */
+    public LogPump(LogService log, ProgressListener listener) {
+        this.log = log;
+        this.listener = listener;
+        this.progressParser = listener != null ? new ProgressParser() : null;
+        this.flushing = FLUSHER.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts forwarding a stream, until it ends.
+     *
+     * @param isErrorStream log the lines as errors instead of infos
+     */
+    public void start(InputStream in, boolean isErrorStream) {
+        Stream stream = new Stream(isErrorStream);
+        openStreams.incrementAndGet();
+        synchronized (this) {
+            streams.add(stream);
+        }
+        stream.reading = READERS.submit(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charset.defaultCharset()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    accept(stream, line);
+                }
+            } catch (IOException e) {
+                log.warn("Could not read ilastik output: " + e.getMessage());
+            } finally {
+                flush();
+                if (openStreams.decrementAndGet() == 0) {
+                    flushing.cancel(false);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Waits until all streams have ended and their lines are logged.
+     * The streams of a process end shortly after the process.
+     *
+     * @return true if all streams ended in time
+     */
+    public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<Stream> started;
+        synchronized (this) {
+            started = new ArrayList<>(streams);
+        }
+        boolean completed = true;
+        for (Stream stream : started) {
+            try {
+                stream.reading.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                completed = false;
+            } catch (ExecutionException e) {
+                log.warn("Could not read ilastik output: " + e.getCause());
+            }
+        }
+        flush();
+        return completed;
+    }
+
+    private void accept(Stream stream, String line) {
+        boolean alwaysLogged = ALWAYS_LOGGED.matcher(line).find();
+        if (progressParser != null) {
+            IlastikProgress progress = progressParser.parse(line);
+            if (progress != null) {
+                listener.progressChanged(progress);
+                if (!alwaysLogged) {
+                    synchronized (this) {
+                        stream.progress.add(line);
+                    }
+                    return;
+                }
+            }
+        }
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - windowStartMs >= 1000) {
+                windowStartMs = now;
+                linesInWindow = 0;
+            }
+            if (linesInWindow >= MAX_LINES_PER_SECOND && !alwaysLogged) {
+                skippedLines++;
+                return;
+            }
+            linesInWindow++;
+            stream.pending.add(line);
+        }
+    }
+
+    private void flush() {
+        // batches are logged in the order they were taken
+        synchronized (flushLock) {
+            flushBatch();
+        }
+    }
+
+    private void flushBatch() {
+        List<String> infos = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        List<String> progress = new ArrayList<>();
+        int skipped;
+        synchronized (this) {
+            for (Stream stream : streams) {
+                (stream.isErrorStream ? errors : infos).addAll(stream.pending);
+                stream.pending.clear();
+                progress.addAll(stream.progress);
+                stream.progress.clear();
+            }
+            skipped = skippedLines;
+            skippedLines = 0;
+        }
+
+        // one call per batch, the log is slow to update line by line
+        if (!infos.isEmpty()) {
+            log.info(String.join("\n", infos));
+        }
+        if (!errors.isEmpty()) {
+            log.error(String.join("\n", errors));
+        }
+        if (!progress.isEmpty()) {
+            log.debug(String.join("\n", progress));
+        }
+        if (skipped > 0) {
+            log.info("... skipped " + skipped + " lines of ilastik output");
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static class Stream {
+        final boolean isErrorStream;
+        final List<String> pending = new ArrayList<>();
+        final List<String> progress = new ArrayList<>();
+        volatile Future<?> reading;
+
+        Stream(boolean isErrorStream) {
+            this.isErrorStream = isErrorStream;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package org.ilastik.ilastik4ij.runner;
+
+/**
+ * Receives the progress of an ilastik job, on the thread reading its output.
+ */
+public interface ProgressListener {
+    void progressChanged(IlastikProgress progress);
+}
@@ -0,0 +1,120 @@
+package org.ilastik.ilastik4ij.runner;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Turns the progress ilastik prints while exporting into {@link IlastikProgress}.
+ *
+ * ilastik reports which input of a batch it is working on ("Processing lane 2 of 3", "Exporting image 2/3"), the
+ * blocks of large inputs ("block 5/20", "Request 5 out of 20") and percentages on progress lines ("Export progress:
+ * 42%") and progress bars. Only messages that start with these phrases count, optionally after the info or debug
+ * level and logger of ilastik's log format, so that e.g. errors mentioning "file 1 of 3" are not taken for progress.
+ * The percentage of the current input is combined with the lanes into one percentage for the whole job, and the time
+ * left is extrapolated from the time since the first progress line.
+ */
+public class ProgressParser {
+    // "INFO ilastik.applets.dataExport: " in front of the message, warnings and errors are never progress
+    private static final String MESSAGE = "(?i)^(?:(?:info|debug)\\s+[\\w.]+:\\s+)?";
+    private static final String NUMBER_OF = "\\s*#?(\\d+)\\s*(?:/|of|out of)\\s*(\\d+)";
+    private static final String PERCENT = "(\\d{1,3}(?:\\.\\d+)?)\\s*%";
+    private static final Pattern LANE = Pattern.compile(MESSAGE + "(?:processing|exporting)\\s+(?:lane|image|file|dataset)" + NUMBER_OF);
+    private static final Pattern BLOCK = Pattern.compile(MESSAGE + "(?:block|request)s?" + NUMBER_OF);
+    private static final Pattern PERCENT_ON_PROGRESS_LINE = Pattern.compile(MESSAGE + "(?:export\\s+)?progress:?\\s*" + PERCENT);
+    private static final Pattern PROGRESS_BAR = Pattern.compile("^\\s*\\[[=#>.\\s-]*\\]\\s*" + PERCENT + "\\s*$");
+
+    private final LongSupplier nanoClock;
+    private long firstProgressNanos = -1;
+    private int lane = 0;
+    private int numLanes = 0;
+    private int block = 0;
+    private int numBlocks = 0;
+    private double lanePercent = 0;
+
+    public ProgressParser() {
+        this(System::nanoTime);
+    }
+
+    /**
+     * @param nanoClock time in nanoseconds like {@link System#nanoTime()}, for the time left
+     */
+    public ProgressParser(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * @return the progress after this line, or null if the line is not about progress
+     */
+    public synchronized IlastikProgress parse(String line) {
+        boolean changed = false;
+
+        Matcher laneMatcher = LANE.matcher(line);
+        if (laneMatcher.find()) {
+            int newLane = Integer.parseInt(laneMatcher.group(1));
+            int newNumLanes = Integer.parseInt(laneMatcher.group(2));
+            if (newNumLanes > 0 && newLane <= newNumLanes) {
+                if (newLane != lane) {
+                    // a new input starts from scratch
+                    lanePercent = 0;
+                    block = 0;
+                    numBlocks = 0;
+                }
+                lane = newLane;
+                numLanes = newNumLanes;
+                changed = true;
+            }
+        }
+
+        Matcher blockMatcher = BLOCK.matcher(line);
+        if (blockMatcher.find()) {
+            int newBlock = Integer.parseInt(blockMatcher.group(1));
+            int newNumBlocks = Integer.parseInt(blockMatcher.group(2));
+            if (newNumBlocks > 0 && newBlock <= newNumBlocks) {
+                block = newBlock;
+                numBlocks = newNumBlocks;
+                lanePercent = Math.max(lanePercent, 100.0 * newBlock / newNumBlocks);
+                changed = true;
+            }
+        }
+
+        Matcher percentMatcher = PERCENT_ON_PROGRESS_LINE.matcher(line);
+        if (!percentMatcher.find()) {
+            percentMatcher = PROGRESS_BAR.matcher(line);
+            if (!percentMatcher.find()) {
+                percentMatcher = null;
+            }
+        }
+        if (percentMatcher != null) {
+            double percent = Double.parseDouble(percentMatcher.group(1));
+            if (percent <= 100) {
+                lanePercent = percent;
+                changed = true;
+            }
+        }
+
+        if (!changed) {
+            return null;
+        }
+        return currentProgress();
+    }
+
+    private IlastikProgress currentProgress() {
+        double percent = lanePercent;
+        if (numLanes > 0) {
+            percent = (Math.max(0, lane - 1) + lanePercent / 100) / numLanes * 100;
+        }
+
+        long now = nanoClock.getAsLong();
+        if (firstProgressNanos < 0) {
+            firstProgressNanos = now;
+        }
+        long etaSeconds = -1;
+        long elapsedNanos = now - firstProgressNanos;
+        if (percent > 0 && elapsedNanos > 0) {
+            etaSeconds = TimeUnit.NANOSECONDS.toSeconds((long) (elapsedNanos * (100 - percent) / percent));
+        }
+        return new IlastikProgress(percent, lane, numLanes, block, numBlocks, etaSeconds);
+    }
+}
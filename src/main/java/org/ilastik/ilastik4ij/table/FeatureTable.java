@@ -0,0 +1,182 @@
+package org.ilastik.ilastik4ij.table;
+
+import ij.measure.ResultsTable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A table of per-object features as exported by ilastik, stored column by column in primitive arrays.
+ *
+ * Columns of whole numbers are {@code int[]}, other numbers {@code double[]} and text {@code String[]}, in which
+ * equal values share one instance. Millions of rows take a few bytes per cell instead of a boxed value and its
+ * map entry each, see {@link FeatureTableReader}.
+ */
+public class FeatureTable {
+
+    public enum ColumnType {
+        INT, DOUBLE, STRING
+    }
+
+    private final List<String> names;
+    private final ColumnType[] types;
+    private final Object[] columns;
+    private final int numRows;
+
+    /**
+     * @param columns one {@code int[]}, {@code double[]} or {@code String[]} per column, matching its type,
+     *                with at least {@code numRows} elements
+     */
+    FeatureTable(List<String> names, ColumnType[] types, Object[] columns, int numRows) {
+        this.names = Collections.unmodifiableList(new ArrayList<>(names));
+        this.types = types.clone();
+        this.columns = columns.clone();
+        this.numRows = numRows;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getNumColumns() {
+        return names.size();
+    }
+
+    public List<String> getColumnNames() {
+        return names;
+    }
+
+    /**
+     * @return index of the column, -1 if the table has no such column
+     */
+    public int indexOf(String name) {
+        return names.indexOf(name);
+    }
+
+    public ColumnType getColumnType(int column) {
+        return types[column];
+    }
+
+    /**
+     * @return the value as a number, NaN for text
+     */
+    public double getDouble(int column, int row) {
+        checkRow(row);
+        switch (types[column]) {
+            case INT:
+                return ((int[]) columns[column])[row];
+            case DOUBLE:
+                return ((double[]) columns[column])[row];
+            default:
+                return Double.NaN;
+        }
+    }
+
+    /**
+     * @return the value as text, numbers as {@link String#valueOf} prints them
+     */
+    public String getString(int column, int row) {
+        checkRow(row);
+        switch (types[column]) {
+            case INT:
+                return String.valueOf(((int[]) columns[column])[row]);
+            case DOUBLE:
+                return String.valueOf(((double[]) columns[column])[row]);
+            default:
+                return ((String[]) columns[column])[row];
+        }
+    }
+
+    /**
+     * @return a copy of a number column as doubles
+     * @throws IllegalArgumentException for text columns
+     */
+    public double[] getDoubleColumn(int column) {
+        double[] values = new double[numRows];
+        switch (types[column]) {
+            case INT:
+                int[] ints = (int[]) columns[column];
+                for (int row = 0; row < numRows; row++) {
+                    values[row] = ints[row];
+                }
+                return values;
+            case DOUBLE:
+                System.arraycopy(columns[column], 0, values, 0, numRows);
+                return values;
+            default:
+                throw new IllegalArgumentException("Column " + names.get(column) + " holds text");
+        }
+    }
+
+    /**
+     * @return a copy of a column of whole numbers
+     * @throws IllegalArgumentException for other columns
+     */
+    public int[] getIntColumn(int column) {
+        if (types[column] != ColumnType.INT) {
+            throw new IllegalArgumentException("Column " + names.get(column) + " holds " + types[column].name().toLowerCase() + " values");
+        }
+        int[] values = new int[numRows];
+        System.arraycopy(columns[column], 0, values, 0, numRows);
+        return values;
+    }
+
+    /**
+     * @return a copy of a text column
+     * @throws IllegalArgumentException for number columns
+     */
+    public String[] getStringColumn(int column) {
+        if (types[column] != ColumnType.STRING) {
+            throw new IllegalArgumentException("Column " + names.get(column) + " holds numbers");
+        }
+        String[] values = new String[numRows];
+        System.arraycopy(columns[column], 0, values, 0, numRows);
+        return values;
+    }
+
+    /**
+     * Copies the table into an ImageJ results table, addressing number columns by index so that no value is boxed.
+     */
+    public ResultsTable toResultsTable() {
+        ResultsTable results = new ResultsTable();
+        int[] resultColumns = new int[names.size()];
+        for (int column = 0; column < resultColumns.length; column++) {
+            if (types[column] != ColumnType.STRING) {
+                resultColumns[column] = results.getFreeColumn(names.get(column));
+                if (resultColumns[column] < 0) {
+                    // a duplicate name, the values go to the first column of that name like with addValue(String, ...)
+                    resultColumns[column] = results.getColumnIndex(names.get(column));
+                }
+            }
+        }
+        for (int row = 0; row < numRows; row++) {
+            results.incrementCounter();
+            for (int column = 0; column < resultColumns.length; column++) {
+                switch (types[column]) {
+                    case INT:
+                        results.addValue(resultColumns[column], ((int[]) columns[column])[row]);
+                        break;
+                    case DOUBLE:
+                        results.addValue(resultColumns[column], ((double[]) columns[column])[row]);
+                        break;
+                    default:
+                        results.addValue(names.get(column), ((String[]) columns[column])[row]);
+                        break;
+                }
+            }
+        }
+        return results;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= numRows) {
+            throw new IndexOutOfBoundsException("Row " + row + " of a table with " + numRows + " rows");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Feature table with " + numRows + " rows and " + names.size() + " columns";
+    }
+}
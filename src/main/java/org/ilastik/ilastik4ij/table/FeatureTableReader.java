@@ -0,0 +1,326 @@
+package org.ilastik.ilastik4ij.table;
+
+import org.ilastik.ilastik4ij.table.FeatureTable.ColumnType;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the object feature tables ilastik exports as CSV into a {@link FeatureTable}, in a single pass.
+ *
+ * Every column starts out as whole numbers and is widened to doubles, or to text, by the first value that does not
+ * fit, so the types need not be known in advance. Empty cells and {@code nan} are NaN. Only the columns
+ * {@link #setColumns selected} are parsed and kept, which saves most of the time and memory for wide tables.
+ */
+public class FeatureTableReader {
+    private static final int BUFFER_CHARS = 1 << 16;
+    private static final int INITIAL_ROWS = 1024;
+    /** export plugins of ilastik that write tables, their names are added to the file name */
+    private static final String[] EXPORT_PLUGINS = {"CSV-Table"};
+
+    private Set<String> selectedColumns = null;
+
+    /**
+     * @param columns names of the columns to read, in the order of the file; null or empty for all columns
+     */
+    public void setColumns(Collection<String> columns) {
+        this.selectedColumns = columns == null || columns.isEmpty() ? null : new HashSet<>(columns);
+    }
+
+    public FeatureTable read(File file) throws IOException {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            return read(reader);
+        } catch (IOException e) {
+            throw new IOException("Could not read feature table " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    public FeatureTable read(Reader input) throws IOException {
+        BufferedReader reader = new BufferedReader(input, BUFFER_CHARS);
+        String header = reader.readLine();
+        if (header == null) {
+            throw new IOException("The table is empty");
+        }
+        if (header.startsWith("\uFEFF")) {
+            header = header.substring(1);
+        }
+        char delimiter = header.indexOf(',') < 0 && header.indexOf('\t') >= 0 ? '\t' : ',';
+
+        List<String> fileColumns = new ArrayList<>();
+        split(header, delimiter, fileColumns);
+        // index in the table per column of the file, -1 for columns that are skipped
+        int[] tableIndex = new int[fileColumns.size()];
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < tableIndex.length; i++) {
+            if (selectedColumns == null || selectedColumns.contains(fileColumns.get(i))) {
+                tableIndex[i] = names.size();
+                names.add(fileColumns.get(i));
+            } else {
+                tableIndex[i] = -1;
+            }
+        }
+        if (selectedColumns != null && names.size() < selectedColumns.size()) {
+            Set<String> missing = new HashSet<>(selectedColumns);
+            missing.removeAll(names);
+            throw new IOException("The table has no columns " + missing);
+        }
+
+        ColumnBuilder[] builders = new ColumnBuilder[names.size()];
+        for (int i = 0; i < builders.length; i++) {
+            builders[i] = new ColumnBuilder();
+        }
+        Map<String, String> interned = new HashMap<>();
+        List<String> cells = new ArrayList<>();
+        int numRows = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            cells.clear();
+            split(line, delimiter, cells);
+            for (int i = 0; i < tableIndex.length; i++) {
+                if (tableIndex[i] >= 0) {
+                    builders[tableIndex[i]].add(i < cells.size() ? cells.get(i) : "", interned);
+                }
+            }
+            numRows++;
+        }
+
+        ColumnType[] types = new ColumnType[builders.length];
+        Object[] columns = new Object[builders.length];
+        for (int i = 0; i < builders.length; i++) {
+            types[i] = builders[i].type;
+            columns[i] = builders[i].values();
+        }
+        return new FeatureTable(names, types, columns, numRows);
+    }
+
+    /**
+     * Finds the table ilastik exported for an output file name. Export plugins add their name to it,
+     * e.g. {@code out.csv} becomes {@code out_CSV-Table.csv}. Only the names of known plugins are tried,
+     * so other files next to it are never taken for the table.
+     *
+     * @return the table, or null if there is none
+     */
+    public static File findTable(File expected) {
+        if (expected.isFile()) {
+            return expected;
+        }
+        String name = expected.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        for (String plugin : EXPORT_PLUGINS) {
+            File candidate = new File(expected.getAbsoluteFile().getParentFile(), base + "_" + plugin + ".csv");
+            if (candidate.isFile()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the trimmed, non-empty names of a comma separated list, e.g. from a command parameter
+     */
+    public static List<String> parseColumnNames(String commaSeparated) {
+        List<String> names = new ArrayList<>();
+        if (commaSeparated != null) {
+            for (String name : commaSeparated.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    names.add(name.trim());
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Splits a line into cells, removing the quotes around cells and unescaping doubled quotes inside them.
+     */
+    static void split(String line, char delimiter, List<String> cells) {
+        int length = line.length();
+        int start = 0;
+        while (start <= length) {
+            if (start < length && line.charAt(start) == '"') {
+                StringBuilder cell = new StringBuilder();
+                int i = start + 1;
+                while (i < length) {
+                    char c = line.charAt(i);
+                    if (c == '"') {
+                        if (i + 1 < length && line.charAt(i + 1) == '"') {
+                            cell.append('"');
+                            i += 2;
+                            continue;
+                        }
+                        i++;
+                        break;
+                    }
+                    cell.append(c);
+                    i++;
+                }
+                cells.add(cell.toString());
+                int end = line.indexOf(delimiter, i);
+                start = (end < 0 ? length : end) + 1;
+            } else {
+                int end = line.indexOf(delimiter, start);
+                if (end < 0) {
+                    end = length;
+                }
+                cells.add(line.substring(start, end).trim());
+                start = end + 1;
+            }
+        }
+    }
+
+    /**
+     * Collects the values of one column, widening its type as needed.
+     */
+    private static class ColumnBuilder {
+        ColumnType type = ColumnType.INT;
+        int[] ints = new int[INITIAL_ROWS];
+        double[] doubles = null;
+        String[] strings = null;
+        int size = 0;
+
+        void add(String cell, Map<String, String> interned) {
+            if (type == ColumnType.INT) {
+                if (isInt(cell)) {
+                    if (size == ints.length) {
+                        ints = Arrays.copyOf(ints, grow(size));
+                    }
+                    ints[size++] = Integer.parseInt(cell);
+                    return;
+                }
+                toDoubles();
+            }
+            if (type == ColumnType.DOUBLE) {
+                double value = parseDouble(cell);
+                if (!Double.isNaN(value) || isNaN(cell)) {
+                    if (size == doubles.length) {
+                        doubles = Arrays.copyOf(doubles, grow(size));
+                    }
+                    doubles[size++] = value;
+                    return;
+                }
+                toStrings();
+            }
+            if (size == strings.length) {
+                strings = Arrays.copyOf(strings, grow(size));
+            }
+            String value = interned.get(cell);
+            if (value == null) {
+                interned.put(cell, cell);
+                value = cell;
+            }
+            strings[size++] = value;
+        }
+
+        Object values() {
+            switch (type) {
+                case INT:
+                    return ints;
+                case DOUBLE:
+                    return doubles;
+                default:
+                    return strings;
+            }
+        }
+
+        private void toDoubles() {
+            doubles = new double[Math.max(INITIAL_ROWS, ints.length)];
+            for (int i = 0; i < size; i++) {
+                doubles[i] = ints[i];
+            }
+            ints = null;
+            type = ColumnType.DOUBLE;
+        }
+
+        private void toStrings() {
+            // the numbers read so far are turned into text the way the table prints them
+            strings = new String[Math.max(INITIAL_ROWS, doubles.length)];
+            for (int i = 0; i < size; i++) {
+                strings[i] = doubles[i] == Math.rint(doubles[i]) && Math.abs(doubles[i]) < Integer.MAX_VALUE
+                        ? String.valueOf((int) doubles[i]) : String.valueOf(doubles[i]);
+            }
+            doubles = null;
+            type = ColumnType.STRING;
+        }
+
+        private static int grow(int size) {
+            return size + (size >> 1) + 1;
+        }
+    }
+
+    /**
+     * @return whether the cell is a whole number that fits into an int, checked without throwing
+     */
+    static boolean isInt(String cell) {
+        int length = cell.length();
+        int start = length > 0 && (cell.charAt(0) == '-' || cell.charAt(0) == '+') ? 1 : 0;
+        // ten digits may overflow, those are left to parseLong
+        if (length == start || length - start > 10) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            char c = cell.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        if (length - start == 10) {
+            long value = Long.parseLong(cell);
+            return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+        }
+        return true;
+    }
+
+    static boolean isNaN(String cell) {
+        return cell.isEmpty() || cell.equalsIgnoreCase("nan") || cell.equalsIgnoreCase("-nan");
+    }
+
+    /**
+     * @return the number, or NaN if the cell is not a number, checked without throwing for text
+     */
+    static double parseDouble(String cell) {
+        if (isNaN(cell)) {
+            return Double.NaN;
+        }
+        String lower = cell.toLowerCase();
+        if (lower.equals("inf") || lower.equals("+inf") || lower.equals("infinity")) {
+            return Double.POSITIVE_INFINITY;
+        }
+        if (lower.equals("-inf") || lower.equals("-infinity")) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        boolean digit = false;
+        for (int i = 0; i < cell.length(); i++) {
+            char c = cell.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digit = true;
+            } else if (c != '.' && c != '-' && c != '+' && c != 'e' && c != 'E') {
+                return Double.NaN;
+            }
+        }
+        if (!digit) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(cell);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.ilastik.ilastik4ij.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes the input files of one ilastik job at the same time, so that exporting them takes about as long as the
+ * slowest file instead of all files together.
+ *
+ * The exports still share the HDF5 I/O thread of the {@link org.ilastik.ilastik4ij.hdf5.Hdf5IoService}, which keeps
+ * native calls serialized, while pixels are gathered and compression profiles are chosen concurrently.
+ */
+public final class ConcurrentExports {
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final ExecutorService EXPORTERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ilastik4ij-export-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ConcurrentExports() {
+    }
+
+    /**
+     * Runs all exports, the first one on the calling thread, and returns once all of them are done.
+     * Exports that are null are skipped, e.g. for inputs ilastik reads from their original file.
+     *
+     * @throws RuntimeException the first failure of an export, after the others have finished as well,
+     *                          so none of them still writes to a file the caller is about to delete
+     */
+    public static void run(Runnable... exports) {
+        List<Runnable> toRun = new ArrayList<>();
+        for (Runnable export : exports) {
+            if (export != null) {
+                toRun.add(export);
+            }
+        }
+        if (toRun.isEmpty()) {
+            return;
+        }
+
+        List<Future<?>> others = new ArrayList<>();
+        for (Runnable export : toRun.subList(1, toRun.size())) {
+            others.add(EXPORTERS.submit(export));
+        }
+
+        Throwable failure = null;
+        try {
+            toRun.get(0).run();
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        }
+        boolean interrupted = false;
+        for (Future<?> other : others) {
+            while (true) {
+                try {
+                    other.get();
+                    break;
+                } catch (ExecutionException e) {
+                    failure = failure != null ? failure : e.getCause();
+                    break;
+                } catch (InterruptedException e) {
+                    // keep waiting, the files of the export must not be deleted while it writes them
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+}
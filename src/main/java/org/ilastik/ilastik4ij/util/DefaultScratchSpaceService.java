@@ -0,0 +1,64 @@
+package org.ilastik.ilastik4ij.util;
+
+import org.ilastik.ilastik4ij.IlastikOptions;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Default {@link ScratchSpaceService}.
+ *
+ * A RAM disk is only used while its free space minus the not yet written part of all reservations on it
+ * stays above a safety margin of {@value #RAM_MARGIN_PERCENT}% of its total size, because files on it
+ * compete for memory with ilastik and ImageJ.
+ */
+@Plugin(type = Service.class)
+public class DefaultScratchSpaceService extends AbstractService implements ScratchSpaceService {
+    private static final long MB = 1024 * 1024;
+    private static final int RAM_MARGIN_PERCENT = 10;
+
+    @Parameter
+    private LogService log;
+
+    private final List<ScratchReservation> ramReservations = new ArrayList<>();
+
+    @Override
+    public synchronized ScratchReservation reserve(IlastikOptions options, long bytes, boolean keepFiles) {
+        if (options.useRamScratch() && !keepFiles) {
+            File ramDirectory = options.getRamScratchDirectory();
+            if (!ramDirectory.isDirectory() || !ramDirectory.canWrite()) {
+                log.warn("Cannot write temporary files to " + ramDirectory + ", using the system temp directory");
+            } else {
+                long outstanding = 0;
+                long reserved = 0;
+                for (ScratchReservation reservation : ramReservations) {
+                    outstanding += reservation.getOutstandingBytes();
+                    reserved += reservation.getBytes();
+                }
+                long available = ramDirectory.getUsableSpace() - outstanding
+                        - ramDirectory.getTotalSpace() * RAM_MARGIN_PERCENT / 100;
+                long limit = options.getMaxRamScratchMb() * MB;
+                if (bytes <= available && (limit <= 0 || reserved + bytes <= limit)) {
+                    log.info(String.format("Using %s for %d MB of temporary files", ramDirectory, bytes / MB));
+                    ScratchReservation reservation = new ScratchReservation(ramDirectory, true, bytes, this::release);
+                    ramReservations.add(reservation);
+                    return reservation;
+                }
+                log.info(String.format("Not enough room on %s for %d MB of temporary files"
+                        + " (%d MB available, %d MB reserved by running jobs), using the system temp directory",
+                        ramDirectory, bytes / MB, Math.max(0, available) / MB, reserved / MB));
+            }
+        }
+        return new ScratchReservation(new File(System.getProperty("java.io.tmpdir")), false, bytes, r -> { });
+    }
+
+    private synchronized void release(ScratchReservation reservation) {
+        ramReservations.remove(reservation);
+    }
+}
@@ -0,0 +1,152 @@
+package org.ilastik.ilastik4ij.util;
+
+import ch.systemsx.cisd.hdf5.HDF5EnumerationValueMDArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Reader;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoExecutor.Priority;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoService;
+import org.scijava.log.LogService;
+
+import java.io.File;
+
+/**
+ * Reads settings of a trained workflow from an ilastik project file, which is a HDF5 file itself.
+ * Unknown settings are reported as such instead of failing, as the layout differs between workflows and versions.
+ */
+public class IlastikProjectFile {
+    private static final String LABEL_NAMES = "PixelClassification/LabelNames";
+    private static final String FEATURE_SCALES = "FeatureSelections/Scales";
+    private static final String FEATURE_SELECTION = "FeatureSelections/SelectionMatrix";
+
+    private final File projectFile;
+    private final Hdf5IoService ioService;
+    private final LogService log;
+
+    public IlastikProjectFile(File projectFile, Hdf5IoService ioService, LogService log) {
+        this.projectFile = projectFile;
+        this.ioService = ioService;
+        this.log = log;
+    }
+
+    /**
+     * @return the number of classes of a pixel classification project, or -1 if unknown
+     */
+    public int readNumberOfLabelClasses() {
+        try {
+            return ioService.getIoExecutor().call(Priority.NORMAL, () -> {
+                IHDF5Reader reader = HDF5Factory.openForReading(projectFile);
+                try {
+                    return reader.exists(LABEL_NAMES) ? reader.readStringArray(LABEL_NAMES).length : -1;
+                } finally {
+                    reader.close();
+                }
+            });
+        } catch (RuntimeException e) {
+            log.warn("Could not read the label classes of " + projectFile + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * @return the largest scale (sigma) of any selected feature of a pixel classification project, or NaN if unknown.
+     * If only the scales but not the selection can be read, the largest scale offered is returned.
+     */
+    public double readLargestFeatureScale() {
+        try {
+            return ioService.getIoExecutor().call(Priority.NORMAL, () -> {
+                IHDF5Reader reader = HDF5Factory.openForReading(projectFile);
+                try {
+                    if (!reader.exists(FEATURE_SCALES)) {
+                        return Double.NaN;
+                    }
+                    double[] scales = reader.float64().readArray(FEATURE_SCALES);
+                    boolean[][] selection = readFeatureSelection(reader, scales.length);
+                    double largest = Double.NaN;
+                    for (int scale = 0; scale < scales.length; scale++) {
+                        if (isScaleSelected(selection, scale) && !(scales[scale] <= largest)) {
+                            largest = scales[scale];
+                        }
+                    }
+                    return largest;
+                } finally {
+                    reader.close();
+                }
+            });
+        } catch (RuntimeException e) {
+            log.warn("Could not read the feature scales of " + projectFile + ": " + e.getMessage());
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * @return the number of selected (feature, scale) combinations of a pixel classification project, or -1 if unknown
+     */
+    public int readNumberOfSelectedFeatures() {
+        try {
+            return ioService.getIoExecutor().call(Priority.NORMAL, () -> {
+                IHDF5Reader reader = HDF5Factory.openForReading(projectFile);
+                try {
+                    if (!reader.exists(FEATURE_SCALES)) {
+                        return -1;
+                    }
+                    boolean[][] selection = readFeatureSelection(reader, reader.float64().readArray(FEATURE_SCALES).length);
+                    if (selection == null) {
+                        return -1;
+                    }
+                    int count = 0;
+                    for (boolean[] feature : selection) {
+                        for (boolean selected : feature) {
+                            count += selected ? 1 : 0;
+                        }
+                    }
+                    return count;
+                } finally {
+                    reader.close();
+                }
+            });
+        } catch (RuntimeException e) {
+            log.warn("Could not read the feature selection of " + projectFile + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * The selection is a features x scales matrix of booleans, which h5py stores as an enumeration of FALSE and TRUE.
+     *
+     * @return the selection, or null if it is missing or stored differently
+     */
+    private boolean[][] readFeatureSelection(IHDF5Reader reader, int numScales) {
+        if (!reader.exists(FEATURE_SELECTION)) {
+            return null;
+        }
+        try {
+            HDF5EnumerationValueMDArray matrix = reader.enumeration().readMDArray(FEATURE_SELECTION);
+            int[] dims = matrix.dimensions();
+            if (dims.length != 2 || dims[1] != numScales) {
+                return null;
+            }
+            boolean[][] selection = new boolean[dims[0]][dims[1]];
+            for (int feature = 0; feature < dims[0]; feature++) {
+                for (int scale = 0; scale < dims[1]; scale++) {
+                    selection[feature][scale] = "TRUE".equalsIgnoreCase(matrix.getValue(new int[]{feature, scale}));
+                }
+            }
+            return selection;
+        } catch (RuntimeException e) {
+            log.debug("Could not read the feature selection matrix: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean isScaleSelected(boolean[][] selection, int scale) {
+        if (selection == null) {
+            return true;
+        }
+        for (boolean[] feature : selection) {
+            if (feature[scale]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -26,13 +26,18 @@
 
 package org.ilastik.ilastik4ij.util;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
 
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.CalibratedAxis;
+import net.imglib2.img.ImgView;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.ilastik.ilastik4ij.runner.LogPump;
 import org.scijava.log.LogService;
 
 public class IlastikUtilities {
@@ -44,41 +49,79 @@ public class IlastikUtilities {
 	 */
 	public static String getTemporaryFileName(String extension) throws IOException
 	{
-		File f = File.createTempFile("ilastik4j", extension, null);
+		return getTemporaryFileName(extension, null);
+	}
+
+	/*
+	 * Utility method to obtain a unique filename in the given directory
+	 * @param extension
+	 * @param directory null for the system temp directory
+	 * @return
+	 * @throws IOException
+	 */
+	public static String getTemporaryFileName(String extension, File directory) throws IOException
+	{
+		File f = File.createTempFile("ilastik4j", extension, directory);
 		String filename = f.getAbsolutePath();
 		f.delete();
 		return filename;
 	}
+
+	/*
+	 * Estimate of the size of the image once written to an uncompressed HDF5 dataset
+	 * @param image
+	 * @return size in bytes
+	 */
+	public static long estimateHdf5Bytes(ImgPlus<?> image)
+	{
+		Object type = image.firstElement();
+		long bytesPerPixel;
+		if (type instanceof RealType) {
+			bytesPerPixel = Math.max(1, (((RealType<?>) type).getBitsPerPixel() + 7) / 8);
+		} else {
+			// ARGB, written as four uint8 channels
+			bytesPerPixel = 4;
+		}
+		return bytesPerPixel * Intervals.numElements(image);
+	}
+
+	/*
+	 * @param image
+	 * @return number of pixels of the image in a single channel
+	 */
+	public static long countPixelsPerChannel(ImgPlus<?> image)
+	{
+		long pixels = Intervals.numElements(image);
+		int channelAxis = image.dimensionIndex(Axes.CHANNEL);
+		return channelAxis >= 0 ? pixels / Math.max(1, image.dimension(channelAxis)) : pixels;
+	}
+
+	/*
+	 * View of a box of the image, shifted to start at the origin, with the axes of the image
+	 * @param image
+	 * @param min first position of the box, inclusive, per dimension of the image
+	 * @param max last position of the box, inclusive, per dimension of the image
+	 * @return
+	 */
+	public static <T> ImgPlus<T> cropImgPlus(ImgPlus<T> image, long[] min, long[] max)
+	{
+		CalibratedAxis[] axes = new CalibratedAxis[image.numDimensions()];
+		for (int d = 0; d < axes.length; d++) {
+			axes[d] = image.axis(d).copy();
+		}
+		return new ImgPlus<>(ImgView.wrap(Views.zeroMin(Views.interval(image, min, max)), image.factory()),
+				image.getName(), axes);
+	}
 	
     /*
      * Redirect an input stream to the log service (used for command line output)
      *
      * @param in input stream
      * @param logger
-     * @throws IOException
+     * @deprecated use a {@link LogPump}, which can also wait for the output and report progress
      */
+    @Deprecated
     public static void redirectOutputToLogService(final InputStream in, final LogService logger, final Boolean isErrorStream) {
-        Thread t = new Thread() {
-            @Override
-            public void run() {
-
-                String line;
-
-                try (BufferedReader bis = new BufferedReader(new InputStreamReader(in, Charset.defaultCharset()))) {
-                    while ((line = bis.readLine()) != null) {
-                        if (isErrorStream) {
-                            logger.error(line);
-                        } else {
-                            logger.info(line);
-                        }
-                    }
-                } catch (IOException ioe) {
-                    throw new RuntimeException("Could not read ilastik output", ioe);
-                }
-            }
-        };
-
-//        t.setUncaughtExceptionHandler(new DefaultUncaughtExceptionHandler(KNIPGateway.log()));
-        t.start();
+        new LogPump(logger, null).start(in, isErrorStream);
     }
 }
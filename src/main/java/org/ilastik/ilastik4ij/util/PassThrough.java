@@ -0,0 +1,61 @@
+package org.ilastik.ilastik4ij.util;
+
+import net.imagej.ImgPlus;
+import org.ilastik.ilastik4ij.hdf5.Hdf5Origin;
+import org.ilastik.ilastik4ij.hdf5.Hdf5OriginService;
+import org.scijava.log.LogService;
+
+/**
+ * Decides which inputs of a job ilastik reads straight from the HDF5 datasets they were loaded from,
+ * instead of from a fresh export.
+ *
+ * ilastik takes a single {@code --input_axes} for all inputs of a job, so datasets are only passed through
+ * if all inputs are and their axis orders agree, or if their axis order is that of the exports anyway.
+ */
+public class PassThrough {
+    private final Hdf5Origin[] origins;
+    private final String axisOrder;
+
+    private PassThrough(Hdf5Origin[] origins, String axisOrder) {
+        this.origins = origins;
+        this.axisOrder = axisOrder;
+    }
+
+    public static PassThrough choose(Hdf5OriginService originService, TransferFormat format, LogService log, ImgPlus<?>... inputs) {
+        Hdf5Origin[] origins = new Hdf5Origin[inputs.length];
+        boolean allAgree = inputs.length > 0;
+        for (int i = 0; i < inputs.length; i++) {
+            origins[i] = originService.findUnchangedOrigin(inputs[i]);
+            allAgree &= origins[i] != null && origins[i].getAxisOrder().equals(origins[0].getAxisOrder());
+        }
+
+        String axisOrder = allAgree ? origins[0].getAxisOrder() : format.getAxisOrder();
+        for (int i = 0; i < inputs.length; i++) {
+            if (origins[i] == null) {
+                continue;
+            }
+            if (origins[i].getAxisOrder().equals(axisOrder)) {
+                log.info("Passing " + origins[i] + " to ilastik directly, " + inputs[i].getName() + " is unchanged since loading");
+            } else {
+                log.info("Exporting " + inputs[i].getName() + " although it is unchanged since loading from " + origins[i]
+                        + ", as its axes " + origins[i].getAxisOrder() + " differ from those of the other inputs");
+                origins[i] = null;
+            }
+        }
+        return new PassThrough(origins, axisOrder);
+    }
+
+    /**
+     * @return the dataset to pass to ilastik for the input, or null if the input has to be exported
+     */
+    public Hdf5Origin getOrigin(int input) {
+        return origins[input];
+    }
+
+    /**
+     * @return the value for {@code --input_axes}, shared by the passed through datasets and the exports
+     */
+    public String getAxisOrder() {
+        return axisOrder;
+    }
+}
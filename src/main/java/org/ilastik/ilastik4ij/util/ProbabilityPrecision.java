@@ -0,0 +1,77 @@
+package org.ilastik.ilastik4ij.util;
+
+import net.imagej.ImgPlus;
+
+import java.util.List;
+
+/**
+ * Datatype ilastik exports probabilities as.
+ *
+ * Integer types map the probability range [0, 1] linearly to [0, max], so a pixel value v stands for the
+ * probability v * {@link #getScale()}. The scale is recorded in the properties of the result under {@link #SCALE_PROPERTY}.
+ */
+public enum ProbabilityPrecision {
+    FLOAT32("float32", 4, 1),
+    UINT16("uint16", 2, 65535),
+    UINT8("uint8", 1, 255);
+
+    /** Property of result images holding the probability one pixel value stands for, as a Double */
+    public static final String SCALE_PROPERTY = "ilastik4ij.probabilityScale";
+
+    private final String label;
+    private final int bytesPerPixel;
+    private final int max;
+
+    ProbabilityPrecision(String label, int bytesPerPixel, int max) {
+        this.label = label;
+        this.bytesPerPixel = bytesPerPixel;
+        this.max = max;
+    }
+
+    /**
+     * @param label one of the labels shown to users, as returned by {@link #toString()}
+     */
+    public static ProbabilityPrecision fromLabel(String label) {
+        for (ProbabilityPrecision precision : values()) {
+            if (precision.label.equals(label)) {
+                return precision;
+            }
+        }
+        throw new IllegalArgumentException("Unknown probability precision: " + label);
+    }
+
+    public int getBytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+    /**
+     * @return the probability one pixel value stands for
+     */
+    public double getScale() {
+        return 1.0 / max;
+    }
+
+    /**
+     * Adds the ilastik export arguments converting probabilities to this type.
+     */
+    public void addArguments(List<String> jobArgs) {
+        if (this == FLOAT32) {
+            return;
+        }
+        jobArgs.add("--export_dtype=" + label);
+        jobArgs.add("--pipeline_result_drange=(0.0,1.0)");
+        jobArgs.add("--export_drange=(0," + max + ")");
+    }
+
+    /**
+     * Records the scale in the properties of a result.
+     */
+    public void annotate(ImgPlus<?> result) {
+        result.getProperties().put(SCALE_PROPERTY, getScale());
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
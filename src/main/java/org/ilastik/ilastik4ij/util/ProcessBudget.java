@@ -0,0 +1,40 @@
+package org.ilastik.ilastik4ij.util;
+
+import org.ilastik.ilastik4ij.IlastikOptions;
+
+/**
+ * Shares the threads and RAM configured in the {@link IlastikOptions} between ilastik processes running at the same time.
+ */
+public class ProcessBudget {
+    private static final int MIN_RAM_PER_PROCESS_MB = 1024;
+
+    private final int numProcesses;
+    private final int threadsPerProcess;
+    private final int ramPerProcessMb;
+
+    /**
+     * @param numProcesses processes running at the same time, 0 to run as many as the budget allows,
+     *                     with at least one thread and {@value #MIN_RAM_PER_PROCESS_MB} MB each
+     */
+    public ProcessBudget(IlastikOptions options, int numProcesses) {
+        int threadBudget = options.getNumThreads() > 0 ? options.getNumThreads() : Runtime.getRuntime().availableProcessors();
+        this.numProcesses = numProcesses > 0 ? numProcesses
+                : Math.max(1, Math.min(threadBudget, options.getMaxRamMb() / MIN_RAM_PER_PROCESS_MB));
+        this.threadsPerProcess = Math.max(1, threadBudget / this.numProcesses);
+        this.ramPerProcessMb = Math.max(1, options.getMaxRamMb() / this.numProcesses);
+    }
+
+    public int getNumProcesses() {
+        return numProcesses;
+    }
+
+    /** @return value for LAZYFLOW_THREADS of each process */
+    public int getThreadsPerProcess() {
+        return threadsPerProcess;
+    }
+
+    /** @return value for LAZYFLOW_TOTAL_RAM_MB of each process */
+    public int getRamPerProcessMb() {
+        return ramPerProcessMb;
+    }
+}
@@ -0,0 +1,72 @@
+package org.ilastik.ilastik4ij.util;
+
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import org.scijava.display.Display;
+import org.scijava.display.DisplayService;
+import org.scijava.ui.UIService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows the result of a {@link TiledPrediction} while it fills up. Closing the preview stops the prediction.
+ *
+ * The preview shares its pixels with the result but is a display of its own, so {@link #close} it once the result is
+ * returned by the command, which displays its outputs itself.
+ */
+public class ProgressivePreview implements TiledPrediction.ProgressiveDisplay {
+    private final String title;
+    private final UIService uiService;
+    private final DisplayService displayService;
+    private final DatasetService datasetService;
+    private Dataset preview = null;
+    private boolean wasDisplayed = false;
+
+    public ProgressivePreview(String title, UIService uiService, DisplayService displayService, DatasetService datasetService) {
+        this.title = title;
+        this.uiService = uiService;
+        this.displayService = displayService;
+        this.datasetService = datasetService;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public synchronized void show(ImgPlus<?> result) {
+        preview = datasetService.create((ImgPlus) result);
+        preview.setName(title + " (in progress)");
+        uiService.show(preview);
+    }
+
+    @Override
+    public synchronized boolean tileDone(ImgPlus<?> result, int tilesDone, int numTiles) {
+        if (preview == null) {
+            return true;
+        }
+        // the window may only appear a little after show returned
+        if (!displayService.getDisplays(preview).isEmpty()) {
+            wasDisplayed = true;
+        } else if (wasDisplayed) {
+            // the user closed the preview
+            return false;
+        }
+        preview.setName(title + " (" + tilesDone + "/" + numTiles + ")");
+        preview.update();
+        return true;
+    }
+
+    /**
+     * Closes the preview if it is still shown.
+     */
+    public synchronized void close() {
+        if (preview == null) {
+            return;
+        }
+        List<Display<?>> displays = new ArrayList<>(displayService.getDisplays(preview));
+        for (Display<?> display : displays) {
+            display.close();
+        }
+        preview = null;
+    }
+}
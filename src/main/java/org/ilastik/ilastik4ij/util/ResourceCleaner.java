@@ -0,0 +1,62 @@
+package org.ilastik.ilastik4ij.util;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Runs cleanup actions once objects have been garbage collected, like {@code java.lang.ref.Cleaner} of newer Java versions.
+ *
+ * Actions run on a single daemon thread and must not refer to the object they clean up after,
+ * otherwise it never becomes unreachable.
+ */
+public final class ResourceCleaner {
+    private static final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    // keeps the references themselves reachable until they are enqueued
+    private static final Set<Cleanable> pending = Collections.synchronizedSet(
+            Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    static {
+        Thread thread = new Thread(ResourceCleaner::cleanForever, "ilastik4ij-cleaner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private ResourceCleaner() {
+    }
+
+    /**
+     * Registers an action to run after the object has become unreachable.
+     */
+    public static void register(Object referent, Runnable action) {
+        pending.add(new Cleanable(referent, action));
+    }
+
+    private static void cleanForever() {
+        while (true) {
+            try {
+                Reference<?> reference = queue.remove();
+                if (pending.remove(reference)) {
+                    ((Cleanable) reference).action.run();
+                }
+            } catch (InterruptedException e) {
+                // daemon thread, keep going until the JVM exits
+            } catch (RuntimeException e) {
+                // one failing action must not stop the cleanup of the others
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static class Cleanable extends PhantomReference<Object> {
+        private final Runnable action;
+
+        Cleanable(Object referent, Runnable action) {
+            super(referent, queue);
+            this.action = action;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.ilastik.ilastik4ij.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Space for the temporary files of one job, in the directory chosen by the {@link ScratchSpaceService}.
+ * Closing the reservation gives the space back, deleting the files is still up to the job.
+ */
+public class ScratchReservation implements AutoCloseable {
+    private final File directory;
+    private final boolean inMemory;
+    private final long bytes;
+    private final Consumer<ScratchReservation> onClose;
+    private final List<File> files = new ArrayList<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    ScratchReservation(File directory, boolean inMemory, long bytes, Consumer<ScratchReservation> onClose) {
+        this.directory = directory;
+        this.inMemory = inMemory;
+        this.bytes = bytes;
+        this.onClose = onClose;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return whether the files are on a RAM disk
+     */
+    public boolean isInMemory() {
+        return inMemory;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return a unique file name in the reserved directory
+     */
+    public synchronized String createTempFileName(String extension) throws IOException {
+        String filename = IlastikUtilities.getTemporaryFileName(extension, directory);
+        files.add(new File(filename));
+        return filename;
+    }
+
+    /**
+     * @return the part of the reservation that has not been written to disk yet, and thus is not
+     * contained in the used space of the file system
+     */
+    synchronized long getOutstandingBytes() {
+        long written = 0;
+        for (File file : files) {
+            written += file.length();
+        }
+        return Math.max(0, bytes - written);
+    }
+
+    @Override
+    public void close() {
+        // not synchronized, the service holds its own lock while it asks reservations for their outstanding bytes
+        if (closed.compareAndSet(false, true)) {
+            onClose.accept(this);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.ilastik.ilastik4ij.util;
+
+import org.ilastik.ilastik4ij.IlastikOptions;
+import org.scijava.service.SciJavaService;
+
+/**
+ * Decides where the temporary files exchanged with ilastik go.
+ *
+ * Depending on the {@link IlastikOptions}, jobs get space on a RAM disk as long as it has room for
+ * the estimated size of their files, taking into account all other jobs currently holding a reservation,
+ * and fall back to the system temp directory otherwise.
+ */
+public interface ScratchSpaceService extends SciJavaService {
+
+    /**
+     * @param bytes     estimated total size of all temporary files of the job
+     * @param keepFiles whether the files must outlive the job, then they always go to disk
+     */
+    ScratchReservation reserve(IlastikOptions options, long bytes, boolean keepFiles);
+}
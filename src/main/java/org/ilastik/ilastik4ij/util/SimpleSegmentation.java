@@ -0,0 +1,191 @@
+package org.ilastik.ilastik4ij.util;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Computes ilastik's "Simple Segmentation" from probabilities: the label of a pixel is one plus the index of the
+ * channel with the highest probability. Like numpy's argmax, which ilastik uses, ties go to the first channel
+ * and NaN counts as the highest value.
+ *
+ * The image is split into blocks of rows that are processed in parallel on a shared pool like
+ * {@link org.ilastik.ilastik4ij.hdf5.Hdf5IoService#getCpuExecutor}. Within a block the channels are
+ * visited one after the other, so that each pass reads contiguous memory of planar and array images and only
+ * the running maximum of the block has to stay in cache.
+ */
+public class SimpleSegmentation {
+    // the running maximum and label of a block fit into the L2 cache of common CPUs
+    static final int BLOCK_PIXELS = 32 * 1024;
+
+    private SimpleSegmentation() {
+    }
+
+    /**
+     * @param probabilities image with one channel per class, the channel axis may be anywhere
+     * @param executor      pool to process the blocks on, or null to process them on the calling thread
+     * @return labels 1 to the number of classes, with the axes of the probabilities and a single channel
+     * @throws IllegalArgumentException if there are more classes than fit into an unsigned byte
+     */
+    public static <T extends RealType<T>> ImgPlus<UnsignedByteType> compute(ImgPlus<T> probabilities, ExecutorService executor)
+            throws InterruptedException {
+        int numDims = probabilities.numDimensions();
+        int channelAxis = probabilities.dimensionIndex(Axes.CHANNEL);
+        long numClasses = channelAxis >= 0 ? probabilities.dimension(channelAxis) : 1;
+        if (numClasses > 255) {
+            throw new IllegalArgumentException("Cannot store " + numClasses + " classes as unsigned bytes");
+        }
+
+        long[] dims = new long[numDims];
+        probabilities.dimensions(dims);
+        if (channelAxis >= 0) {
+            dims[channelAxis] = 1;
+        }
+        Img<UnsignedByteType> labels = PlanarImgs.unsignedBytes(dims);
+
+        List<long[][]> blocks = planBlocks(dims, channelAxis);
+        if (executor == null) {
+            for (long[][] block : blocks) {
+                segmentBlock(probabilities, labels, channelAxis, (int) numClasses, block[0], block[1]);
+            }
+            return toImgPlus(labels, probabilities);
+        }
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (long[][] block : blocks) {
+                futures.add(executor.submit(() -> {
+                    segmentBlock(probabilities, labels, channelAxis, (int) numClasses, block[0], block[1]);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            // the pool is shared, only the blocks of a failed or interrupted segmentation are dropped
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return toImgPlus(labels, probabilities);
+    }
+
+    private static ImgPlus<UnsignedByteType> toImgPlus(Img<UnsignedByteType> labels, ImgPlus<?> probabilities) {
+        ImgPlus<UnsignedByteType> result = new ImgPlus<>(labels, "Segmentation");
+        for (int d = 0; d < probabilities.numDimensions(); d++) {
+            result.setAxis(probabilities.axis(d).copy(), d);
+        }
+        return result;
+    }
+
+    /**
+     * Splits the image without its channel axis into blocks of whole rows, i.e. lines along the first axis other than
+     * channels, with at least one row and otherwise about {@link #BLOCK_PIXELS} pixels.
+     *
+     * @return min and max of each block, with channel 0
+     */
+    static List<long[][]> planBlocks(long[] dims, int channelAxis) {
+        int numDims = dims.length;
+        int rowAxis = -1;
+        int firstAxis = -1;
+        for (int d = 0; d < numDims; d++) {
+            if (d == channelAxis) {
+                continue;
+            }
+            if (firstAxis < 0) {
+                firstAxis = d;
+            } else if (rowAxis < 0) {
+                rowAxis = d;
+            }
+        }
+
+        long rowPixels = firstAxis >= 0 ? dims[firstAxis] : 1;
+        long rowsPerBlock = rowAxis >= 0 ? Math.max(1, Math.min(dims[rowAxis], BLOCK_PIXELS / rowPixels)) : 1;
+
+        List<long[][]> blocks = new ArrayList<>();
+        long[] position = new long[numDims];
+        while (true) {
+            long[] min = position.clone();
+            long[] max = position.clone();
+            for (int d = 0; d < numDims; d++) {
+                if (d == firstAxis) {
+                    min[d] = 0;
+                    max[d] = dims[d] - 1;
+                } else if (d == rowAxis) {
+                    max[d] = Math.min(dims[d], position[d] + rowsPerBlock) - 1;
+                }
+            }
+            blocks.add(new long[][]{min, max});
+
+            // next block, rows first, then the outer axes
+            int d = 0;
+            for (; d < numDims; d++) {
+                if (d == firstAxis || d == channelAxis) {
+                    continue;
+                }
+                position[d] += d == rowAxis ? rowsPerBlock : 1;
+                if (position[d] < dims[d]) {
+                    break;
+                }
+                position[d] = 0;
+            }
+            if (d == numDims) {
+                return blocks;
+            }
+        }
+    }
+
+    private static <T extends RealType<T>> void segmentBlock(RandomAccessibleInterval<T> probabilities,
+                                                             RandomAccessibleInterval<UnsignedByteType> labels,
+                                                             int channelAxis, int numClasses, long[] blockMin, long[] blockMax) {
+        long[] min = blockMin.clone();
+        long[] max = blockMax.clone();
+        int size = 1;
+        for (int d = 0; d < min.length; d++) {
+            size *= (int) (max[d] - min[d] + 1);
+        }
+        double[] best = new double[size];
+        byte[] bestClass = new byte[size];
+
+        for (int c = 0; c < numClasses; c++) {
+            if (channelAxis >= 0) {
+                min[channelAxis] = c;
+                max[channelAxis] = c;
+            }
+            Cursor<T> cursor = Views.flatIterable(Views.interval(probabilities, min, max)).cursor();
+            for (int i = 0; i < size; i++) {
+                double value = cursor.next().getRealDouble();
+                if (c == 0 || value > best[i] || (Double.isNaN(value) && !Double.isNaN(best[i]))) {
+                    best[i] = value;
+                    bestClass[i] = (byte) c;
+                }
+            }
+        }
+
+        if (channelAxis >= 0) {
+            min[channelAxis] = 0;
+            max[channelAxis] = 0;
+        }
+        Cursor<UnsignedByteType> out = Views.flatIterable(Views.interval(labels, min, max)).cursor();
+        for (int i = 0; i < size; i++) {
+            out.next().set((bestClass[i] & 0xff) + 1);
+        }
+    }
+}
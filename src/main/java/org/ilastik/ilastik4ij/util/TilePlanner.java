@@ -0,0 +1,147 @@
+package org.ilastik.ilastik4ij.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Splits the spatial extent of an image into a grid of tiles for independent processing.
+ *
+ * The cores of the tiles cover the image exactly once. Each tile additionally carries a halo of context around
+ * its core, clamped to the image, so that filters near the core borders see the same neighbourhood as in the
+ * whole image. Results of a tile are only valid in its core, the halo is cropped away when stitching.
+ */
+public class TilePlanner {
+
+    public static class Tile {
+        private final long[] coreMin;
+        private final long[] coreMax;
+        private final long[] haloMin;
+        private final long[] haloMax;
+
+        Tile(long[] coreMin, long[] coreMax, long[] haloMin, long[] haloMax) {
+            this.coreMin = coreMin;
+            this.coreMax = coreMax;
+            this.haloMin = haloMin;
+            this.haloMax = haloMax;
+        }
+
+        /** @return first position of the core in the image, inclusive */
+        public long[] getCoreMin() {
+            return coreMin.clone();
+        }
+
+        /** @return last position of the core in the image, inclusive */
+        public long[] getCoreMax() {
+            return coreMax.clone();
+        }
+
+        /** @return first position of the tile including its halo in the image, inclusive */
+        public long[] getHaloMin() {
+            return haloMin.clone();
+        }
+
+        /** @return last position of the tile including its halo in the image, inclusive */
+        public long[] getHaloMax() {
+            return haloMax.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "Tile " + Arrays.toString(coreMin) + " - " + Arrays.toString(coreMax);
+        }
+    }
+
+    /**
+     * @param dims      extent of the image along each spatial axis
+     * @param tileShape extent of the tile cores, the last tile along an axis may be smaller
+     * @param halo      context added on both sides of each core
+     */
+    public static List<Tile> plan(long[] dims, long[] tileShape, long[] halo) {
+        int n = dims.length;
+        long[] numTiles = new long[n];
+        long total = 1;
+        for (int d = 0; d < n; d++) {
+            if (tileShape[d] < 1) {
+                throw new IllegalArgumentException("Tiles must be at least one pixel wide");
+            }
+            numTiles[d] = (dims[d] + tileShape[d] - 1) / tileShape[d];
+            total *= numTiles[d];
+        }
+
+        List<Tile> tiles = new ArrayList<>();
+        long[] index = new long[n];
+        for (long t = 0; t < total; t++) {
+            long remainder = t;
+            long[] coreMin = new long[n];
+            long[] coreMax = new long[n];
+            long[] haloMin = new long[n];
+            long[] haloMax = new long[n];
+            for (int d = 0; d < n; d++) {
+                index[d] = remainder % numTiles[d];
+                remainder /= numTiles[d];
+                coreMin[d] = index[d] * tileShape[d];
+                coreMax[d] = Math.min(dims[d], coreMin[d] + tileShape[d]) - 1;
+                haloMin[d] = Math.max(0, coreMin[d] - halo[d]);
+                haloMax[d] = Math.min(dims[d] - 1, coreMax[d] + halo[d]);
+            }
+            tiles.add(new Tile(coreMin, coreMax, haloMin, haloMax));
+        }
+        return tiles;
+    }
+
+    /**
+     * Starts with a single tile covering the image and halves the longest core until there are at least
+     * {@code minTiles} tiles, each of at most {@code maxTileVoxels} including its halo.
+     * Cores are never made smaller than twice the halo along an axis, as then most of the work would be
+     * spent on context, so fewer or larger tiles than requested are returned for small images.
+     */
+    public static long[] chooseTileShape(long[] dims, long[] halo, int minTiles, long maxTileVoxels) {
+        long[] shape = dims.clone();
+        while (true) {
+            long tileVoxels = 1;
+            for (int d = 0; d < dims.length; d++) {
+                tileVoxels *= Math.min(dims[d], shape[d] + 2 * halo[d]);
+            }
+            if (countTiles(dims, shape) >= minTiles && tileVoxels <= maxTileVoxels) {
+                return shape;
+            }
+
+            int longest = -1;
+            for (int d = 0; d < dims.length; d++) {
+                long half = (shape[d] + 1) / 2;
+                if (half >= Math.max(1, 2 * halo[d]) && shape[d] > 1 && (longest < 0 || shape[d] > shape[longest])) {
+                    longest = d;
+                }
+            }
+            if (longest < 0) {
+                return shape;
+            }
+            shape[longest] = (shape[longest] + 1) / 2;
+        }
+    }
+
+    /**
+     * @return number of tiles {@link #plan} creates for the given shape
+     */
+    public static long countTiles(long[] dims, long[] tileShape) {
+        long numTiles = 1;
+        for (int d = 0; d < dims.length; d++) {
+            numTiles *= (dims[d] + tileShape[d] - 1) / tileShape[d];
+        }
+        return numTiles;
+    }
+
+    /**
+     * Splits an axis without halo, e.g. time, into as few equal batches as needed for at least {@code minTiles}
+     * tiles in total, as every batch costs the startup of an ilastik process.
+     *
+     * @param extent       extent of the axis to split
+     * @param numTilesSoFar number of tiles from splitting the other axes
+     * @return extent of a batch
+     */
+    public static long chooseBatchSize(long extent, long numTilesSoFar, int minTiles) {
+        long numBatches = Math.min(extent, Math.max(1, (minTiles + numTilesSoFar - 1) / numTilesSoFar));
+        return (extent + numBatches - 1) / numBatches;
+    }
+}
@@ -0,0 +1,350 @@
+package org.ilastik.ilastik4ij.util;
+
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import org.ilastik.ilastik4ij.IlastikOptions;
+import org.ilastik.ilastik4ij.util.TilePlanner.Tile;
+import org.scijava.log.LogService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Predicts an image in independent tiles with several ilastik processes at the same time and stitches the results.
+ *
+ * Tiles are planned over the axes {@link #TILE_AXES}, so they can split the image in space, in time, or both.
+ * The processes share the thread and RAM budget of the {@link IlastikOptions}, see {@link ProcessBudget}. Each tile result is expected to
+ * cover the halo of its tile, only its core is copied into the stitched result.
+ *
+ * Tiles run on a shared pool like {@link org.ilastik.ilastik4ij.hdf5.Hdf5IoService#getCpuExecutor}. They wait for ilastik most
+ * of the time and hand the conversion of their files to the same pool, so they always leave one of its threads free.
+ */
+public class TiledPrediction {
+    /** Axes of the positions in a {@link Tile}, axes missing in an image have extent 1 */
+    public static final AxisType[] TILE_AXES = {Axes.X, Axes.Y, Axes.Z, Axes.TIME};
+    /**
+     * Batches of frames per ilastik process when results are shown progressively, so the first results
+     * arrive early while every batch still amortizes the startup of ilastik over several frames
+     */
+    public static final int PROGRESSIVE_BATCHES_PER_PROCESS = 8;
+    private static final long STOP_TIMEOUT_SECONDS = 60;
+
+    public interface TileTask {
+        /**
+         * Predicts one tile, called concurrently for different tiles.
+         *
+         * @return the prediction of the tile including its halo
+         */
+        ImgPlus<?> predict(int index, Tile tile) throws Exception;
+    }
+
+    /**
+     * Shows the result while it is being predicted, see {@link #setProgressiveDisplay}.
+     */
+    public interface ProgressiveDisplay {
+        /**
+         * Called once the result has been created, before any tile has been copied into it.
+         */
+        void show(ImgPlus<?> result);
+
+        /**
+         * Called after each tile has been copied into the result, concurrently for tiles finishing at the same time.
+         *
+         * @return false to stop predicting, tiles that have not finished yet stay empty
+         */
+        boolean tileDone(ImgPlus<?> result, int tilesDone, int numTiles);
+    }
+
+    private final ImgPlus<?> image;
+    private final String name;
+    private final DatasetService datasetService;
+    private final LogService log;
+    private final ProcessBudget budget;
+    private final ExecutorService executor;
+    private ImgPlus result = null;
+    private ProgressiveDisplay display = null;
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private final AtomicBoolean failed = new AtomicBoolean();
+    private int runningTiles = 0;
+
+    /**
+     * @param image        input image the tiles are planned on, the result gets its extent along {@link #TILE_AXES}
+     * @param numProcesses ilastik processes running at the same time, 0 to choose from the budget in the options
+     * @param executor     pool to run the tiles on
+     */
+    public TiledPrediction(ImgPlus<?> image, String name, IlastikOptions options, int numProcesses, ExecutorService executor,
+                           DatasetService datasetService, LogService log) {
+        this.image = image;
+        this.name = name;
+        this.executor = executor;
+        this.datasetService = datasetService;
+        this.log = log;
+        this.budget = new ProcessBudget(options, numProcesses);
+    }
+
+    /**
+     * Hands out the result as soon as the first tile is done and then after each tile, so it can be shown while the
+     * others are predicted. Tiles start in the order they were planned.
+     */
+    public void setProgressiveDisplay(ProgressiveDisplay display) {
+        this.display = display;
+    }
+
+    /**
+     * @return whether the {@link ProgressiveDisplay} stopped the last run before all tiles were done
+     */
+    public boolean wasStopped() {
+        return stopped.get();
+    }
+
+    public int getNumProcesses() {
+        return budget.getNumProcesses();
+    }
+
+    /** @return value for LAZYFLOW_THREADS of each process */
+    public int getThreadsPerProcess() {
+        return budget.getThreadsPerProcess();
+    }
+
+    /** @return value for LAZYFLOW_TOTAL_RAM_MB of each process */
+    public int getRamPerProcessMb() {
+        return budget.getRamPerProcessMb();
+    }
+
+    /**
+     * @return extent of the image along {@link #TILE_AXES}
+     */
+    public static long[] dimensions(ImgPlus<?> image) {
+        long[] dims = new long[TILE_AXES.length];
+        for (int d = 0; d < TILE_AXES.length; d++) {
+            int axis = image.dimensionIndex(TILE_AXES[d]);
+            dims[d] = axis >= 0 ? image.dimension(axis) : 1;
+        }
+        return dims;
+    }
+
+    /**
+     * @return view of the tile including its halo, with all channels
+     */
+    public static <T> ImgPlus<T> crop(ImgPlus<T> image, Tile tile) {
+        long[] min = new long[image.numDimensions()];
+        long[] max = new long[image.numDimensions()];
+        for (int d = 0; d < min.length; d++) {
+            max[d] = image.dimension(d) - 1;
+        }
+        for (int d = 0; d < TILE_AXES.length; d++) {
+            int axis = image.dimensionIndex(TILE_AXES[d]);
+            if (axis >= 0) {
+                min[axis] = tile.getHaloMin()[d];
+                max[axis] = tile.getHaloMax()[d];
+            }
+        }
+        return IlastikUtilities.cropImgPlus(image, min, max);
+    }
+
+    /**
+     * Predicts all tiles, at most {@link #getNumProcesses()} at a time, and stitches them.
+     *
+     * @throws IllegalStateException if a tile failed, the remaining ones are cancelled then
+     */
+    public ImgPlus run(List<Tile> tiles, TileTask task) throws InterruptedException {
+        int parallel = Math.min(budget.getNumProcesses(), tiles.size());
+        int spareThreads = spareThreads(executor);
+        // a pool without a thread to spare would deadlock, the tiles then run one after another on this thread
+        final boolean onCallingThread = spareThreads < 1;
+        parallel = Math.max(1, Math.min(parallel, spareThreads));
+        log.info("Predicting " + tiles.size() + " tiles, " + parallel + " at a time with "
+                + budget.getThreadsPerProcess() + " threads and " + budget.getRamPerProcessMb() + " MB each");
+
+        result = null;
+        stopped.set(false);
+        failed.set(false);
+        AtomicInteger tilesDone = new AtomicInteger();
+        final Semaphore slots = new Semaphore(parallel);
+        final List<Future<?>> futures = Collections.synchronizedList(new ArrayList<>());
+        try {
+            for (int i = 0; i < tiles.size() && !stopped.get() && !failed.get(); i++) {
+                slots.acquire();
+                if (stopped.get() || failed.get()) {
+                    break;
+                }
+                final int index = i;
+                final Tile tile = tiles.get(i);
+                FutureTask<Void> future = new FutureTask<>(() -> {
+                    tileStarted();
+                    try {
+                        ImgPlus tileResult = task.predict(index, tile);
+                        ImgPlus stitched = resultFor(tileResult);
+                        stitch(tileResult, stitched, tile);
+                        if (display != null && !display.tileDone(stitched, tilesDone.incrementAndGet(), tiles.size())) {
+                            stop(futures, slots, tiles.size());
+                        }
+                        return null;
+                    } catch (Exception e) {
+                        failed.set(true);
+                        throw e;
+                    } finally {
+                        slots.release();
+                        tileFinished();
+                    }
+                });
+                futures.add(future);
+                if (onCallingThread) {
+                    future.run();
+                    if (stopped.get()) {
+                        // stopping cancels the tile running on this thread, which interrupts it
+                        Thread.interrupted();
+                    }
+                } else {
+                    executor.execute(future);
+                }
+            }
+            for (Future<?> future : new ArrayList<>(futures)) {
+                try {
+                    future.get();
+                } catch (CancellationException e) {
+                    // stopped by the display
+                }
+            }
+        } catch (ExecutionException e) {
+            if (!stopped.get()) {
+                log.error("Prediction of a tile failed: " + e.getCause().getMessage());
+                throw new IllegalStateException("Execution of ilastik was not successful.", e.getCause());
+            }
+        } finally {
+            cancel(futures);
+            if (stopped.get() || failed.get()) {
+                // cancelled tiles clean up their files and ilastik processes
+                awaitTilesFinished(STOP_TIMEOUT_SECONDS);
+            }
+        }
+        if (stopped.get()) {
+            log.warn("Prediction stopped after " + tilesDone.get() + " of " + tiles.size() + " tiles, the others are left empty");
+        }
+        return result;
+    }
+
+    /**
+     * @return how many tiles can run on the pool at the same time while it keeps a thread for other work
+     */
+    private static int spareThreads(ExecutorService executor) {
+        if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getMaximumPoolSize() - 1;
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Cancels the tiles that are not done yet, interrupting the ilastik processes of running ones.
+     */
+    private void stop(List<Future<?>> futures, Semaphore slots, int numTiles) {
+        if (stopped.compareAndSet(false, true)) {
+            cancel(futures);
+            // tiles cancelled before they started never give back their slot
+            slots.release(numTiles);
+        }
+    }
+
+    private static void cancel(List<Future<?>> futures) {
+        synchronized (futures) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private synchronized void tileStarted() {
+        runningTiles++;
+    }
+
+    private synchronized void tileFinished() {
+        runningTiles--;
+        notifyAll();
+    }
+
+    /**
+     * Waits until no tile is running anymore, the pool itself keeps running.
+     */
+    private synchronized void awaitTilesFinished(long timeoutSeconds) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        long remaining;
+        while (runningTiles > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+    }
+
+    /**
+     * @return the stitched result, created like the first tile result but with the extent of the whole image
+     */
+    @SuppressWarnings("unchecked")
+    private synchronized ImgPlus resultFor(ImgPlus<?> tileResult) {
+        if (result == null) {
+            long[] dims = new long[tileResult.numDimensions()];
+            AxisType[] axes = new AxisType[tileResult.numDimensions()];
+            for (int d = 0; d < dims.length; d++) {
+                dims[d] = tileResult.dimension(d);
+                axes[d] = tileResult.axis(d).type();
+            }
+            long[] imageDims = dimensions(image);
+            for (int d = 0; d < TILE_AXES.length; d++) {
+                int axis = tileResult.dimensionIndex(TILE_AXES[d]);
+                if (axis >= 0) {
+                    dims[axis] = imageDims[d];
+                }
+            }
+            result = datasetService.create((RealType & NativeType) tileResult.firstElement(), dims, name, axes).getImgPlus();
+            if (display != null) {
+                display.show(result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copies the core of the tile into the result, tiles write to disjoint parts of it so no locking is needed.
+     */
+    private static <T extends RealType<T>> void stitch(ImgPlus<T> tileResult, ImgPlus<T> result, Tile tile) {
+        long[] min = new long[result.numDimensions()];
+        long[] max = new long[result.numDimensions()];
+        long[] offset = new long[result.numDimensions()];
+        for (int d = 0; d < min.length; d++) {
+            max[d] = result.dimension(d) - 1;
+        }
+        for (int d = 0; d < TILE_AXES.length; d++) {
+            int axis = result.dimensionIndex(TILE_AXES[d]);
+            if (axis >= 0) {
+                min[axis] = tile.getCoreMin()[d];
+                max[axis] = tile.getCoreMax()[d];
+                offset[axis] = tile.getHaloMin()[d];
+            }
+        }
+
+        Cursor<T> out = Views.interval(result, min, max).localizingCursor();
+        RandomAccess<T> in = tileResult.randomAccess();
+        while (out.hasNext()) {
+            out.fwd();
+            for (int d = 0; d < offset.length; d++) {
+                in.setPosition(out.getLongPosition(d) - offset[d], d);
+            }
+            out.get().set(in.get());
+        }
+    }
+}
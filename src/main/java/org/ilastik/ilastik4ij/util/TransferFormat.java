@@ -0,0 +1,191 @@
+package org.ilastik.ilastik4ij.util;
+
+import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
+import org.ilastik.ilastik4ij.hdf5.CompressionProfile;
+import org.ilastik.ilastik4ij.hdf5.Hdf5DataSetReader;
+import org.ilastik.ilastik4ij.hdf5.Hdf5DataSetWriterFromImgPlus;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoService;
+import org.ilastik.ilastik4ij.hdf5.Hdf5LazyDataSetReader;
+import org.ilastik.ilastik4ij.labels.LabelIndex;
+import org.ilastik.ilastik4ij.labels.RunLengthLabelImg;
+import org.ilastik.ilastik4ij.npy.NpyReader;
+import org.ilastik.ilastik4ij.npy.NpyWriter;
+import org.scijava.log.LogService;
+
+import java.util.List;
+
+/**
+ * File format of the images exchanged with ilastik.
+ *
+ * HDF5 supports compression and is what ilastik projects are made of. Uncompressed numpy arrays are written
+ * and read through memory mapping, with bulk copies for ImageJ's planar images, and need no native library.
+ */
+public enum TransferFormat {
+    HDF5("HDF5", ".h5"),
+    NUMPY("numpy", ".npy");
+
+    private static final String HDF5_DATASET = "data";
+    private static final String HDF5_RESULT_DATASET = "exported_data";
+    private static final String HDF5_AXIS_ORDER = "tzyxc";
+
+    private final String name;
+    private final String extension;
+
+    TransferFormat(String name, String extension) {
+        this.name = name;
+        this.extension = extension;
+    }
+
+    /**
+     * Picks the format for one job.
+     *
+     * @param requested the format chosen by the user
+     * @param keepFiles whether the files are kept for training, which always uses HDF5 so they can be added to projects
+     * @param inputs    all images of the job, they have to share the format because ilastik gets a single axis order
+     */
+    public static TransferFormat choose(String requested, boolean keepFiles, LogService log, ImgPlus<?>... inputs) {
+        if (!requested.equals(NUMPY.name) || keepFiles) {
+            return HDF5;
+        }
+        for (ImgPlus<?> input : inputs) {
+            if (!NpyWriter.supports(input.firstElement())) {
+                log.info("Cannot write " + input.firstElement().getClass().getSimpleName() + " as numpy array, using HDF5");
+                return HDF5;
+            }
+        }
+        return NUMPY;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * @return the HDF5 dataset of results, or null if the format is not HDF5
+     */
+    public String getResultDataset() {
+        return this == HDF5 ? HDF5_RESULT_DATASET : null;
+    }
+
+    /**
+     * @return axes of the files written by {@link #write}, in ilastik's notation
+     */
+    public String getAxisOrder() {
+        return this == NUMPY ? NpyWriter.AXIS_ORDER : HDF5_AXIS_ORDER;
+    }
+
+    /**
+     * Adds the ilastik arguments for input axes and output format.
+     */
+    public void addArguments(List<String> jobArgs) {
+        if (this == NUMPY) {
+            jobArgs.add("--input_axes=" + NpyWriter.AXIS_ORDER);
+        }
+        addOutputArguments(jobArgs);
+    }
+
+    /**
+     * Adds the ilastik arguments for the output format only, for inputs that were not written by {@link #write}.
+     */
+    public void addOutputArguments(List<String> jobArgs) {
+        if (this == NUMPY) {
+            jobArgs.add("--output_format=numpy");
+            jobArgs.add("--output_axis_order=" + NpyWriter.AXIS_ORDER);
+        } else {
+            jobArgs.add("--output_format=hdf5");
+            jobArgs.add("--output_axis_order=" + HDF5_AXIS_ORDER);
+        }
+    }
+
+    /**
+     * @param compression only used for HDF5
+     */
+    public void write(ImgPlus image, String filename, CompressionProfile compression, Hdf5IoService ioService, LogService log) {
+        write(image, filename, HDF5_DATASET, compression, ioService, log);
+    }
+
+    /**
+     * Writes an image the way ilastik exports results, so that {@link #read} can read it.
+     *
+     * @param compression only used for HDF5
+     */
+    public void writeResult(ImgPlus image, String filename, CompressionProfile compression, Hdf5IoService ioService, LogService log) {
+        write(image, filename, HDF5_RESULT_DATASET, compression, ioService, log);
+    }
+
+    private void write(ImgPlus image, String filename, String dataset, CompressionProfile compression, Hdf5IoService ioService, LogService log) {
+        if (this == NUMPY) {
+            new NpyWriter<>(image, filename, log).write();
+        } else {
+            Hdf5DataSetWriterFromImgPlus writer = new Hdf5DataSetWriterFromImgPlus(image, filename, dataset, compression, log);
+            writer.setIoService(ioService);
+            writer.write();
+        }
+    }
+
+    /**
+     * Reads a result exported by ilastik with the arguments of {@link #addArguments}.
+     */
+    public ImgPlus read(String filename, DatasetService datasetService, Hdf5IoService ioService, LogService log) {
+        if (this == NUMPY) {
+            return new NpyReader(filename, NpyWriter.AXIS_ORDER, log).read();
+        }
+        Hdf5DataSetReader reader = new Hdf5DataSetReader(filename, HDF5_RESULT_DATASET, HDF5_AXIS_ORDER, log, datasetService);
+        reader.setIoService(ioService);
+        return reader.read();
+    }
+
+    /**
+     * Reads a label image exported by ilastik, like {@link #read}, with a {@link LabelIndex} of its objects attached.
+     * HDF5 results are indexed while they are read, numpy results in a parallel pass once they have been read.
+     *
+     * @param classLabels whether the labels are classes, like object predictions, whose objects are their connected
+     *                    components, see {@link LabelIndex#getObjectClass}
+     * @param compress    decode results plane by plane into a read-only {@link RunLengthLabelImg}
+     */
+    public ImgPlus readLabels(String filename, boolean classLabels, boolean compress, DatasetService datasetService, Hdf5IoService ioService, LogService log) {
+        if (this == NUMPY) {
+            NpyReader reader = new NpyReader(filename, NpyWriter.AXIS_ORDER, log);
+            reader.setRunLengthEncoded(compress);
+            ImgPlus labels = reader.read();
+            LabelIndex index = LabelIndex.compute(labels, ioService.getCpuExecutor(), classLabels);
+            index.attachTo(labels);
+            log.info(index.toString());
+            return labels;
+        }
+        Hdf5DataSetReader reader = new Hdf5DataSetReader(filename, HDF5_RESULT_DATASET, HDF5_AXIS_ORDER, log, datasetService);
+        reader.setIoService(ioService);
+        reader.setIndexLabels(true);
+        reader.setClassLabels(classLabels);
+        reader.setRunLengthEncoded(compress);
+        return reader.read();
+    }
+
+    /**
+     * @return whether {@link #readLazily} can load results on demand
+     */
+    public boolean canReadLazily() {
+        return this == HDF5;
+    }
+
+    /**
+     * Opens a result exported by ilastik without reading its pixels yet, they are loaded when accessed.
+     * The image takes over the file and deletes it after it has been garbage collected.
+     *
+     * @throws UnsupportedOperationException if the format {@link #canReadLazily cannot be read lazily}
+     */
+    public ImgPlus readLazily(String filename, Hdf5IoService ioService, LogService log) {
+        if (!canReadLazily()) {
+            throw new UnsupportedOperationException(name + " results cannot be read lazily");
+        }
+        Hdf5LazyDataSetReader reader = new Hdf5LazyDataSetReader(filename, HDF5_RESULT_DATASET, HDF5_AXIS_ORDER, log, ioService);
+        reader.setDeleteFileWithImage(true);
+        return reader.read();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
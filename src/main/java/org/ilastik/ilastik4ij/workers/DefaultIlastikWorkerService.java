@@ -0,0 +1,97 @@
+package org.ilastik.ilastik4ij.workers;
+
+import org.ilastik.ilastik4ij.IlastikOptions;
+import org.ilastik.ilastik4ij.util.ProcessBudget;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Default {@link IlastikWorkerService}, running the bundled {@value #DRIVER_SCRIPT} in ilastik's Python.
+ */
+@Plugin(type = Service.class)
+public class DefaultIlastikWorkerService extends AbstractService implements IlastikWorkerService {
+    static final String DRIVER_SCRIPT = "ilastik4ij_worker.py";
+
+    @Parameter
+    private LogService log;
+
+    private final Map<String, ProjectPool> pools = new HashMap<>();
+    private File driverScript;
+
+    @Override
+    public int runJob(IlastikOptions options, File projectFile, List<String> jobArgs) throws IOException, InterruptedException {
+        return getPool(options, projectFile).run(jobArgs);
+    }
+
+    @Override
+    public synchronized void dispose() {
+        for (ProjectPool projectPool : pools.values()) {
+            projectPool.pool.close();
+        }
+        pools.clear();
+        if (driverScript != null) {
+            driverScript.delete();
+        }
+    }
+
+    private synchronized IlastikWorkerPool getPool(IlastikOptions options, File projectFile) throws IOException {
+        String key = projectFile.getCanonicalPath();
+        long lastModified = projectFile.lastModified();
+        ProjectPool projectPool = pools.get(key);
+        if (projectPool != null && projectPool.lastModified != lastModified) {
+            // the workers still have the old version of the project loaded
+            log.info("Project " + key + " changed, restarting its ilastik workers");
+            projectPool.pool.close();
+            projectPool = null;
+        }
+        if (projectPool == null) {
+            List<String> command = Arrays.asList(options.getWorkerPythonPath(), getDriverScript().getAbsolutePath(),
+                    "--project=" + key);
+            // each worker gets its share of the budget, which is what the runner service admits its jobs with
+            ProcessBudget share = new ProcessBudget(options, options.getNumWorkers());
+            IlastikWorkerPool pool = new IlastikWorkerPool(command,
+                    pb -> options.configureProcessBuilderEnvironment(pb, share.getThreadsPerProcess(), share.getRamPerProcessMb()),
+                    options.getNumWorkers(), options.getMaxJobsPerWorker(), options.getMaxWorkerRamMb(), log);
+            projectPool = new ProjectPool(lastModified, pool);
+            pools.put(key, projectPool);
+        }
+        return projectPool.pool;
+    }
+
+    private File getDriverScript() throws IOException {
+        if (driverScript == null) {
+            File script = File.createTempFile("ilastik4ij_worker", ".py");
+            try (InputStream in = getClass().getResourceAsStream("/" + DRIVER_SCRIPT)) {
+                if (in == null) {
+                    throw new IOException("Could not find " + DRIVER_SCRIPT);
+                }
+                Files.copy(in, script.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            driverScript = script;
+        }
+        return driverScript;
+    }
+
+    private static class ProjectPool {
+        final long lastModified;
+        final IlastikWorkerPool pool;
+
+        ProjectPool(long lastModified, IlastikWorkerPool pool) {
+            this.lastModified = lastModified;
+            this.pool = pool;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.ilastik.ilastik4ij.workers;
+
+import org.ilastik.ilastik4ij.runner.LogPump;
+import org.scijava.log.LogService;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived ilastik process that has a project loaded and runs headless jobs one after the other.
+ *
+ * Worker and plugin talk in tab separated lines starting with {@value #MARKER}:
+ * <pre>
+ *   worker -&gt; plugin: READY                      the project is loaded
+ *   plugin -&gt; worker: RUN  arg  arg ...          headless arguments of one job, without --project
+ *   worker -&gt; plugin: DONE exitCode rssKb        the job finished, with the resident memory of the worker
+ *   plugin -&gt; worker: QUIT
+ * </pre>
+ * All other output of the worker is forwarded to the log.
+ */
+public class IlastikWorker implements AutoCloseable {
+    static final String MARKER = "ILASTIK4IJ";
+    private static final long QUIT_TIMEOUT_SECONDS = 10;
+
+    private final Process process;
+    private final BufferedReader stdout;
+    private final Writer stdin;
+    private final LogService log;
+    private int jobsDone = 0;
+    private long rssKb = 0;
+
+    /**
+     * Starts the worker and waits until it has loaded its project.
+     */
+    public IlastikWorker(ProcessBuilder processBuilder, LogService log) throws IOException {
+        this.log = log;
+        this.process = processBuilder.start();
+        new LogPump(log, null).start(process.getErrorStream(), false);
+        this.stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        this.stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        try {
+            String[] reply = awaitReply();
+            if (!"READY".equals(reply[1])) {
+                throw new IOException("ilastik worker sent " + reply[1] + " instead of READY");
+            }
+        } catch (IOException e) {
+            process.destroy();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs one job and waits for it to finish.
+     *
+     * @param args headless ilastik arguments, e.g. {@code --output_filename_format=...}
+     * @return the exit code of the job, 0 on success
+     * @throws IOException if the worker died
+     */
+    public int run(List<String> args) throws IOException {
+        StringBuilder line = new StringBuilder(MARKER).append("\tRUN");
+        for (String arg : args) {
+            if (arg.indexOf('\t') >= 0 || arg.indexOf('\n') >= 0 || arg.indexOf('\r') >= 0) {
+                throw new IllegalArgumentException("Worker arguments must not contain tabs or line breaks: " + arg);
+            }
+            line.append('\t').append(arg);
+        }
+        stdin.write(line.append('\n').toString());
+        stdin.flush();
+
+        String[] reply = awaitReply();
+        if (!"DONE".equals(reply[1]) || reply.length < 4) {
+            throw new IOException("Unexpected reply of ilastik worker: " + String.join(" ", reply));
+        }
+        jobsDone++;
+        try {
+            rssKb = Long.parseLong(reply[3]);
+            return Integer.parseInt(reply[2]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected reply of ilastik worker: " + String.join(" ", reply), e);
+        }
+    }
+
+    public int getJobsDone() {
+        return jobsDone;
+    }
+
+    /**
+     * @return resident memory of the worker in kB after its last job, as reported by the worker itself
+     */
+    public long getRssKb() {
+        return rssKb;
+    }
+
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    /**
+     * Asks the worker to quit and kills it if it does not do so in time.
+     */
+    @Override
+    public void close() {
+        try {
+            if (process.isAlive()) {
+                stdin.write(MARKER + "\tQUIT\n");
+                stdin.flush();
+            }
+        } catch (IOException e) {
+            // the worker is already gone
+        }
+        try {
+            if (!process.waitFor(QUIT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("ilastik worker did not quit, killing it");
+                process.destroyForcibly();
+            }
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads output of the worker until the next protocol message and returns its fields.
+     */
+    private String[] awaitReply() throws IOException {
+        String line;
+        while ((line = stdout.readLine()) != null) {
+            if (line.startsWith(MARKER + "\t")) {
+                return line.split("\t", -1);
+            }
+            log.info(line);
+        }
+        throw new IOException("ilastik worker exited unexpectedly");
+    }
+}
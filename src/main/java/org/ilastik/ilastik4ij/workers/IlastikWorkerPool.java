@@ -0,0 +1,149 @@
+package org.ilastik.ilastik4ij.workers;
+
+import org.scijava.log.LogService;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Up to {@code maxWorkers} warm {@link IlastikWorker}s running the same worker command, usually for one project file.
+ *
+ * Workers are started on demand and reused for later jobs. A worker is recycled, i.e. quit and replaced by
+ * a fresh one when needed, after {@code maxJobsPerWorker} jobs, when it reports more than {@code maxRssMb}
+ * resident memory, or when a job fails, because a failed job may leave the worker in an unknown state.
+ */
+public class IlastikWorkerPool implements AutoCloseable {
+    private final List<String> workerCommand;
+    private final Consumer<ProcessBuilder> environment;
+    private final int maxWorkers;
+    private final int maxJobsPerWorker;
+    private final long maxRssMb;
+    private final LogService log;
+
+    private final Deque<IlastikWorker> idle = new ArrayDeque<>();
+    private int numWorkers = 0;
+    private int startedWorkers = 0;
+    private boolean closed = false;
+
+    /**
+     * @param workerCommand    command line starting one worker
+     * @param environment      configures the environment of each worker process
+     * @param maxRssMb         recycle workers using more memory than this, 0 for no limit
+     */
+    public IlastikWorkerPool(List<String> workerCommand, Consumer<ProcessBuilder> environment,
+                             int maxWorkers, int maxJobsPerWorker, long maxRssMb, LogService log) {
+        if (maxWorkers < 1 || maxJobsPerWorker < 1) {
+            throw new IllegalArgumentException("Need at least one worker and one job per worker");
+        }
+        this.workerCommand = new ArrayList<>(workerCommand);
+        this.environment = environment;
+        this.maxWorkers = maxWorkers;
+        this.maxJobsPerWorker = maxJobsPerWorker;
+        this.maxRssMb = maxRssMb;
+        this.log = log;
+    }
+
+    /**
+     * Runs the job on an idle worker, starting a new one if all are busy and the pool is not full yet.
+     * Otherwise waits for a worker to become idle.
+     *
+     * @return exit code of the job
+     */
+    public int run(List<String> jobArgs) throws IOException, InterruptedException {
+        IlastikWorker worker = acquire();
+        boolean reusable = false;
+        try {
+            int exitCode = worker.run(jobArgs);
+            reusable = exitCode == 0 && !needsRecycling(worker);
+            return exitCode;
+        } finally {
+            release(worker, reusable);
+        }
+    }
+
+    /**
+     * @return number of worker processes started so far, including recycled ones
+     */
+    public synchronized int getStartedWorkers() {
+        return startedWorkers;
+    }
+
+    /**
+     * Quits all idle workers. Busy workers quit as soon as their job is done.
+     */
+    @Override
+    public void close() {
+        List<IlastikWorker> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<>(idle);
+            numWorkers -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        for (IlastikWorker worker : toClose) {
+            worker.close();
+        }
+    }
+
+    private IlastikWorker acquire() throws IOException, InterruptedException {
+        synchronized (this) {
+            while (!closed && idle.isEmpty() && numWorkers >= maxWorkers) {
+                wait();
+            }
+            if (closed) {
+                throw new IllegalStateException("Worker pool has been closed");
+            }
+            if (!idle.isEmpty()) {
+                return idle.pop();
+            }
+            // reserve the slot, the worker itself is started outside of the lock as loading the project takes long
+            numWorkers++;
+            startedWorkers++;
+        }
+        try {
+            log.info("Starting ilastik worker: " + workerCommand);
+            ProcessBuilder processBuilder = new ProcessBuilder(workerCommand);
+            environment.accept(processBuilder);
+            return new IlastikWorker(processBuilder, log);
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                numWorkers--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private void release(IlastikWorker worker, boolean reusable) {
+        synchronized (this) {
+            if (reusable && !closed) {
+                idle.push(worker);
+                notifyAll();
+                return;
+            }
+            numWorkers--;
+            notifyAll();
+        }
+        worker.close();
+    }
+
+    private boolean needsRecycling(IlastikWorker worker) {
+        if (!worker.isAlive()) {
+            return true;
+        }
+        if (worker.getJobsDone() >= maxJobsPerWorker) {
+            log.info("Recycling ilastik worker after " + worker.getJobsDone() + " jobs");
+            return true;
+        }
+        if (maxRssMb > 0 && worker.getRssKb() > maxRssMb * 1024) {
+            log.info("Recycling ilastik worker using " + worker.getRssKb() / 1024 + " MB");
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,24 @@
+package org.ilastik.ilastik4ij.workers;
+
+import org.ilastik.ilastik4ij.IlastikOptions;
+import org.scijava.service.SciJavaService;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Keeps warm ilastik workers around, one {@link IlastikWorkerPool} per project file,
+ * so that consecutive predictions do not pay for starting ilastik and loading the project again.
+ */
+public interface IlastikWorkerService extends SciJavaService {
+
+    /**
+     * Runs one headless job on a worker that has the project loaded, starting workers as needed.
+     * Pools are configured from the options when they are created, and replaced when the project file changes.
+     *
+     * @param jobArgs headless ilastik arguments without the executable, {@code --headless} and {@code --project}
+     * @return exit code of the job, 0 on success
+     */
+    int runJob(IlastikOptions options, File projectFile, List<String> jobArgs) throws IOException, InterruptedException;
+}
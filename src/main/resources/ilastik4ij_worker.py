@@ -0,0 +1,105 @@
+"""
+Keeps an ilastik project loaded and runs headless batch jobs sent by the ilastik4ij Fiji plugin.
+
+Started with the Python interpreter of an ilastik installation as
+
+    python ilastik4ij_worker.py --project=MyProject.ilp
+
+Messages are tab separated lines starting with ILASTIK4IJ:
+
+    worker -> plugin: READY                  the project is loaded
+    plugin -> worker: RUN  arg  arg ...      headless arguments of one job, without --project
+    worker -> plugin: DONE exitCode rssKb    the job finished, with the resident memory of the worker
+    plugin -> worker: QUIT
+
+Stdout is reserved for these messages, everything ilastik prints goes to stderr.
+"""
+import os
+import sys
+import traceback
+
+MARKER = "ILASTIK4IJ"
+
+
+def _protocol_stream():
+    # keep the real stdout for the protocol and send everything else printed to stdout to stderr
+    protocol = os.fdopen(os.dup(sys.stdout.fileno()), "w")
+    sys.stdout.flush()
+    os.dup2(sys.stderr.fileno(), sys.stdout.fileno())
+    return protocol
+
+
+def _send(protocol, *fields):
+    protocol.write("\t".join((MARKER,) + tuple(str(f) for f in fields)) + "\n")
+    protocol.flush()
+
+
+def _rss_kb():
+    try:
+        with open("/proc/self/status") as status:
+            for line in status:
+                if line.startswith("VmRSS:"):
+                    return int(line.split()[1])
+    except IOError:
+        pass
+    try:
+        import resource
+        # peak instead of current resident memory, in bytes on macOS and kB elsewhere
+        rss = resource.getrusage(resource.RUSAGE_SELF).ru_maxrss
+        return rss // 1024 if sys.platform == "darwin" else rss
+    except ImportError:
+        return 0
+
+
+def _add_ilastik_to_path():
+    # the same source directories the ilastik launchers put on the path
+    bin_dir = os.path.dirname(os.path.abspath(sys.executable))
+    for root in (os.path.dirname(bin_dir), bin_dir):
+        meta = os.path.join(root, "ilastik-meta")
+        if os.path.isdir(meta):
+            for package in ("ilastik", "lazyflow", "volumina"):
+                sys.path.insert(0, os.path.join(meta, package))
+            return
+
+
+def _run_job(workflow, args):
+    # what the workflows do with headless batch arguments given at startup, see their onProjectLoaded
+    export_args, unused_args = workflow.dataExportApplet.parse_known_cmdline_args(args)
+    input_args, unused_args = workflow.batchProcessingApplet.parse_known_cmdline_args(unused_args)
+    if unused_args:
+        sys.stderr.write("Ignoring unknown arguments: %s\n" % " ".join(unused_args))
+    workflow.dataExportApplet.configure_operator_with_parsed_args(export_args)
+    workflow.batchProcessingApplet.run_export_from_parsed_args(input_args)
+
+
+def main():
+    protocol = _protocol_stream()
+    _add_ilastik_to_path()
+    import ilastik_main
+
+    parsed_args, workflow_cmdline_args = ilastik_main.parser.parse_known_args(sys.argv[1:] + ["--headless"])
+    shell = ilastik_main.main(parsed_args, workflow_cmdline_args)
+    workflow = shell.projectManager.workflow
+    _send(protocol, "READY")
+
+    for line in iter(sys.stdin.readline, ""):
+        fields = line.rstrip("\r\n").split("\t")
+        if len(fields) < 2 or fields[0] != MARKER:
+            continue
+        if fields[1] == "QUIT":
+            break
+        if fields[1] == "RUN":
+            try:
+                _run_job(workflow, fields[2:])
+                exit_code = 0
+            except Exception:
+                traceback.print_exc()
+                exit_code = 1
+            sys.stderr.flush()
+            _send(protocol, "DONE", exit_code, _rss_kb())
+
+    shell.closeCurrentProject()
+
+
+if __name__ == "__main__":
+    main()
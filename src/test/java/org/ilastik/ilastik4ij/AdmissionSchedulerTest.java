@@ -0,0 +1,147 @@
+package org.ilastik.ilastik4ij;
+
+import org.ilastik.ilastik4ij.runner.AdmissionScheduler;
+import org.ilastik.ilastik4ij.runner.AdmissionScheduler.Admission;
+import org.ilastik.ilastik4ij.runner.AdmissionScheduler.Priority;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionSchedulerTest {
+
+    private static void awaitQueueLength(AdmissionScheduler scheduler, int length) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getQueueLength() != length) {
+            assertTrue("Timed out waiting for the queue", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testSharesFitTogether() throws Exception {
+        AdmissionScheduler scheduler = new AdmissionScheduler(8, 8000);
+        Admission first = scheduler.acquire(Priority.BATCH, 4, 4000);
+        Admission second = scheduler.acquire(Priority.BATCH, 4, 4000);
+        assertEquals(8, scheduler.getUsedThreads());
+        assertEquals(8000, scheduler.getUsedRamMb());
+        first.close();
+        second.close();
+        // closing twice does not give back more than was taken
+        second.close();
+        assertEquals(0, scheduler.getUsedThreads());
+        assertEquals(0, scheduler.getRunningJobs());
+    }
+
+    @Test
+    public void testDefaultAndOversizedRequestsGetWholeBudget() throws Exception {
+        AdmissionScheduler scheduler = new AdmissionScheduler(4, 2000);
+        try (Admission admission = scheduler.acquire(Priority.INTERACTIVE, -1, 0)) {
+            assertEquals(4, admission.getThreads());
+            assertEquals(2000, admission.getRamMb());
+        }
+        try (Admission admission = scheduler.acquire(Priority.INTERACTIVE, 16, 64000)) {
+            assertEquals(4, admission.getThreads());
+            assertEquals(2000, admission.getRamMb());
+        }
+    }
+
+    @Test
+    public void testJobWaitsUntilRamIsFree() throws Exception {
+        AdmissionScheduler scheduler = new AdmissionScheduler(8, 4000);
+        Admission running = scheduler.acquire(Priority.INTERACTIVE, 1, 3000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Admission> waiting = executor.submit(() -> scheduler.acquire(Priority.INTERACTIVE, 1, 2000));
+            awaitQueueLength(scheduler, 1);
+            assertFalse(waiting.isDone());
+            running.close();
+            waiting.get(5, TimeUnit.SECONDS).close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testInteractiveJobsGoFirst() throws Exception {
+        AdmissionScheduler scheduler = new AdmissionScheduler(2, 1000);
+        Admission running = scheduler.acquire(Priority.BATCH, 0, 0);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(3);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            executor.submit(() -> run(scheduler, Priority.BATCH, "batch1", order, done));
+            awaitQueueLength(scheduler, 1);
+            executor.submit(() -> run(scheduler, Priority.BATCH, "batch2", order, done));
+            awaitQueueLength(scheduler, 2);
+            executor.submit(() -> run(scheduler, Priority.INTERACTIVE, "interactive", order, done));
+            awaitQueueLength(scheduler, 3);
+
+            running.close();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("interactive", "batch1", "batch2"), order);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testInterruptedWaiterLeavesQueue() throws Exception {
+        AdmissionScheduler scheduler = new AdmissionScheduler(1, 1000);
+        Admission running = scheduler.acquire(Priority.INTERACTIVE, 0, 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Admission> waiting = executor.submit(() -> scheduler.acquire(Priority.INTERACTIVE, 0, 0));
+            awaitQueueLength(scheduler, 1);
+            waiting.cancel(true);
+            awaitQueueLength(scheduler, 0);
+            running.close();
+            try (Admission next = scheduler.acquire(Priority.INTERACTIVE, 0, 0)) {
+                assertEquals(1, scheduler.getRunningJobs());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLoweredBudgetAppliesToWaitingJobs() throws Exception {
+        AdmissionScheduler scheduler = new AdmissionScheduler(8, 8000);
+        Admission running = scheduler.acquire(Priority.INTERACTIVE, 8, 8000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Admission> waiting = executor.submit(() -> scheduler.acquire(Priority.INTERACTIVE, 0, 0));
+            awaitQueueLength(scheduler, 1);
+            scheduler.setBudget(2, 1000);
+            running.close();
+            try (Admission admission = waiting.get(5, TimeUnit.SECONDS)) {
+                // the request was made for the old budget, the job only runs alone
+                assertEquals(8, admission.getThreads());
+                assertEquals(1, scheduler.getRunningJobs());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Void run(AdmissionScheduler scheduler, Priority priority, String name, List<String> order,
+                            CountDownLatch done) throws InterruptedException {
+        // each job takes the whole budget, so they run one after the other
+        try (Admission admission = scheduler.acquire(priority, 0, 0)) {
+            order.add(name);
+        }
+        done.countDown();
+        return null;
+    }
+}
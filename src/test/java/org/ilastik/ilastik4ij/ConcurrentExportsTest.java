@@ -0,0 +1,54 @@
+package org.ilastik.ilastik4ij;
+
+import org.ilastik.ilastik4ij.util.ConcurrentExports;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConcurrentExportsTest {
+
+    @Test
+    public void testExportsOverlap() {
+        // each export only finishes once the other one has started, which deadlocks if they run one after the other
+        CountDownLatch started = new CountDownLatch(2);
+        Runnable export = () -> {
+            started.countDown();
+            try {
+                assertTrue("exports did not run at the same time", started.await(10, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        };
+        ConcurrentExports.run(export, null, export);
+        assertEquals(0, started.getCount());
+    }
+
+    @Test
+    public void testFailureIsThrownAfterOtherExportsFinished() {
+        AtomicBoolean slowExportFinished = new AtomicBoolean();
+        Runnable failing = () -> {
+            throw new IllegalStateException("export failed");
+        };
+        Runnable slow = () -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            slowExportFinished.set(true);
+        };
+        try {
+            ConcurrentExports.run(failing, slow);
+            fail("the failure of the first export must be rethrown");
+        } catch (IllegalStateException e) {
+            assertEquals("export failed", e.getMessage());
+        }
+        assertTrue(slowExportFinished.get());
+    }
+}
@@ -0,0 +1,84 @@
+package org.ilastik.ilastik4ij;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.RealType;
+import org.ilastik.ilastik4ij.cache.ContentHasher;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class ContentHasherTest {
+
+    private static <T extends RealType<T>> ImgPlus<T> filled(Img<T> img, AxisType... axes) {
+        Cursor<T> cursor = img.cursor();
+        int i = 0;
+        while (cursor.hasNext()) {
+            cursor.next().setReal(i++ % 251);
+        }
+        return new ImgPlus<>(img, "test", axes);
+    }
+
+    private static String hash(ImgPlus<?> image) {
+        return new ContentHasher().updateImage(image).toHex();
+    }
+
+    @Test
+    public void testEqualImagesHashEqual() {
+        String first = hash(filled(ArrayImgs.floats(10, 12), Axes.X, Axes.Y));
+        String second = hash(filled(ArrayImgs.floats(10, 12), Axes.X, Axes.Y));
+        assertEquals(32, first.length());
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void testChangedPixelChangesHash() {
+        ImgPlus<?> image = filled(PlanarImgs.unsignedShorts(7, 5, 3), Axes.X, Axes.Y, Axes.Z);
+        String before = hash(image);
+        ImgPlus<?> changed = filled(PlanarImgs.unsignedShorts(7, 5, 3), Axes.X, Axes.Y, Axes.Z);
+        Cursor<? extends RealType<?>> cursor = ((Img<? extends RealType<?>>) changed.getImg()).cursor();
+        for (int i = 0; i < 100; i++) {
+            cursor.fwd();
+        }
+        cursor.get().setReal(cursor.get().getRealDouble() + 1);
+        assertEquals(before, hash(filled(PlanarImgs.unsignedShorts(7, 5, 3), Axes.X, Axes.Y, Axes.Z)));
+        assertNotEquals(before, hash(changed));
+    }
+
+    @Test
+    public void testShapeAndAxesArePartOfHash() {
+        String xy = hash(filled(ArrayImgs.unsignedBytes(10, 20), Axes.X, Axes.Y));
+        assertNotEquals(xy, hash(filled(ArrayImgs.unsignedBytes(20, 10), Axes.X, Axes.Y)));
+        assertNotEquals(xy, hash(filled(ArrayImgs.unsignedBytes(10, 20), Axes.X, Axes.TIME)));
+    }
+
+    @Test
+    public void testFileHashCoversTrailingBytes() throws IOException {
+        File file = File.createTempFile("hash", ".bin");
+        try {
+            byte[] content = new byte[8 * 1000 + 3];
+            for (int i = 0; i < content.length; i++) {
+                content[i] = (byte) (i * 7);
+            }
+            Files.write(file.toPath(), content);
+            String before = new ContentHasher().updateFile(file).toHex();
+            assertEquals(before, new ContentHasher().updateFile(file).toHex());
+
+            content[content.length - 1]++;
+            Files.write(file.toPath(), content);
+            assertNotEquals(before, new ContentHasher().updateFile(file).toHex());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.ilastik.ilastik4ij;
+
+import net.imagej.ImageJ;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypes.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.ilastik.ilastik4ij.cache.CacheStatistics;
+import org.ilastik.ilastik4ij.cache.PredictionCacheService;
+import org.ilastik.ilastik4ij.util.TransferFormat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DefaultPredictionCacheServiceTest {
+
+    private final ImageJ ij = new ImageJ();
+    private final Context context = ij.getContext();
+    private final PredictionCacheService cache = context.getService(PredictionCacheService.class);
+    private final IlastikOptions options = new IlastikOptions();
+    private File directory;
+    private File project;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("cache").toFile();
+        project = File.createTempFile("project", ".ilp");
+        Files.write(project.toPath(), new byte[]{1, 2, 3});
+        options.setResultCacheDirectory(new File(directory, "results"));
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(directory);
+        project.delete();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static ImgPlus<UnsignedShortType> createImage(int offset) {
+        ArrayImg<UnsignedShortType, ShortArray> img = ArrayImgs.unsignedShorts(6, 5, 2, 1, 1);
+        Cursor<UnsignedShortType> cursor = img.localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            cursor.get().set(offset + cursor.getIntPosition(0) + 10 * cursor.getIntPosition(1) + 100 * cursor.getIntPosition(2));
+        }
+        AxisType[] axes = {Axes.X, Axes.Y, Axes.CHANNEL, Axes.Z, Axes.TIME};
+        return new ImgPlus<>(img, "result", axes);
+    }
+
+    /**
+     * @return a file of ilastik's output that takes the given number of kilobytes
+     */
+    private File createResultFile(int kilobytes) throws IOException {
+        File file = File.createTempFile("result", ".h5", directory);
+        Files.write(file.toPath(), new byte[kilobytes * 1024]);
+        return file;
+    }
+
+    private File cachedFile(String key) {
+        return new File(options.getResultCacheDirectory(), key + TransferFormat.HDF5.getExtension());
+    }
+
+    @Test
+    public void testKeyDependsOnImageAndSettings() {
+        String key = cache.createKey(options, project, createImage(0), "Probabilities");
+        assertNotNull(key);
+        assertEquals(key, cache.createKey(options, project, createImage(0), "Probabilities"));
+        assertNotEquals(key, cache.createKey(options, project, createImage(1), "Probabilities"));
+        assertNotEquals(key, cache.createKey(options, project, createImage(0), "Segmentation"));
+    }
+
+    @Test
+    public void testMissThenHit() {
+        ImgPlus<UnsignedShortType> result = createImage(0);
+        String key = cache.createKey(options, project, createImage(7), "Probabilities");
+
+        assertNull(cache.lookup(options, key, TransferFormat.HDF5));
+        cache.store(options, key, result, TransferFormat.HDF5);
+        ImgPlus cached = cache.lookup(options, key, TransferFormat.HDF5);
+        assertNotNull(cached);
+
+        for (int d = 0; d < result.numDimensions(); d++) {
+            assertEquals(result.dimension(d), cached.dimension(d));
+        }
+        RandomAccess out = cached.randomAccess();
+        Cursor<UnsignedShortType> cursor = result.localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            out.setPosition(cursor);
+            assertEquals(cursor.get().get(), ((UnsignedShortType) out.get()).get());
+        }
+
+        CacheStatistics statistics = cache.getStatistics();
+        assertEquals(1, statistics.getHits());
+        assertEquals(1, statistics.getMisses());
+        assertEquals(1, statistics.getStores());
+        assertEquals(0, statistics.getEvictions());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedResultIsEvicted() throws IOException {
+        options.setMaxResultCacheMb(1);
+        String first = String.format("%032x", 1);
+        String second = String.format("%032x", 2);
+        String third = String.format("%032x", 3);
+        cache.store(options, first, createResultFile(400), TransferFormat.HDF5);
+        cache.store(options, second, createResultFile(400), TransferFormat.HDF5);
+        assertEquals(0, cache.getStatistics().getEvictions());
+
+        // the first result was used after the second one
+        long now = System.currentTimeMillis();
+        assertTrue(cachedFile(second).setLastModified(now - 20000));
+        assertTrue(cachedFile(first).setLastModified(now - 10000));
+
+        cache.store(options, third, createResultFile(400), TransferFormat.HDF5);
+        assertTrue(cachedFile(first).isFile());
+        assertFalse(cachedFile(second).exists());
+        assertTrue(cachedFile(third).isFile());
+        assertEquals(1, cache.getStatistics().getEvictions());
+        assertEquals(3, cache.getStatistics().getStores());
+    }
+}
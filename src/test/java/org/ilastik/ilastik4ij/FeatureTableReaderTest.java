@@ -0,0 +1,102 @@
+package org.ilastik.ilastik4ij;
+
+import org.ilastik.ilastik4ij.table.FeatureTable;
+import org.ilastik.ilastik4ij.table.FeatureTableReader;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FeatureTableReaderTest {
+
+    private static FeatureTable read(String csv, String... columns) throws IOException {
+        FeatureTableReader reader = new FeatureTableReader();
+        reader.setColumns(Arrays.asList(columns));
+        return reader.read(new StringReader(csv));
+    }
+
+    @Test
+    public void testColumnTypes() throws IOException {
+        FeatureTable table = read("object_id,Size in pixels,Predicted Class\n"
+                + "1,120,\"Label 1\"\n"
+                + "2,80.5,Label 2\n"
+                + "3,,Label 1\n");
+
+        assertEquals(3, table.getNumRows());
+        assertEquals(Arrays.asList("object_id", "Size in pixels", "Predicted Class"), table.getColumnNames());
+        assertEquals(FeatureTable.ColumnType.INT, table.getColumnType(0));
+        assertEquals(FeatureTable.ColumnType.DOUBLE, table.getColumnType(1));
+        assertEquals(FeatureTable.ColumnType.STRING, table.getColumnType(2));
+
+        assertArrayEquals(new int[]{1, 2, 3}, table.getIntColumn(0));
+        assertEquals(120.0, table.getDouble(1, 0), 0.0);
+        assertEquals(80.5, table.getDouble(1, 1), 0.0);
+        assertTrue(Double.isNaN(table.getDouble(1, 2)));
+        assertEquals("Label 1", table.getString(2, 0));
+        // equal text is stored once
+        assertSame(table.getString(2, 0), table.getString(2, 2));
+    }
+
+    @Test
+    public void testNumbersBecomeTextWhenNeeded() throws IOException {
+        FeatureTable table = read("track\ttag\n1\t7\n2\t1.5\n3\tdivided\n");
+
+        assertEquals(FeatureTable.ColumnType.STRING, table.getColumnType(1));
+        assertArrayEquals(new String[]{"7", "1.5", "divided"}, table.getStringColumn(1));
+    }
+
+    @Test
+    public void testProjection() throws IOException {
+        FeatureTable table = read("a,b,c\n1,2,3\n4,5,6\n", "c", "a");
+
+        assertEquals(Arrays.asList("a", "c"), table.getColumnNames());
+        assertArrayEquals(new int[]{3, 6}, table.getIntColumn(table.indexOf("c")));
+        assertEquals(-1, table.indexOf("b"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingColumn() throws IOException {
+        read("a,b\n1,2\n", "a", "d");
+    }
+
+    @Test
+    public void testQuotedDelimiters() throws IOException {
+        FeatureTable table = read("name,value\n\"a, \"\"quoted\"\" name\",3\n");
+
+        assertEquals("a, \"quoted\" name", table.getString(0, 0));
+        assertEquals(3.0, table.getDouble(1, 0), 0.0);
+    }
+
+    @Test
+    public void testFindTableOfExportPlugin() throws IOException {
+        File directory = Files.createTempDirectory("tables").toFile();
+        File expected = new File(directory, "out.csv");
+        File unrelated = new File(directory, "out_raw.csv");
+        File plugin = new File(directory, "out_CSV-Table.csv");
+        try {
+            assertTrue(unrelated.createNewFile());
+            // other files starting with the same name are no tables
+            assertNull(FeatureTableReader.findTable(expected));
+
+            assertTrue(plugin.createNewFile());
+            assertEquals(plugin, FeatureTableReader.findTable(expected));
+
+            assertTrue(expected.createNewFile());
+            assertEquals(expected, FeatureTableReader.findTable(expected));
+        } finally {
+            expected.delete();
+            unrelated.delete();
+            plugin.delete();
+            directory.delete();
+        }
+    }
+}
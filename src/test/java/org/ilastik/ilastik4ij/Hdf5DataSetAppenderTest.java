@@ -0,0 +1,173 @@
+package org.ilastik.ilastik4ij;
+
+import ch.systemsx.cisd.base.mdarray.MDShortArray;
+import ch.systemsx.cisd.hdf5.HDF5Factory;
+import ch.systemsx.cisd.hdf5.IHDF5Writer;
+import ch.systemsx.cisd.hdf5.hdf5lib.HDF5Constants;
+import ncsa.hdf.hdf5lib.H5;
+import net.imagej.DatasetService;
+import net.imagej.ImageJ;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypes.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.ilastik.ilastik4ij.hdf5.Hdf5DataSetAppender;
+import org.ilastik.ilastik4ij.hdf5.Hdf5DataSetReader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class Hdf5DataSetAppenderTest {
+
+    private final ImageJ ij = new ImageJ();
+    private final Context context = ij.getContext();
+    private final DatasetService ds = context.getService(DatasetService.class);
+    private final LogService log = context.getService(LogService.class);
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("appender", ".h5");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Creates a frame of 4x5 pixels with 2 z slices and 3 channels, where every pixel
+     * encodes its frame index in the hundreds.
+     */
+    private ImgPlus<UnsignedShortType> createFrame(int frame) {
+        ArrayImg<UnsignedShortType, ShortArray> img = ArrayImgs.unsignedShorts(4, 5, 3, 2);
+        Cursor<UnsignedShortType> cursor = img.localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            cursor.get().set(frame * 100 + cursor.getIntPosition(0) + 10 * cursor.getIntPosition(3));
+        }
+        AxisType[] axes = {Axes.X, Axes.Y, Axes.CHANNEL, Axes.Z};
+        return new ImgPlus<>(img, "frame" + frame, axes);
+    }
+
+    @Test
+    public void testAppendFramesAndContinue() {
+        try (Hdf5DataSetAppender<UnsignedShortType> appender =
+                     new Hdf5DataSetAppender<>(file.getPath(), "data", 0, 2, log)) {
+            for (int t = 0; t < 3; t++) {
+                appender.appendFrames(createFrame(t));
+            }
+            assertEquals(3, appender.getNumFrames());
+        }
+
+        // reopening must continue after the last frame instead of truncating the file
+        try (Hdf5DataSetAppender<UnsignedShortType> appender =
+                     new Hdf5DataSetAppender<>(file.getPath(), "data", 0, log)) {
+            assertEquals(3, appender.getNumFrames());
+            appender.appendFrames(createFrame(3));
+        }
+
+        ImgPlus image = new Hdf5DataSetReader(file.getPath(), "data", "tzyxc", log, ds).read();
+        assertEquals("DimX should be 4", 4, image.dimension(image.dimensionIndex(Axes.X)));
+        assertEquals("DimY should be 5", 5, image.dimension(image.dimensionIndex(Axes.Y)));
+        assertEquals("DimC should be 3", 3, image.dimension(image.dimensionIndex(Axes.CHANNEL)));
+        assertEquals("DimZ should be 2", 2, image.dimension(image.dimensionIndex(Axes.Z)));
+        assertEquals("DimT should be 4", 4, image.dimension(image.dimensionIndex(Axes.TIME)));
+
+        RandomAccess rai = image.randomAccess();
+        rai.setPosition(3, image.dimensionIndex(Axes.X));
+        rai.setPosition(1, image.dimensionIndex(Axes.Z));
+        rai.setPosition(2, image.dimensionIndex(Axes.CHANNEL));
+        for (int t = 0; t < 4; t++) {
+            rai.setPosition(t, image.dimensionIndex(Axes.TIME));
+            assertEquals("Pixel of frame " + t, t * 100 + 13, ((UnsignedShortType) rai.get()).get());
+        }
+    }
+
+    @Test
+    public void testAppendSlabs() {
+        try (Hdf5DataSetAppender<UnsignedShortType> appender =
+                     new Hdf5DataSetAppender<>(file.getPath(), "data", 0, log)) {
+            appender.setSlicesPerFrame(4);
+            for (int slab = 0; slab < 4; slab++) {
+                // each slab holds two slices, so two slabs make up one frame
+                appender.appendSlab(createFrame(slab / 2));
+            }
+            assertEquals(2, appender.getNumFrames());
+        }
+
+        ImgPlus image = new Hdf5DataSetReader(file.getPath(), "data", "tzyxc", log, ds).read();
+        assertEquals("DimZ should be 4", 4, image.dimension(image.dimensionIndex(Axes.Z)));
+        assertEquals("DimT should be 2", 2, image.dimension(image.dimensionIndex(Axes.TIME)));
+
+        RandomAccess rai = image.randomAccess();
+        rai.setPosition(1, image.dimensionIndex(Axes.TIME));
+        rai.setPosition(3, image.dimensionIndex(Axes.Z));
+        assertEquals("Last slice of second frame", 110, ((UnsignedShortType) rai.get()).get());
+    }
+
+    @Test
+    public void testReopenAfterIncompleteFrame() {
+        try (Hdf5DataSetAppender<UnsignedShortType> appender =
+                     new Hdf5DataSetAppender<>(file.getPath(), "data", 0, log)) {
+            appender.setSlicesPerFrame(4);
+            appender.appendSlab(createFrame(0));
+            appender.appendSlab(createFrame(0));
+            // only half of the second frame arrives
+            appender.appendSlab(createFrame(1));
+            appender.flush();
+            assertEquals(1, appender.getNumFrames());
+        }
+
+        ImgPlus image = new Hdf5DataSetReader(file.getPath(), "data", "tzyxc", log, ds).read();
+        assertEquals("The incomplete frame must be dropped", 1, image.dimension(image.dimensionIndex(Axes.TIME)));
+
+        // appending continues right after the last complete frame
+        try (Hdf5DataSetAppender<UnsignedShortType> appender =
+                     new Hdf5DataSetAppender<>(file.getPath(), "data", 0, log)) {
+            assertEquals(1, appender.getNumFrames());
+            appender.appendSlab(createFrame(1));
+            appender.appendSlab(createFrame(2));
+            assertEquals(2, appender.getNumFrames());
+        }
+
+        image = new Hdf5DataSetReader(file.getPath(), "data", "tzyxc", log, ds).read();
+        assertEquals("DimT should be 2", 2, image.dimension(image.dimensionIndex(Axes.TIME)));
+        RandomAccess rai = image.randomAccess();
+        rai.setPosition(1, image.dimensionIndex(Axes.TIME));
+        rai.setPosition(1, image.dimensionIndex(Axes.Z));
+        assertEquals("Second slice of second frame", 110, ((UnsignedShortType) rai.get()).get());
+        rai.setPosition(3, image.dimensionIndex(Axes.Z));
+        assertEquals("Last slice of second frame", 210, ((UnsignedShortType) rai.get()).get());
+    }
+
+    @Test
+    public void testWrongRankClosesFile() {
+        IHDF5Writer writer = HDF5Factory.open(file);
+        writer.uint16().writeMDArray("data", new MDShortArray(new int[]{3, 4}));
+        writer.close();
+        long openObjects = H5.H5Fget_obj_count(HDF5Constants.H5F_OBJ_ALL, HDF5Constants.H5F_OBJ_ALL);
+
+        try {
+            new Hdf5DataSetAppender<UnsignedShortType>(file.getPath(), "data", 0, log);
+            fail("Appending to a 2D dataset must fail");
+        } catch (IllegalArgumentException e) {
+            // the dataset and file opened while checking it must be closed again
+            assertEquals(openObjects, H5.H5Fget_obj_count(HDF5Constants.H5F_OBJ_ALL, HDF5Constants.H5F_OBJ_ALL));
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.ilastik.ilastik4ij;
+
+import net.imagej.DatasetService;
+import net.imagej.ImageJ;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypes.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import org.ilastik.ilastik4ij.hdf5.Hdf5DataSetReader;
+import org.ilastik.ilastik4ij.hdf5.Hdf5DataSetWriterFromImgPlus;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoExecutor;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class Hdf5DataSetWriterFromImgPlusTest {
+
+    private final ImageJ ij = new ImageJ();
+    private final Context context = ij.getContext();
+    private final DatasetService ds = context.getService(DatasetService.class);
+    private final LogService log = context.getService(LogService.class);
+    private final Hdf5IoService ioService = context.getService(Hdf5IoService.class);
+    private File first;
+    private File second;
+
+    @Before
+    public void setUp() throws IOException {
+        first = File.createTempFile("writer", ".h5");
+        second = File.createTempFile("writer", ".h5");
+    }
+
+    @After
+    public void tearDown() {
+        first.delete();
+        second.delete();
+    }
+
+    /**
+     * Creates an image of 6x5 pixels with 3 channels, 4 z slices and 5 frames, where every pixel
+     * encodes its position.
+     */
+    private ImgPlus<UnsignedShortType> createImage(int offset) {
+        ArrayImg<UnsignedShortType, ShortArray> img = ArrayImgs.unsignedShorts(6, 5, 3, 4, 5);
+        Cursor<UnsignedShortType> cursor = img.localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            cursor.get().set(offset + cursor.getIntPosition(0) + 10 * cursor.getIntPosition(1)
+                    + 100 * cursor.getIntPosition(2) + 1000 * cursor.getIntPosition(3) + 5000 * cursor.getIntPosition(4));
+        }
+        AxisType[] axes = {Axes.X, Axes.Y, Axes.CHANNEL, Axes.Z, Axes.TIME};
+        return new ImgPlus<>(img, "image", axes);
+    }
+
+    private void assertSameContents(ImgPlus<UnsignedShortType> expected, File file) {
+        Hdf5DataSetReader reader = new Hdf5DataSetReader(file.getPath(), "exported_data", "tzyxc", log, ds);
+        // falls back to the shared I/O thread
+        reader.setIoService(null);
+        ImgPlus image = reader.read();
+        for (int d = 0; d < expected.numDimensions(); d++) {
+            assertEquals(expected.dimension(d), image.dimension(d));
+        }
+        RandomAccess out = image.randomAccess();
+        Cursor<UnsignedShortType> cursor = expected.localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            out.setPosition(cursor);
+            assertEquals(cursor.get().get(), ((UnsignedShortType) out.get()).get());
+        }
+    }
+
+    @Test
+    public void testPipelinedWriteRoundTrip() {
+        ImgPlus<UnsignedShortType> image = createImage(0);
+        Hdf5DataSetWriterFromImgPlus<UnsignedShortType> writer =
+                new Hdf5DataSetWriterFromImgPlus<>(image, first.getPath(), "exported_data", 0, log);
+        // fewer buffers than planes, so buffers are recycled
+        writer.setNumProducers(3);
+        writer.write();
+
+        assertSameContents(image, first);
+    }
+
+    @Test
+    public void testConcurrentExportsShareTheService() throws Exception {
+        ImgPlus<UnsignedShortType> firstImage = createImage(0);
+        ImgPlus<UnsignedShortType> secondImage = createImage(7);
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> firstExport = callers.submit(() -> export(firstImage, first));
+            Future<?> secondExport = callers.submit(() -> export(secondImage, second));
+            // both writers ask for more producers than the shared pool has threads
+            firstExport.get(60, TimeUnit.SECONDS);
+            secondExport.get(60, TimeUnit.SECONDS);
+        } finally {
+            callers.shutdownNow();
+        }
+
+        assertSameContents(firstImage, first);
+        assertSameContents(secondImage, second);
+    }
+
+    @Test
+    public void testExportsWithoutServiceShareTheIoThread() throws Exception {
+        // libhdf5 is global, so writers without a service must not get an I/O thread of their own
+        assertSame(Hdf5IoExecutor.getShared(), ioService.getIoExecutor());
+
+        ImgPlus<UnsignedShortType> firstImage = createImage(0);
+        ImgPlus<UnsignedShortType> secondImage = createImage(7);
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> firstExport = callers.submit(() -> export(firstImage, first, null));
+            Future<?> secondExport = callers.submit(() -> export(secondImage, second, null));
+            firstExport.get(60, TimeUnit.SECONDS);
+            secondExport.get(60, TimeUnit.SECONDS);
+        } finally {
+            callers.shutdownNow();
+        }
+
+        assertSameContents(firstImage, first);
+        assertSameContents(secondImage, second);
+    }
+
+    private void export(ImgPlus<UnsignedShortType> image, File file) {
+        export(image, file, ioService);
+    }
+
+    private void export(ImgPlus<UnsignedShortType> image, File file, Hdf5IoService service) {
+        Hdf5DataSetWriterFromImgPlus<UnsignedShortType> writer =
+                new Hdf5DataSetWriterFromImgPlus<>(image, file.getPath(), "exported_data", 0, log);
+        writer.setIoService(service);
+        writer.setNumProducers(4 * Runtime.getRuntime().availableProcessors());
+        writer.write();
+    }
+}
@@ -0,0 +1,122 @@
+package org.ilastik.ilastik4ij;
+
+import net.imagej.DatasetService;
+import net.imagej.ImageJ;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypes.FloatArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.ilastik.ilastik4ij.hdf5.Hdf5DataSetReader;
+import org.ilastik.ilastik4ij.hdf5.Hdf5DataSetWriterFromImgPlus;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoService;
+import org.ilastik.ilastik4ij.hdf5.Hdf5LazyDataSetReader;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class Hdf5LazyDataSetReaderTest {
+
+    private final ImageJ ij = new ImageJ();
+    private final Context context = ij.getContext();
+    private final DatasetService ds = context.getService(DatasetService.class);
+    private final LogService log = context.getService(LogService.class);
+    private final Hdf5IoService ioService = context.getService(Hdf5IoService.class);
+    private final String filename = "src/test/resources/test.h5";
+
+    /**
+     * Reads the dataset eagerly and lazily and compares all pixels, visiting the lazy image backwards so
+     * blocks are loaded out of order.
+     */
+    private void assertLazyReadEqualsRead(String file, String dataset, String axesorder) {
+        ImgPlus expected = new Hdf5DataSetReader(file, dataset, axesorder, log, ds).read();
+        ImgPlus lazy = new Hdf5LazyDataSetReader(file, dataset, axesorder, log, ioService).read();
+
+        assertEquals(expected.numDimensions(), lazy.numDimensions());
+        long size = 1;
+        for (int d = 0; d < expected.numDimensions(); d++) {
+            assertEquals(expected.dimension(d), lazy.dimension(d));
+            assertEquals(expected.axis(d).type(), lazy.axis(d).type());
+            size *= expected.dimension(d);
+        }
+        assertEquals(expected.getValidBits(), lazy.getValidBits());
+        assertEquals(expected.firstElement().getClass(), lazy.firstElement().getClass());
+
+        long[] position = new long[expected.numDimensions()];
+        RandomAccess<? extends RealType<?>> in = expected.randomAccess();
+        RandomAccess<? extends RealType<?>> out = lazy.randomAccess();
+        for (long i = size - 1; i >= 0; i--) {
+            long remainder = i;
+            for (int d = 0; d < position.length; d++) {
+                position[d] = remainder % expected.dimension(d);
+                remainder /= expected.dimension(d);
+            }
+            in.setPosition(position);
+            out.setPosition(position);
+            assertEquals(in.get().getRealDouble(), out.get().getRealDouble(), 0);
+        }
+    }
+
+    @Test
+    public void testLazyReadEqualsRead() {
+        assertLazyReadEqualsRead(filename, "exported_data", "tzyxc");
+    }
+
+    @Test
+    public void testLazyReadOfOtherAxisOrders() {
+        assertLazyReadEqualsRead(filename, "exported_data", "ztyxc");
+        // channels are not the last axis, so blocks have to be reordered after reading
+        assertLazyReadEqualsRead(filename, "exported_data", "ztycx");
+    }
+
+    @Test
+    public void testLazyReadOfFloats() throws IOException {
+        ArrayImg<FloatType, FloatArray> img = ArrayImgs.floats(7, 9, 2, 3, 2);
+        Cursor<FloatType> cursor = img.localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            cursor.get().set(cursor.getFloatPosition(0) + 0.1f * cursor.getFloatPosition(1) - 10 * cursor.getFloatPosition(2)
+                    + 100 * cursor.getFloatPosition(3) + 1000 * cursor.getFloatPosition(4));
+        }
+        AxisType[] axes = {Axes.X, Axes.Y, Axes.CHANNEL, Axes.Z, Axes.TIME};
+        File file = File.createTempFile("lazy", ".h5");
+        try {
+            new Hdf5DataSetWriterFromImgPlus<>(new ImgPlus<>(img, "floats", axes), file.getPath(), "exported_data", 0, log).write();
+            assertLazyReadEqualsRead(file.getPath(), "exported_data", "tzyxc");
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testWritesFail() {
+        ImgPlus lazy = new Hdf5LazyDataSetReader(filename, "exported_data", "tzyxc", log, ioService).read();
+        RandomAccess<UnsignedShortType> access = lazy.randomAccess();
+        access.setPosition(new long[]{1, 2, 0, 3, 4});
+        int value = access.get().get();
+        try {
+            access.get().set(value + 1);
+            fail("changes would get lost once the block is dropped from memory");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertEquals(value, access.get().get());
+
+        // copies can be written to
+        UnsignedShortType copy = access.get().copy();
+        copy.inc();
+        assertEquals(value + 1, copy.get());
+    }
+}
@@ -0,0 +1,96 @@
+package org.ilastik.ilastik4ij;
+
+import org.ilastik.ilastik4ij.workers.IlastikWorkerPool;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IlastikWorkerPoolTest {
+
+    private final LogService log = new Context(LogService.class).getService(LogService.class);
+    private final List<String> job = Collections.singletonList("--output_filename_format=/tmp/out.h5");
+    private List<String> workerCommand;
+
+    @Before
+    public void setUp() {
+        Assume.assumeFalse(System.getProperty("os.name", "").toLowerCase().contains("win"));
+        String script = new File(getClass().getResource("/fake_ilastik_worker.sh").getFile()).getAbsolutePath();
+        workerCommand = Arrays.asList("/bin/sh", script, "--project=test.ilp");
+    }
+
+    private IlastikWorkerPool createPool(int maxWorkers, int maxJobsPerWorker, long maxRssMb) {
+        return new IlastikWorkerPool(workerCommand, pb -> { }, maxWorkers, maxJobsPerWorker, maxRssMb, log);
+    }
+
+    @Test
+    public void testWorkerIsReused() throws Exception {
+        try (IlastikWorkerPool pool = createPool(1, 100, 0)) {
+            for (int i = 0; i < 5; i++) {
+                assertEquals(0, pool.run(job));
+            }
+            assertEquals(1, pool.getStartedWorkers());
+        }
+    }
+
+    @Test
+    public void testRecycleAfterJobCount() throws Exception {
+        try (IlastikWorkerPool pool = createPool(1, 2, 0)) {
+            for (int i = 0; i < 5; i++) {
+                assertEquals(0, pool.run(job));
+            }
+            assertEquals(3, pool.getStartedWorkers());
+        }
+    }
+
+    @Test
+    public void testRecycleAboveRssLimit() throws Exception {
+        // the stand-in reports 1000 kB per job done, so the third job crosses 2 MB
+        try (IlastikWorkerPool pool = createPool(1, 100, 2)) {
+            for (int i = 0; i < 4; i++) {
+                assertEquals(0, pool.run(job));
+            }
+            assertEquals(2, pool.getStartedWorkers());
+        }
+    }
+
+    @Test
+    public void testFailedJobRecyclesWorker() throws Exception {
+        try (IlastikWorkerPool pool = createPool(1, 100, 0)) {
+            assertEquals(0, pool.run(job));
+            assertEquals(1, pool.run(Collections.singletonList("--fail")));
+            assertEquals(0, pool.run(job));
+            assertEquals(2, pool.getStartedWorkers());
+        }
+    }
+
+    @Test
+    public void testConcurrentJobsShareLimitedWorkers() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try (IlastikWorkerPool pool = createPool(2, 100, 0)) {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                results.add(executor.submit(() -> pool.run(job)));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(0, (int) result.get());
+            }
+            assertTrue(pool.getStartedWorkers() <= 2);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.ilastik.ilastik4ij;
+
+import org.ilastik.ilastik4ij.labels.LabelIndex;
+import org.ilastik.ilastik4ij.labels.LabelIndexBuilder;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class LabelIndexTest {
+
+    // 4 x 3 pixels, stored row by row
+    private static final int[] PLANE = {
+            0, 1, 1, 0,
+            2, 2, 1, 0,
+            0, 0, 0, 0xFFFFFFFF
+    };
+
+    @Test
+    public void testStatisticsOfOnePlane() {
+        LabelIndexBuilder builder = new LabelIndexBuilder(1);
+        builder.addPlane(0, 0, PLANE, 4, 3, false);
+        LabelIndex index = builder.build();
+
+        assertEquals(3, index.size());
+        // the highest uint32 label sorts last
+        assertArrayEquals(new long[]{1, 2, 4294967295L}, index.getLabels(0));
+
+        int one = index.find(0, 1);
+        assertEquals(3, index.getCount(one));
+        assertEquals(1, index.getMin(one, LabelIndex.X));
+        assertEquals(2, index.getMax(one, LabelIndex.X));
+        assertEquals(0, index.getMin(one, LabelIndex.Y));
+        assertEquals(1, index.getMax(one, LabelIndex.Y));
+        assertEquals(5.0 / 3, index.getCentroid(one, LabelIndex.X), 1e-12);
+        assertEquals(1.0 / 3, index.getCentroid(one, LabelIndex.Y), 1e-12);
+
+        int two = index.find(0, 2);
+        assertEquals(2, index.getCount(two));
+        assertEquals(0.5, index.getCentroid(two, LabelIndex.X), 1e-12);
+        assertEquals(-1, index.find(0, 0));
+    }
+
+    @Test
+    public void testTransposedPlaneGivesSameStatistics() {
+        int[] transposed = new int[PLANE.length];
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 4; x++) {
+                transposed[x * 3 + y] = PLANE[y * 4 + x];
+            }
+        }
+        LabelIndexBuilder builder = new LabelIndexBuilder(1);
+        builder.addPlane(0, 0, transposed, 4, 3, true);
+        LabelIndex index = builder.build();
+
+        int one = index.find(0, 1);
+        assertEquals(3, index.getCount(one));
+        assertEquals(5.0 / 3, index.getCentroid(one, LabelIndex.X), 1e-12);
+        assertEquals(1.0 / 3, index.getCentroid(one, LabelIndex.Y), 1e-12);
+    }
+
+    @Test
+    public void testPlanesAreMergedPerFrame() {
+        LabelIndexBuilder builder = new LabelIndexBuilder(3);
+        byte[] plane = {0, 5, 5, 0, (byte) 200, 0};
+        builder.addPlane(0, 0, plane, 3, 2, false);
+        builder.addPlane(0, 1, plane, 3, 2, false);
+        builder.addPlane(2, 0, plane, 3, 2, false);
+        LabelIndex index = builder.build();
+
+        assertEquals(3, index.getNumFrames());
+        assertEquals(2, index.getNumObjects(0));
+        assertEquals(0, index.getNumObjects(1));
+        assertEquals(2, index.getNumObjects(2));
+
+        int five = index.find(0, 5);
+        assertEquals(4, index.getCount(five));
+        assertEquals(0, index.getMin(five, LabelIndex.Z));
+        assertEquals(1, index.getMax(five, LabelIndex.Z));
+        assertEquals(0.5, index.getCentroid(five, LabelIndex.Z), 1e-12);
+        assertEquals(0, index.getFrame(five));
+        // the empty frame in between is skipped
+        assertEquals(2, index.getFrame(index.find(2, 200)));
+    }
+
+    @Test
+    public void testManyLabels() {
+        int[] plane = new int[100 * 100];
+        for (int i = 0; i < plane.length; i++) {
+            plane[i] = i + 1;
+        }
+        LabelIndexBuilder builder = new LabelIndexBuilder(1);
+        builder.addPlane(0, 0, plane, 100, 100, false);
+        LabelIndex index = builder.build();
+
+        assertEquals(plane.length, index.size());
+        int entry = index.find(0, 1234);
+        assertEquals(1, index.getCount(entry));
+        assertEquals(33, index.getMin(entry, LabelIndex.X));
+        assertEquals(12, index.getMin(entry, LabelIndex.Y));
+    }
+
+    @Test
+    public void testPlanesSummedUpOnAPool() {
+        ExecutorService workers = Executors.newFixedThreadPool(3);
+        try {
+            LabelIndexBuilder builder = new LabelIndexBuilder(2, workers);
+            for (int z = 0; z < 20; z++) {
+                builder.addPlane(z % 2, z, PLANE, 4, 3, false);
+            }
+            LabelIndex index = builder.build();
+
+            for (int frame = 0; frame < 2; frame++) {
+                int one = index.find(frame, 1);
+                assertEquals(30, index.getCount(one));
+                assertEquals(frame, index.getMin(one, LabelIndex.Z));
+                assertEquals(18 + frame, index.getMax(one, LabelIndex.Z));
+                assertEquals(9 + frame, index.getCentroid(one, LabelIndex.Z), 1e-12);
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    // two objects of class 1, touching an object of class 2, and one object of class 2
+    private static final int[] CLASSES = {
+            1, 1, 0, 1,
+            0, 2, 0, 1,
+            2, 2, 0, 0
+    };
+
+    @Test
+    public void testClassLabelsAreSplitIntoObjects() {
+        LabelIndexBuilder builder = new LabelIndexBuilder(1);
+        builder.setClassLabels(true);
+        builder.addPlane(0, 0, CLASSES, 4, 3, false);
+        LabelIndex index = builder.build();
+
+        assertEquals(3, index.size());
+        // numbered in the order they are first seen
+        assertArrayEquals(new long[]{1, 2, 3}, index.getLabels(0));
+        assertEquals(1, index.getObjectClass(0));
+        assertEquals(1, index.getObjectClass(1));
+        assertEquals(2, index.getObjectClass(2));
+        assertEquals(2, index.getCount(0));
+        assertEquals(2, index.getCount(1));
+        assertEquals(3, index.getMin(1, LabelIndex.X));
+        // connected through its neighbor below, not the diagonal one
+        assertEquals(3, index.getCount(2));
+        assertEquals(0, index.getMin(2, LabelIndex.X));
+        assertEquals(1, index.getMin(2, LabelIndex.Y));
+    }
+
+    @Test
+    public void testClassLabelsAreConnectedAlongZ() {
+        int[] shifted = {
+                0, 0, 0, 0,
+                0, 0, 0, 1,
+                1, 1, 0, 0
+        };
+        LabelIndexBuilder builder = new LabelIndexBuilder(1);
+        builder.setClassLabels(true);
+        builder.addPlane(0, 0, CLASSES, 4, 3, false);
+        builder.addPlane(0, 1, shifted, 4, 3, false);
+        // no plane at z = 2, nothing connects across the gap
+        builder.addPlane(0, 3, shifted, 4, 3, false);
+        LabelIndex index = builder.build();
+
+        // the right object of class 1 grows into z = 1, the class 1 pixels below class 2 are an object of their own
+        assertEquals(6, index.size());
+        assertEquals(3, index.getCount(1));
+        assertEquals(1, index.getMax(1, LabelIndex.Z));
+        assertEquals(2, index.getObjectClass(2));
+        assertEquals(3, index.getCount(2));
+        assertEquals(1, index.getObjectClass(3));
+        assertEquals(2, index.getCount(3));
+        // both objects at z = 3 are new
+        assertEquals(3, index.getMin(4, LabelIndex.Z));
+        assertEquals(1, index.getCount(4));
+        assertEquals(2, index.getCount(5));
+    }
+
+    @Test
+    public void testClassLabelsOnAPool() {
+        ExecutorService workers = Executors.newFixedThreadPool(3);
+        try {
+            LabelIndexBuilder builder = new LabelIndexBuilder(3, workers);
+            builder.setClassLabels(true);
+            for (int frame = 0; frame < 3; frame++) {
+                for (int z = 0; z < 10; z++) {
+                    builder.addPlane(frame, z, CLASSES, 4, 3, false);
+                }
+            }
+            LabelIndex index = builder.build();
+
+            for (int frame = 0; frame < 3; frame++) {
+                assertEquals(3, index.getNumObjects(frame));
+                int first = index.getFirstEntry(frame);
+                assertEquals(20, index.getCount(first));
+                assertEquals(9, index.getMax(first, LabelIndex.Z));
+                assertEquals(2, index.getObjectClass(first + 2));
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLabelsWithoutClasses() {
+        LabelIndexBuilder builder = new LabelIndexBuilder(1);
+        builder.addPlane(0, 0, CLASSES, 4, 3, false);
+        LabelIndex index = builder.build();
+
+        assertFalse(index.hasObjectClasses());
+        assertEquals(2, index.size());
+    }
+}
@@ -0,0 +1,72 @@
+package org.ilastik.ilastik4ij;
+
+import org.ilastik.ilastik4ij.runner.IlastikProgress;
+import org.ilastik.ilastik4ij.runner.LogPump;
+import org.junit.Test;
+import org.scijava.log.LogService;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogPumpTest {
+
+    private final List<String> logged = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * @return a log that records "level: message" of every call with a message
+     */
+    private LogService recordingLog() {
+        return (LogService) Proxy.newProxyInstance(LogService.class.getClassLoader(), new Class<?>[]{LogService.class},
+                (proxy, method, args) -> {
+                    if (args != null && args.length >= 1 && !(args[0] instanceof Throwable) && method.getName().matches("debug|info|warn|error")) {
+                        for (String line : String.valueOf(args[0]).split("\n")) {
+                            logged.add(method.getName() + ": " + line);
+                        }
+                    }
+                    Class<?> type = method.getReturnType();
+                    if (type == boolean.class) {
+                        return true;
+                    } else if (type == int.class) {
+                        return 0;
+                    }
+                    return null;
+                });
+    }
+
+    private List<IlastikProgress> pump(String... lines) throws InterruptedException {
+        List<IlastikProgress> progress = Collections.synchronizedList(new ArrayList<>());
+        LogPump pump = new LogPump(recordingLog(), progress::add);
+        byte[] output = String.join("\n", lines).getBytes(Charset.defaultCharset());
+        pump.start(new ByteArrayInputStream(output), false);
+        assertTrue(pump.awaitCompletion(10, TimeUnit.SECONDS));
+        return progress;
+    }
+
+    @Test
+    public void testErrorsAreLoggedEvenIfTheyLookLikeProgress() throws InterruptedException {
+        List<IlastikProgress> progress = pump(
+                "ERROR while processing file 1 of 3",
+                "INFO ilastik.applets.dataExport: Export progress: 42%");
+
+        assertTrue(logged.contains("info: ERROR while processing file 1 of 3"));
+        assertEquals(1, progress.size());
+        assertEquals(42, progress.get(0).getPercent(), 1e-9);
+    }
+
+    @Test
+    public void testProgressLinesAreLoggedAtDebugLevel() throws InterruptedException {
+        pump("INFO batchProcessing: Processing lane 2 of 4",
+                "INFO ilastik.shell.projectManager: Opening Project: /tmp/pixel.ilp");
+
+        assertTrue(logged.contains("debug: INFO batchProcessing: Processing lane 2 of 4"));
+        assertTrue(logged.contains("info: INFO ilastik.shell.projectManager: Opening Project: /tmp/pixel.ilp"));
+    }
+}
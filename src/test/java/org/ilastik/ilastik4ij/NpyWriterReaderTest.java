@@ -0,0 +1,140 @@
+package org.ilastik.ilastik4ij;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.ilastik.ilastik4ij.labels.RunLengthLabelImg;
+import org.ilastik.ilastik4ij.npy.NpyReader;
+import org.ilastik.ilastik4ij.npy.NpyWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NpyWriterReaderTest {
+
+    private final LogService log = new Context(LogService.class).getService(LogService.class);
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("npy", ".npy");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static long expectedValue(int x, int y, int c, int z, int t) {
+        return x + 10 * y + 100 * c + 1000 * z + 10000 * t;
+    }
+
+    private static <T extends RealType<T>> void fill(ImgPlus<T> image) {
+        Cursor<T> cursor = image.localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            cursor.get().setReal(expectedValue(position(image, cursor, Axes.X), position(image, cursor, Axes.Y),
+                    position(image, cursor, Axes.CHANNEL), position(image, cursor, Axes.Z), position(image, cursor, Axes.TIME)));
+        }
+    }
+
+    private static int position(ImgPlus<?> image, Cursor<?> cursor, AxisType axis) {
+        int d = image.dimensionIndex(axis);
+        return d >= 0 ? cursor.getIntPosition(d) : 0;
+    }
+
+    private ImgPlus<?> assertRoundTrip(ImgPlus<?> image, int nX, int nY, int nC, int nZ, int nT) {
+        return assertRoundTrip(image, false, nX, nY, nC, nZ, nT);
+    }
+
+    private ImgPlus<?> assertRoundTrip(ImgPlus<?> image, boolean runLengthEncoded, int nX, int nY, int nC, int nZ, int nT) {
+        new NpyWriter<>((ImgPlus) image, file.getAbsolutePath(), log).write();
+        NpyReader reader = new NpyReader(file.getAbsolutePath(), NpyWriter.AXIS_ORDER, log);
+        reader.setRunLengthEncoded(runLengthEncoded);
+        ImgPlus<?> result = reader.read();
+
+        assertEquals(nX, result.dimension(result.dimensionIndex(Axes.X)));
+        assertEquals(nY, result.dimension(result.dimensionIndex(Axes.Y)));
+        assertEquals(nC, result.dimension(result.dimensionIndex(Axes.CHANNEL)));
+        assertEquals(nZ, result.dimension(result.dimensionIndex(Axes.Z)));
+        assertEquals(nT, result.dimension(result.dimensionIndex(Axes.TIME)));
+        if (runLengthEncoded) {
+            // the labels of run length encoded images are read-only variables of the same type
+            assertTrue(image.firstElement().getClass().isInstance(result.firstElement()));
+        } else {
+            assertEquals(image.firstElement().getClass(), result.firstElement().getClass());
+        }
+
+        RandomAccess<?> rai = result.randomAccess();
+        long[] position = new long[5];
+        for (int t = 0; t < nT; t++) {
+            for (int z = 0; z < nZ; z++) {
+                for (int c = 0; c < nC; c++) {
+                    for (int y = 0; y < nY; y++) {
+                        for (int x = 0; x < nX; x++) {
+                            position[result.dimensionIndex(Axes.X)] = x;
+                            position[result.dimensionIndex(Axes.Y)] = y;
+                            position[result.dimensionIndex(Axes.CHANNEL)] = c;
+                            position[result.dimensionIndex(Axes.Z)] = z;
+                            position[result.dimensionIndex(Axes.TIME)] = t;
+                            rai.setPosition(position);
+                            double value = ((RealType<?>) rai.get()).getRealDouble();
+                            assertEquals(expectedValue(x, y, c, z, t), value, 0);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testPlanarImageIsCopiedInBulk() {
+        Img<FloatType> img = PlanarImgs.floats(5, 4, 2, 3, 2);
+        ImgPlus<FloatType> image = new ImgPlus<>(img, "planar", new AxisType[]{Axes.X, Axes.Y, Axes.CHANNEL, Axes.Z, Axes.TIME});
+        fill(image);
+        assertRoundTrip(image, 5, 4, 2, 3, 2);
+    }
+
+    @Test
+    public void testArrayImageWithoutChannels() {
+        Img<UnsignedShortType> img = ArrayImgs.unsignedShorts(5, 4, 3);
+        ImgPlus<UnsignedShortType> image = new ImgPlus<>(img, "array", new AxisType[]{Axes.X, Axes.Y, Axes.Z});
+        fill(image);
+        assertRoundTrip(image, 5, 4, 1, 3, 1);
+    }
+
+    @Test
+    public void testLabelsAreRunLengthEncoded() {
+        Img<UnsignedShortType> img = ArrayImgs.unsignedShorts(5, 4, 3, 2);
+        ImgPlus<UnsignedShortType> image = new ImgPlus<>(img, "labels", new AxisType[]{Axes.X, Axes.Y, Axes.Z, Axes.TIME});
+        fill(image);
+        ImgPlus<?> result = assertRoundTrip(image, true, 5, 4, 1, 3, 2);
+        assertTrue(result.getImg() instanceof RunLengthLabelImg);
+    }
+
+    @Test
+    public void testOtherAxisOrderIsCopiedPixelByPixel() {
+        Img<ShortType> img = ArrayImgs.shorts(2, 5, 3, 4);
+        ImgPlus<ShortType> image = new ImgPlus<>(img, "czxy", new AxisType[]{Axes.CHANNEL, Axes.X, Axes.Z, Axes.Y});
+        fill(image);
+        assertRoundTrip(image, 5, 4, 2, 3, 1);
+    }
+}
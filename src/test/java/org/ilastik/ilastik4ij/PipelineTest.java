@@ -0,0 +1,66 @@
+package org.ilastik.ilastik4ij;
+
+import org.ilastik.ilastik4ij.batch.Pipeline;
+import org.ilastik.ilastik4ij.batch.PipelineStage;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineTest {
+
+    private static Pipeline emptyPipeline() {
+        return new Pipeline(null, null, null, null, null, null);
+    }
+
+    @Test
+    public void testBranchesReadTheSameParent() {
+        Pipeline pipeline = emptyPipeline();
+        PipelineStage pixels = pipeline.addPixelClassification("pixels", new File("pixel.ilp"), false);
+        PipelineStage objects = pipeline.addObjectClassification("objects", new File("objects.ilp"), pixels);
+        PipelineStage tracking = pipeline.addTracking("tracking", new File("tracking.ilp"), pixels);
+
+        assertEquals(Arrays.asList(pixels, objects, tracking), pipeline.getStages());
+        assertEquals(Arrays.asList(objects, tracking), pipeline.getChildren(pixels));
+        assertEquals(Collections.emptyList(), pipeline.getChildren(objects));
+        assertFalse(pipeline.isResult(pixels));
+        assertTrue(pipeline.isResult(objects));
+
+        pixels.setKeepResult(true);
+        assertTrue(pipeline.isResult(pixels));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParentMustBeAddedFirst() {
+        Pipeline other = emptyPipeline();
+        PipelineStage pixels = other.addPixelClassification("pixels", new File("pixel.ilp"), false);
+        emptyPipeline().addObjectClassification("objects", new File("objects.ilp"), pixels);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStageNamesAreUnique() {
+        Pipeline pipeline = emptyPipeline();
+        PipelineStage pixels = pipeline.addPixelClassification("pixels", new File("pixel.ilp"), false);
+        pipeline.addObjectClassification("pixels", new File("objects.ilp"), pixels);
+    }
+
+    @Test
+    public void testSecondInputFollowsParentResult() {
+        Pipeline pipeline = emptyPipeline();
+        PipelineStage probabilities = pipeline.addPixelClassification("probabilities", new File("pixel.ilp"), false);
+        PipelineStage segmentation = pipeline.addPixelClassification("segmentation", new File("pixel.ilp"), true);
+        PipelineStage objects = pipeline.addObjectClassification("objects", new File("objects.ilp"), probabilities);
+        PipelineStage tracking = pipeline.addTracking("tracking", new File("tracking.ilp"), segmentation);
+
+        assertFalse(probabilities.producesSegmentation());
+        assertTrue(segmentation.producesSegmentation());
+        assertTrue(objects.producesSegmentation());
+        assertEquals(PipelineStage.Workflow.TRACKING, tracking.getWorkflow());
+        assertEquals(segmentation, tracking.getParent());
+    }
+}
@@ -0,0 +1,71 @@
+package org.ilastik.ilastik4ij;
+
+import org.ilastik.ilastik4ij.runner.IlastikProgress;
+import org.ilastik.ilastik4ij.runner.ProgressParser;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ProgressParserTest {
+
+    @Test
+    public void testOtherLinesAreNoProgress() {
+        ProgressParser parser = new ProgressParser();
+        assertNull(parser.parse("INFO ilastik.shell.projectManager: Opening Project: /tmp/pixel.ilp"));
+        assertNull(parser.parse("DEBUG lazyflow.operators.opCache: 50% of the cache is in use by 3 blocks"));
+        assertNull(parser.parse("ERROR while processing file 1 of 3"));
+        assertNull(parser.parse("WARNING ilastik.applets.dataExport: Processing lane 1 of 3 took 95%"));
+        assertNull(parser.parse("INFO ilastik.workflows: Loaded image 2 of 5 at 100%"));
+    }
+
+    @Test
+    public void testRequestsOutOfTotal() {
+        ProgressParser parser = new ProgressParser();
+        IlastikProgress progress = parser.parse("DEBUG lazyflow.utility.bigRequestStreamer: Request 3 out of 4 executed");
+        assertEquals(3, progress.getBlock());
+        assertEquals(75, progress.getPercent(), 1e-9);
+    }
+
+    @Test
+    public void testPercentOfSingleImage() {
+        ProgressParser parser = new ProgressParser();
+        IlastikProgress progress = parser.parse("INFO ilastik.applets.dataExport: Export progress: 42%");
+        assertEquals(42, progress.getPercent(), 1e-9);
+        progress = parser.parse("[==========          ] 55.5 %");
+        assertEquals(55.5, progress.getPercent(), 1e-9);
+    }
+
+    @Test
+    public void testLanesAndBlocksMakeUpTheWholeJob() {
+        ProgressParser parser = new ProgressParser();
+        IlastikProgress progress = parser.parse("INFO batchProcessing: Processing lane 2 of 4");
+        assertEquals(25, progress.getPercent(), 1e-9);
+        assertEquals(2, progress.getLane());
+        assertEquals(4, progress.getNumLanes());
+
+        progress = parser.parse("DEBUG bigRequestStreamer: block 5/10 done");
+        assertEquals(5, progress.getBlock());
+        assertEquals(10, progress.getNumBlocks());
+        assertEquals(37.5, progress.getPercent(), 1e-9);
+
+        // the next lane starts over
+        progress = parser.parse("INFO batchProcessing: Processing lane 3 of 4");
+        assertEquals(50, progress.getPercent(), 1e-9);
+        assertEquals(0, progress.getNumBlocks());
+    }
+
+    @Test
+    public void testTimeLeftIsExtrapolated() {
+        AtomicLong now = new AtomicLong(0);
+        ProgressParser parser = new ProgressParser(now::get);
+        assertEquals(-1, parser.parse("Export progress: 0%").getEtaSeconds());
+        now.set(TimeUnit.SECONDS.toNanos(30));
+        IlastikProgress progress = parser.parse("Export progress: 25%");
+        assertEquals(90, progress.getEtaSeconds());
+        assertEquals("ilastik: 25%, about 2 min left", progress.toString());
+    }
+}
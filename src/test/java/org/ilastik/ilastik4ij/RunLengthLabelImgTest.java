@@ -0,0 +1,125 @@
+package org.ilastik.ilastik4ij;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import org.ilastik.ilastik4ij.labels.RunLengthLabelImg;
+import org.ilastik.ilastik4ij.labels.RunLengthLabelImgBuilder;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class RunLengthLabelImgTest {
+
+    // 4 x 3 pixels, stored row by row
+    private static final int[] PLANE = {
+            0, 1, 1, 0,
+            2, 2, 1, 0,
+            0, 0, 0, 0xFFFFFFFF
+    };
+
+    private static RunLengthLabelImg<UnsignedIntType> twoPlanes() {
+        RunLengthLabelImgBuilder<UnsignedIntType> builder = new RunLengthLabelImgBuilder<>(new UnsignedIntType(), new long[]{4, 3, 2});
+        builder.addPlane(PLANE, 3, false);
+        builder.addEmptyRows(3);
+        return builder.build();
+    }
+
+    @Test
+    public void testCursorVisitsPixelsInFlatOrder() {
+        RunLengthLabelImg<UnsignedIntType> img = twoPlanes();
+        // 3 + 3 + 2 runs in the first plane and one per empty row
+        assertEquals(11, img.getNumRuns());
+
+        Cursor<UnsignedIntType> cursor = img.cursor();
+        for (int i = 0; i < 2 * PLANE.length; i++) {
+            long expected = i < PLANE.length ? Integer.toUnsignedLong(PLANE[i]) : 0;
+            assertEquals(expected, cursor.next().get());
+            assertEquals(i % 4, cursor.getLongPosition(0));
+            assertEquals(i / 4 % 3, cursor.getLongPosition(1));
+            assertEquals(i / 12, cursor.getLongPosition(2));
+        }
+        assertFalse(cursor.hasNext());
+
+        cursor.reset();
+        cursor.jump(7);
+        assertEquals(1, cursor.get().get());
+        assertEquals(2, cursor.getLongPosition(0));
+        assertEquals(1, cursor.getLongPosition(1));
+    }
+
+    @Test
+    public void testRandomAccess() {
+        RunLengthLabelImg<UnsignedIntType> img = twoPlanes();
+        RandomAccess<UnsignedIntType> access = img.randomAccess();
+        for (int y = 2; y >= 0; y--) {
+            for (int x = 3; x >= 0; x--) {
+                access.setPosition(new long[]{x, y, 0});
+                assertEquals(Integer.toUnsignedLong(PLANE[y * 4 + x]), access.get().get());
+                access.setPosition(1, 2);
+                assertEquals(0, access.get().get());
+            }
+        }
+    }
+
+    @Test
+    public void testTransposedPlanes() {
+        byte[] transposed = new byte[PLANE.length];
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 4; x++) {
+                transposed[x * 3 + y] = (byte) PLANE[y * 4 + x];
+            }
+        }
+        RunLengthLabelImgBuilder<UnsignedByteType> builder = new RunLengthLabelImgBuilder<>(new UnsignedByteType(), new long[]{4, 3});
+        builder.addPlane(transposed, 3, true);
+        RunLengthLabelImg<UnsignedByteType> img = builder.build();
+
+        Cursor<UnsignedByteType> cursor = img.cursor();
+        for (int label : PLANE) {
+            assertEquals(label & 0xff, cursor.next().get());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAllRowsMustBeAdded() {
+        RunLengthLabelImgBuilder<UnsignedIntType> builder = new RunLengthLabelImgBuilder<>(new UnsignedIntType(), new long[]{4, 3, 2});
+        builder.addPlane(PLANE, 3, false);
+        builder.build();
+    }
+
+    @Test
+    public void testWritesFail() {
+        RunLengthLabelImg<UnsignedIntType> img = twoPlanes();
+        Cursor<UnsignedIntType> cursor = img.cursor();
+        cursor.jump(2);
+        try {
+            cursor.get().set(7);
+            fail("writes through a cursor must fail");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        RandomAccess<UnsignedIntType> access = img.randomAccess();
+        access.setPosition(new long[]{1, 0, 0});
+        try {
+            access.get().setZero();
+            fail("writes through a random access must fail");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        // the labels are unchanged and copies can be written to
+        assertEquals(1, access.get().get());
+        UnsignedIntType copy = access.get().createVariable();
+        copy.set(access.get());
+        copy.inc();
+        assertEquals(2, copy.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOnlyUnsignedLabelsAreEncoded() {
+        new RunLengthLabelImgBuilder<>(new LongType(), new long[]{4, 3});
+    }
+}
@@ -0,0 +1,144 @@
+package org.ilastik.ilastik4ij;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.ilastik.ilastik4ij.util.SimpleSegmentation;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+public class SimpleSegmentationTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static int labelAt(ImgPlus<UnsignedByteType> labels, long... position) {
+        RandomAccess<UnsignedByteType> access = labels.randomAccess();
+        access.setPosition(position);
+        return access.get().get();
+    }
+
+    private static void set(Img<FloatType> img, float value, long... position) {
+        RandomAccess<FloatType> access = img.randomAccess();
+        access.setPosition(position);
+        access.get().set(value);
+    }
+
+    @Test
+    public void testLabelIsOnePlusIndexOfHighestChannel() throws InterruptedException {
+        Img<FloatType> img = ArrayImgs.floats(2, 1, 3);
+        set(img, 0.2f, 0, 0, 0);
+        set(img, 0.7f, 0, 0, 1);
+        set(img, 0.1f, 0, 0, 2);
+        set(img, 0.5f, 1, 0, 0);
+        set(img, 0.1f, 1, 0, 1);
+        set(img, 0.4f, 1, 0, 2);
+
+        ImgPlus<UnsignedByteType> labels = SimpleSegmentation.compute(
+                new ImgPlus<>(img, "probabilities", Axes.X, Axes.Y, Axes.CHANNEL), executor);
+
+        assertEquals(3, labels.numDimensions());
+        assertEquals(1, labels.dimension(2));
+        assertEquals(Axes.CHANNEL, labels.axis(2).type());
+        assertEquals(2, labelAt(labels, 0, 0, 0));
+        assertEquals(1, labelAt(labels, 1, 0, 0));
+    }
+
+    @Test
+    public void testTiesAndNaNLikeNumpyArgmax() throws InterruptedException {
+        Img<FloatType> img = ArrayImgs.floats(3, 1, 3);
+        // a tie goes to the first channel
+        set(img, 0.4f, 0, 0, 0);
+        set(img, 0.4f, 0, 0, 1);
+        set(img, 0.2f, 0, 0, 2);
+        // the first NaN wins over everything else
+        set(img, 0.9f, 1, 0, 0);
+        set(img, Float.NaN, 1, 0, 1);
+        set(img, Float.NaN, 1, 0, 2);
+        // all equal
+        set(img, 0.5f, 2, 0, 0);
+        set(img, 0.5f, 2, 0, 1);
+        set(img, 0.5f, 2, 0, 2);
+
+        ImgPlus<UnsignedByteType> labels = SimpleSegmentation.compute(
+                new ImgPlus<>(img, "probabilities", Axes.X, Axes.Y, Axes.CHANNEL), null);
+
+        assertEquals(1, labelAt(labels, 0, 0, 0));
+        assertEquals(2, labelAt(labels, 1, 0, 0));
+        assertEquals(1, labelAt(labels, 2, 0, 0));
+    }
+
+    @Test
+    public void testManyBlocksMatchPixelwiseArgmax() throws InterruptedException {
+        // x, y, c, z, t like results read from ilastik, large enough for several blocks per slice
+        long[] dims = {301, 257, 4, 3, 2};
+        Img<FloatType> img = PlanarImgs.floats(dims);
+        Random random = new Random(42);
+        for (FloatType value : img) {
+            // few distinct values, so that there are ties
+            value.set(random.nextInt(8) / 8f);
+        }
+
+        ImgPlus<UnsignedByteType> labels = SimpleSegmentation.compute(
+                new ImgPlus<>(img, "probabilities", Axes.X, Axes.Y, Axes.CHANNEL, Axes.Z, Axes.TIME), executor);
+
+        RandomAccess<FloatType> probabilities = img.randomAccess();
+        RandomAccess<UnsignedByteType> label = labels.randomAccess();
+        for (int t = 0; t < dims[4]; t++) {
+            for (int z = 0; z < dims[3]; z++) {
+                for (int y = 0; y < dims[1]; y++) {
+                    for (int x = 0; x < dims[0]; x++) {
+                        int expected = 0;
+                        float best = Float.NEGATIVE_INFINITY;
+                        for (int c = 0; c < dims[2]; c++) {
+                            probabilities.setPosition(new long[]{x, y, c, z, t});
+                            if (probabilities.get().get() > best) {
+                                best = probabilities.get().get();
+                                expected = c + 1;
+                            }
+                        }
+                        label.setPosition(new long[]{x, y, 0, z, t});
+                        assertEquals(expected, label.get().get());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testChannelAxisAnywhere() throws InterruptedException {
+        Img<FloatType> img = ArrayImgs.floats(2, 4, 3);
+        set(img, 1f, 1, 2, 0);
+        set(img, 1f, 0, 3, 2);
+
+        ImgPlus<UnsignedByteType> labels = SimpleSegmentation.compute(
+                new ImgPlus<>(img, "probabilities", Axes.CHANNEL, Axes.X, Axes.Y), executor);
+
+        assertEquals(1, labels.dimension(0));
+        assertEquals(4, labels.dimension(1));
+        assertEquals(2, labelAt(labels, 0, 2, 0));
+        assertEquals(1, labelAt(labels, 0, 3, 2));
+        assertEquals(1, labelAt(labels, 0, 0, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyClasses() throws InterruptedException {
+        SimpleSegmentation.compute(new ImgPlus<>(ArrayImgs.floats(1, 1, 256), "probabilities",
+                Axes.X, Axes.Y, Axes.CHANNEL), null);
+    }
+}
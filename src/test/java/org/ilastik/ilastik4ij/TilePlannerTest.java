@@ -0,0 +1,102 @@
+package org.ilastik.ilastik4ij;
+
+import org.ilastik.ilastik4ij.util.TilePlanner;
+import org.ilastik.ilastik4ij.util.TilePlanner.Tile;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TilePlannerTest {
+
+    @Test
+    public void testCoresCoverImageExactlyOnce() {
+        long[] dims = {100, 70, 5};
+        long[] halo = {8, 8, 2};
+        List<Tile> tiles = TilePlanner.plan(dims, new long[]{32, 32, 2}, halo);
+        assertEquals(4 * 3 * 3, tiles.size());
+
+        int[][][] covered = new int[100][70][5];
+        for (Tile tile : tiles) {
+            long[] coreMin = tile.getCoreMin();
+            long[] coreMax = tile.getCoreMax();
+            for (int x = (int) coreMin[0]; x <= coreMax[0]; x++) {
+                for (int y = (int) coreMin[1]; y <= coreMax[1]; y++) {
+                    for (int z = (int) coreMin[2]; z <= coreMax[2]; z++) {
+                        covered[x][y][z]++;
+                    }
+                }
+            }
+        }
+        for (int[][] plane : covered) {
+            for (int[] row : plane) {
+                for (int count : row) {
+                    assertEquals(1, count);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testHaloIsClampedToImage() {
+        long[] dims = {100, 70, 1};
+        List<Tile> tiles = TilePlanner.plan(dims, new long[]{50, 70, 1}, new long[]{10, 10, 0});
+        assertEquals(2, tiles.size());
+
+        assertArrayEquals(new long[]{0, 0, 0}, tiles.get(0).getHaloMin());
+        assertArrayEquals(new long[]{59, 69, 0}, tiles.get(0).getHaloMax());
+        assertArrayEquals(new long[]{40, 0, 0}, tiles.get(1).getHaloMin());
+        assertArrayEquals(new long[]{99, 69, 0}, tiles.get(1).getHaloMax());
+        assertArrayEquals(new long[]{50, 0, 0}, tiles.get(1).getCoreMin());
+    }
+
+    @Test
+    public void testTileShapeSplitsLongestAxisUntilEnoughTiles() {
+        long[] dims = {4000, 1000, 1};
+        long[] shape = TilePlanner.chooseTileShape(dims, new long[]{20, 20, 0}, 4, Long.MAX_VALUE);
+        assertArrayEquals(new long[]{1000, 1000, 1}, shape);
+    }
+
+    @Test
+    public void testTileShapeRespectsVoxelLimitIncludingHalo() {
+        long[] dims = {1000, 1000, 1};
+        long[] halo = {10, 10, 0};
+        long maxVoxels = 300 * 300;
+        long[] shape = TilePlanner.chooseTileShape(dims, halo, 1, maxVoxels);
+        assertTrue((shape[0] + 2 * halo[0]) * (shape[1] + 2 * halo[1]) <= maxVoxels);
+    }
+
+    @Test
+    public void testTileCoresAreNotSmallerThanTwiceTheHalo() {
+        long[] dims = {200, 200, 1};
+        long[] halo = {40, 40, 0};
+        long[] shape = TilePlanner.chooseTileShape(dims, halo, 64, 1);
+        assertTrue(shape[0] >= 80 && shape[1] >= 80);
+        assertEquals(1, shape[2]);
+    }
+
+    @Test
+    public void testFrameBatchesKeepFrameOrderAndUseAllProcesses() {
+        long[] dims = {64, 64, 1, 1000};
+        long[] shape = dims.clone();
+        shape[3] = TilePlanner.chooseBatchSize(dims[3], TilePlanner.countTiles(dims, shape), 8);
+        assertEquals(125, shape[3]);
+
+        List<Tile> batches = TilePlanner.plan(dims, shape, new long[dims.length]);
+        assertEquals(8, batches.size());
+        for (int i = 0; i < batches.size(); i++) {
+            assertEquals(i * 125, batches.get(i).getCoreMin()[3]);
+            assertArrayEquals(batches.get(i).getCoreMin(), batches.get(i).getHaloMin());
+        }
+    }
+
+    @Test
+    public void testNoMoreBatchesThanFramesOrNeeded() {
+        assertEquals(1, TilePlanner.chooseBatchSize(3, 1, 8));
+        assertEquals(10, TilePlanner.chooseBatchSize(10, 8, 8));
+        assertEquals(5, TilePlanner.chooseBatchSize(10, 4, 8));
+    }
+}
@@ -0,0 +1,141 @@
+package org.ilastik.ilastik4ij;
+
+import net.imagej.DatasetService;
+import net.imagej.ImageJ;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypes.ByteArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.ilastik.ilastik4ij.hdf5.Hdf5IoService;
+import org.ilastik.ilastik4ij.util.TilePlanner;
+import org.ilastik.ilastik4ij.util.TilePlanner.Tile;
+import org.ilastik.ilastik4ij.util.TiledPrediction;
+import org.junit.After;
+import org.junit.Test;
+import org.scijava.Context;
+import org.scijava.log.LogService;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TiledPredictionTest {
+
+    // the largest feature scale of the fake project
+    private static final double SCALE = 1.0;
+    // the filter of the fake project reaches 4.5 scales, as ilastik's structure tensor does
+    private static final long RADIUS = (long) Math.ceil(4.5 * SCALE);
+    // the halo the pixel classification command plans for that scale
+    private static final long HALO = (long) Math.ceil(4.5 * SCALE) + 1;
+
+    private final ImageJ ij = new ImageJ();
+    private final Context context = ij.getContext();
+    private final DatasetService ds = context.getService(DatasetService.class);
+    private final LogService log = context.getService(LogService.class);
+    private final Hdf5IoService ioService = context.getService(Hdf5IoService.class);
+
+    @After
+    public void tearDown() {
+        context.dispose();
+    }
+
+    /**
+     * Creates an image of 40x30 pixels and 3 frames of random values, so that misplaced tiles cannot match by chance.
+     */
+    private static ImgPlus<UnsignedByteType> createImage() {
+        ArrayImg<UnsignedByteType, ByteArray> img = ArrayImgs.unsignedBytes(40, 30, 3);
+        Random random = new Random(42);
+        for (UnsignedByteType pixel : img) {
+            pixel.set(random.nextInt(256));
+        }
+        AxisType[] axes = {Axes.X, Axes.Y, Axes.TIME};
+        return new ImgPlus<>(img, "image", axes);
+    }
+
+    /**
+     * Fake prediction: sums the square of {@link #RADIUS} around each pixel in x and y, frames are independent.
+     * Borders are mirrored, so only the borders of the whole image differ from the inside.
+     */
+    private static <T extends RealType<T>> ImgPlus<FloatType> predict(ImgPlus<T> image) {
+        long[] dims = new long[image.numDimensions()];
+        AxisType[] axes = new AxisType[image.numDimensions()];
+        for (int d = 0; d < dims.length; d++) {
+            dims[d] = image.dimension(d);
+            axes[d] = image.axis(d).type();
+        }
+        Img<FloatType> out = ArrayImgs.floats(dims);
+        RandomAccess<T> in = Views.extendMirrorSingle(image).randomAccess();
+        Cursor<FloatType> cursor = out.localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            float sum = 0;
+            for (long dy = -RADIUS; dy <= RADIUS; dy++) {
+                for (long dx = -RADIUS; dx <= RADIUS; dx++) {
+                    in.setPosition(cursor);
+                    in.move(dx, 0);
+                    in.move(dy, 1);
+                    sum += in.get().getRealFloat();
+                }
+            }
+            cursor.get().set(sum);
+        }
+        return new ImgPlus<>(out, "prediction", axes);
+    }
+
+    private ImgPlus predictTiles(ImgPlus<UnsignedByteType> image, long halo) throws InterruptedException {
+        IlastikOptions options = new IlastikOptions();
+        options.setNumThreads(4);
+        options.setMaxRamMb(4096);
+        TiledPrediction prediction = new TiledPrediction(image, "tiled", options, 4, ioService.getCpuExecutor(), ds, log);
+        long[] dims = TiledPrediction.dimensions(image);
+        // 4x3 tiles in space and batches of 2 frames, halos never reach along time
+        List<Tile> tiles = TilePlanner.plan(dims, new long[]{12, 12, 1, 2}, new long[]{halo, halo, 0, 0});
+        assertEquals(4 * 3 * 2, tiles.size());
+        return prediction.run(tiles, (index, tile) -> predict(TiledPrediction.crop(image, tile)));
+    }
+
+    private static int countDifferences(ImgPlus<FloatType> expected, ImgPlus<?> actual) {
+        for (int d = 0; d < expected.numDimensions(); d++) {
+            assertEquals(expected.dimension(d), actual.dimension(d));
+        }
+        int differences = 0;
+        RandomAccess<?> out = actual.randomAccess();
+        Cursor<FloatType> cursor = expected.localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            out.setPosition(cursor);
+            if (cursor.get().get() != ((RealType<?>) out.get()).getRealFloat()) {
+                differences++;
+            }
+        }
+        return differences;
+    }
+
+    @Test
+    public void testTiledEqualsUntiled() throws InterruptedException {
+        ImgPlus<UnsignedByteType> image = createImage();
+        ImgPlus<FloatType> untiled = predict(image);
+
+        assertEquals(0, countDifferences(untiled, predictTiles(image, HALO)));
+    }
+
+    @Test
+    public void testTooSmallHaloIsNoticed() throws InterruptedException {
+        ImgPlus<UnsignedByteType> image = createImage();
+        ImgPlus<FloatType> untiled = predict(image);
+
+        // tile borders inside the image then see mirrored context instead of their neighbours
+        assertTrue(countDifferences(untiled, predictTiles(image, RADIUS - 1)) > 0);
+    }
+}
@@ -0,0 +1,23 @@
+#!/bin/sh
+# Stand-in for ilastik4ij_worker.py speaking the same protocol, without needing ilastik.
+# Reports 1000 kB more resident memory after every job, jobs with a --fail argument exit with 1.
+echo "loading project $1" >&2
+TAB=$(printf '\t')
+jobs=0
+printf 'ILASTIK4IJ\tREADY\n'
+while IFS= read -r line; do
+    case "$line" in
+        "ILASTIK4IJ${TAB}QUIT"*)
+            exit 0
+            ;;
+        "ILASTIK4IJ${TAB}RUN"*)
+            jobs=$((jobs + 1))
+            echo "running job $jobs"
+            code=0
+            case "$line" in
+                *--fail*) code=1 ;;
+            esac
+            printf 'ILASTIK4IJ\tDONE\t%d\t%d\n' "$code" $((jobs * 1000))
+            ;;
+    esac
+done